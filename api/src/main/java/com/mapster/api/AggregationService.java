@@ -1,56 +1,240 @@
 package com.mapster.api;
 
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 public class AggregationService {
     private final JdbcTemplate jdbcTemplate;
+    private final DatasetGenerationService datasetGenerations;
+    private final RollupEngine rollupEngine;
+    private final ReferenceStatistics referenceStatistics;
+    private final AreaMetricsResultCache areaMetricsCache;
+    private final RollupWriteBehind writeBehind;
 
-    public AggregationService(JdbcTemplate jdbcTemplate) {
+    public AggregationService(
+        JdbcTemplate jdbcTemplate,
+        DatasetGenerationService datasetGenerations,
+        RollupEngine rollupEngine,
+        ReferenceStatistics referenceStatistics,
+        AreaMetricsResultCache areaMetricsCache,
+        RollupWriteBehind writeBehind
+    ) {
         this.jdbcTemplate = jdbcTemplate;
+        this.datasetGenerations = datasetGenerations;
+        this.rollupEngine = rollupEngine;
+        this.referenceStatistics = referenceStatistics;
+        this.areaMetricsCache = areaMetricsCache;
+        this.writeBehind = writeBehind;
     }
 
     public void addObservationToDailyRollups(String assignedAreaKey, String metricId, LocalDate day, BigDecimal value) {
         // Option 1 policy is encoded by assignment: we only roll up to ancestors (never distribute down).
-        // This upserts daily rollups for (self + ancestors) via geo.admin_area_ancestors.
-        jdbcTemplate.update(
+        // This upserts the daily, monthly and yearly rollups for (self + ancestors) via geo.admin_area_ancestors;
+        // range queries read the coarsest buckets that fit (see RollupBuckets). The value is also counted into each
+        // row's quantile sketch (see QuantileSketch). The keys (and depths) it rolled up to are then added to the
+        // in-memory RollupEngine and ReferenceStatistics, and their cached /area-metrics bodies are invalidated.
+        // With write-behind on, the observation is only combined in memory and written with the next flush.
+        if (writeBehind.enabled()) {
+            writeBehind.add(assignedAreaKey, metricId, day, value);
+            return;
+        }
+        Map<String, Integer> rolledUp = new LinkedHashMap<>();
+        jdbcTemplate.query(
             """
             WITH anc AS (
               SELECT ancestor_key, ancestor_depth
               FROM geo.admin_area_ancestors
               WHERE area_key = ?
+            ), obs AS (
+              SELECT ?::text AS metric_id, ?::date AS day, ?::numeric AS value
+            ), bucket AS (
+              SELECT jsonb_build_object(facts_agg.sketch_bucket(obs.value), 1) AS sketch FROM obs
+            ), daily AS (
+              INSERT INTO facts_agg.area_metric_daily (
+                area_key, area_depth, metric_id, day,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT anc.ancestor_key, anc.ancestor_depth, obs.metric_id, obs.day, 1, obs.value, obs.value, obs.value, bucket.sketch
+              FROM anc, obs, bucket
+              ON CONFLICT (area_key, metric_id, day) DO UPDATE
+                SET count_value = facts_agg.area_metric_daily.count_value + 1,
+                    sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_daily.sketch, EXCLUDED.sketch),
+                    updated_at = now()
+            ), monthly AS (
+              INSERT INTO facts_agg.area_metric_monthly (
+                area_key, area_depth, metric_id, month,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT anc.ancestor_key, anc.ancestor_depth, obs.metric_id, date_trunc('month', obs.day::timestamp)::date,
+                1, obs.value, obs.value, obs.value, bucket.sketch
+              FROM anc, obs, bucket
+              ON CONFLICT (area_key, metric_id, month) DO UPDATE
+                SET count_value = facts_agg.area_metric_monthly.count_value + 1,
+                    sum_value = facts_agg.area_metric_monthly.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_monthly.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_monthly.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_monthly.sketch, EXCLUDED.sketch),
+                    updated_at = now()
+            ), yearly AS (
+              INSERT INTO facts_agg.area_metric_yearly (
+                area_key, area_depth, metric_id, year,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT anc.ancestor_key, anc.ancestor_depth, obs.metric_id, date_trunc('year', obs.day::timestamp)::date,
+                1, obs.value, obs.value, obs.value, bucket.sketch
+              FROM anc, obs, bucket
+              ON CONFLICT (area_key, metric_id, year) DO UPDATE
+                SET count_value = facts_agg.area_metric_yearly.count_value + 1,
+                    sum_value = facts_agg.area_metric_yearly.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_yearly.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_yearly.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_yearly.sketch, EXCLUDED.sketch),
+                    updated_at = now()
             )
-            INSERT INTO facts_agg.area_metric_daily (
-              area_key, area_depth, metric_id, day,
-              count_value, sum_value, min_value, max_value
-            )
-            SELECT
-              anc.ancestor_key,
-              anc.ancestor_depth,
-              ?,
-              ?,
-              1,
-              ?,
-              ?,
-              ?
-            FROM anc
-            ON CONFLICT (area_key, metric_id, day) DO UPDATE
-              SET count_value = facts_agg.area_metric_daily.count_value + 1,
-                  sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
-                  min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
-                  max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
-                  updated_at = now()
+            SELECT ancestor_key, ancestor_depth FROM anc
             """,
+            (RowCallbackHandler) rs -> rolledUp.put(rs.getString(1), rs.getInt(2)),
             assignedAreaKey,
             metricId,
             day,
-            value,
-            value,
             value
         );
+        rollupEngine.add(metricId, rolledUp.keySet(), day, value.doubleValue());
+        referenceStatistics.add(metricId, rolledUp, day, value.doubleValue());
+        areaMetricsCache.invalidate(metricId, rolledUp.keySet(), day);
+        datasetGenerations.markChanged(DatasetGenerationService.METRICS);
+    }
+
+    /**
+     * Rolls up all assigned rows of {@code stagingTable} (columns {@code metric_id}, {@code value},
+     * {@code observed_at}, {@code assigned_area_key}) like {@link #addObservationToDailyRollups}, but with one
+     * set-based upsert per rollup table: rows are grouped by (ancestor, metric, day, sketch bucket) first, so each
+     * rollup row is written once per batch however many observations it receives. Must run in the transaction that
+     * staged the rows. Rows are upserted in key order, so concurrent batches (parallel raw-record workers, several bulk
+     * loads) wait for each other on shared ancestor rows instead of deadlocking.
+     *
+     * The in-memory RollupEngine and ReferenceStatistics pick the new rows up with their next sync (as for writes of
+     * other replicas); cached /area-metrics bodies of the touched areas are invalidated right away.
+     */
+    public void addStagedObservationsToRollups(String stagingTable) {
+        Map<String, Map<LocalDate, Set<String>>> touched = new HashMap<>();
+        jdbcTemplate.query(
+            """
+            WITH bucketed AS (
+              SELECT
+                anc.ancestor_key,
+                anc.ancestor_depth,
+                o.metric_id,
+                (o.observed_at AT TIME ZONE 'UTC')::date AS day,
+                facts_agg.sketch_bucket(o.value) AS bucket,
+                count(*) AS c,
+                sum(o.value) AS s,
+                min(o.value) AS mn,
+                max(o.value) AS mx
+              FROM %s o
+              JOIN geo.admin_area_ancestors anc
+                ON anc.area_key = o.assigned_area_key
+              GROUP BY 1, 2, 3, 4, 5
+            ), daily AS (
+              INSERT INTO facts_agg.area_metric_daily (
+                area_key, area_depth, metric_id, day,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT b.ancestor_key, b.ancestor_depth, b.metric_id, b.day,
+                sum(b.c)::bigint, sum(b.s), min(b.mn), max(b.mx), jsonb_object_agg(b.bucket, b.c)
+              FROM bucketed b
+              GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.day
+              ORDER BY b.ancestor_key, b.metric_id, b.day
+              ON CONFLICT (area_key, metric_id, day) DO UPDATE
+                SET count_value = facts_agg.area_metric_daily.count_value + EXCLUDED.count_value,
+                    sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_daily.sketch, EXCLUDED.sketch),
+                    updated_at = now()
+              RETURNING area_key, metric_id, day
+            ), monthly AS (
+              INSERT INTO facts_agg.area_metric_monthly (
+                area_key, area_depth, metric_id, month,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT b.ancestor_key, b.ancestor_depth, b.metric_id, b.month,
+                sum(b.c)::bigint, sum(b.s), min(b.mn), max(b.mx), jsonb_object_agg(b.bucket, b.c)
+              FROM (
+                SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('month', day::timestamp)::date AS month, bucket,
+                  sum(c) AS c, sum(s) AS s, min(mn) AS mn, max(mx) AS mx
+                FROM bucketed
+                GROUP BY 1, 2, 3, 4, 5
+              ) b
+              GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.month
+              ORDER BY b.ancestor_key, b.metric_id, b.month
+              ON CONFLICT (area_key, metric_id, month) DO UPDATE
+                SET count_value = facts_agg.area_metric_monthly.count_value + EXCLUDED.count_value,
+                    sum_value = facts_agg.area_metric_monthly.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_monthly.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_monthly.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_monthly.sketch, EXCLUDED.sketch),
+                    updated_at = now()
+            ), yearly AS (
+              INSERT INTO facts_agg.area_metric_yearly (
+                area_key, area_depth, metric_id, year,
+                count_value, sum_value, min_value, max_value, sketch
+              )
+              SELECT b.ancestor_key, b.ancestor_depth, b.metric_id, b.year,
+                sum(b.c)::bigint, sum(b.s), min(b.mn), max(b.mx), jsonb_object_agg(b.bucket, b.c)
+              FROM (
+                SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('year', day::timestamp)::date AS year, bucket,
+                  sum(c) AS c, sum(s) AS s, min(mn) AS mn, max(mx) AS mx
+                FROM bucketed
+                GROUP BY 1, 2, 3, 4, 5
+              ) b
+              GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.year
+              ORDER BY b.ancestor_key, b.metric_id, b.year
+              ON CONFLICT (area_key, metric_id, year) DO UPDATE
+                SET count_value = facts_agg.area_metric_yearly.count_value + EXCLUDED.count_value,
+                    sum_value = facts_agg.area_metric_yearly.sum_value + EXCLUDED.sum_value,
+                    min_value = LEAST(facts_agg.area_metric_yearly.min_value, EXCLUDED.min_value),
+                    max_value = GREATEST(facts_agg.area_metric_yearly.max_value, EXCLUDED.max_value),
+                    sketch = facts_agg.sketch_merge(facts_agg.area_metric_yearly.sketch, EXCLUDED.sketch),
+                    updated_at = now()
+            )
+            SELECT area_key, metric_id, day FROM daily
+            """.formatted(stagingTable),
+            (RowCallbackHandler) rs -> touched
+                .computeIfAbsent(rs.getString(2), k -> new HashMap<>())
+                .computeIfAbsent(rs.getObject(3, LocalDate.class), k -> new HashSet<>())
+                .add(rs.getString(1))
+        );
+        if (touched.isEmpty()) return;
+        Runnable published = () -> {
+            touched.forEach((metricId, days) -> days.forEach((day, areaKeys) -> areaMetricsCache.invalidate(metricId, areaKeys, day)));
+            datasetGenerations.markChanged(DatasetGenerationService.METRICS);
+        };
+        // A refresh started before the commit would cache the old values again.
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    published.run();
+                }
+            });
+        } else {
+            published.run();
+        }
     }
 }
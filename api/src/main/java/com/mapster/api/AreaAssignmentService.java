@@ -8,14 +8,33 @@ import java.util.Optional;
 @Service
 public class AreaAssignmentService {
     private final JdbcTemplate jdbcTemplate;
+    private final AreaIndex areaIndex;
+    private final AssignmentCellCache cellCache;
 
-    public AreaAssignmentService(JdbcTemplate jdbcTemplate) {
+    public AreaAssignmentService(JdbcTemplate jdbcTemplate, AreaIndex areaIndex, AssignmentCellCache cellCache) {
         this.jdbcTemplate = jdbcTemplate;
+        this.areaIndex = areaIndex;
+        this.cellCache = cellCache;
     }
 
     public record Assignment(String areaKey, short depth) {}
 
     public Optional<Assignment> assignByPoint(double lon, double lat) {
+        // The in-memory index answers without a round trip; it misses only outside every leaf unit. Until it has
+        // loaded (or when it is disabled) the point query below is all there is: classifying cells in SQL would cost
+        // more than the query it saves.
+        if (areaIndex.ready()) {
+            // Points in a grid cell that lies within one leaf need no polygon test at all.
+            AssignmentCellCache.Cell cell = cellCache.cell(lon, lat, areaIndex.generation(), areaIndex::classify);
+            if (cell.kind() == AssignmentCellCache.Kind.INSIDE) return Optional.of(cell.assignment());
+            if (cell.kind() == AssignmentCellCache.Kind.MIXED) {
+                Optional<Assignment> indexed = areaIndex.assign(lon, lat);
+                if (indexed.isPresent()) return indexed;
+            }
+            // Outside every leaf is not outside every area: a gap between children still lies in their parent, which
+            // only the query below (over all units) finds.
+        }
+
         // Prefer the most detailed area that contains the point.
         // Note: admin_areas is recreated by the import job, so we use gid_* derived keys (geo.area_key).
         String sql = """
@@ -33,4 +52,42 @@ public class AreaAssignmentService {
             return Optional.of(new Assignment(rs.getString("area_key"), rs.getShort("depth")));
         }, lon, lat);
     }
+
+    /** The in-memory index's assignment only (see {@link AreaIndex}); empty where {@link #assignByPoint} would ask SQL. */
+    public Optional<Assignment> assignInMemory(double lon, double lat) {
+        if (!areaIndex.ready()) return Optional.empty();
+        AssignmentCellCache.Cell cell = cellCache.cell(lon, lat, areaIndex.generation(), areaIndex::classify);
+        if (cell.kind() == AssignmentCellCache.Kind.INSIDE) return Optional.of(cell.assignment());
+        if (cell.kind() == AssignmentCellCache.Kind.OUTSIDE) return Optional.empty();
+        return areaIndex.assign(lon, lat);
+    }
+
+    /**
+     * Assigns the staged rows of {@code stagingTable} (columns {@code line}, {@code lon}, {@code lat},
+     * {@code assigned_area_key}, {@code assigned_depth}) that have coordinates but no area yet, as
+     * {@link #assignByPoint} does, in one statement. Must run in the transaction (session) that staged the rows.
+     *
+     * @return the number of rows assigned
+     */
+    public int assignStaged(String stagingTable) {
+        return jdbcTemplate.update(
+            """
+            UPDATE %1$s s
+            SET assigned_area_key = a.area_key, assigned_depth = a.depth
+            FROM %1$s p
+            CROSS JOIN LATERAL (
+              SELECT
+                geo.area_key(gid_0, gid_1, gid_2, gid_3, gid_4, gid_5) AS area_key,
+                geo.area_depth(gid_1, gid_2, gid_3, gid_4, gid_5) AS depth
+              FROM public.admin_areas
+              WHERE ST_Covers(geom, ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326))
+              ORDER BY geo.area_depth(gid_1, gid_2, gid_3, gid_4, gid_5) DESC
+              LIMIT 1
+            ) a
+            WHERE s.line = p.line
+              AND p.assigned_area_key IS NULL
+              AND p.lon IS NOT NULL AND p.lat IS NOT NULL
+            """.formatted(stagingTable)
+        );
+    }
 }
@@ -0,0 +1,230 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Optional in-process point-in-polygon index for area assignment ({@code mapster.area-index.enabled}).
+ *
+ * Holds the leaf admin units of {@code public.admin_areas} (those that are nobody's ancestor, i.e. the most detailed
+ * unit wherever one exists), cut by {@code ST_Subdivide} into pieces of at most {@code max-vertices} vertices,
+ * each a JTS {@link PreparedGeometry} in an {@link STRtree}. A lookup is an envelope query plus a covers test against a
+ * few small pieces; no database round trip. The tree is immutable once built and prepared geometries build their
+ * indexes under a lock, so lookups are safe from any number of threads.
+ *
+ * The index is built at startup and rebuilt in the background whenever the boundaries generation changes (a reimport);
+ * lookups keep using the previous tree until the new one is swapped in. While none is loaded, or for points outside
+ * every leaf (sea, gaps between children), {@link #assign} is empty and callers fall back to the SQL lookup.
+ *
+ * Memory grows with the full-resolution vertex count of the leaves: expect a few GB for a worldwide import.
+ */
+@Component
+public class AreaIndex {
+    private static final Logger logger = LoggerFactory.getLogger(AreaIndex.class);
+
+    private static final String LOAD_SQL = """
+        SELECT k.area_key, k.depth, ST_AsBinary(ST_Subdivide(a.geom, ?)) AS wkb
+        FROM public.admin_areas a
+        CROSS JOIN LATERAL (
+          SELECT
+            geo.area_key(a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS area_key,
+            geo.area_depth(a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS depth
+        ) k
+        WHERE a.geom IS NOT NULL
+          AND NOT EXISTS (
+            SELECT 1 FROM geo.admin_area_ancestors c
+            WHERE c.ancestor_key = k.area_key AND c.distance > 0
+          )
+        """;
+
+    /** One subdivided piece of a leaf unit. */
+    private record Piece(String areaKey, short depth, PreparedGeometry geometry) {}
+
+    private record Loaded(STRtree tree, int pieces, long generation) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final DatasetGenerationService datasetGenerations;
+    private final boolean enabled;
+    private final int maxVertices;
+    private final int fetchSize;
+    private final GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private volatile Loaded loaded;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer loadTimer;
+
+    public AreaIndex(
+        JdbcTemplate jdbcTemplate,
+        ObjectProvider<PlatformTransactionManager> transactionManager,
+        DatasetGenerationService datasetGenerations,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.area-index.enabled:false}") boolean enabled,
+        @Value("${mapster.area-index.max-vertices:256}") int maxVertices,
+        @Value("${mapster.streaming.fetch-size:256}") int fetchSize
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        PlatformTransactionManager tm = transactionManager.getIfAvailable();
+        if (tm != null) {
+            this.readOnlyTransaction = new TransactionTemplate(tm);
+            this.readOnlyTransaction.setReadOnly(true);
+        } else {
+            this.readOnlyTransaction = null;
+        }
+        this.datasetGenerations = datasetGenerations;
+        this.enabled = enabled;
+        this.maxVertices = Math.max(8, maxVertices);
+        this.fetchSize = Math.max(fetchSize, 1000);
+        this.hits = Counter.builder("mapster.area_index.lookups").tag("outcome", "hit")
+            .description("Point lookups against the in-memory area index, by outcome (miss = outside every loaded unit)").register(meterRegistry);
+        this.misses = Counter.builder("mapster.area_index.lookups").tag("outcome", "miss")
+            .description("Point lookups against the in-memory area index, by outcome (miss = outside every loaded unit)").register(meterRegistry);
+        this.loadTimer = Timer.builder("mapster.area_index.load")
+            .description("Time to load and subdivide the leaf units into the area index")
+            .register(meterRegistry);
+        Gauge.builder("mapster.area_index.pieces", this, index -> index.loaded == null ? 0 : index.loaded.pieces())
+            .description("Subdivided polygon pieces in the loaded area index")
+            .register(meterRegistry);
+    }
+
+    public boolean ready() {
+        return loaded != null;
+    }
+
+    /** The boundaries generation of the loaded tree, or {@link Long#MIN_VALUE} while nothing is loaded. */
+    public long generation() {
+        Loaded current = loaded;
+        return current == null ? Long.MIN_VALUE : current.generation();
+    }
+
+    /** The most detailed loaded unit covering the point, or empty if none (or nothing is loaded yet). */
+    public Optional<AreaAssignmentService.Assignment> assign(double lon, double lat) {
+        Loaded current = loaded;
+        if (current == null) return Optional.empty();
+        Point point = geometryFactory.createPoint(new Coordinate(lon, lat));
+        Piece best = null;
+        @SuppressWarnings("unchecked")
+        List<Piece> candidates = current.tree().query(new Envelope(lon, lon, lat, lat));
+        for (Piece piece : candidates) {
+            if ((best == null || piece.depth() > best.depth()) && piece.geometry().covers(point)) {
+                best = piece;
+            }
+        }
+        if (best == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(new AreaAssignmentService.Assignment(best.areaKey(), best.depth()));
+    }
+
+    /**
+     * Classifies a grid cell for {@link AssignmentCellCache}, or returns null while nothing is loaded. A cell is inside
+     * an area when one piece of the deepest intersecting leaves covers it and no other leaf of that depth touches it;
+     * a cell crossing a subdivision cut of a single area counts as mixed (conservative).
+     */
+    public AssignmentCellCache.Cell classify(AssignmentCellCache.Bounds bounds) {
+        Loaded current = loaded;
+        if (current == null) return null;
+        Envelope envelope = new Envelope(bounds.minLon(), bounds.maxLon(), bounds.minLat(), bounds.maxLat());
+        Geometry cell = geometryFactory.toGeometry(envelope);
+        int deepest = -1;
+        String areaKey = null;
+        boolean single = true;
+        Piece covering = null;
+        @SuppressWarnings("unchecked")
+        List<Piece> candidates = current.tree().query(envelope);
+        for (Piece piece : candidates) {
+            if (piece.depth() < deepest || !piece.geometry().intersects(cell)) continue;
+            if (piece.depth() > deepest) {
+                deepest = piece.depth();
+                areaKey = piece.areaKey();
+                single = true;
+                covering = null;
+            } else if (!piece.areaKey().equals(areaKey)) {
+                single = false;
+            }
+            if (covering == null && piece.geometry().covers(cell)) covering = piece;
+        }
+        if (deepest < 0) return AssignmentCellCache.Cell.OUTSIDE;
+        if (!single || covering == null || !covering.areaKey().equals(areaKey)) return AssignmentCellCache.Cell.MIXED;
+        return AssignmentCellCache.Cell.inside(new AreaAssignmentService.Assignment(covering.areaKey(), covering.depth()));
+    }
+
+    @Scheduled(
+        initialDelayString = "${mapster.area-index.initial-delay-ms:0}",
+        fixedDelayString = "${mapster.area-index.check-interval-ms:30000}"
+    )
+    public void refresh() {
+        if (!enabled) return;
+        long generation = datasetGenerations.boundaries();
+        Loaded current = loaded;
+        if (current != null && current.generation() == generation) return;
+        try {
+            loaded = loadTimer.recordCallable(() -> load(generation));
+            logger.info("[INFO] area index loaded {} pieces for boundaries generation {}", loaded.pieces(), generation);
+        } catch (Exception e) {
+            // Keep the previous tree (or the SQL fallback); the next check retries.
+            logger.warn("[WARN] area index load failed: {}", e.getMessage());
+        }
+    }
+
+    private Loaded load(long generation) {
+        STRtree tree = new STRtree();
+        WKBReader reader = new WKBReader(geometryFactory);
+        int[] pieces = {0};
+        Runnable query = () -> jdbcTemplate.query(
+            new FeatureStreamer.CursorStatement(LOAD_SQL, new Object[] {maxVertices}, fetchSize),
+            (RowCallbackHandler) rs -> {
+                Geometry geometry = read(reader, rs.getBytes(3));
+                tree.insert(geometry.getEnvelopeInternal(),
+                    new Piece(rs.getString(1), rs.getShort(2), PreparedGeometryFactory.prepare(geometry)));
+                pieces[0]++;
+            });
+        if (readOnlyTransaction != null) {
+            readOnlyTransaction.executeWithoutResult(status -> query.run());
+        } else {
+            query.run();
+        }
+        // Build now rather than on the first concurrent query.
+        tree.build();
+        return new Loaded(tree, pieces[0], generation);
+    }
+
+    private static Geometry read(WKBReader reader, byte[] wkb) throws SQLException {
+        try {
+            return reader.read(wkb);
+        } catch (ParseException e) {
+            throw new SQLException("invalid WKB from ST_Subdivide", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory cache for gzip-compressed /area-metrics/{z}/{x}/{y} bodies, bounded by total compressed bytes.
+ *
+ * Keys are the response ETags, which already encode tile, depth, metric, range and both dataset generations.
+ */
+@Component
+public class AreaMetricTileCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+    private final ByteWeightedCache<String, byte[]> cache;
+
+    public AreaMetricTileCache(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.area-metric-tiles.cache.max-bytes:33554432}") long maxBytes,
+        @Value("${mapster.area-metric-tiles.cache.max-entry-bytes:1048576}") long maxEntryBytes
+    ) {
+        this.cache = new ByteWeightedCache<String, byte[]>(
+            "area-metric-tiles",
+            maxBytes,
+            maxEntryBytes,
+            body -> body.length + ENTRY_OVERHEAD_BYTES
+        ).bindTo(meterRegistry);
+    }
+
+    public byte[] get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, byte[] gzippedBody) {
+        cache.put(key, gzippedBody);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
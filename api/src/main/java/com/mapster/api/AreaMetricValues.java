@@ -0,0 +1,217 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geometry-free metric values per admin area, for clients that already hold the boundaries (admin tiles).
+ *
+ * Areas are selected by depth and either a bbox or a list of tiles; only areas with observations in the range are
+ * returned. Values are laid out as parallel arrays (one entry per area, joined on {@code area_key}), so switching the
+ * metric or the range costs a few bytes per area instead of a geometry download.
+ *
+ * Bands use the same depth-wide reference as the metric tiles, so values and tiles shade identically and do not
+ * depend on the requested region; with {@code reference=country} the average bands use each area's country instead.
+ * The references come from {@link ReferenceStatistics} once it has loaded, otherwise from the rollups in SQL.
+ */
+@Component
+public class AreaMetricValues {
+    /** Upper bound on {@code tiles} per request; a viewport needs far fewer. */
+    public static final int MAX_TILES = 256;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final GeometryPyramid geometryPyramid;
+    private final ReferenceStatistics referenceStatistics;
+
+    public AreaMetricValues(JdbcTemplate jdbcTemplate, GeometryPyramid geometryPyramid, ReferenceStatistics referenceStatistics) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.geometryPyramid = geometryPyramid;
+        this.referenceStatistics = referenceStatistics;
+    }
+
+    /** Region of a values request: a WGS84 bbox, or tiles of one zoom level. */
+    public sealed interface Region permits BBox, Tiles {}
+
+    public record BBox(double minLon, double minLat, double maxLon, double maxLat) implements Region {}
+
+    public record Tiles(int z, int[] x, int[] y) implements Region {
+        /**
+         * Parses {@code z/x/y,z/x/y,...}.
+         *
+         * @throws IllegalArgumentException if a tile is malformed, zooms differ or there are too many tiles
+         */
+        public static Tiles parse(String tiles) {
+            String[] parts = tiles.split(",");
+            if (parts.length > MAX_TILES) throw new IllegalArgumentException("at most " + MAX_TILES + " tiles per request");
+            int z = -1;
+            int[] x = new int[parts.length];
+            int[] y = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                String[] zxy = parts[i].trim().split("/");
+                if (zxy.length != 3) throw new IllegalArgumentException("tiles must be z/x/y: " + parts[i]);
+                int tz;
+                try {
+                    tz = Integer.parseInt(zxy[0]);
+                    x[i] = Integer.parseInt(zxy[1]);
+                    y[i] = Integer.parseInt(zxy[2]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("tiles must be z/x/y: " + parts[i]);
+                }
+                if (tz < 0 || tz > 22 || x[i] < 0 || y[i] < 0 || x[i] >= (1 << tz) || y[i] >= (1 << tz)) {
+                    throw new IllegalArgumentException("tile out of range: " + parts[i]);
+                }
+                if (z >= 0 && tz != z) throw new IllegalArgumentException("all tiles must have the same zoom");
+                z = tz;
+            }
+            return new Tiles(z, x, y);
+        }
+    }
+
+    /** Columnar payload: entry i of every array belongs to {@code area_key[i]}. */
+    public record Values(
+        String metricId,
+        int depth,
+        LocalDate from,
+        LocalDate to,
+        String reference,
+        // The depth-wide average; null with reference=country, where each country has its own.
+        @JsonProperty("reference_avg") Double referenceAvg,
+        @JsonProperty("area_key") List<String> areaKey,
+        List<Double> avg,
+        List<Long> count,
+        List<Double> min,
+        List<Double> max,
+        List<Integer> band,
+        List<Double> p50,
+        List<Double> p90,
+        @JsonProperty("quantile_band") List<Integer> quantileBand
+    ) {}
+
+    /** @throws IllegalArgumentException for {@code reference=viewport}, which tiles could not shade consistently */
+    public Values query(
+        String metricId, int depth, Region region, LocalDate from, LocalDate to, ReferenceStatistics.Reference reference
+    ) {
+        if (reference == ReferenceStatistics.Reference.VIEWPORT) {
+            throw new IllegalArgumentException("reference must be global or country");
+        }
+        boolean byCountry = reference == ReferenceStatistics.Reference.COUNTRY;
+        boolean generalized = geometryPyramid.available();
+        List<Object> params = new ArrayList<>();
+        StringBuilder sql = new StringBuilder();
+
+        sql.append("WITH ");
+        if (region instanceof BBox b) {
+            sql.append("env AS (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS e), ");
+            params.add(b.minLon());
+            params.add(b.minLat());
+            params.add(b.maxLon());
+            params.add(b.maxLat());
+        } else if (region instanceof Tiles t) {
+            // One envelope per tile; the pyramid is filtered in 3857, admin_areas in 4326.
+            sql.append("env AS (SELECT ");
+            sql.append(generalized ? "tile.e3857 AS e" : "ST_Transform(tile.e3857, 4326) AS e");
+            sql.append(" FROM (SELECT ST_TileEnvelope(?, u.x, u.y) AS e3857 FROM unnest(?::int[], ?::int[]) u(x, y)) tile), ");
+            params.add(t.z());
+            params.add(boxed(t.x()));
+            params.add(boxed(t.y()));
+        }
+
+        String geomColumn;
+        if (generalized) {
+            geomColumn = region instanceof Tiles ? "geom_3857" : "geom_4326";
+        } else {
+            geomColumn = "geom";
+        }
+        sql.append("areas AS (");
+        sql.append("  SELECT DISTINCT a.area_key ");
+        sql.append("  FROM ").append(generalized ? GeometryPyramid.TABLE : "geo.admin_areas").append(" a, env ");
+        sql.append("  WHERE a.").append(geomColumn).append(" && env.e ");
+        sql.append("    AND ST_Intersects(a.").append(geomColumn).append(", env.e) ");
+        if (generalized) {
+            // Any one level of the depth will do for selecting areas; take the depth's own.
+            sql.append("    AND a.tolerance_m = ").append(GeometryPyramid.toleranceMeters(depth)).append(" ");
+        }
+        sql.append("    AND a.depth = ?");
+        params.add(depth);
+        sql.append("), agg AS (");
+        sql.append("  SELECT d.area_key, ");
+        sql.append("    SUM(d.sum_value) AS sum_value, ");
+        sql.append("    SUM(d.count_value) AS count_value, ");
+        sql.append("    MIN(d.min_value) AS min_value, ");
+        sql.append("    MAX(d.max_value) AS max_value, ");
+        sql.append("    facts_agg.sketch_union(d.sketch) AS sketch ");
+        sql.append("  FROM ").append(RollupBuckets.sql(metricId, from, to, params)).append(" d ");
+        sql.append("  JOIN areas ar ON ar.area_key = d.area_key ");
+        sql.append("  GROUP BY d.area_key ");
+        sql.append("  HAVING SUM(d.count_value) > 0");
+        sql.append("), ");
+        boolean precomputed = referenceStatistics.ready();
+        sql.append(precomputed
+            ? referenceStatistics.referenceCte(metricId, depth, from, to, params)
+            : ReferenceStatistics.referenceSql(metricId, depth, from, to, params));
+        if (byCountry) {
+            sql.append(", ").append(precomputed
+                ? referenceStatistics.countryReferenceCte(metricId, depth, from, to, params)
+                : ReferenceStatistics.countryReferenceSql(metricId, depth, from, to, params));
+        }
+        sql.append(", quantiles AS (");
+        sql.append("  SELECT agg.*, ");
+        sql.append("    facts_agg.sketch_quantile(agg.sketch, 0.5) AS p50_value, ");
+        sql.append("    facts_agg.sketch_quantile(agg.sketch, 0.9) AS p90_value ");
+        sql.append("  FROM agg");
+        sql.append(") ");
+        sql.append("SELECT agg.area_key, ");
+        sql.append("  agg.count_value AS count, ");
+        sql.append("  (agg.sum_value / agg.count_value)::float8 AS avg, ");
+        sql.append("  agg.min_value::float8 AS min, ");
+        sql.append("  agg.max_value::float8 AS max, ");
+        String bandReference = byCountry ? "cr.reference_avg" : "reference.reference_avg";
+        sql.append("  ").append(MetricBands.sqlCase("(agg.sum_value / agg.count_value)", bandReference)).append(" AS band, ");
+        sql.append("  agg.p50_value AS p50, ");
+        sql.append("  agg.p90_value AS p90, ");
+        sql.append("  ").append(MetricBands.quantileSqlCase("agg.p50_value", "reference.reference_deciles")).append(" AS quantile_band, ");
+        sql.append("  ").append(byCountry ? "NULL" : "reference.reference_avg").append("::float8 AS reference_avg ");
+        sql.append("FROM quantiles agg CROSS JOIN reference ");
+        if (byCountry) {
+            sql.append("LEFT JOIN country_reference cr ON cr.country = split_part(agg.area_key, '|', 1) ");
+        }
+        sql.append("ORDER BY agg.area_key");
+
+        List<String> areaKey = new ArrayList<>();
+        List<Double> avg = new ArrayList<>();
+        List<Long> count = new ArrayList<>();
+        List<Double> min = new ArrayList<>();
+        List<Double> max = new ArrayList<>();
+        List<Integer> band = new ArrayList<>();
+        List<Double> p50 = new ArrayList<>();
+        List<Double> p90 = new ArrayList<>();
+        List<Integer> quantileBand = new ArrayList<>();
+        Double[] referenceAvg = {null};
+        jdbcTemplate.query(sql.toString(), rs -> {
+            areaKey.add(rs.getString("area_key"));
+            count.add(rs.getLong("count"));
+            avg.add(rs.getObject("avg", Double.class));
+            min.add(rs.getObject("min", Double.class));
+            max.add(rs.getObject("max", Double.class));
+            band.add(rs.getObject("band", Integer.class));
+            p50.add(rs.getObject("p50", Double.class));
+            p90.add(rs.getObject("p90", Double.class));
+            quantileBand.add(rs.getObject("quantile_band", Integer.class));
+            referenceAvg[0] = rs.getObject("reference_avg", Double.class);
+        }, params.toArray());
+
+        return new Values(metricId, depth, from, to, reference.param(), referenceAvg[0], areaKey, avg, count, min, max, band, p50, p90,
+            quantileBand);
+    }
+
+    private static Integer[] boxed(int[] values) {
+        Integer[] boxed = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) boxed[i] = values[i];
+        return boxed;
+    }
+}
@@ -0,0 +1,193 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metric values without geometry: {@code /area-metrics/values?metricId=&depth=&minLon=&minLat=&maxLon=&maxLat=}
+ * or {@code ?metricId=&tiles=z/x/y,...}, plus {@code from}, {@code to} and {@code v} as for /area-metrics and
+ * {@code reference=global|country} (what the average bands are relative to; default global).
+ *
+ * The web client shades the admin tiles it already holds by joining these values on {@code area_key}, so a metric or
+ * range switch downloads a few kilobytes instead of every polygon again. See {@link AreaMetricValues}.
+ *
+ * {@code /area-metrics/{z}/{x}/{y}?metricId=} returns the same payload for one tile. Tile URLs repeat across clients
+ * and pans (unlike viewport bboxes), so their bodies are also kept in {@link AreaMetricTileCache} and, pinned with
+ * {@code v} and an explicit range, cached as immutable by browsers and CDNs.
+ */
+@RestController
+public class AreaMetricValuesController {
+    private static final Logger logger = LoggerFactory.getLogger(AreaMetricValuesController.class);
+
+    private final AreaMetricValues areaMetricValues;
+    private final DatasetGenerationService datasetGenerations;
+    private final SingleFlights singleFlights;
+    private final Bulkheads bulkheads;
+    private final ObjectMapper objectMapper;
+    private final AreaMetricTileCache tileCache;
+
+    public AreaMetricValuesController(
+        AreaMetricValues areaMetricValues,
+        DatasetGenerationService datasetGenerations,
+        SingleFlights singleFlights,
+        Bulkheads bulkheads,
+        ObjectMapper objectMapper,
+        AreaMetricTileCache tileCache
+    ) {
+        this.areaMetricValues = areaMetricValues;
+        this.datasetGenerations = datasetGenerations;
+        this.singleFlights = singleFlights;
+        this.bulkheads = bulkheads;
+        this.objectMapper = objectMapper;
+        this.tileCache = tileCache;
+    }
+
+    @CrossOrigin(origins = "*")
+    @GetMapping(value = "/area-metrics/values", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getValues(
+        @RequestParam("metricId") String metricId,
+        @RequestParam(value = "depth", required = false) Integer depth,
+        @RequestParam(value = "zoom", required = false) Double zoom,
+        @RequestParam(value = "minLon", required = false) Double minLon,
+        @RequestParam(value = "minLat", required = false) Double minLat,
+        @RequestParam(value = "maxLon", required = false) Double maxLon,
+        @RequestParam(value = "maxLat", required = false) Double maxLat,
+        @RequestParam(value = "tiles", required = false) String tiles,
+        @RequestParam(value = "from", required = false) LocalDate from,
+        @RequestParam(value = "to", required = false) LocalDate to,
+        @RequestParam(value = "v", required = false) String version,
+        @RequestParam(value = "reference", defaultValue = "global") String reference,
+        @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+        @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding
+    ) {
+        AreaMetricValues.Region region;
+        String regionKey;
+        Integer effectiveDepth = depth != null ? depth : ZoomDepthMapper.depthForOverlayZoom(zoom);
+        if (tiles != null && !tiles.isBlank()) {
+            AreaMetricValues.Tiles parsed = AreaMetricValues.Tiles.parse(tiles);
+            region = parsed;
+            regionKey = "tiles=" + tiles.replace(" ", "");
+            // Tiles imply their depth, exactly as /tiles picks it.
+            if (effectiveDepth == null) effectiveDepth = ZoomDepthMapper.depthForTileZoom(parsed.z());
+        } else if (minLon != null && minLat != null && maxLon != null && maxLat != null) {
+            region = new AreaMetricValues.BBox(minLon, minLat, maxLon, maxLat);
+            regionKey = String.format("minLon=%.5f&minLat=%.5f&maxLon=%.5f&maxLat=%.5f", minLon, minLat, maxLon, maxLat);
+        } else {
+            throw new IllegalArgumentException("either tiles or minLon/minLat/maxLon/maxLat is required");
+        }
+        if (effectiveDepth == null) {
+            throw new IllegalArgumentException("depth (or zoom) is required with a bbox");
+        }
+        return respond(metricId, effectiveDepth, region, regionKey, from, to,
+            ReferenceStatistics.Reference.parse(reference), version, ifNoneMatch, acceptEncoding, false);
+    }
+
+    @CrossOrigin(origins = "*")
+    @GetMapping(value = "/area-metrics/{z:\\d+}/{x:\\d+}/{y:\\d+}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getTileValues(
+        @PathVariable("z") int z,
+        @PathVariable("x") int x,
+        @PathVariable("y") int y,
+        @RequestParam("metricId") String metricId,
+        @RequestParam(value = "depth", required = false) Integer depth,
+        @RequestParam(value = "from", required = false) LocalDate from,
+        @RequestParam(value = "to", required = false) LocalDate to,
+        @RequestParam(value = "v", required = false) String version,
+        @RequestParam(value = "reference", defaultValue = "global") String reference,
+        @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+        @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding
+    ) {
+        String tile = z + "/" + x + "/" + y;
+        AreaMetricValues.Tiles region = AreaMetricValues.Tiles.parse(tile);
+        // Same depth as the admin tile at these coordinates unless asked for explicitly.
+        int effectiveDepth = depth != null ? depth : ZoomDepthMapper.depthForTileZoom(z);
+        return respond(metricId, effectiveDepth, region, "tile=" + tile, from, to,
+            ReferenceStatistics.Reference.parse(reference), version, ifNoneMatch, acceptEncoding, true);
+    }
+
+    private ResponseEntity<byte[]> respond(
+        String metricId, int depth, AreaMetricValues.Region region, String regionKey, LocalDate from, LocalDate to,
+        ReferenceStatistics.Reference reference, String version, String ifNoneMatch, String acceptEncoding, boolean cacheBody
+    ) {
+        if (depth < ZoomDepthMapper.MIN_DEPTH || depth > ZoomDepthMapper.MAX_DEPTH) {
+            throw new IllegalArgumentException("depth must be between " + ZoomDepthMapper.MIN_DEPTH + " and " + ZoomDepthMapper.MAX_DEPTH);
+        }
+        if (reference == ReferenceStatistics.Reference.VIEWPORT) {
+            throw new IllegalArgumentException("reference must be global or country");
+        }
+        int finalDepth = depth;
+
+        LocalDate effectiveTo = to != null ? to : LocalDate.now();
+        LocalDate effectiveFrom = from != null ? from : effectiveTo.minusDays(30);
+
+        String datasetVersion = datasetGenerations.boundaries() + "." + datasetGenerations.metrics();
+        // The default (global) reference adds nothing, so existing ETags stay valid.
+        String etag = String.format("W/\"values&%s&depth=%d&metric=%s&from=%s&to=%s%s&gen=%s\"",
+            regionKey, finalDepth, metricId, effectiveFrom, effectiveTo,
+            reference == ReferenceStatistics.Reference.GLOBAL ? "" : "&ref=" + reference.param(), datasetVersion);
+
+        // Same rule as /area-metrics: only an explicit range pinned to the current version is immutable.
+        boolean pinned = datasetVersion.equals(version) && from != null && to != null;
+        CacheControl cacheControl = pinned
+            ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable()
+            : CacheControl.maxAge(10, TimeUnit.SECONDS).cachePublic();
+        if (ifNoneMatch != null && ifNoneMatch.equals(etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(etag)
+                .cacheControl(cacheControl)
+                .build();
+        }
+
+        try {
+            byte[] cached = cacheBody ? tileCache.get(etag) : null;
+            byte[] body = cached != null ? cached : singleFlights.areaMetrics().execute(etag, () -> {
+                logger.info("[DEBUG] area-metrics values {} depth={} metricId={} from={} to={}",
+                    regionKey, finalDepth, metricId, effectiveFrom, effectiveTo);
+                AreaMetricValues.Values values = bulkheads.areaMetrics().call(
+                    () -> areaMetricValues.query(metricId, finalDepth, region, effectiveFrom, effectiveTo, reference));
+                byte[] gzipped = PrecompressedBodies.gzip(objectMapper.writeValueAsBytes(values));
+                if (cacheBody) tileCache.put(etag, gzipped);
+                return gzipped;
+            });
+            ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(etag)
+                .cacheControl(cacheControl);
+            return PrecompressedBodies.body(builder, body, acceptEncoding);
+        } catch (Bulkhead.RejectedException e) {
+            logger.warn("[WARN] {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .cacheControl(CacheControl.noStore())
+                .build();
+        } catch (Exception e) {
+            // No empty fallback here: an empty payload would wipe the client's shading.
+            logger.error("[ERROR] Exception in area-metrics values SQL: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .cacheControl(CacheControl.noStore())
+                .build();
+        }
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, Object>> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+    }
+}
@@ -3,33 +3,63 @@ package com.mapster.api;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 @RestController
 public class AreaMetricsController {
     private static final Logger logger = LoggerFactory.getLogger(AreaMetricsController.class);
 
+    @Autowired
+    private FeatureStreamer featureStreamer;
+
+    @Autowired
+    private DatasetGenerationService datasetGenerations;
+
+    @Autowired
+    private SingleFlights singleFlights;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private GeometryPyramid geometryPyramid;
+
+    @Autowired
+    private RollupEngine rollupEngine;
+
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ReferenceStatistics referenceStatistics;
+
+    @Autowired
+    private AreaMetricsResultCache resultCache;
+
     @CrossOrigin(origins = "*")
-    @GetMapping(value = "/area-metrics", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getAreaMetrics(
+    @GetMapping(value = "/area-metrics", produces = {MediaType.APPLICATION_JSON_VALUE, FeatureFormat.GEOBUF_VALUE, FeatureFormat.PROTOBUF_VALUE, FeatureFormat.TOPOJSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> getAreaMetrics(
         @RequestParam("minLon") double minLon,
         @RequestParam("minLat") double minLat,
         @RequestParam("maxLon") double maxLon,
@@ -39,75 +69,85 @@ public class AreaMetricsController {
         @RequestParam(value = "zoom", required = false) Double zoom,
         @RequestParam(value = "from", required = false) LocalDate from,
         @RequestParam(value = "to", required = false) LocalDate to,
-        @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch
-    ) {
-        Integer effectiveDepth = depth;
-        if (effectiveDepth == null && zoom != null) {
-            effectiveDepth = ZoomDepthMapper.depthForOverlayZoom(zoom);
-        }
+        @RequestParam(value = "v", required = false) String version,
+        @RequestParam(value = "reference", defaultValue = "viewport") String reference,
+        @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+        @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+        @RequestHeader(value = "Accept", required = false) String accept,
+        HttpServletResponse response
+    ) throws IOException {
+        Integer effectiveDepth = depth != null || zoom == null ? depth : ZoomDepthMapper.depthForOverlayZoom(zoom);
 
-        // Reduce payload size and DB CPU for large polygons at low zoom by simplifying in meters.
-        Integer simplifyToleranceMeters = null;
-        Integer snapGridMeters = null;
-        if (effectiveDepth != null) {
-            switch (effectiveDepth) {
-                case 0 -> {
-                    simplifyToleranceMeters = 5000;
-                    snapGridMeters = 250;
-                }
-                case 1 -> {
-                    simplifyToleranceMeters = 2000;
-                    snapGridMeters = 100;
-                }
-                case 2 -> {
-                    simplifyToleranceMeters = 800;
-                    snapGridMeters = 50;
-                }
-                case 3 -> {
-                    simplifyToleranceMeters = 250;
-                    snapGridMeters = 20;
-                }
-                case 4 -> {
-                    simplifyToleranceMeters = 80;
-                    snapGridMeters = 5;
-                }
-                case 5 -> {
-                    simplifyToleranceMeters = 20;
-                    snapGridMeters = 2;
-                }
-                default -> {
-                    simplifyToleranceMeters = null;
-                    snapGridMeters = null;
-                }
-            }
+        // Bands are relative to the areas in the viewport by default; global and country references are depth-wide.
+        ReferenceStatistics.Reference bandReference = ReferenceStatistics.Reference.parse(reference);
+        if (bandReference != ReferenceStatistics.Reference.VIEWPORT && effectiveDepth == null) {
+            throw new IllegalArgumentException("reference=" + bandReference.param() + " needs a depth (or zoom)");
         }
 
-        String geomExpr;
-        if (simplifyToleranceMeters != null && snapGridMeters != null) {
-            geomExpr = "ST_Transform(" +
-                "ST_SnapToGrid(" +
-                "ST_SimplifyPreserveTopology(ST_Transform(e.geom, 3857), " + simplifyToleranceMeters + ")" +
-                ", " + snapGridMeters + ")" +
-                ", 4326)";
-        } else {
-            geomExpr = "e.geom";
-        }
+        // Reduce payload size and DB CPU for large polygons at low zoom by simplifying in meters.
+        Integer simplifyToleranceMeters = GeometryPyramid.toleranceMeters(effectiveDepth);
+        Integer snapGridMeters = GeometryPyramid.snapGridMeters(effectiveDepth);
 
         LocalDate effectiveTo = to != null ? to : LocalDate.now();
         LocalDate effectiveFrom = from != null ? from : effectiveTo.minusDays(30);
 
-        String etag = String.format(
-            "W/\"minLon=%.5f&minLat=%.5f&maxLon=%.5f&maxLat=%.5f&depth=%s&metric=%s&from=%s&to=%s&s=%s&g=%s\"",
+        FeatureFormat negotiated = FeatureFormat.negotiate(accept);
+        // Arcs exist only for the pyramid levels, once the import has built them.
+        FeatureFormat format = negotiated == FeatureFormat.TOPOJSON
+            && (simplifyToleranceMeters == null || !geometryPyramid.topologyAvailable()) ? FeatureFormat.GEOJSON : negotiated;
+        String request = String.format(
+            "minLon=%.5f&minLat=%.5f&maxLon=%.5f&maxLat=%.5f&depth=%s&metric=%s&from=%s&to=%s&s=%s&g=%s%s",
             minLon, minLat, maxLon, maxLat,
             effectiveDepth == null ? "null" : effectiveDepth,
             metricId,
             effectiveFrom,
             effectiveTo,
             simplifyToleranceMeters == null ? "null" : simplifyToleranceMeters,
-            snapGridMeters == null ? "null" : snapGridMeters
+            snapGridMeters == null ? "null" : snapGridMeters,
+            bandReference == ReferenceStatistics.Reference.VIEWPORT ? "" : "&ref=" + bandReference.param()
         );
+        // Both boundaries and rollups feed this response, so its version is "<boundaries>.<metrics>".
+        String datasetVersion = datasetGenerations.boundaries() + "." + datasetGenerations.metrics();
+        String etag = "W/\"" + request + "&gen=" + datasetVersion + format.etagSuffix() + "\"";
+        // Cached bodies are keyed without the metrics generation; AreaMetricsResultCache invalidates them per write.
+        String cacheKey = request + "&boundaries=" + datasetGenerations.boundaries() + format.etagSuffix();
+        AreaMetricsResultCache.Scope scope = new AreaMetricsResultCache.Scope(
+            metricId, effectiveFrom, effectiveTo, bandReference != ReferenceStatistics.Reference.VIEWPORT);
 
-        CacheControl cacheControl = CacheControl.maxAge(10, TimeUnit.SECONDS).cachePublic();
+        // Only an explicit, fully specified range pinned to the current version is immutable;
+        // the default range ("last 30 days") moves every day.
+        boolean pinned = datasetVersion.equals(version) && from != null && to != null;
+        CacheControl cacheControl = pinned
+            ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable()
+            : CacheControl.maxAge(10, TimeUnit.SECONDS).cachePublic();
+
+        AreaMetricsResultCache.Entry cached = resultCache.get(cacheKey);
+        if (cached != null) {
+            // A cached body keeps the ETag it was computed with. A stale one is served at most briefly cacheable (never
+            // immutable) while a single background refresh replaces it.
+            boolean fresh = resultCache.fresh(cached);
+            if (!fresh) {
+                resultCache.refresh(cacheKey, cached, etag, scope, () -> bulkheads.areaMetrics().call(() -> {
+                    FeatureStreamer.Query query = buildQuery(minLon, minLat, maxLon, maxLat, metricId, effectiveDepth,
+                        effectiveFrom, effectiveTo, bandReference, format, simplifyToleranceMeters, snapGridMeters);
+                    return featureStreamer.stream(format, query.sql(), query.params());
+                }));
+            }
+            CacheControl servedCacheControl = fresh ? cacheControl : CacheControl.maxAge(10, TimeUnit.SECONDS).cachePublic();
+            if (ifNoneMatch != null && ifNoneMatch.equals(cached.etag())) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(cached.etag())
+                    .cacheControl(servedCacheControl)
+                    .build();
+            }
+            PrecompressedBodies.write(response, PrecompressedBodies.body(
+                ResponseEntity.ok().contentType(format.mediaType()).eTag(cached.etag()).cacheControl(servedCacheControl)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING),
+                cached.gzipped(),
+                acceptEncoding
+            ));
+            return null;
+        }
         if (ifNoneMatch != null && ifNoneMatch.equals(etag)) {
             return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
                 .eTag(etag)
@@ -115,43 +155,114 @@ public class AreaMetricsController {
                 .build();
         }
 
+        long cacheVersion = resultCache.version(metricId);
+
+        // The ETag identifies the full query (bbox, depth, metric, range, dataset version): identical concurrent
+        // requests replay the first one's captured body instead of re-aggregating, and the captured body fills the
+        // result cache. The query (and the in-memory rollup lookup it may need) is only built by the request that runs it.
+        boolean clientGzip = PrecompressedBodies.acceptsGzip(acceptEncoding);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+            .contentType(format.mediaType())
+            .eTag(etag)
+            .cacheControl(cacheControl)
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        if (clientGzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.body(featureStreamer.body(
+            format,
+            singleFlights.areaMetrics(),
+            bulkheads.areaMetrics(),
+            etag,
+            () -> buildQuery(minLon, minLat, maxLon, maxLat, metricId, effectiveDepth, effectiveFrom, effectiveTo,
+                bandReference, format, simplifyToleranceMeters, snapGridMeters),
+            clientGzip,
+            response,
+            result -> resultCache.put(cacheKey, etag, result, scope, cacheVersion)
+        ));
+    }
+
+    /** Areas listed for the in-memory rollups, with their aggregates. */
+    private record EngineAreas(Long[] ids, RollupEngine.Aggregates aggregates) {}
+
+    /**
+     * The feature query: one row per area in the bbox with its aggregates, quantiles and band. Runs inside the
+     * area-metrics bulkhead slot of the request that executes it.
+     */
+    private FeatureStreamer.Query buildQuery(
+        double minLon, double minLat, double maxLon, double maxLat, String metricId, Integer effectiveDepth,
+        LocalDate effectiveFrom, LocalDate effectiveTo, ReferenceStatistics.Reference bandReference, FeatureFormat format,
+        Integer simplifyToleranceMeters, Integer snapGridMeters
+    ) {
+        // Prefer the precomputed pyramid (geometry already simplified per depth); otherwise simplify per request.
+        boolean generalized = simplifyToleranceMeters != null && geometryPyramid.available();
+        String geomColumn = generalized ? "geom_4326" : "geom";
+        String geomExpr;
+        if (!generalized && simplifyToleranceMeters != null && snapGridMeters != null) {
+            geomExpr = "ST_Transform(" +
+                "ST_SnapToGrid(" +
+                "ST_SimplifyPreserveTopology(ST_Transform(e.geom, 3857), " + simplifyToleranceMeters + ")" +
+                ", " + snapGridMeters + ")" +
+                ", 4326)";
+        } else {
+            geomExpr = "e." + geomColumn;
+        }
+
+        String table = generalized ? GeometryPyramid.TABLE : "geo.admin_areas";
         List<Object> params = new ArrayList<>();
         StringBuilder sql = new StringBuilder();
 
-        sql.append("WITH env AS (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS e), ");
-        params.add(minLon);
-        params.add(minLat);
-        params.add(maxLon);
-        params.add(maxLat);
-
-        sql.append("areas AS ( ");
-        sql.append("  SELECT DISTINCT ON (a.area_key) a.* ");
-        sql.append("  FROM geo.admin_areas a, env ");
-        sql.append("  WHERE a.geom && env.e ");
-        sql.append("    AND ST_Intersects(a.geom, env.e) ");
-        if (effectiveDepth != null) {
-            sql.append("    AND a.depth = ? ");
-            params.add(effectiveDepth);
+        // With the in-memory engine, PostGIS only lists the areas; their aggregates, quantiles and the viewport
+        // average/deciles come from RollupEngine and are passed back as arrays. Otherwise aggregate in SQL.
+        EngineAreas engine = null;
+        if (rollupEngine.covers(effectiveFrom, effectiveTo)) {
+            List<Object> areaParams = new ArrayList<>();
+            String areasSql = spatialAreas(table, geomColumn, generalized ? simplifyToleranceMeters : null, effectiveDepth,
+                minLon, minLat, maxLon, maxLat, areaParams);
+            engine = engineAreas(areasSql + "SELECT area_key, id FROM areas", areaParams, metricId, effectiveFrom, effectiveTo);
         }
-        sql.append("  ORDER BY a.area_key, a.id ");
-        sql.append(") , ");
+        RollupEngine.Aggregates aggregates = engine != null ? engine.aggregates() : null;
 
-        sql.append("agg AS ( ");
-        sql.append("  SELECT ar.area_key, d.metric_id, ");
-        sql.append("    SUM(d.sum_value) AS sum_value, ");
-        sql.append("    SUM(d.count_value) AS count_value, ");
-        sql.append("    MIN(d.min_value) AS min_value, ");
-        sql.append("    MAX(d.max_value) AS max_value ");
-        sql.append("  FROM areas ar ");
-        sql.append("  LEFT JOIN facts_agg.area_metric_daily d ");
-        sql.append("    ON d.area_key = ar.area_key ");
-        sql.append("   AND d.metric_id = ? ");
-        sql.append("   AND d.day >= ? AND d.day <= ? ");
-        params.add(metricId);
-        params.add(effectiveFrom);
-        params.add(effectiveTo);
-        sql.append("  GROUP BY ar.area_key, d.metric_id ");
-        sql.append(") , ");
+        if (engine != null) {
+            // The areas were already selected spatially; fetch those rows by primary key instead of intersecting again.
+            sql.append("WITH areas AS ( ");
+            sql.append("  SELECT DISTINCT ON (a.area_key) a.* ");
+            sql.append("  FROM ").append(table).append(" a ");
+            sql.append("  WHERE a.id = ANY(?::bigint[]) ");
+            params.add(engine.ids());
+            if (generalized) {
+                sql.append("    AND a.tolerance_m = ").append(simplifyToleranceMeters).append(" ");
+            }
+            sql.append("  ORDER BY a.area_key, a.id ");
+            sql.append(") , ");
+            sql.append("agg AS ( ");
+            sql.append("  SELECT * FROM unnest(?::text[], ?::bigint[], ?::float8[], ?::float8[], ?::float8[], ?::float8[], ?::float8[]) ");
+            sql.append("    AS v(area_key, count_value, sum_value, min_value, max_value, p50_value, p90_value) ");
+            sql.append(") , ");
+            addArrays(aggregates, params);
+        } else {
+            sql.append(spatialAreas(table, geomColumn, generalized ? simplifyToleranceMeters : null, effectiveDepth,
+                minLon, minLat, maxLon, maxLat, params)).append(", ");
+            // Fewest daily/monthly/yearly buckets covering the range, so long ranges stay cheap; their quantile
+            // sketches are merged per area and p50/p90 read from the result.
+            sql.append("agg AS ( ");
+            sql.append("  SELECT s.*, ");
+            sql.append("    facts_agg.sketch_quantile(s.sketch, 0.5) AS p50_value, ");
+            sql.append("    facts_agg.sketch_quantile(s.sketch, 0.9) AS p90_value ");
+            sql.append("  FROM ( ");
+            sql.append("    SELECT ar.area_key, ");
+            sql.append("      SUM(d.sum_value) AS sum_value, ");
+            sql.append("      SUM(d.count_value) AS count_value, ");
+            sql.append("      MIN(d.min_value) AS min_value, ");
+            sql.append("      MAX(d.max_value) AS max_value, ");
+            sql.append("      facts_agg.sketch_union(d.sketch) AS sketch ");
+            sql.append("    FROM areas ar ");
+            sql.append("    LEFT JOIN ").append(RollupBuckets.sql(metricId, effectiveFrom, effectiveTo, params)).append(" d ");
+            sql.append("      ON d.area_key = ar.area_key ");
+            sql.append("    GROUP BY ar.area_key ");
+            sql.append("  ) s ");
+            sql.append(") , ");
+        }
 
         sql.append("enriched AS ( ");
         sql.append("  SELECT ");
@@ -160,6 +271,8 @@ public class AreaMetricsController {
         sql.append("    agg.sum_value AS sum_value, ");
         sql.append("    agg.min_value AS min_value, ");
         sql.append("    agg.max_value AS max_value, ");
+        sql.append("    agg.p50_value AS p50_value, ");
+        sql.append("    agg.p90_value AS p90_value, ");
         sql.append("    CASE ");
         sql.append("      WHEN agg.count_value IS NULL OR agg.count_value = 0 THEN NULL ");
         sql.append("      ELSE (agg.sum_value / agg.count_value) ");
@@ -168,82 +281,168 @@ public class AreaMetricsController {
         sql.append("  LEFT JOIN agg ON agg.area_key = a.area_key ");
         sql.append(") , ");
 
-        sql.append("global AS ( ");
-        sql.append("  SELECT ");
-        sql.append("    CASE ");
-        sql.append("      WHEN SUM(count_value) = 0 THEN NULL ");
-        sql.append("      ELSE (SUM(COALESCE(sum_value, 0)) / SUM(count_value)) ");
-        sql.append("    END AS global_avg ");
-        sql.append("  FROM enriched ");
-        sql.append(") ");
+        String referenceAvg = "global.global_avg";
+        if (bandReference != ReferenceStatistics.Reference.VIEWPORT) {
+            // Depth-wide references do not depend on the viewport, so shading stays put while panning, and once
+            // ReferenceStatistics has loaded they are lookups passed as parameters instead of a second pass.
+            boolean precomputed = referenceStatistics.ready();
+            sql.append(precomputed
+                ? referenceStatistics.referenceCte(metricId, effectiveDepth, effectiveFrom, effectiveTo, params)
+                : ReferenceStatistics.referenceSql(metricId, effectiveDepth, effectiveFrom, effectiveTo, params));
+            sql.append(", ");
+            if (bandReference == ReferenceStatistics.Reference.COUNTRY) {
+                sql.append(precomputed
+                    ? referenceStatistics.countryReferenceCte(metricId, effectiveDepth, effectiveFrom, effectiveTo, params)
+                    : ReferenceStatistics.countryReferenceSql(metricId, effectiveDepth, effectiveFrom, effectiveTo, params));
+                sql.append(", ");
+                referenceAvg = "cr.reference_avg";
+            }
+            sql.append("global AS (SELECT reference_avg::float8 AS global_avg, reference_deciles AS global_deciles FROM reference) ");
+        } else if (aggregates != null) {
+            sql.append("global AS (SELECT ?::float8 AS global_avg, ?::float8[] AS global_deciles) ");
+            params.add(aggregates.overallAverage());
+            params.add(boxed(aggregates.deciles()));
+        } else {
+            sql.append("global AS ( ");
+            sql.append("  SELECT ");
+            sql.append("    CASE ");
+            sql.append("      WHEN SUM(count_value) = 0 THEN NULL ");
+            sql.append("      ELSE (SUM(COALESCE(sum_value, 0)) / SUM(count_value)) ");
+            sql.append("    END AS global_avg, ");
+            // Deciles of all observations in the viewport: the area sketches merged bucket by bucket.
+            sql.append("    (SELECT facts_agg.sketch_deciles(jsonb_object_agg(b.k, b.c)) FROM ( ");
+            sql.append("      SELECT s.k, SUM(s.c::bigint) AS c FROM agg, jsonb_each_text(agg.sketch) AS s(k, c) GROUP BY s.k ");
+            sql.append("    ) b) AS global_deciles ");
+            sql.append("  FROM enriched ");
+            sql.append(") ");
+        }
 
-        sql.append("SELECT jsonb_build_object( ");
-        sql.append("  'type', 'FeatureCollection', ");
-        sql.append("  'features', COALESCE(jsonb_agg( ");
-        sql.append("    jsonb_build_object( ");
-        sql.append("      'type', 'Feature', ");
-        sql.append("      'geometry', ST_AsGeoJSON(").append(geomExpr).append(", 6)::jsonb, ");
-        sql.append("      'properties', jsonb_build_object( ");
-        sql.append("        'area_key', e.area_key, ");
-        sql.append("        'depth', e.depth, ");
-        sql.append("        'gid_0', e.gid_0, 'gid_1', e.gid_1, 'gid_2', e.gid_2, 'gid_3', e.gid_3, 'gid_4', e.gid_4, 'gid_5', e.gid_5, ");
-        sql.append("        'name_0', e.country, 'name_1', e.name_1, 'name_2', e.name_2, 'name_3', e.name_3, 'name_4', e.name_4, 'name_5', e.name_5, ");
-        sql.append("        'metric_id', ?, ");
+        // One row per Feature (geometry as GeoJSON text plus property columns); FeatureStreamer encodes the JSON.
+        sql.append("SELECT ");
+        sql.append("  ").append(format.geometrySql(geomExpr, "e.id", simplifyToleranceMeters)).append(" AS geometry, ");
+        sql.append("  e.area_key, e.depth, ");
+        sql.append("  e.gid_0, e.gid_1, e.gid_2, e.gid_3, e.gid_4, e.gid_5, ");
+        sql.append("  e.country AS name_0, e.name_1, e.name_2, e.name_3, e.name_4, e.name_5, ");
+        sql.append("  ?::text AS metric_id, ");
         params.add(metricId);
-        sql.append("        'count', e.count_value, ");
-        sql.append("        'min', e.min_value, ");
-        sql.append("        'max', e.max_value, ");
-        sql.append("        'avg', e.avg_value, ");
-        sql.append("        'global_avg', global.global_avg, ");
-        sql.append("        'ratio_to_avg', CASE WHEN e.avg_value IS NULL OR global.global_avg IS NULL OR global.global_avg = 0 THEN NULL ELSE (e.avg_value / global.global_avg) END, ");
-        sql.append("        'band', CASE ");
-        sql.append("          WHEN e.avg_value IS NULL OR global.global_avg IS NULL OR global.global_avg = 0 THEN NULL ");
-        sql.append("          WHEN e.avg_value <= global.global_avg THEN CASE ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) <= 0.50 THEN 1 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) <= 0.75 THEN 2 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) <= 0.90 THEN 3 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) <= 0.97 THEN 4 ");
-        sql.append("            ELSE 5 ");
-        sql.append("          END ");
-        sql.append("          ELSE CASE ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) >= 2.00 THEN 10 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) >= 1.50 THEN 9 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) >= 1.25 THEN 8 ");
-        sql.append("            WHEN (e.avg_value / global.global_avg) >= 1.10 THEN 7 ");
-        sql.append("            ELSE 6 ");
-        sql.append("          END ");
-        sql.append("        END ");
-        sql.append("      ) ");
-        sql.append("    ) ");
-        sql.append("  ), '[]'::jsonb) ");
-        sql.append(") ");
+        sql.append("  e.count_value AS count, ");
+        sql.append("  e.min_value AS min, ");
+        sql.append("  e.max_value AS max, ");
+        sql.append("  e.avg_value AS avg, ");
+        sql.append("  e.p50_value AS p50, ");
+        sql.append("  e.p90_value AS p90, ");
+        // global_avg is the band reference whichever it is (the area's country average with reference=country).
+        sql.append("  ").append(referenceAvg).append(" AS global_avg, ");
+        sql.append("  CASE WHEN e.avg_value IS NULL OR ").append(referenceAvg).append(" IS NULL OR ").append(referenceAvg)
+            .append(" = 0 THEN NULL ELSE (e.avg_value / ").append(referenceAvg).append(") END AS ratio_to_avg, ");
+        sql.append("  ").append(MetricBands.sqlCase("e.avg_value", referenceAvg)).append(" AS band, ");
+        sql.append("  ").append(MetricBands.quantileSqlCase("e.p50_value", "global.global_deciles")).append(" AS quantile_band ");
         sql.append("FROM enriched e ");
         sql.append("CROSS JOIN global ");
+        if (bandReference == ReferenceStatistics.Reference.COUNTRY) {
+            sql.append("LEFT JOIN country_reference cr ON cr.country = split_part(e.area_key, '|', 1) ");
+        }
+
+        logger.info("[DEBUG] area-metrics bbox=({},{})->({},{}), depth={}, metricId={}, from={}, to={}",
+            minLon, minLat, maxLon, maxLat, effectiveDepth, metricId, effectiveFrom, effectiveTo);
 
+        return new FeatureStreamer.Query(sql.toString(), params.toArray());
+    }
+
+    /** {@code WITH env AS (...), areas AS (...)}: the areas of {@code depth} intersecting the bbox, one row per area key. */
+    private static String spatialAreas(
+        String table, String geomColumn, Integer toleranceMeters, Integer depth,
+        double minLon, double minLat, double maxLon, double maxLat, List<Object> params
+    ) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("WITH env AS (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS e), ");
+        params.add(minLon);
+        params.add(minLat);
+        params.add(maxLon);
+        params.add(maxLat);
+
+        sql.append("areas AS ( ");
+        sql.append("  SELECT DISTINCT ON (a.area_key) a.* ");
+        sql.append("  FROM ").append(table).append(" a, env ");
+        sql.append("  WHERE a.").append(geomColumn).append(" && env.e ");
+        sql.append("    AND ST_Intersects(a.").append(geomColumn).append(", env.e) ");
+        if (toleranceMeters != null) {
+            sql.append("    AND a.tolerance_m = ").append(toleranceMeters).append(" ");
+        }
+        if (depth != null) {
+            sql.append("    AND a.depth = ? ");
+            params.add(depth);
+        }
+        sql.append("  ORDER BY a.area_key, a.id ");
+        sql.append(") ");
+        return sql.toString();
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, Object>> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<Void> busy(HttpServletResponse response) {
+        return FeatureStreamer.busy(response);
+    }
+
+    /**
+     * Lists the areas (key and id) with {@code areasSql} and aggregates them in memory; null (aggregate in SQL
+     * instead) if the lookup fails. Already runs inside the caller's bulkhead slot.
+     */
+    private EngineAreas engineAreas(
+        String areasSql, List<Object> areaParams, String metricId, LocalDate from, LocalDate to
+    ) {
         try {
-            logger.info("[DEBUG] area-metrics bbox=({},{})->({},{}), depth={}, metricId={}, from={}, to={}",
-                minLon, minLat, maxLon, maxLat, effectiveDepth, metricId, effectiveFrom, effectiveTo);
-
-            final String emptyFeatureCollection = "{\"type\":\"FeatureCollection\",\"features\":[]}";
-            String sqlString = Objects.requireNonNull(sql.toString());
-            String result = Objects.requireNonNullElse(
-                jdbcTemplate.queryForObject(
-                    sqlString,
-                    String.class,
-                    params.toArray()
-                ),
-                emptyFeatureCollection
-            );
-
-            return ResponseEntity.ok()
-                .eTag(etag)
-                .cacheControl(cacheControl)
-                .body(result);
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList(areasSql, areaParams.toArray());
+            List<String> areaKeys = new ArrayList<>(rows.size());
+            Long[] ids = new Long[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                areaKeys.add((String) rows.get(i).get("area_key"));
+                ids[i] = ((Number) rows.get(i).get("id")).longValue();
+            }
+            return new EngineAreas(ids, rollupEngine.aggregate(metricId, areaKeys, from, to));
         } catch (Exception e) {
-            logger.error("[ERROR] Exception in area-metrics SQL: {}", e.getMessage(), e);
-            return ResponseEntity.ok()
-                .cacheControl(CacheControl.noStore())
-                .body("{\"type\":\"FeatureCollection\",\"features\":[]}");
+            logger.warn("[WARN] area lookup for in-memory rollups failed, aggregating in SQL: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void addArrays(RollupEngine.Aggregates aggregates, List<Object> params) {
+        int n = aggregates.areaKeys().size();
+        Long[] count = new Long[n];
+        Double[] sum = new Double[n];
+        Double[] min = new Double[n];
+        Double[] max = new Double[n];
+        Double[] p50 = new Double[n];
+        Double[] p90 = new Double[n];
+        for (int i = 0; i < n; i++) {
+            // Areas without observations get NULLs, like the LEFT JOIN of the SQL path.
+            boolean observed = aggregates.count()[i] > 0;
+            count[i] = observed ? aggregates.count()[i] : null;
+            sum[i] = observed ? aggregates.sum()[i] : null;
+            min[i] = observed ? aggregates.min()[i] : null;
+            max[i] = observed ? aggregates.max()[i] : null;
+            p50[i] = observed && !Double.isNaN(aggregates.p50()[i]) ? aggregates.p50()[i] : null;
+            p90[i] = observed && !Double.isNaN(aggregates.p90()[i]) ? aggregates.p90()[i] : null;
+        }
+        params.add(aggregates.areaKeys().toArray(new String[0]));
+        params.add(count);
+        params.add(sum);
+        params.add(min);
+        params.add(max);
+        params.add(p50);
+        params.add(p90);
+    }
+
+    private static Double[] boxed(double[] values) {
+        if (values == null) return null;
+        Double[] boxed = new Double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
         }
+        return boxed;
     }
 }
@@ -0,0 +1,280 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory cache for gzip-compressed /area-metrics bodies, bounded by total compressed bytes.
+ *
+ * Unlike the other body caches, keys leave out the metrics generation (any rollup write bumps it, so every entry
+ * would expire on every ingest). Instead entries are invalidated by what a write touches:
+ *
+ * - This replica's writes ({@link #invalidate}, from AggregationService): entries of the metric whose range contains
+ *   the day and whose areas include one the observation rolled up to; with a depth-wide reference every entry of the
+ *   metric and range, since the reference itself moved.
+ * - Other replicas' writes: buckets whose count changed in a {@link ReferenceStatistics} regroup, matched by country.
+ *   Until the statistics have loaded (or with them disabled) entries from an older metrics generation count as stale.
+ *
+ * Both look entries up in a secondary index (by metric and area key, by metric and country, and by metric for
+ * depth-wide references) that is kept in step with the cache, so a write only visits the entries it can touch.
+ *
+ * An invalidated entry is kept as stale. With {@code mapster.area-metrics.cache.stale-while-revalidate} the
+ * controller keeps serving it (with its old ETag) while a single background refresh recomputes it; otherwise stale
+ * entries are misses.
+ */
+@Component
+public class AreaMetricsResultCache implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(AreaMetricsResultCache.class);
+    private static final long ENTRY_OVERHEAD_BYTES = 512;
+
+    /** What an entry depends on, for invalidation. */
+    public record Scope(String metricId, LocalDate from, LocalDate to, boolean depthWideReference) {
+        boolean covers(LocalDate day) {
+            return !day.isBefore(from) && !day.isAfter(to);
+        }
+
+        boolean overlaps(LocalDate start, LocalDate end) {
+            return start.isBefore(to.plusDays(1)) && end.isAfter(from);
+        }
+    }
+
+    public static final class Entry {
+        private final String etag;
+        private final byte[] gzipped;
+        private final Scope scope;
+        private final Set<String> areaKeys;
+        private final Set<String> countries;
+        private final long metricsGeneration;
+        private volatile boolean stale;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(String etag, byte[] gzipped, Scope scope, Set<String> areaKeys, long metricsGeneration, boolean stale) {
+            this.etag = etag;
+            this.gzipped = gzipped;
+            this.scope = scope;
+            this.areaKeys = areaKeys;
+            this.countries = new HashSet<>();
+            for (String areaKey : areaKeys) countries.add(ReferenceStatistics.country(areaKey));
+            this.metricsGeneration = metricsGeneration;
+            this.stale = stale;
+        }
+
+        public String etag() {
+            return etag;
+        }
+
+        public byte[] gzipped() {
+            return gzipped;
+        }
+
+        long weight() {
+            // Area keys are short strings; count them roughly.
+            return gzipped.length + 64L * areaKeys.size() + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    /** An index bucket: a metric's entries by area key, by country, or (both null) those with a depth-wide reference. */
+    private record IndexKey(String metricId, String areaKey, String country) {}
+
+    private final ByteWeightedCache<String, Entry> cache;
+    // Guarded by itself. Every cache mutation happens under this lock, so the removal listener (which runs inside
+    // them) keeps it in step with the cache.
+    private final Map<IndexKey, Set<Entry>> index = new HashMap<>();
+    private final DatasetGenerationService datasetGenerations;
+    private final ReferenceStatistics referenceStatistics;
+    private final boolean staleWhileRevalidate;
+    private final ThreadPoolExecutor refreshes;
+    // Bumped on every invalidation of a metric; a body computed across a bump is stored as stale.
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private final Counter invalidated;
+    private final Counter staleServed;
+    private final Counter refreshed;
+
+    public AreaMetricsResultCache(
+        MeterRegistry meterRegistry,
+        DatasetGenerationService datasetGenerations,
+        ReferenceStatistics referenceStatistics,
+        @Value("${mapster.area-metrics.cache.max-bytes:67108864}") long maxBytes,
+        @Value("${mapster.area-metrics.cache.max-entry-bytes:8388608}") long maxEntryBytes,
+        @Value("${mapster.area-metrics.cache.stale-while-revalidate:true}") boolean staleWhileRevalidate,
+        @Value("${mapster.area-metrics.cache.refresh-threads:2}") int refreshThreads
+    ) {
+        this.cache = new ByteWeightedCache<String, Entry>("area-metrics", maxBytes, maxEntryBytes, Entry::weight)
+            .onRemoval((key, entry) -> unindex(entry))
+            .bindTo(meterRegistry);
+        this.datasetGenerations = datasetGenerations;
+        this.referenceStatistics = referenceStatistics;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        // Refreshes beyond the queue are dropped; the entry stays stale and the next request asks again.
+        AtomicInteger threadIds = new AtomicInteger();
+        this.refreshes = new ThreadPoolExecutor(
+            refreshThreads, refreshThreads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64),
+            runnable -> {
+                Thread thread = new Thread(runnable, "area-metrics-refresh-" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.DiscardPolicy()
+        );
+        this.refreshes.allowCoreThreadTimeOut(true);
+        this.invalidated = Counter.builder("mapster.area_metrics_cache.invalidations")
+            .description("Cached /area-metrics bodies marked stale by rollup writes")
+            .register(meterRegistry);
+        this.staleServed = Counter.builder("mapster.area_metrics_cache.stale_served")
+            .description("Stale /area-metrics bodies served while a refresh was pending")
+            .register(meterRegistry);
+        this.refreshed = Counter.builder("mapster.area_metrics_cache.refreshes")
+            .description("Background recomputations of stale /area-metrics bodies")
+            .register(meterRegistry);
+        referenceStatistics.addChangeListener(this::invalidateCountry);
+    }
+
+    /** The entry for {@code key} if it can be served: fresh, or stale with stale-while-revalidate on. */
+    public Entry get(String key) {
+        Entry entry = cache.get(key);
+        if (entry == null || fresh(entry)) return entry;
+        return staleWhileRevalidate ? entry : null;
+    }
+
+    public boolean fresh(Entry entry) {
+        if (entry.stale) return false;
+        // Without the statistics other replicas' writes go unseen; fall back to the generation.
+        return referenceStatistics.ready() || entry.metricsGeneration == datasetGenerations.metrics();
+    }
+
+    /** To be read before computing a body for {@code metricId} and handed to {@link #put}. */
+    public long version(String metricId) {
+        return versions.computeIfAbsent(metricId, k -> new AtomicLong()).get();
+    }
+
+    public void put(String key, String etag, FeatureStreamer.Result result, Scope scope, long version) {
+        if (!result.captured()) return;
+        boolean invalidatedMeanwhile = version(scope.metricId()) != version;
+        Entry entry = new Entry(etag, result.gzipped(), scope, Set.copyOf(result.areaKeys()),
+            datasetGenerations.metrics(), invalidatedMeanwhile);
+        synchronized (index) {
+            for (IndexKey indexKey : indexKeys(entry)) {
+                index.computeIfAbsent(indexKey, k -> new HashSet<>()).add(entry);
+            }
+            if (!cache.put(key, entry)) unindex(entry);
+        }
+    }
+
+    /**
+     * Records that {@code stale} is being served and recomputes it in the background, at most once at a time per
+     * entry; {@code etag} is the ETag of the new body.
+     */
+    public void refresh(String key, Entry stale, String etag, Scope scope, Callable<FeatureStreamer.Result> compute) {
+        staleServed.increment();
+        if (!stale.refreshing.compareAndSet(false, true)) return;
+        long version = version(scope.metricId());
+        refreshes.execute(() -> {
+            try {
+                put(key, etag, compute.call(), scope, version);
+                refreshed.increment();
+            } catch (Exception e) {
+                logger.warn("[WARN] area-metrics refresh failed, keeping the stale body: {}", e.getMessage());
+            } finally {
+                stale.refreshing.set(false);
+            }
+        });
+    }
+
+    /** A write of {@code metricId} on {@code day} that rolled up to {@code areaKeys}. */
+    public void invalidate(String metricId, Collection<String> areaKeys, LocalDate day) {
+        bump(metricId);
+        List<IndexKey> touched = new ArrayList<>(areaKeys.size() + 1);
+        touched.add(new IndexKey(metricId, null, null));
+        for (String areaKey : areaKeys) touched.add(new IndexKey(metricId, areaKey, null));
+        invalidateWhere(touched, entry -> entry.scope.covers(day));
+    }
+
+    private void invalidateCountry(String metricId, String country, LocalDate start, LocalDate end) {
+        bump(metricId);
+        invalidateWhere(List.of(new IndexKey(metricId, null, null), new IndexKey(metricId, null, country)),
+            entry -> entry.scope.overlaps(start, end));
+    }
+
+    private void bump(String metricId) {
+        versions.computeIfAbsent(metricId, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /** Marks the entries listed under {@code indexKeys} stale if they match {@code touched}. */
+    private void invalidateWhere(List<IndexKey> indexKeys, Predicate<Entry> touched) {
+        Set<Entry> candidates = new HashSet<>();
+        synchronized (index) {
+            for (IndexKey indexKey : indexKeys) {
+                Set<Entry> entries = index.get(indexKey);
+                if (entries != null) candidates.addAll(entries);
+            }
+        }
+        long count = 0;
+        for (Entry entry : candidates) {
+            if (!entry.stale && touched.test(entry)) {
+                entry.stale = true;
+                count++;
+            }
+        }
+        invalidated.increment(count);
+    }
+
+    private static List<IndexKey> indexKeys(Entry entry) {
+        String metricId = entry.scope.metricId();
+        // A depth-wide reference moves with any write of the metric, wherever it is.
+        if (entry.scope.depthWideReference()) return List.of(new IndexKey(metricId, null, null));
+        List<IndexKey> keys = new ArrayList<>(entry.areaKeys.size() + entry.countries.size());
+        for (String areaKey : entry.areaKeys) keys.add(new IndexKey(metricId, areaKey, null));
+        for (String country : entry.countries) keys.add(new IndexKey(metricId, null, country));
+        return keys;
+    }
+
+    /** Called with the index lock held: from put, or from the cache's removal listener. */
+    private void unindex(Entry entry) {
+        for (IndexKey indexKey : indexKeys(entry)) {
+            Set<Entry> entries = index.get(indexKey);
+            if (entries != null && entries.remove(entry) && entries.isEmpty()) index.remove(indexKey);
+        }
+    }
+
+    /** Number of entries listed in the index, counting each once per bucket; for tests. */
+    int indexedReferences() {
+        synchronized (index) {
+            return index.values().stream().mapToInt(Set::size).sum();
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (index) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        refreshes.shutdownNow();
+    }
+}
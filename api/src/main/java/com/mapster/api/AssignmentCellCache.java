@@ -0,0 +1,119 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Function;
+
+/**
+ * Caches, per cell of a fixed lat/lon grid, what area assignment would return anywhere inside the cell
+ * ({@code mapster.assignment-cache.*}).
+ *
+ * Scraped observations repeat the same streets over and over. A point is mapped to its cell (about
+ * {@code cell-meters} on a side, geohash-style: quantized latitude and longitude packed into one long) and the cell is
+ * classified once: {@link Cell#inside} one area (the deepest area intersecting the cell covers all of it and no other
+ * area of that depth touches it), {@link Cell#OUTSIDE} every leaf area, or {@link Cell#MIXED} (it crosses a boundary).
+ * Inside cells answer every later point directly. Points in mixed cells still need the exact point-in-polygon test,
+ * and points in outside cells need the SQL lookup (they may lie in a parent, between its children). Cells are
+ * classified by {@link AreaIndex}, so the cache is used only once the index has loaded and by default is enabled
+ * together with it.
+ *
+ * Bounded by {@code max-bytes} with LRU eviction (the usual cache meters, tagged {@code cache=assignment-cells}, give
+ * the hit ratio). Entries carry the generation of the index tree that classified them, not the live boundaries
+ * generation: after a reimport the index keeps answering from the old tree until the new one has loaded, and cells it
+ * classifies meanwhile must not outlive the swap.
+ */
+@Component
+public class AssignmentCellCache {
+    private static final double METERS_PER_DEGREE = 111_320;
+    // Key, entry, map node and a shared assignment; area keys are shared with the index.
+    private static final long ENTRY_BYTES = 128;
+
+    /** A classified cell; {@code assignment} is set only for cells inside one area. */
+    public record Cell(Kind kind, AreaAssignmentService.Assignment assignment) {
+        public static final Cell OUTSIDE = new Cell(Kind.OUTSIDE, null);
+        public static final Cell MIXED = new Cell(Kind.MIXED, null);
+
+        public static Cell inside(AreaAssignmentService.Assignment assignment) {
+            return new Cell(Kind.INSIDE, assignment);
+        }
+    }
+
+    public enum Kind { INSIDE, OUTSIDE, MIXED }
+
+    /** A cell's bounds in degrees. */
+    public record Bounds(double minLon, double minLat, double maxLon, double maxLat) {}
+
+    private record Classified(long generation, Cell cell) {}
+
+    private final ByteWeightedCache<Long, Classified> cache;
+    private final boolean enabled;
+    private final double cellDegrees;
+    private volatile long generation = Long.MIN_VALUE;
+
+    private final Counter inside;
+    private final Counter outside;
+    private final Counter mixed;
+
+    public AssignmentCellCache(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.assignment-cache.enabled:${mapster.area-index.enabled:false}}") boolean enabled,
+        @Value("${mapster.assignment-cache.cell-meters:100}") double cellMeters,
+        @Value("${mapster.assignment-cache.max-bytes:33554432}") long maxBytes
+    ) {
+        this.cache = new ByteWeightedCache<Long, Classified>("assignment-cells", maxBytes, ENTRY_BYTES, cell -> ENTRY_BYTES)
+            .bindTo(meterRegistry);
+        this.enabled = enabled;
+        this.cellDegrees = cellMeters / METERS_PER_DEGREE;
+        this.inside = lookups(meterRegistry, "inside");
+        this.outside = lookups(meterRegistry, "outside");
+        this.mixed = lookups(meterRegistry, "mixed");
+    }
+
+    private static Counter lookups(MeterRegistry meterRegistry, String cell) {
+        return Counter.builder("mapster.assignment_cells.lookups")
+            .description("Point assignments by the kind of grid cell they fell into; mixed ones need the exact test")
+            .tag("cell", cell)
+            .register(meterRegistry);
+    }
+
+    /**
+     * The classification of the point's cell, computed with {@code classify} on a miss; {@link Cell#MIXED} when the
+     * cache is disabled. {@code generation} is that of the tree behind {@code classify} (read before calling it):
+     * cells classified under another generation are classified again.
+     */
+    public Cell cell(double lon, double lat, long generation, Function<Bounds, Cell> classify) {
+        if (!enabled) return Cell.MIXED;
+        if (generation != this.generation) {
+            // A new tree was swapped in: every classification may be wrong now. Late puts from callers still on the
+            // old tree carry the old generation and are ignored below.
+            cache.invalidateAll();
+            this.generation = generation;
+        }
+        long row = (long) Math.floor((lat + 90) / cellDegrees);
+        long col = (long) Math.floor((lon + 180) / cellDegrees);
+        long key = (row << 32) | col;
+        Classified classified = cache.get(key);
+        Cell cell;
+        if (classified != null && classified.generation() == generation) {
+            cell = classified.cell();
+        } else {
+            cell = classify.apply(new Bounds(
+                col * cellDegrees - 180, row * cellDegrees - 90,
+                (col + 1) * cellDegrees - 180, (row + 1) * cellDegrees - 90));
+            cache.put(key, new Classified(generation, cell));
+        }
+        switch (cell.kind()) {
+            case INSIDE -> inside.increment();
+            case OUTSIDE -> outside.increment();
+            case MIXED -> mixed.increment();
+        }
+        return cell;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
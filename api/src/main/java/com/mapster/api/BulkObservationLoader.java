@@ -0,0 +1,428 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Loads observations from an NDJSON or CSV stream in batches of {@code mapster.ingest.bulk.batch-size} rows; see
+ * {@code POST /ingest/observations:bulk}.
+ *
+ * The body is read line by line and only one batch is held in memory. Each batch is written in one transaction and a
+ * fixed number of statements, whatever its size: the rows are COPYed into a session-local staging table, assigned to
+ * areas (from the in-memory {@link AreaIndex} while parsing where it is loaded, otherwise with one point-in-polygon
+ * UPDATE, {@link AreaAssignmentService#assignStaged}), inserted into
+ * {@code facts.observation} with one INSERT ... SELECT and rolled up with one set-based upsert per rollup table
+ * ({@link AggregationService#addStagedObservationsToRollups}).
+ *
+ * Rows that do not parse or lack {@code metricId}/{@code value} are rejected with their line number and the rest of the
+ * batch is written; a batch whose transaction fails is rejected as a whole and loading continues with the next one.
+ */
+@Service
+public class BulkObservationLoader {
+    private static final Logger logger = LoggerFactory.getLogger(BulkObservationLoader.class);
+
+    static final String STAGING_TABLE = "bulk_observation";
+    // Errors listed per batch; the counts are always complete.
+    static final int MAX_ERRORS_PER_BATCH = 20;
+
+    // A temp table lives for the pooled connection's session, so it is created once per connection and emptied by
+    // every commit or rollback instead of being created and dropped per batch.
+    private static final String CREATE_STAGING = """
+        CREATE TEMP TABLE IF NOT EXISTS bulk_observation (
+          line bigint NOT NULL,
+          metric_id text NOT NULL,
+          value numeric NOT NULL,
+          unit text,
+          currency text,
+          observed_at timestamptz NOT NULL,
+          lon float8,
+          lat float8,
+          assigned_area_key text,
+          assigned_depth smallint,
+          source_confidence real,
+          source_url text
+        ) ON COMMIT DELETE ROWS
+        """;
+
+    private static final String COPY_STAGING = "COPY bulk_observation (line, metric_id, value, unit, currency, observed_at, "
+        + "lon, lat, assigned_area_key, assigned_depth, source_confidence, source_url) FROM STDIN";
+
+    private static final String INSERT_OBSERVATIONS = """
+        INSERT INTO facts.observation (
+          metric_id, value, unit, currency, observed_at,
+          point_geom,
+          assigned_area_key, assigned_depth,
+          source_confidence, source_url
+        )
+        SELECT
+          metric_id, value, unit, currency, observed_at,
+          CASE WHEN lon IS NULL OR lat IS NULL THEN NULL ELSE ST_SetSRID(ST_MakePoint(lon, lat), 4326) END,
+          assigned_area_key, assigned_depth,
+          source_confidence, source_url
+        FROM bulk_observation
+        """;
+
+    // Staged raw records (RawRecordWorkers) carry their raw_record id in the line column.
+    private static final String INSERT_RAW_OBSERVATIONS = """
+        INSERT INTO facts.observation (
+          raw_record_id,
+          metric_id, value, unit, currency, observed_at,
+          point_geom,
+          assigned_area_key, assigned_depth,
+          source_confidence, source_url
+        )
+        SELECT
+          line,
+          metric_id, value, unit, currency, observed_at,
+          CASE WHEN lon IS NULL OR lat IS NULL THEN NULL ELSE ST_SetSRID(ST_MakePoint(lon, lat), 4326) END,
+          assigned_area_key, assigned_depth,
+          source_confidence, source_url
+        FROM bulk_observation
+        """;
+
+    public enum Format {
+        NDJSON, CSV;
+
+        /** The format of a request body, from its content type ({@code application/x-ndjson} or {@code text/csv}). */
+        public static Format of(String contentType) {
+            String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+            if (type.startsWith("text/csv")) return CSV;
+            if (type.startsWith("application/x-ndjson") || type.startsWith("application/ndjson")) return NDJSON;
+            throw new IllegalArgumentException("Content-Type must be application/x-ndjson or text/csv");
+        }
+    }
+
+    public record Rejection(long line, String error) {}
+
+    public record Batch(int batch, long firstLine, long lastLine, int accepted, int rejected, List<Rejection> errors) {}
+
+    public record Summary(long accepted, long rejected, List<Batch> batches) {}
+
+    record Row(long line, IngestionController.IngestObservationRequest observation) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final MetricCatalogService metricCatalogService;
+    private final AreaAssignmentService areaAssignmentService;
+    private final AggregationService aggregationService;
+    private final Bulkheads bulkheads;
+    private final ObjectReader observationReader;
+    private final int batchSize;
+    private final Counter accepted;
+    private final Counter rejected;
+    private final Timer batchTimer;
+
+    public BulkObservationLoader(
+        JdbcTemplate jdbcTemplate,
+        ObjectProvider<PlatformTransactionManager> transactionManager,
+        MetricCatalogService metricCatalogService,
+        AreaAssignmentService areaAssignmentService,
+        AggregationService aggregationService,
+        Bulkheads bulkheads,
+        ObjectMapper objectMapper,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.ingest.bulk.batch-size:10000}") int batchSize
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        PlatformTransactionManager tm = transactionManager.getIfAvailable();
+        this.transaction = tm != null ? new TransactionTemplate(tm) : null;
+        this.metricCatalogService = metricCatalogService;
+        this.areaAssignmentService = areaAssignmentService;
+        this.aggregationService = aggregationService;
+        this.bulkheads = bulkheads;
+        this.observationReader = objectMapper.readerFor(IngestionController.IngestObservationRequest.class);
+        this.batchSize = Math.max(1, batchSize);
+        this.accepted = Counter.builder("mapster.ingest.bulk.observations")
+            .description("Observations received by bulk ingestion, by outcome")
+            .tag("outcome", "accepted")
+            .register(meterRegistry);
+        this.rejected = Counter.builder("mapster.ingest.bulk.observations")
+            .description("Observations received by bulk ingestion, by outcome")
+            .tag("outcome", "rejected")
+            .register(meterRegistry);
+        this.batchTimer = Timer.builder("mapster.ingest.bulk.batch")
+            .description("Time to write one bulk ingestion batch")
+            .register(meterRegistry);
+    }
+
+    /** Reads {@code body} to the end, writing a batch every {@code batchSize} records. */
+    public Summary load(InputStream body, Format format) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), 1 << 16);
+        List<Batch> batches = new ArrayList<>();
+        List<Row> rows = new ArrayList<>(batchSize);
+        List<Rejection> errors = new ArrayList<>();
+        int parseRejected = 0;
+        long firstLine = 0;
+        long line = 0;
+        String[] header = null;
+
+        String text;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            if (text.isBlank()) continue;
+            if (format == Format.CSV && header == null) {
+                header = csvHeader(text);
+                continue;
+            }
+            if (firstLine == 0) firstLine = line;
+            try {
+                IngestionController.IngestObservationRequest observation = format == Format.CSV
+                    ? csvObservation(header, text)
+                    : observationReader.readValue(text);
+                validate(observation);
+                rows.add(new Row(line, assignInMemory(observation)));
+            } catch (Exception e) {
+                parseRejected++;
+                if (errors.size() < MAX_ERRORS_PER_BATCH) errors.add(new Rejection(line, message(e)));
+            }
+            if (rows.size() + parseRejected >= batchSize) {
+                batches.add(write(batches.size(), firstLine, line, rows, parseRejected, errors));
+                rows = new ArrayList<>(batchSize);
+                errors = new ArrayList<>();
+                parseRejected = 0;
+                firstLine = 0;
+            }
+        }
+        if (firstLine != 0) {
+            batches.add(write(batches.size(), firstLine, line, rows, parseRejected, errors));
+        }
+
+        long acceptedTotal = batches.stream().mapToLong(Batch::accepted).sum();
+        long rejectedTotal = batches.stream().mapToLong(Batch::rejected).sum();
+        logger.info("[INFO] ingest/observations:bulk format={} lines={} batches={} accepted={} rejected={}",
+            format, line, batches.size(), acceptedTotal, rejectedTotal);
+        return new Summary(acceptedTotal, rejectedTotal, batches);
+    }
+
+    private Batch write(int index, long firstLine, long lastLine, List<Row> rows, int parseRejected, List<Rejection> errors) {
+        int stored = 0;
+        if (!rows.isEmpty()) {
+            try {
+                bulkheads.ingest().call(() -> {
+                    batchTimer.record(() -> {
+                        if (transaction == null) {
+                            writeStaged(rows, false);
+                        } else {
+                            transaction.executeWithoutResult(status -> writeStaged(rows, false));
+                        }
+                    });
+                    return null;
+                });
+                stored = rows.size();
+            } catch (Exception e) {
+                logger.error("[ERROR] bulk ingestion batch {} (lines {}-{}) failed: {}", index, firstLine, lastLine, e.getMessage(), e);
+                errors.add(new Rejection(firstLine, "batch failed: " + message(e)));
+            }
+        }
+        int batchRejected = parseRejected + rows.size() - stored;
+        accepted.increment(stored);
+        rejected.increment(batchRejected);
+        return new Batch(index, firstLine, lastLine, stored, batchRejected, List.copyOf(errors));
+    }
+
+    /**
+     * Parses one JSON observation the way NDJSON lines are parsed (validated, assigned in memory where possible);
+     * {@code line} is what the row is staged under.
+     */
+    Row parse(long line, String json) throws IOException {
+        IngestionController.IngestObservationRequest observation = observationReader.readValue(json);
+        validate(observation);
+        return new Row(line, assignInMemory(observation));
+    }
+
+    /**
+     * Writes parsed rows with the staged statements; the caller owns the transaction. With {@code rawRecords} each
+     * row's line is the id of the {@code facts_raw.raw_record} it came from and is stored as its {@code raw_record_id}.
+     */
+    void writeStaged(List<Row> rows, boolean rawRecords) {
+        Map<String, String> unitByMetric = new LinkedHashMap<>();
+        for (Row row : rows) {
+            String unit = row.observation().unit();
+            unitByMetric.merge(row.observation().metricId(), unit == null ? "" : unit, (a, b) -> b.isEmpty() ? a : b);
+        }
+        unitByMetric.forEach((metricId, unit) -> metricCatalogService.ensureMetricExists(metricId, unit.isEmpty() ? null : unit, null));
+
+        jdbcTemplate.execute(CREATE_STAGING);
+        String copyText = copyText(rows);
+        jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            try {
+                return connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STAGING, new StringReader(copyText));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        areaAssignmentService.assignStaged(STAGING_TABLE);
+        jdbcTemplate.update(rawRecords ? INSERT_RAW_OBSERVATIONS : INSERT_OBSERVATIONS);
+        aggregationService.addStagedObservationsToRollups(STAGING_TABLE);
+    }
+
+    /** Assigns from the in-memory index where it can; the rest is left to the staged SQL assignment. */
+    private IngestionController.IngestObservationRequest assignInMemory(IngestionController.IngestObservationRequest o) {
+        if (o.assignedAreaKey() != null || o.lon() == null || o.lat() == null) return o;
+        return areaAssignmentService.assignInMemory(o.lon(), o.lat())
+            .map(a -> new IngestionController.IngestObservationRequest(o.metricId(), o.value(), o.unit(), o.currency(),
+                o.observedAt(), o.lon(), o.lat(), a.areaKey(), a.depth(), o.sourceConfidence(), o.sourceUrl()))
+            .orElse(o);
+    }
+
+    private static void validate(IngestionController.IngestObservationRequest observation) {
+        if (observation.metricId() == null || observation.metricId().isBlank()) {
+            throw new IllegalArgumentException("metricId is required");
+        }
+        if (observation.value() == null) {
+            throw new IllegalArgumentException("value is required");
+        }
+        if ((observation.lon() == null) != (observation.lat() == null)) {
+            throw new IllegalArgumentException("lon and lat must be given together");
+        }
+    }
+
+    /** The rows in COPY text format (tab-separated, {@code \N} for null). */
+    private static String copyText(List<Row> rows) {
+        StringBuilder out = new StringBuilder(rows.size() * 96);
+        Instant now = Instant.now();
+        for (Row row : rows) {
+            IngestionController.IngestObservationRequest o = row.observation();
+            out.append(row.line());
+            copyField(out, o.metricId());
+            copyField(out, o.value().toPlainString());
+            copyField(out, o.unit());
+            copyField(out, o.currency());
+            copyField(out, (o.observedAt() != null ? o.observedAt() : now).toString());
+            copyField(out, o.lon());
+            copyField(out, o.lat());
+            copyField(out, o.assignedAreaKey());
+            copyField(out, o.assignedDepth());
+            copyField(out, o.sourceConfidence());
+            copyField(out, o.sourceUrl());
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void copyField(StringBuilder out, Object value) {
+        out.append('\t');
+        if (value == null) {
+            out.append("\\N");
+            return;
+        }
+        String text = value.toString();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '\t' -> out.append("\\t");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    private static String[] csvHeader(String text) {
+        String[] header = csvFields(text).toArray(String[]::new);
+        List<String> names = List.of(header);
+        if (!names.contains("metricId") || !names.contains("value")) {
+            throw new IllegalArgumentException("CSV header must name at least the metricId and value columns");
+        }
+        return header;
+    }
+
+    /** One CSV record; columns are named as the JSON fields, empty fields are null and unknown columns are ignored. */
+    static IngestionController.IngestObservationRequest csvObservation(String[] header, String text) {
+        List<String> fields = csvFields(text);
+        if (fields.size() != header.length) {
+            throw new IllegalArgumentException("expected " + header.length + " fields, got " + fields.size());
+        }
+        Map<String, String> byName = new HashMap<>();
+        for (int i = 0; i < header.length; i++) {
+            String field = fields.get(i);
+            if (!field.isEmpty()) byName.put(header[i], field);
+        }
+        String value = byName.get("value");
+        String observedAt = byName.get("observedAt");
+        String lon = byName.get("lon");
+        String lat = byName.get("lat");
+        String depth = byName.get("assignedDepth");
+        String confidence = byName.get("sourceConfidence");
+        return new IngestionController.IngestObservationRequest(
+            byName.get("metricId"),
+            value == null ? null : new BigDecimal(value),
+            byName.get("unit"),
+            byName.get("currency"),
+            observedAt == null ? null : Instant.parse(observedAt),
+            lon == null ? null : Double.valueOf(lon),
+            lat == null ? null : Double.valueOf(lat),
+            byName.get("assignedAreaKey"),
+            depth == null ? null : Short.valueOf(depth),
+            confidence == null ? null : Float.valueOf(confidence),
+            byName.get("sourceUrl")
+        );
+    }
+
+    /** Splits one CSV line (RFC 4180 quoting, without line breaks inside fields). */
+    static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quoted field");
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String message(Exception e) {
+        String message = e.getMessage();
+        if (message == null) return e.getClass().getSimpleName();
+        int newline = message.indexOf('\n');
+        return newline < 0 ? message : message.substring(0, newline);
+    }
+}
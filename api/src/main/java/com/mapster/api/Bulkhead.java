@@ -0,0 +1,97 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many requests of one kind use the database at the same time.
+ *
+ * Each endpoint family gets its own bulkhead sized below the connection pool, so a burst of slow low-zoom tiles or
+ * area-metrics queries cannot take every connection (or, on platform threads, every worker thread): excess callers
+ * wait in FIFO order for at most the bulkhead's max wait and then fail with {@link RejectedException}. Requests that
+ * never reach the database (304s, cache hits, /metrics) are not affected.
+ *
+ * Meters (tagged {@code bulkhead=<name>}): the timer {@code mapster.bulkhead.queue_time}, the counter
+ * {@code mapster.bulkhead.rejected} and the gauges {@code mapster.bulkhead.active} and {@code mapster.bulkhead.waiting}.
+ */
+public class Bulkhead {
+    private final String name;
+    private final int maxConcurrent;
+    private final Duration maxWait;
+    private final Semaphore permits;
+
+    private final Timer queueTime;
+    private final Counter rejected;
+
+    public Bulkhead(String name, int maxConcurrent, Duration maxWait, MeterRegistry registry) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be >= 1");
+        if (maxWait.isNegative()) throw new IllegalArgumentException("maxWait must be >= 0");
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.queueTime = Timer.builder("mapster.bulkhead.queue_time")
+            .tag("bulkhead", name)
+            .description("Time spent waiting for a database slot")
+            .register(registry);
+        this.rejected = Counter.builder("mapster.bulkhead.rejected")
+            .tag("bulkhead", name)
+            .description("Requests that gave up waiting for a database slot")
+            .register(registry);
+        Gauge.builder("mapster.bulkhead.active", this, b -> b.maxConcurrent - b.permits.availablePermits())
+            .tag("bulkhead", name)
+            .description("Requests currently holding a database slot")
+            .register(registry);
+        Gauge.builder("mapster.bulkhead.waiting", permits, Semaphore::getQueueLength)
+            .tag("bulkhead", name)
+            .description("Requests waiting for a database slot")
+            .register(registry);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int maxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Runs {@code work} once a slot is free, waiting at most the bulkhead's max wait.
+     */
+    public <T> T call(Callable<T> work) throws Exception {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            queueTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (!acquired) {
+            rejected.increment();
+            throw new RejectedException(name, maxWait);
+        }
+        try {
+            return work.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    int activeCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public static final class RejectedException extends RuntimeException {
+        RejectedException(String bulkhead, Duration waited) {
+            super("No '" + bulkhead + "' database slot became free within " + waited.toMillis() + " ms");
+        }
+    }
+}
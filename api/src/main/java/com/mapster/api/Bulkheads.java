@@ -0,0 +1,97 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * The per-endpoint database bulkheads.
+ *
+ * Sized so that no single endpoint family can hold the whole Hikari pool: expensive tile or area-metrics bursts queue
+ * in their own bulkhead while the remaining connections stay available to everything else.
+ *
+ * Together the bulkheads plus the scheduler threads (background jobs that query outside any bulkhead, e.g. the
+ * ReferenceStatistics and RollupEngine syncs) must fit the pool; otherwise a request holding a slot can still wait
+ * for a connection, up to Hikari's 30s timeout. A configuration that breaks this is logged at startup.
+ */
+@Component
+public class Bulkheads {
+    private static final Logger logger = LoggerFactory.getLogger(Bulkheads.class);
+
+    private final Bulkhead tiles;
+    private final Bulkhead overlays;
+    private final Bulkhead areaMetrics;
+    private final Bulkhead ingest;
+
+    public Bulkheads(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.bulkhead.tiles.max-concurrent:6}") int tilesMaxConcurrent,
+        @Value("${mapster.bulkhead.tiles.max-wait-ms:5000}") long tilesMaxWaitMs,
+        @Value("${mapster.bulkhead.overlays.max-concurrent:3}") int overlaysMaxConcurrent,
+        @Value("${mapster.bulkhead.overlays.max-wait-ms:10000}") long overlaysMaxWaitMs,
+        @Value("${mapster.bulkhead.area-metrics.max-concurrent:4}") int areaMetricsMaxConcurrent,
+        @Value("${mapster.bulkhead.area-metrics.max-wait-ms:10000}") long areaMetricsMaxWaitMs,
+        @Value("${mapster.bulkhead.ingest.max-concurrent:3}") int ingestMaxConcurrent,
+        @Value("${mapster.bulkhead.ingest.max-wait-ms:10000}") long ingestMaxWaitMs
+    ) {
+        this.tiles = new Bulkhead("tiles", tilesMaxConcurrent, Duration.ofMillis(tilesMaxWaitMs), meterRegistry);
+        this.overlays = new Bulkhead("overlays", overlaysMaxConcurrent, Duration.ofMillis(overlaysMaxWaitMs), meterRegistry);
+        this.areaMetrics = new Bulkhead("area-metrics", areaMetricsMaxConcurrent, Duration.ofMillis(areaMetricsMaxWaitMs), meterRegistry);
+        this.ingest = new Bulkhead("ingest", ingestMaxConcurrent, Duration.ofMillis(ingestMaxWaitMs), meterRegistry);
+    }
+
+    @Autowired
+    public Bulkheads(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.bulkhead.tiles.max-concurrent:6}") int tilesMaxConcurrent,
+        @Value("${mapster.bulkhead.tiles.max-wait-ms:5000}") long tilesMaxWaitMs,
+        @Value("${mapster.bulkhead.overlays.max-concurrent:3}") int overlaysMaxConcurrent,
+        @Value("${mapster.bulkhead.overlays.max-wait-ms:10000}") long overlaysMaxWaitMs,
+        @Value("${mapster.bulkhead.area-metrics.max-concurrent:4}") int areaMetricsMaxConcurrent,
+        @Value("${mapster.bulkhead.area-metrics.max-wait-ms:10000}") long areaMetricsMaxWaitMs,
+        @Value("${mapster.bulkhead.ingest.max-concurrent:3}") int ingestMaxConcurrent,
+        @Value("${mapster.bulkhead.ingest.max-wait-ms:10000}") long ingestMaxWaitMs,
+        @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+        @Value("${spring.task.scheduling.pool.size:1}") int schedulingThreads
+    ) {
+        this(meterRegistry, tilesMaxConcurrent, tilesMaxWaitMs, overlaysMaxConcurrent, overlaysMaxWaitMs,
+            areaMetricsMaxConcurrent, areaMetricsMaxWaitMs, ingestMaxConcurrent, ingestMaxWaitMs);
+        int needed = connectionsNeeded(schedulingThreads);
+        if (needed > poolSize) {
+            logger.warn("[WARN] bulkheads ({}) plus scheduler threads ({}) can hold {} connections but the pool has {}; "
+                + "raise spring.datasource.hikari.maximum-pool-size or lower mapster.bulkhead.*.max-concurrent",
+                needed - schedulingThreads, schedulingThreads, needed, poolSize);
+        }
+    }
+
+    /** Connections the bulkheads and {@code schedulingThreads} background threads can hold at the same time. */
+    int connectionsNeeded(int schedulingThreads) {
+        return tiles.maxConcurrent() + overlays.maxConcurrent() + areaMetrics.maxConcurrent() + ingest.maxConcurrent()
+            + schedulingThreads;
+    }
+
+    /** Live renders of boundary and metric-shaded tiles. */
+    public Bulkhead tiles() {
+        return tiles;
+    }
+
+    /** /overlays queries. */
+    public Bulkhead overlays() {
+        return overlays;
+    }
+
+    /** /area-metrics queries. */
+    public Bulkhead areaMetrics() {
+        return areaMetrics;
+    }
+
+    /** /ingest/* writes. */
+    public Bulkhead ingest() {
+        return ingest;
+    }
+}
@@ -0,0 +1,183 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Small in-process LRU cache bounded by the total byte size of its values (not by entry count).
+ *
+ * Tiles and response bodies vary from a few bytes to several MB, so an entry-count bound would either waste memory
+ * or evict far too eagerly. All operations are O(1) and guarded by a single lock; the critical sections are tiny.
+ *
+ * Exposes the standard Micrometer cache meters ({@code cache_gets_total{result=hit|miss}}, {@code cache_puts_total},
+ * {@code cache_evictions_total}, {@code cache_size}) plus {@code cache_size_bytes}, all tagged with {@code cache=<name>}.
+ */
+public class ByteWeightedCache<K, V> {
+    private final String name;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ToLongFunction<V> weigher;
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+    private BiConsumer<? super K, ? super V> removalListener = (key, value) -> {};
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long evictions;
+
+    public ByteWeightedCache(String name, long maxBytes, long maxEntryBytes, ToLongFunction<V> weigher) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must be >= 0");
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.weigher = weigher;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Calls {@code listener} (under the cache lock) for every value that leaves the cache: replaced, evicted or
+     * cleared. For callers that keep their own index of the keys.
+     */
+    public ByteWeightedCache<K, V> onRemoval(BiConsumer<? super K, ? super V> listener) {
+        this.removalListener = listener;
+        return this;
+    }
+
+    public V get(K key) {
+        synchronized (this) {
+            V value = entries.get(key);
+            if (value == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Stores a value, evicting least-recently-used entries until the byte budget is respected again.
+     * Values larger than the per-entry limit are not cached at all (they would flush most of the cache).
+     *
+     * @return true if the value was stored
+     */
+    public boolean put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxEntryBytes) return false;
+
+        synchronized (this) {
+            V previous = entries.put(key, value);
+            if (previous != null) {
+                currentBytes -= weigher.applyAsLong(previous);
+                removalListener.accept(key, previous);
+            }
+            currentBytes += weight;
+            puts++;
+
+            Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && it.hasNext()) {
+                Map.Entry<K, V> eldest = it.next();
+                currentBytes -= weigher.applyAsLong(eldest.getValue());
+                it.remove();
+                evictions++;
+                removalListener.accept(eldest.getKey(), eldest.getValue());
+            }
+            return true;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (this) {
+            entries.forEach(removalListener);
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    public synchronized long size() {
+        return entries.size();
+    }
+
+    public synchronized long sizeBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    public synchronized long putCount() {
+        return puts;
+    }
+
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    public ByteWeightedCache<K, V> bindTo(MeterRegistry registry) {
+        new Metrics(this).bindTo(registry);
+        return this;
+    }
+
+    private static final class Metrics extends CacheMeterBinder<ByteWeightedCache<?, ?>> {
+        Metrics(ByteWeightedCache<?, ?> cache) {
+            super(cache, cache.name(), Tags.empty());
+        }
+
+        @Override
+        protected Long size() {
+            ByteWeightedCache<?, ?> cache = getCache();
+            return cache == null ? null : cache.size();
+        }
+
+        @Override
+        protected long hitCount() {
+            ByteWeightedCache<?, ?> cache = getCache();
+            return cache == null ? 0 : cache.hitCount();
+        }
+
+        @Override
+        protected Long missCount() {
+            ByteWeightedCache<?, ?> cache = getCache();
+            return cache == null ? null : cache.missCount();
+        }
+
+        @Override
+        protected Long evictionCount() {
+            ByteWeightedCache<?, ?> cache = getCache();
+            return cache == null ? null : cache.evictionCount();
+        }
+
+        @Override
+        protected long putCount() {
+            ByteWeightedCache<?, ?> cache = getCache();
+            return cache == null ? 0 : cache.putCount();
+        }
+
+        @Override
+        protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+            Gauge.builder("cache.size.bytes", getCache(), c -> c == null ? 0 : c.sizeBytes())
+                .tags(getTagsWithCacheName())
+                .description("Total byte size of the values held in the cache")
+                .baseUnit("bytes")
+                .register(registry);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.mapster.api;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * Exposes the current dataset generations so clients can build versioned, immutable URLs
+ * (e.g. {@code /tiles/v{boundaries}/{z}/{x}/{y}.mvt}).
+ */
+@RestController
+public class DatasetGenerationController {
+    private final DatasetGenerationService datasetGenerations;
+
+    public DatasetGenerationController(DatasetGenerationService datasetGenerations) {
+        this.datasetGenerations = datasetGenerations;
+    }
+
+    @CrossOrigin(origins = "*")
+    @GetMapping(value = "/datasets/generations", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Long>> getGenerations() {
+        return ResponseEntity.ok()
+            .cacheControl(CacheControl.noCache())
+            .body(Map.of(
+                DatasetGenerationService.BOUNDARIES, datasetGenerations.boundaries(),
+                DatasetGenerationService.METRICS, datasetGenerations.metrics()
+            ));
+    }
+}
@@ -0,0 +1,103 @@
+package com.mapster.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the current generation of each dataset.
+ *
+ * - {@link #BOUNDARIES}: admin boundaries, bumped by the import job.
+ * - {@link #METRICS}: metric rollups, bumped by the API whenever it writes rollups.
+ *
+ * Generations live in {@code geo.dataset_generation}. The API polls the table on a short interval so every replica
+ * notices changes without any coordination, and uses the values to key caches and ETags: entries of an older
+ * generation simply stop matching. Rollup writes only mark the dataset dirty; the counter is bumped once per poll
+ * interval, so a burst of ingestion does not turn the generation row into a hot lock.
+ */
+@Service
+public class DatasetGenerationService {
+    private static final Logger logger = LoggerFactory.getLogger(DatasetGenerationService.class);
+
+    public static final String BOUNDARIES = "boundaries";
+    public static final String METRICS = "metrics";
+
+    private final JdbcTemplate jdbcTemplate;
+    private volatile Map<String, Long> generations = Map.of();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    public DatasetGenerationService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public long boundaries() {
+        return generation(BOUNDARIES);
+    }
+
+    public long metrics() {
+        return generation(METRICS);
+    }
+
+    public long generation(String dataset) {
+        return generations.getOrDefault(dataset, 0L);
+    }
+
+    public Map<String, Long> generations() {
+        return generations;
+    }
+
+    /**
+     * Records that a dataset changed; the persisted generation is bumped on the next {@link #refresh()}.
+     */
+    public void markChanged(String dataset) {
+        dirty.add(dataset);
+    }
+
+    @Scheduled(fixedDelayString = "${mapster.dataset-generation.refresh-interval-ms:5000}")
+    public void refresh() {
+        try {
+            for (String dataset : Set.copyOf(dirty)) {
+                // Cleared before the bump so that changes marked while it runs get a bump of their own.
+                dirty.remove(dataset);
+                try {
+                    jdbcTemplate.update(
+                        """
+                        INSERT INTO geo.dataset_generation (dataset, generation)
+                        VALUES (?, 1)
+                        ON CONFLICT (dataset) DO UPDATE
+                          SET generation = geo.dataset_generation.generation + 1,
+                              updated_at = now()
+                        """,
+                        dataset
+                    );
+                } catch (RuntimeException e) {
+                    // Still changed: the next refresh retries the bump.
+                    dirty.add(dataset);
+                    throw e;
+                }
+            }
+
+            Map<String, Long> next = new HashMap<>();
+            jdbcTemplate.query(
+                "SELECT dataset, generation FROM geo.dataset_generation",
+                rs -> {
+                    next.put(rs.getString("dataset"), rs.getLong("generation"));
+                }
+            );
+            if (!next.equals(generations)) {
+                logger.info("[INFO] dataset generations changed: {} -> {}", generations, next);
+                generations = Map.copyOf(next);
+            }
+        } catch (Exception e) {
+            // Keep serving with the last known generations; caches stay valid until the next successful poll.
+            logger.warn("[WARN] could not refresh dataset generations: {}", e.getMessage());
+        }
+    }
+}
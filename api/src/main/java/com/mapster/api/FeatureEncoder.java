@@ -0,0 +1,17 @@
+package com.mapster.api;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes the rows of a feature query (see {@link FeatureStreamer}) as one FeatureCollection in some encoding.
+ */
+interface FeatureEncoder {
+
+    /** Encodes the current row as a feature. */
+    void feature(ResultSet rs, FeatureStreamer.FeatureColumns columns) throws IOException, SQLException;
+
+    /** Completes the collection; the underlying stream is flushed but not closed. */
+    void finish() throws IOException;
+}
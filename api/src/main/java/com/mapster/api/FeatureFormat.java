@@ -0,0 +1,100 @@
+package com.mapster.api;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+/**
+ * Encodings of the feature endpoints (/overlays, /area-metrics), chosen by the request's {@code Accept} header.
+ *
+ * GeoJSON is the default. Clients that explicitly ask for {@code application/geobuf} (or
+ * {@code application/x-protobuf}) get Geobuf: the same features as protobuf with coordinates quantized to 6 decimals
+ * and delta-encoded, typically several times smaller and much cheaper to parse than the JSON text.
+ * {@code application/topo+json} gets a TopoJSON Topology of the admin units, where borders shared by neighbouring
+ * units are sent once (only for pyramid levels whose topology has been built; otherwise GeoJSON).
+ */
+public enum FeatureFormat {
+    GEOJSON(MediaType.APPLICATION_JSON, ""),
+    GEOBUF(MediaType.parseMediaType("application/geobuf"), "&f=geobuf"),
+    TOPOJSON(MediaType.parseMediaType("application/topo+json"), "&f=topojson");
+
+    public static final String GEOBUF_VALUE = "application/geobuf";
+    public static final String TOPOJSON_VALUE = "application/topo+json";
+    public static final String PROTOBUF_VALUE = "application/x-protobuf";
+
+    private static final MediaType PROTOBUF = MediaType.parseMediaType(PROTOBUF_VALUE);
+
+    private final MediaType mediaType;
+    private final String etagSuffix;
+
+    FeatureFormat(MediaType mediaType, String etagSuffix) {
+        this.mediaType = mediaType;
+        this.etagSuffix = etagSuffix;
+    }
+
+    public MediaType mediaType() {
+        return mediaType;
+    }
+
+    /** Appended to the ETag's parameters so each encoding is cached and revalidated separately (empty for GeoJSON). */
+    public String etagSuffix() {
+        return etagSuffix;
+    }
+
+    /**
+     * SQL expression for the {@code geometry} column of a feature query in this encoding. TopoJSON reads the unit's
+     * arc references (by pyramid id and level) instead of its geometry.
+     */
+    public String geometrySql(String geomExpr, String areaIdExpr, Integer toleranceM) {
+        return switch (this) {
+            case GEOJSON -> "ST_AsGeoJSON(" + geomExpr + ", 6)";
+            case GEOBUF -> "ST_AsBinary(" + geomExpr + ")";
+            case TOPOJSON -> {
+                if (toleranceM == null) throw new IllegalStateException("TopoJSON needs a pyramid level");
+                yield TopoJsonFeatureEncoder.arcRefsSql(areaIdExpr, toleranceM);
+            }
+        };
+    }
+
+    /** A FeatureCollection without features in this encoding. */
+    public byte[] emptyCollection() {
+        return switch (this) {
+            case GEOJSON -> FeatureStreamer.EMPTY_FEATURE_COLLECTION;
+            case GEOBUF -> GeobufFeatureEncoder.EMPTY_FEATURE_COLLECTION;
+            case TOPOJSON -> TopoJsonFeatureEncoder.EMPTY_TOPOLOGY;
+        };
+    }
+
+    /**
+     * Picks Geobuf or TopoJSON only if the client names it with a quality at least as high as anything that matches
+     * JSON (so {@code *}{@code /*} alone, as browsers send, stays GeoJSON). Geobuf wins a tie with TopoJSON.
+     */
+    public static FeatureFormat negotiate(String accept) {
+        if (accept == null || accept.isBlank()) return GEOJSON;
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return GEOJSON;
+        }
+        double geobuf = 0;
+        double topojson = 0;
+        double json = 0;
+        for (MediaType mediaType : mediaTypes) {
+            double quality = mediaType.getQualityValue();
+            if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                if (mediaType.includes(MediaType.APPLICATION_JSON)) json = Math.max(json, quality);
+            } else if (GEOBUF.mediaType.equalsTypeAndSubtype(mediaType) || PROTOBUF.equalsTypeAndSubtype(mediaType)) {
+                geobuf = Math.max(geobuf, quality);
+            } else if (TOPOJSON.mediaType.equalsTypeAndSubtype(mediaType)) {
+                topojson = Math.max(topojson, quality);
+            } else if (MediaType.APPLICATION_JSON.equalsTypeAndSubtype(mediaType)) {
+                json = Math.max(json, quality);
+            }
+        }
+        if (geobuf > 0 && geobuf >= json && geobuf >= topojson) return GEOBUF;
+        if (topojson > 0 && topojson >= json) return TOPOJSON;
+        return GEOJSON;
+    }
+}
@@ -0,0 +1,454 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.SqlProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes a FeatureCollection straight from a row cursor.
+ *
+ * The query returns one row per feature: a {@code geometry} column (see {@link FeatureFormat#geometrySql}), every
+ * other column becomes a property under its column label. Rows are fetched in batches of
+ * {@code mapster.streaming.fetch-size} (a server-side cursor, which PostgreSQL only uses inside a transaction) and
+ * gzip-encoded as they arrive, and the database never builds JSON at all.
+ *
+ * The gzip body is captured along the way (up to {@code mapster.streaming.capture-max-bytes}, where callers can cache
+ * it and hand it to coalesced requests, along with the values of an {@code area_key} column if the query has one);
+ * larger bodies are still streamed in full but not captured, so heap per request stays bounded regardless of bbox size.
+ */
+@Component
+public class FeatureStreamer {
+    private static final Logger logger = LoggerFactory.getLogger(FeatureStreamer.class);
+
+    /** Column holding the GeoJSON geometry text; all other columns are written as properties. */
+    public static final String GEOMETRY_COLUMN = "geometry";
+
+    /** Property column whose values are collected into {@link Result#areaKeys}. */
+    public static final String AREA_KEY_COLUMN = "area_key";
+
+    public static final byte[] EMPTY_FEATURE_COLLECTION =
+        "{\"type\":\"FeatureCollection\",\"features\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JsonFactory jsonFactory;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int fetchSize;
+    private final int captureMaxBytes;
+
+    public FeatureStreamer(
+        JdbcTemplate jdbcTemplate,
+        ObjectMapper objectMapper,
+        ObjectProvider<PlatformTransactionManager> transactionManager,
+        @Value("${mapster.streaming.fetch-size:256}") int fetchSize,
+        @Value("${mapster.streaming.capture-max-bytes:8388608}") int captureMaxBytes
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jsonFactory = objectMapper.getFactory();
+        PlatformTransactionManager tm = transactionManager.getIfAvailable();
+        if (tm != null) {
+            this.readOnlyTransaction = new TransactionTemplate(tm);
+            this.readOnlyTransaction.setReadOnly(true);
+        } else {
+            this.readOnlyTransaction = null;
+        }
+        this.fetchSize = fetchSize;
+        this.captureMaxBytes = captureMaxBytes;
+    }
+
+    /** A feature query: its SQL and bind parameters. */
+    public record Query(String sql, Object[] params) {}
+
+    public record Result(long features, byte[] gzipped, Set<String> areaKeys) {
+        /** @return true if the whole gzip body was captured (not over the capture limit) */
+        public boolean captured() {
+            return gzipped != null;
+        }
+    }
+
+    /**
+     * Runs the query and returns the FeatureCollection in {@code format}, gzip-compressed.
+     *
+     * @return the number of features and the gzip body (null if it exceeded the capture limit)
+     */
+    public Result stream(FeatureFormat format, String sql, Object[] params) throws IOException {
+        return stream(format, new Query(sql, params), null, true);
+    }
+
+    /**
+     * Runs the query, writing the FeatureCollection to {@code client} (gzip-compressed if {@code clientGzip}) as rows
+     * arrive while capturing the gzip body. A client that goes away is dropped without failing the query, as long as
+     * the body can still be captured for others; {@link Client#finish} reports its failure afterwards.
+     */
+    private Result stream(FeatureFormat format, Query query, Client client, boolean clientGzip) throws IOException {
+        CappedBuffer capture = new CappedBuffer(captureMaxBytes);
+        // One encoding, fanned out: gzip once and tee it to client + capture, or send plain and gzip the capture.
+        GZIPOutputStream gzip;
+        OutputStream encoded;
+        if (clientGzip) {
+            gzip = new GZIPOutputStream(new Tee(capture, capture, client), 8192);
+            encoded = gzip;
+        } else {
+            gzip = new GZIPOutputStream(capture, 8192);
+            encoded = new Tee(gzip, capture, client);
+        }
+
+        long[] features = {0};
+        Set<String> areaKeys = new HashSet<>();
+        FeatureEncoder encoder = switch (format) {
+            case GEOJSON -> new GeoJsonFeatureEncoder(jsonFactory, encoded);
+            case GEOBUF -> new GeobufFeatureEncoder(encoded);
+            case TOPOJSON -> new TopoJsonFeatureEncoder(jsonFactory, encoded, this::arcs);
+        };
+        Runnable rows = () -> jdbcTemplate.query(new CursorStatement(query.sql(), query.params(), fetchSize), new RowCallbackHandler() {
+            private FeatureColumns columns;
+            private int areaKey;
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                if (columns == null) {
+                    columns = FeatureColumns.of(rs.getMetaData());
+                    areaKey = columns.property(AREA_KEY_COLUMN);
+                }
+                if (areaKey > 0) areaKeys.add(rs.getString(areaKey));
+                try {
+                    encoder.feature(rs, columns);
+                    features[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        // finish() runs in the same transaction: TopoJSON reads the referenced arcs there.
+        Runnable all = () -> {
+            rows.run();
+            try {
+                encoder.finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            if (readOnlyTransaction != null) {
+                readOnlyTransaction.executeWithoutResult(status -> all.run());
+            } else {
+                all.run();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        gzip.finish();
+        encoded.flush();
+        return new Result(features[0], capture.overflowed() ? null : capture.toByteArray(), areaKeys);
+    }
+
+    /**
+     * Response body for a feature query, coalesced through {@code flight}: the first request for {@code key} streams
+     * from the database to its client as rows arrive, concurrent ones replay its captured gzip body once it is
+     * complete (or stream their own copy if the body was too large to capture, or if the first one's query failed).
+     *
+     * Every database query runs inside {@code bulkhead}; {@code query} is called there too, so whatever it looks up to
+     * build the statement also only runs on a miss and within the slot. The leader's client is written to while the
+     * cursor is open, so a slow client holds the slot (and keeps followers waiting, up to the flight timeout) for as
+     * long as it is slow; one that disconnects is dropped and the query finishes for the followers. Headers (including
+     * {@code Content-Encoding: gzip} when {@code clientGzip}) are set by the caller. If the query fails before the
+     * response is committed, an empty FeatureCollection is sent with {@code Cache-Control: no-store} and status 500,
+     * or 503 with {@code Retry-After} if no bulkhead slot became free or the in-flight query took too long; never as
+     * a 200, which would show an empty map as if it were the answer. A failure mid-stream aborts the response.
+     */
+    public StreamingResponseBody body(
+        FeatureFormat format,
+        SingleFlight<String, byte[]> flight,
+        Bulkhead bulkhead,
+        String key,
+        Callable<Query> query,
+        boolean clientGzip,
+        HttpServletResponse response,
+        Consumer<Result> onCaptured
+    ) {
+        return out -> {
+            Client client = new Client(out);
+            try {
+                boolean[] led = {false};
+                byte[] shared;
+                try {
+                    shared = flight.execute(key, () -> {
+                        led[0] = true;
+                        Result result = bulkhead.call(() -> stream(format, query.call(), client, clientGzip));
+                        logger.debug("[DEBUG] streamed {} features for {} (captured={})", result.features(), flight.name(), result.captured());
+                        if (result.captured()) onCaptured.accept(result);
+                        return result.gzipped();
+                    });
+                } catch (SingleFlight.TimeoutException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (led[0]) throw e;
+                    // Whatever failed the in-flight query may not fail ours; don't hand its error to every follower.
+                    logger.warn("[WARN] in-flight {} query failed, running our own: {}", flight.name(), e.getMessage());
+                    shared = null;
+                }
+                if (!led[0]) {
+                    if (shared != null) {
+                        out.write(clientGzip ? shared : PrecompressedBodies.gunzip(shared));
+                        return;
+                    }
+                    bulkhead.call(() -> stream(format, query.call(), client, clientGzip));
+                }
+                client.finish();
+            } catch (Exception e) {
+                boolean unavailable = e instanceof Bulkhead.RejectedException || e instanceof SingleFlight.TimeoutException;
+                if (unavailable) {
+                    logger.warn("[WARN] {}", e.getMessage());
+                } else if (client.failed()) {
+                    logger.debug("[DEBUG] {} client went away: {}", flight.name(), e.getMessage());
+                } else {
+                    logger.error("[ERROR] Exception in {} SQL: {}", flight.name(), e.getMessage(), e);
+                }
+                if (response.isCommitted() || client.failed()) {
+                    // Part of the body is on its way (or the connection broke): all that is left is to abort it.
+                    throw e instanceof IOException io ? io : new IOException(e);
+                }
+                response.resetBuffer();
+                if (unavailable) {
+                    response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                } else {
+                    response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+                }
+                response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+                byte[] empty = format.emptyCollection();
+                out.write(clientGzip ? PrecompressedBodies.gzip(empty) : empty);
+            }
+        };
+    }
+
+    /**
+     * Answer for a streamed response that never started because the streaming threads and their queue were full (see
+     * {@link StreamingConfig}): 503 with {@code Retry-After}, without the headers already set for the body.
+     */
+    static ResponseEntity<Void> busy(HttpServletResponse response) {
+        response.reset();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .cacheControl(CacheControl.noStore())
+            .build();
+    }
+
+    /** WKB of the given shared-border arcs in the given order, for {@link TopoJsonFeatureEncoder}. */
+    private void arcs(long[] arcIds, Consumer<byte[]> wkb) {
+        String sql = "SELECT ST_AsBinary(a.geom_4326) FROM unnest(?::bigint[]) WITH ORDINALITY u(id, ord) "
+            + "LEFT JOIN " + TopoJsonFeatureEncoder.ARCS_TABLE + " a ON a.id = u.id ORDER BY u.ord";
+        Long[] ids = new Long[arcIds.length];
+        for (int i = 0; i < arcIds.length; i++) ids[i] = arcIds[i];
+        jdbcTemplate.query(new CursorStatement(sql, new Object[] {ids}, fetchSize), (RowCallbackHandler) rs -> wkb.accept(rs.getBytes(1)));
+    }
+
+    /** Column layout of a feature query, resolved once from the first row. */
+    record FeatureColumns(int geometry, String[] properties, int[] propertyIndexes) {
+        static FeatureColumns of(ResultSetMetaData meta) throws SQLException {
+            int geometry = 0;
+            List<String> names = new ArrayList<>();
+            List<Integer> indexes = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                String label = meta.getColumnLabel(i);
+                if (GEOMETRY_COLUMN.equals(label)) {
+                    geometry = i;
+                } else {
+                    names.add(label);
+                    indexes.add(i);
+                }
+            }
+            return new FeatureColumns(geometry, names.toArray(new String[0]), indexes.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        /** @return the 1-based index of property {@code label}, or 0 */
+        int property(String label) {
+            for (int i = 0; i < properties.length; i++) {
+                if (properties[i].equals(label)) return propertyIndexes[i];
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Prepared statement with a fetch size, so the driver pulls rows in batches instead of all at once.
+     */
+    static final class CursorStatement implements PreparedStatementCreator, SqlProvider {
+        private final String sql;
+        private final Object[] params;
+        private final int fetchSize;
+
+        CursorStatement(String sql, Object[] params, int fetchSize) {
+            this.sql = sql;
+            this.params = params;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+            PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            for (int i = 0; i < params.length; i++) {
+                ps.setObject(i + 1, params[i]);
+            }
+            return ps;
+        }
+
+        @Override
+        public String getSql() {
+            return sql;
+        }
+
+        Object[] params() {
+            return params;
+        }
+    }
+
+    /**
+     * The client side of a streamed query. Once a write fails, later writes are dropped so the query can still finish
+     * (and be captured) for coalesced requests; {@link #finish} then reports the failure.
+     */
+    private static final class Client extends OutputStream {
+        private final OutputStream out;
+        private IOException failure;
+
+        Client(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (failure != null) return;
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (failure != null) return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        boolean failed() {
+            return failure != null;
+        }
+
+        void finish() throws IOException {
+            if (failure != null) throw failure;
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes to the capture side and then to the client (if any). Gives up with the client's error once the client is
+     * gone and the body has outgrown the capture, since nobody is left to receive it.
+     */
+    private static final class Tee extends OutputStream {
+        private final OutputStream capture;
+        private final CappedBuffer captured;
+        private final Client client;
+
+        Tee(OutputStream capture, CappedBuffer captured, Client client) {
+            this.capture = capture;
+            this.captured = captured;
+            this.client = client;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            capture.write(b, off, len);
+            if (client == null) return;
+            client.write(b, off, len);
+            if (client.failed() && captured.overflowed()) client.finish();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            capture.flush();
+            if (client != null) client.flush();
+        }
+    }
+
+    /** Keeps the first {@code limit} bytes; anything beyond marks the buffer as overflowed and is dropped. */
+    private static final class CappedBuffer extends ByteArrayOutputStream {
+        private final int limit;
+        private boolean overflowed;
+
+        CappedBuffer(int limit) {
+            super(Math.max(0, Math.min(limit, 8192)));
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (overflowed || count + len > limit) {
+                if (!overflowed) {
+                    overflowed = true;
+                    buf = new byte[0];
+                    count = 0;
+                }
+                return;
+            }
+            super.write(b, off, len);
+        }
+
+        boolean overflowed() {
+            return overflowed;
+        }
+    }
+}
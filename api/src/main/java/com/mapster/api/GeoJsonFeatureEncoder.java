@@ -0,0 +1,73 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * GeoJSON FeatureCollection, written incrementally with a Jackson generator. The {@code geometry} column already
+ * holds GeoJSON text and is passed through as-is; other columns become properties.
+ */
+class GeoJsonFeatureEncoder implements FeatureEncoder {
+    private final JsonGenerator gen;
+
+    GeoJsonFeatureEncoder(JsonFactory jsonFactory, OutputStream out) throws IOException {
+        this.gen = jsonFactory.createGenerator(out);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        gen.writeStartObject();
+        gen.writeStringField("type", "FeatureCollection");
+        gen.writeArrayFieldStart("features");
+    }
+
+    @Override
+    public void feature(ResultSet rs, FeatureStreamer.FeatureColumns columns) throws IOException, SQLException {
+        gen.writeStartObject();
+        gen.writeStringField("type", "Feature");
+        gen.writeFieldName("geometry");
+        String geometry = columns.geometry() > 0 ? rs.getString(columns.geometry()) : null;
+        if (geometry != null) {
+            // Already GeoJSON text; pass it through rather than parsing and re-encoding the coordinates.
+            gen.writeRawValue(geometry);
+        } else {
+            gen.writeNull();
+        }
+        gen.writeObjectFieldStart("properties");
+        for (int i = 0; i < columns.properties().length; i++) {
+            gen.writeFieldName(columns.properties()[i]);
+            writeValue(gen, rs.getObject(columns.propertyIndexes()[i]));
+        }
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.close();
+    }
+
+    static void writeValue(JsonGenerator gen, Object value) throws IOException {
+        if (value == null) {
+            gen.writeNull();
+        } else if (value instanceof String str) {
+            gen.writeString(str);
+        } else if (value instanceof BigDecimal decimal) {
+            gen.writeNumber(decimal);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+            gen.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isFinite(d)) gen.writeNumber(d); else gen.writeNull();
+        } else if (value instanceof Boolean bool) {
+            gen.writeBoolean(bool);
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.mapster.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geobuf (mapbox/geobuf, {@code geobuf.proto}) FeatureCollection built from WKB geometry rows.
+ *
+ * Coordinates are quantized to {@link #PRECISION} decimals (the same as the GeoJSON output) and delta-encoded per
+ * ring as zig-zag varints, so a typical vertex takes 2-4 bytes instead of ~20 characters. Properties are the
+ * non-geometry columns; their names are written once as the document's keys.
+ *
+ * Geobuf carries the whole collection in one length-prefixed field, so features are encoded from the cursor into a
+ * compact buffer and the document is written when the last row is in.
+ */
+class GeobufFeatureEncoder implements FeatureEncoder {
+    static final int PRECISION = 6;
+    private static final double SCALE = 1e6;
+
+    /** precision = 6, feature_collection = {} */
+    static final byte[] EMPTY_FEATURE_COLLECTION = {0x18, 0x06, 0x22, 0x00};
+
+    // Data.Geometry.Type
+    private static final int POINT = 0;
+    private static final int MULTIPOINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int MULTILINESTRING = 3;
+    private static final int POLYGON = 4;
+    private static final int MULTIPOLYGON = 5;
+    private static final int GEOMETRYCOLLECTION = 6;
+
+    private final OutputStream out;
+    private final Pbf collection = new Pbf();
+    private String[] keys = new String[0];
+
+    GeobufFeatureEncoder(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void feature(ResultSet rs, FeatureStreamer.FeatureColumns columns) throws IOException, SQLException {
+        keys = columns.properties();
+        Pbf feature = new Pbf();
+        byte[] wkb = columns.geometry() > 0 ? rs.getBytes(columns.geometry()) : null;
+        if (wkb != null) {
+            Pbf geometry = new Pbf();
+            writeGeometry(ByteBuffer.wrap(wkb), geometry);
+            feature.messageField(1, geometry);
+        }
+        // One value per column, in column order: property i is (key i, value i).
+        Pbf properties = new Pbf();
+        for (int i = 0; i < keys.length; i++) {
+            Pbf value = new Pbf();
+            writeValue(rs.getObject(columns.propertyIndexes()[i]), value);
+            feature.messageField(13, value);
+            properties.varint(i);
+            properties.varint(i);
+        }
+        if (properties.size() > 0) feature.messageField(14, properties);
+        collection.messageField(1, feature);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        Pbf data = new Pbf();
+        for (String key : keys) {
+            data.stringField(1, key);
+        }
+        data.varintField(3, PRECISION);
+        data.tag(4, 2);
+        data.varint(collection.size());
+        data.writeTo(out);
+        collection.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeValue(Object value, Pbf pbf) {
+        if (value == null) {
+            pbf.stringField(6, "null");
+        } else if (value instanceof String str) {
+            pbf.stringField(1, str);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+            writeInteger(((Number) value).longValue(), pbf);
+        } else if (value instanceof BigDecimal decimal) {
+            if (decimal.signum() == 0
+                    || (decimal.stripTrailingZeros().scale() <= 0 && decimal.abs().compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0)) {
+                writeInteger(decimal.longValue(), pbf);
+            } else {
+                pbf.doubleField(2, decimal.doubleValue());
+            }
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isFinite(d)) pbf.doubleField(2, d); else pbf.stringField(6, "null");
+        } else if (value instanceof Boolean bool) {
+            pbf.varintField(5, bool ? 1 : 0);
+        } else {
+            pbf.stringField(1, value.toString());
+        }
+    }
+
+    private static void writeInteger(long value, Pbf pbf) {
+        if (value >= 0) {
+            pbf.varintField(3, value);
+        } else {
+            pbf.varintField(4, -value);
+        }
+    }
+
+    /** Reads one (possibly nested) WKB geometry and writes it as a Data.Geometry message body. */
+    static void writeGeometry(ByteBuffer wkb, Pbf geometry) {
+        int[] header = Wkb.readHeader(wkb);
+        int dims = header[1];
+        switch (header[0]) {
+            case 1 -> {
+                double[] point = Wkb.readPoints(wkb, 1, dims);
+                geometry.varintField(1, POINT);
+                if (!Double.isNaN(point[0])) {
+                    Pbf coords = new Pbf();
+                    coords.svarint(quantize(point[0]));
+                    coords.svarint(quantize(point[1]));
+                    geometry.messageField(3, coords);
+                }
+            }
+            case 2 -> {
+                geometry.varintField(1, LINESTRING);
+                writeLines(List.of(Wkb.readPoints(wkb, wkb.getInt(), dims)), false, geometry);
+            }
+            case 3 -> {
+                List<double[]> rings = Wkb.readRings(wkb, dims);
+                geometry.varintField(1, POLYGON);
+                writeLines(rings, true, geometry);
+            }
+            case 4 -> {
+                int n = wkb.getInt();
+                double[] points = new double[n * 2];
+                for (int i = 0; i < n; i++) {
+                    double[] point = Wkb.readPoints(wkb, 1, Wkb.readHeader(wkb)[1]);
+                    points[i * 2] = point[0];
+                    points[i * 2 + 1] = point[1];
+                }
+                geometry.varintField(1, MULTIPOINT);
+                writeLines(List.of(points), false, geometry);
+            }
+            case 5 -> {
+                int n = wkb.getInt();
+                List<double[]> lines = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int lineDims = Wkb.readHeader(wkb)[1];
+                    lines.add(Wkb.readPoints(wkb, wkb.getInt(), lineDims));
+                }
+                geometry.varintField(1, MULTILINESTRING);
+                writeLines(lines, false, geometry);
+            }
+            case 6 -> {
+                int n = wkb.getInt();
+                List<List<double[]>> polygons = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    polygons.add(Wkb.readRings(wkb, Wkb.readHeader(wkb)[1]));
+                }
+                geometry.varintField(1, MULTIPOLYGON);
+                writeMultiPolygon(polygons, geometry);
+            }
+            case 7 -> {
+                int n = wkb.getInt();
+                geometry.varintField(1, GEOMETRYCOLLECTION);
+                for (int i = 0; i < n; i++) {
+                    Pbf part = new Pbf();
+                    writeGeometry(wkb, part);
+                    geometry.messageField(4, part);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unsupported WKB geometry type " + header[0]);
+        }
+    }
+
+    /** Lines or rings: lengths (if more than one) and per-line delta-encoded coordinates; rings drop their closing point. */
+    private static void writeLines(List<double[]> lines, boolean closed, Pbf geometry) {
+        if (lines.size() != 1) {
+            Pbf lengths = new Pbf();
+            for (double[] line : lines) {
+                lengths.varint(line.length / 2 - (closed ? 1 : 0));
+            }
+            geometry.messageField(2, lengths);
+        }
+        Pbf coords = new Pbf();
+        for (double[] line : lines) {
+            writeLine(line, closed, coords);
+        }
+        geometry.messageField(3, coords);
+    }
+
+    private static void writeMultiPolygon(List<List<double[]>> polygons, Pbf geometry) {
+        if (polygons.size() != 1 || polygons.get(0).size() != 1) {
+            Pbf lengths = new Pbf();
+            lengths.varint(polygons.size());
+            for (List<double[]> rings : polygons) {
+                lengths.varint(rings.size());
+                for (double[] ring : rings) {
+                    lengths.varint(ring.length / 2 - 1);
+                }
+            }
+            geometry.messageField(2, lengths);
+        }
+        Pbf coords = new Pbf();
+        for (List<double[]> rings : polygons) {
+            for (double[] ring : rings) {
+                writeLine(ring, true, coords);
+            }
+        }
+        geometry.messageField(3, coords);
+    }
+
+    private static void writeLine(double[] xy, boolean closed, Pbf coords) {
+        int points = xy.length / 2 - (closed ? 1 : 0);
+        long x = 0;
+        long y = 0;
+        for (int i = 0; i < points; i++) {
+            long qx = quantize(xy[i * 2]);
+            long qy = quantize(xy[i * 2 + 1]);
+            coords.svarint(qx - x);
+            coords.svarint(qy - y);
+            x = qx;
+            y = qy;
+        }
+    }
+
+    private static long quantize(double ordinate) {
+        return Math.round(ordinate * SCALE);
+    }
+
+    /** Minimal protobuf writer. */
+    static final class Pbf extends ByteArrayOutputStream {
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void svarint(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void tag(int field, int wireType) {
+            varint(((long) field << 3) | wireType);
+        }
+
+        void varintField(int field, long value) {
+            tag(field, 0);
+            varint(value);
+        }
+
+        void doubleField(int field, double value) {
+            tag(field, 1);
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                write((int) (bits >>> (8 * i)) & 0xFF);
+            }
+        }
+
+        void stringField(int field, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            tag(field, 2);
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void messageField(int field, Pbf message) {
+            tag(field, 2);
+            varint(message.count);
+            write(message.buf, 0, message.count);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.mapster.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Access to the precomputed generalization pyramid ({@code geo.admin_areas_generalized}).
+ *
+ * The import job simplifies every admin unit once per pyramid level, topology-aware so neighbouring borders still
+ * meet, and stores the result in 3857 and 4326. Tiles, overlays and area-metrics then only clip and encode.
+ *
+ * The level for a depth is identified by its simplification tolerance (the same table the endpoints used to apply
+ * per request). Until an import has filled the table, {@link #available()} is false and callers keep simplifying
+ * on the fly from {@code admin_areas}.
+ */
+@Component
+public class GeometryPyramid {
+    private static final Logger logger = LoggerFactory.getLogger(GeometryPyramid.class);
+
+    public static final String TABLE = "geo.admin_areas_generalized";
+
+    // Indexed by depth 0..5. Simplification happens in meters (Web Mercator) to avoid degree distortions.
+    private static final int[] TOLERANCE_METERS = {5000, 2000, 800, 250, 80, 20};
+    private static final int[] SNAP_GRID_METERS = {250, 100, 50, 20, 5, 2};
+
+    /** Level holding unsimplified geometry (depth 5 only), for tiles beyond {@link ZoomDepthMapper#MAX_ZOOM}. */
+    public static final int FULL_RESOLUTION = 0;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final DatasetGenerationService datasetGenerations;
+
+    private volatile long checkedGeneration = -1;
+    private volatile boolean available;
+    private volatile boolean topologyAvailable;
+
+    public GeometryPyramid(JdbcTemplate jdbcTemplate, DatasetGenerationService datasetGenerations) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.datasetGenerations = datasetGenerations;
+    }
+
+    /** @return simplification tolerance for a depth, or null if the depth has no generalized level */
+    public static Integer toleranceMeters(Integer depth) {
+        if (depth == null || depth < 0 || depth >= TOLERANCE_METERS.length) return null;
+        return TOLERANCE_METERS[depth];
+    }
+
+    /** @return snap grid size for a depth, or null if the depth has no generalized level */
+    public static Integer snapGridMeters(Integer depth) {
+        if (depth == null || depth < 0 || depth >= SNAP_GRID_METERS.length) return null;
+        return SNAP_GRID_METERS[depth];
+    }
+
+    /** Pyramid level for a tile zoom: the depth's tolerance, or full resolution past the last generalized zoom. */
+    public static int tileLevel(int z) {
+        if (z > ZoomDepthMapper.MAX_ZOOM) return FULL_RESOLUTION;
+        return TOLERANCE_METERS[ZoomDepthMapper.depthForTileZoom(z)];
+    }
+
+    /**
+     * Whether the pyramid has been built. Checked once per boundaries generation: the import job rebuilds it before
+     * bumping the generation.
+     */
+    public boolean available() {
+        return check() && available;
+    }
+
+    /**
+     * Whether the shared-border topology ({@link TopoJsonFeatureEncoder#ARCS_TABLE}) has been built for the pyramid
+     * levels; checked together with {@link #available()}.
+     */
+    public boolean topologyAvailable() {
+        return check() && topologyAvailable;
+    }
+
+    private boolean check() {
+        long generation = datasetGenerations.boundaries();
+        if (generation != checkedGeneration) {
+            try {
+                available = exists(TABLE);
+                topologyAvailable = available && exists(TopoJsonFeatureEncoder.ARC_REFS_TABLE);
+                checkedGeneration = generation;
+                logger.info("[INFO] Generalized geometry pyramid available={}, topology={} for boundaries generation {}",
+                    available, topologyAvailable, generation);
+            } catch (Exception e) {
+                // Not remembered: the next request checks again.
+                logger.warn("[WARN] could not check generalized geometry tables: {}", e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean exists(String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + table + ")", Boolean.class));
+    }
+}
@@ -3,15 +3,20 @@ package com.mapster.api;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -26,17 +31,23 @@ public class IngestionController {
     private final MetricCatalogService metricCatalogService;
     private final AreaAssignmentService areaAssignmentService;
     private final AggregationService aggregationService;
+    private final Bulkheads bulkheads;
+    private final BulkObservationLoader bulkObservationLoader;
 
     public IngestionController(
         JdbcTemplate jdbcTemplate,
         MetricCatalogService metricCatalogService,
         AreaAssignmentService areaAssignmentService,
-        AggregationService aggregationService
+        AggregationService aggregationService,
+        Bulkheads bulkheads,
+        BulkObservationLoader bulkObservationLoader
     ) {
         this.jdbcTemplate = jdbcTemplate;
         this.metricCatalogService = metricCatalogService;
         this.areaAssignmentService = areaAssignmentService;
         this.aggregationService = aggregationService;
+        this.bulkheads = bulkheads;
+        this.bulkObservationLoader = bulkObservationLoader;
     }
 
     @PostMapping(value = "/ingest/raw", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -44,8 +55,8 @@ public class IngestionController {
         @RequestParam(value = "sourceSystem", defaultValue = "manual") String sourceSystem,
         @RequestParam(value = "sourceRecordId", required = false) String sourceRecordId,
         @RequestBody JsonNode payload
-    ) {
-        Long id = jdbcTemplate.queryForObject(
+    ) throws Exception {
+        Long id = bulkheads.ingest().call(() -> jdbcTemplate.queryForObject(
             """
             INSERT INTO facts_raw.raw_record (source_system, source_record_id, payload)
             VALUES (?, ?, ?::jsonb)
@@ -55,7 +66,7 @@ public class IngestionController {
             sourceSystem,
             sourceRecordId,
             payload.toString()
-        );
+        ));
 
         logger.info("[INFO] ingest/raw sourceSystem={}, sourceRecordId={}, id={}", sourceSystem, sourceRecordId, id);
 
@@ -80,14 +91,17 @@ public class IngestionController {
     ) {}
 
     @PostMapping(value = "/ingest/observation", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Map<String, Object>> ingestObservation(@RequestBody IngestObservationRequest req) {
+    public ResponseEntity<Map<String, Object>> ingestObservation(@RequestBody IngestObservationRequest req) throws Exception {
         if (req.metricId() == null || req.metricId().isBlank()) {
             return ResponseEntity.badRequest().body(Map.of("error", "metricId is required"));
         }
         if (req.value() == null) {
             return ResponseEntity.badRequest().body(Map.of("error", "value is required"));
         }
+        return bulkheads.ingest().call(() -> storeObservation(req));
+    }
 
+    private ResponseEntity<Map<String, Object>> storeObservation(IngestObservationRequest req) {
         Instant observedAt = req.observedAt() != null ? req.observedAt() : Instant.now();
         LocalDate day = observedAt.atZone(ZoneOffset.UTC).toLocalDate();
 
@@ -143,4 +157,36 @@ public class IngestionController {
             "assignedDepth", depth
         ));
     }
+
+    /**
+     * Many observations in one streamed body: NDJSON (one {@link IngestObservationRequest} per line) or CSV with a
+     * header row naming the same fields. Rows are written in batches (see {@link BulkObservationLoader}); the response
+     * lists the accepted and rejected rows of every batch with the line numbers of rejected ones, so a client can
+     * resend just the failed lines.
+     */
+    @PostMapping(
+        value = "/ingest/observations:bulk",
+        consumes = {"application/x-ndjson", "application/ndjson", "text/csv"},
+        produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    public ResponseEntity<BulkObservationLoader.Summary> ingestObservationsBulk(
+        @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+        InputStream body
+    ) throws IOException {
+        BulkObservationLoader.Format format = BulkObservationLoader.Format.of(contentType);
+        return ResponseEntity.ok(bulkObservationLoader.load(body, format));
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, Object>> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+    }
+
+    @ExceptionHandler(Bulkhead.RejectedException.class)
+    public ResponseEntity<Map<String, Object>> ingestBusy(Bulkhead.RejectedException e) {
+        logger.warn("[WARN] {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .body(Map.of("error", "ingest is busy, retry later"));
+    }
 }
@@ -0,0 +1,49 @@
+package com.mapster.api;
+
+/**
+ * The 10-step band scale used to shade areas by their average relative to a reference average.
+ *
+ * Bands 1..5 are at or below the reference (1 = at most half of it), 6..10 above it (10 = at least double).
+ * Shared by the GeoJSON and vector tile endpoints so both shade identically.
+ *
+ * Quantile bands use the same 1..10 scale for skewed metrics: an area's median against the deciles of all
+ * observations of the reference (band 1 = below the 10% quantile, 10 = above the 90% quantile).
+ */
+final class MetricBands {
+    private MetricBands() {}
+
+    /**
+     * @return a SQL CASE expression yielding the band (or NULL) for the given average and reference expressions
+     */
+    static String sqlCase(String avg, String reference) {
+        String ratio = "(" + avg + " / " + reference + ")";
+        return "CASE " +
+            "WHEN " + avg + " IS NULL OR " + reference + " IS NULL OR " + reference + " = 0 THEN NULL " +
+            "WHEN " + avg + " <= " + reference + " THEN CASE " +
+            "WHEN " + ratio + " <= 0.50 THEN 1 " +
+            "WHEN " + ratio + " <= 0.75 THEN 2 " +
+            "WHEN " + ratio + " <= 0.90 THEN 3 " +
+            "WHEN " + ratio + " <= 0.97 THEN 4 " +
+            "ELSE 5 " +
+            "END " +
+            "ELSE CASE " +
+            "WHEN " + ratio + " >= 2.00 THEN 10 " +
+            "WHEN " + ratio + " >= 1.50 THEN 9 " +
+            "WHEN " + ratio + " >= 1.25 THEN 8 " +
+            "WHEN " + ratio + " >= 1.10 THEN 7 " +
+            "ELSE 6 " +
+            "END " +
+            "END";
+    }
+
+    /**
+     * @return a SQL expression yielding the quantile band (or NULL) for the given value and a float8[] of the nine
+     * reference deciles (see {@code facts_agg.sketch_deciles})
+     */
+    static String quantileSqlCase(String value, String deciles) {
+        return "CASE " +
+            "WHEN " + value + " IS NULL OR " + deciles + " IS NULL THEN NULL " +
+            "ELSE 1 + (SELECT count(*) FROM unnest(" + deciles + ") AS decile(v) WHERE decile.v < " + value + ")::int " +
+            "END";
+    }
+}
@@ -1,29 +1,271 @@
 package com.mapster.api;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of {@code facts.metric}.
+ *
+ * The catalog is loaded on first use and then only changes when a metric is new or its unit/description differs:
+ * {@link #ensureMetricExists} answers everything else from memory, so ingestion no longer upserts (and row-locks) the
+ * metric row per observation, and {@code /metrics} is served from the same snapshot with a content-hash ETag.
+ *
+ * Replicas stay consistent through Postgres {@code LISTEN/NOTIFY}: a statement trigger on {@code facts.metric}
+ * notifies {@value #CHANNEL} after every committed change (V13), and each replica holds one dedicated connection
+ * listening on it and reloads the table when notified. The listener reconnects after failures and reloads right after
+ * (re)subscribing, since changes made in between were never announced. With {@code mapster.metric-catalog.listen.enabled=false}
+ * it simply reloads on every tick instead.
+ */
 @Service
-public class MetricCatalogService {
+public class MetricCatalogService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(MetricCatalogService.class);
+
+    static final String CHANNEL = "metric_catalog";
+    // How long one tick waits for notifications on the listen connection.
+    private static final int LISTEN_WAIT_MS = 100;
+
+    private static final RowMapper<Metric> METRIC_ROW = (rs, rowNum) -> new Metric(
+        rs.getString("metric_id"),
+        rs.getString("unit"),
+        rs.getString("description")
+    );
+
+    public record Metric(String metricId, String unit, String description) {}
+
+    /** An immutable snapshot of the catalog, ordered by metric id. */
+    public record Catalog(Map<String, Metric> byId, List<Metric> metrics, String etag) {
+        static Catalog of(Collection<Metric> metrics) {
+            Map<String, Metric> byId = new TreeMap<>();
+            metrics.forEach(metric -> byId.put(metric.metricId(), metric));
+            // Hash of the content rather than a local version counter, so every replica hands out the same ETag.
+            MessageDigest digest = sha256();
+            for (Metric metric : byId.values()) {
+                String line = metric.metricId() + '\t' + metric.unit() + '\t' + metric.description() + '\n';
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+            String etag = "W/\"metrics-" + HexFormat.of().formatHex(digest.digest(), 0, 8) + "\"";
+            return new Catalog(Collections.unmodifiableMap(byId), List.copyOf(byId.values()), etag);
+        }
+
+        Catalog with(Metric metric) {
+            Map<String, Metric> next = new TreeMap<>(byId);
+            next.put(metric.metricId(), metric);
+            return of(next.values());
+        }
+    }
+
+    /** Opens the connection used for {@code LISTEN}; kept out of the pool since it is held indefinitely. */
+    interface ListenConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
     private final JdbcTemplate jdbcTemplate;
+    private final ListenConnectionFactory listenConnections;
+    // Reloads and local updates replace the snapshot under this lock, so a reload can't drop a concurrent upsert.
+    private final Object swapLock = new Object();
+    private volatile Catalog catalog;
+    // Only touched by listen() (fixed-delay, never concurrent) and destroy().
+    private Connection listenConnection;
 
-    public MetricCatalogService(JdbcTemplate jdbcTemplate) {
+    private final Counter hits;
+    private final Counter writes;
+    private final Counter reloads;
+
+    @Autowired
+    public MetricCatalogService(
+        JdbcTemplate jdbcTemplate,
+        DataSourceProperties dataSourceProperties,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.metric-catalog.listen.enabled:true}") boolean listen
+    ) {
+        this(jdbcTemplate, listen
+            ? () -> DriverManager.getConnection(
+                dataSourceProperties.determineUrl(),
+                dataSourceProperties.determineUsername(),
+                dataSourceProperties.determinePassword())
+            : null, meterRegistry);
+    }
+
+    MetricCatalogService(JdbcTemplate jdbcTemplate, ListenConnectionFactory listenConnections, MeterRegistry meterRegistry) {
         this.jdbcTemplate = jdbcTemplate;
+        this.listenConnections = listenConnections;
+        this.hits = Counter.builder("mapster.metric_catalog.ensures")
+            .description("Metric checks on ingestion, by whether the catalog already had the metric as given")
+            .tag("result", "hit")
+            .register(meterRegistry);
+        this.writes = Counter.builder("mapster.metric_catalog.ensures")
+            .description("Metric checks on ingestion, by whether the catalog already had the metric as given")
+            .tag("result", "write")
+            .register(meterRegistry);
+        this.reloads = Counter.builder("mapster.metric_catalog.reloads")
+            .description("Full reloads of facts.metric (startup, notifications, reconnects)")
+            .register(meterRegistry);
+    }
+
+    /** The current catalog; loads it on first use. */
+    public Catalog catalog() {
+        Catalog current = catalog;
+        if (current == null) {
+            reload();
+            current = catalog;
+        }
+        return current;
     }
 
+    /**
+     * Makes sure {@code metricId} exists, filling in {@code unit}/{@code description} where given. Only writes when the
+     * metric is unknown or a given value differs from the catalog; null values never overwrite.
+     */
     public void ensureMetricExists(String metricId, String unit, String description) {
+        Metric known = catalog().byId().get(metricId);
+        if (known != null
+            && (unit == null || unit.equals(known.unit()))
+            && (description == null || description.equals(known.description()))) {
+            hits.increment();
+            return;
+        }
+
         // Idempotent upsert.
-        jdbcTemplate.update(
+        Metric stored = jdbcTemplate.queryForObject(
             """
             INSERT INTO facts.metric (metric_id, unit, description)
             VALUES (?, ?, ?)
             ON CONFLICT (metric_id) DO UPDATE
               SET unit = COALESCE(EXCLUDED.unit, facts.metric.unit),
                   description = COALESCE(EXCLUDED.description, facts.metric.description)
+            RETURNING metric_id, unit, description
             """,
+            METRIC_ROW,
             metricId,
             unit,
             description
         );
+        writes.increment();
+
+        // Inside a transaction (bulk loads) the row only exists once it commits; remembering it earlier would let a
+        // rolled-back batch leave a metric in the catalog that later inserts then reference without upserting.
+        Runnable remember = () -> remember(stored);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    remember.run();
+                }
+            });
+        } else {
+            remember.run();
+        }
+    }
+
+    /** Reloads the whole table; it holds a handful of rows. */
+    public void reload() {
+        synchronized (swapLock) {
+            Catalog next = Catalog.of(jdbcTemplate.query(
+                "SELECT metric_id, unit, description FROM facts.metric ORDER BY metric_id",
+                METRIC_ROW
+            ));
+            Catalog previous = catalog;
+            catalog = next;
+            if (previous != null && !previous.etag().equals(next.etag())) {
+                logger.info("[INFO] metric catalog changed: {} metrics", next.metrics().size());
+            }
+        }
+        reloads.increment();
+    }
+
+    /**
+     * Waits briefly for catalog notifications and reloads when one arrived. Opens (or reopens) the listen connection
+     * as needed.
+     */
+    @Scheduled(fixedDelayString = "${mapster.metric-catalog.refresh-interval-ms:1000}")
+    public void listen() {
+        if (listenConnections == null) {
+            try {
+                reload();
+            } catch (Exception e) {
+                logger.warn("[WARN] could not reload metric catalog: {}", e.getMessage());
+            }
+            return;
+        }
+        try {
+            if (listenConnection == null) {
+                listenConnection = listenConnections.open();
+                try (Statement statement = listenConnection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                reload();
+            }
+            PGNotification[] notifications = listenConnection.unwrap(PGConnection.class).getNotifications(LISTEN_WAIT_MS);
+            if (notifications != null && notifications.length > 0) {
+                reload();
+            }
+        } catch (Exception e) {
+            // Keep serving the last catalog; the next tick reconnects and reloads.
+            logger.warn("[WARN] metric catalog listener failed: {}", e.getMessage());
+            closeListenConnection();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        closeListenConnection();
+    }
+
+    private void remember(Metric metric) {
+        synchronized (swapLock) {
+            Catalog current = catalog;
+            if (current != null && !Objects.equals(current.byId().get(metric.metricId()), metric)) {
+                catalog = current.with(metric);
+            }
+        }
+    }
+
+    private void closeListenConnection() {
+        Connection connection = listenConnection;
+        listenConnection = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("[DEBUG] closing metric catalog listen connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
@@ -0,0 +1,47 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+
+/**
+ * In-memory cache for gzip-compressed metric-shaded tiles, bounded by total tile bytes.
+ *
+ * Keys include both dataset generations: new boundaries or new rollups simply stop matching older entries.
+ */
+@Component
+public class MetricTileCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 160;
+
+    public record MetricTileKey(
+        String metricId, int z, int x, int y, LocalDate from, LocalDate to, long boundaries, long metrics) {}
+
+    private final ByteWeightedCache<MetricTileKey, byte[]> cache;
+
+    public MetricTileCache(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.metric-tiles.cache.max-bytes:67108864}") long maxBytes,
+        @Value("${mapster.metric-tiles.cache.max-entry-bytes:2097152}") long maxEntryBytes
+    ) {
+        this.cache = new ByteWeightedCache<MetricTileKey, byte[]>(
+            "metric-tiles",
+            maxBytes,
+            maxEntryBytes,
+            tile -> tile.length + ENTRY_OVERHEAD_BYTES
+        ).bindTo(meterRegistry);
+    }
+
+    public byte[] get(MetricTileKey key) {
+        return cache.get(key);
+    }
+
+    public void put(MetricTileKey key, byte[] tile) {
+        cache.put(key, tile);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
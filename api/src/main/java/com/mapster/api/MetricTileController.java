@@ -0,0 +1,129 @@
+package com.mapster.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.Duration;
+import java.time.LocalDate;
+
+/**
+ * Metric-shaded vector tiles: {@code /tiles/metrics/{metricId}/{z}/{x}/{y}.mvt?from=&to=&v=}.
+ *
+ * The map pans by fetching only new tiles instead of re-downloading every visible polygon as GeoJSON. Each tile is
+ * cached on its own (in memory, and by clients via ETag / Cache-Control).
+ */
+@RestController
+public class MetricTileController {
+    private static final Logger logger = LoggerFactory.getLogger(MetricTileController.class);
+
+    // Rollups change while data is ingested; keep unpinned tiles short-lived and rely on ETag revalidation.
+    private static final CacheControl METRIC_TILE_CACHE = CacheControl.maxAge(Duration.ofSeconds(60)).cachePublic();
+
+    // Pinned to the current "<boundaries>.<metrics>" version and an explicit range: the content can never change.
+    private static final CacheControl PINNED_METRIC_TILE_CACHE = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable();
+
+    @Autowired
+    private MetricTileRenderer metricTileRenderer;
+
+    @Autowired
+    private MetricTileCache metricTileCache;
+
+    @Autowired
+    private DatasetGenerationService datasetGenerations;
+
+    @Autowired
+    private SingleFlights singleFlights;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @CrossOrigin(origins = "*")
+    @GetMapping(value = "/tiles/metrics/{metricId}/{z}/{x}/{y}.mvt")
+    public ResponseEntity<byte[]> getMetricTile(
+            @PathVariable("metricId") String metricId,
+            @PathVariable("z") int z,
+            @PathVariable("x") int x,
+            @PathVariable("y") int y,
+            @RequestParam(value = "from", required = false) LocalDate from,
+            @RequestParam(value = "to", required = false) LocalDate to,
+            @RequestParam(value = "v", required = false) String version,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding
+    ) {
+        int depth = ZoomDepthMapper.depthForTileZoom(z);
+        LocalDate effectiveTo = to != null ? to : LocalDate.now();
+        LocalDate effectiveFrom = from != null ? from : effectiveTo.minusDays(30);
+
+        long boundaries = datasetGenerations.boundaries();
+        long metrics = datasetGenerations.metrics();
+        String datasetVersion = boundaries + "." + metrics;
+        String etag = String.format(
+            "W/\"metric=%s&z=%d&x=%d&y=%d&depth=%d&from=%s&to=%s&gen=%s\"",
+            metricId, z, x, y, depth, effectiveFrom, effectiveTo, datasetVersion
+        );
+
+        // Same rule as /area-metrics: the default range ("last 30 days") moves every day, so only explicit ranges pin.
+        boolean pinned = datasetVersion.equals(version) && from != null && to != null;
+        CacheControl cacheControl = pinned ? PINNED_METRIC_TILE_CACHE : METRIC_TILE_CACHE;
+        if (ifNoneMatch != null && ifNoneMatch.equals(etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .build();
+        }
+
+        MetricTileCache.MetricTileKey cacheKey = new MetricTileCache.MetricTileKey(
+            metricId, z, x, y, effectiveFrom, effectiveTo, boundaries, metrics);
+        byte[] cached = metricTileCache.get(cacheKey);
+        if (cached != null) {
+            return tileResponse(cached, etag, cacheControl, acceptEncoding);
+        }
+
+        try {
+            byte[] tile = singleFlights.metricTiles().execute(cacheKey, () -> {
+                logger.info("[DEBUG] getMetricTile metricId={}, z={}, x={}, y={}, depth={}, from={}, to={}",
+                    metricId, z, x, y, depth, effectiveFrom, effectiveTo);
+                byte[] rendered = PrecompressedBodies.gzip(bulkheads.tiles().call(
+                    () -> metricTileRenderer.render(metricId, z, x, y, effectiveFrom, effectiveTo)));
+                metricTileCache.put(cacheKey, rendered);
+                return rendered;
+            });
+            return tileResponse(tile, etag, cacheControl, acceptEncoding);
+        } catch (Bulkhead.RejectedException e) {
+            // Too many renders already queued; let the client retry instead of showing a hole in the map.
+            logger.warn("[WARN] {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .cacheControl(CacheControl.noStore())
+                    .build();
+        } catch (Exception e) {
+            logger.error("[ERROR] Exception in metric tile SQL: {}", e.getMessage(), e);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"))
+                    .cacheControl(CacheControl.noStore())
+                    .body(new byte[0]);
+        }
+    }
+
+    private static ResponseEntity<byte[]> tileResponse(
+            byte[] gzippedTile, String etag, CacheControl cacheControl, String acceptEncoding) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline")
+                .eTag(etag)
+                .cacheControl(cacheControl);
+        return PrecompressedBodies.body(builder, gzippedTile, acceptEncoding);
+    }
+}
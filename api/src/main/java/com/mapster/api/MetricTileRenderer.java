@@ -0,0 +1,117 @@
+package com.mapster.api;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders metric-shaded MVT tiles: admin areas of the tile's depth, each carrying its aggregated metric values.
+ *
+ * Layer {@code metrics}, one feature per area with {@code area_key}, names, {@code count}, {@code avg}, {@code min},
+ * {@code max}, {@code reference_avg}, {@code ratio_to_avg} and {@code band}.
+ *
+ * Unlike /area-metrics (banded against the viewport average), bands are relative to the average over all areas of
+ * the same depth, so a tile's shading does not depend on which other tiles happen to be visible and tiles can be
+ * cached independently.
+ */
+@Component
+public class MetricTileRenderer {
+    private final JdbcTemplate jdbcTemplate;
+    private final GeometryPyramid geometryPyramid;
+    private final ReferenceStatistics referenceStatistics;
+
+    public MetricTileRenderer(JdbcTemplate jdbcTemplate, GeometryPyramid geometryPyramid, ReferenceStatistics referenceStatistics) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.geometryPyramid = geometryPyramid;
+        this.referenceStatistics = referenceStatistics;
+    }
+
+    /**
+     * @return the encoded tile; empty if no admin area intersects it
+     */
+    public byte[] render(String metricId, int z, int x, int y, LocalDate from, LocalDate to) {
+        int depth = ZoomDepthMapper.depthForTileZoom(z);
+        boolean generalized = geometryPyramid.available();
+
+        List<Object> params = new ArrayList<>(List.of(z, x, y));
+        StringBuilder sql = new StringBuilder();
+        sql.append("WITH bounds AS (");
+        sql.append("  SELECT ST_TileEnvelope(?, ?, ?) AS b3857");
+        sql.append("), env AS (");
+        sql.append("  SELECT ST_Transform(bounds.b3857, 4326) AS b4326 FROM bounds");
+        sql.append("), areas AS (");
+        sql.append("  SELECT DISTINCT ON (a.area_key) ");
+        sql.append("    a.id, a.area_key,");
+        sql.append("    a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5,");
+        sql.append("    a.country AS name_0, a.name_1, a.name_2, a.name_3, a.name_4, a.name_5,");
+        if (generalized) {
+            // Pre-simplified Web Mercator geometry: clip + encode only.
+            sql.append("    ST_AsMVTGeom(a.geom_3857, bounds.b3857, 4096, 64, true) AS geom ");
+            sql.append("  FROM ").append(GeometryPyramid.TABLE).append(" a, bounds ");
+            sql.append("  WHERE a.tolerance_m = ").append(GeometryPyramid.tileLevel(z)).append(" ");
+            sql.append("    AND a.geom_3857 && bounds.b3857 ");
+            sql.append("    AND ST_Intersects(a.geom_3857, bounds.b3857) ");
+        } else {
+            sql.append("    ST_AsMVTGeom(ST_Transform(a.geom, 3857), bounds.b3857, 4096, 64, true) AS geom ");
+            sql.append("  FROM geo.admin_areas a, bounds, env ");
+            sql.append("  WHERE a.geom && env.b4326 ");
+            sql.append("    AND ST_Intersects(a.geom, env.b4326) ");
+        }
+        sql.append("    AND a.depth = ? ");
+        params.add(depth);
+        sql.append("  ORDER BY a.area_key, a.id");
+        sql.append("), agg AS (");
+        sql.append("  SELECT d.area_key, ");
+        sql.append("    SUM(d.sum_value) AS sum_value, ");
+        sql.append("    SUM(d.count_value) AS count_value, ");
+        sql.append("    MIN(d.min_value) AS min_value, ");
+        sql.append("    MAX(d.max_value) AS max_value ");
+        sql.append("  FROM ").append(RollupBuckets.sql(metricId, from, to, params)).append(" d ");
+        sql.append("  JOIN areas ar ON ar.area_key = d.area_key ");
+        sql.append("  GROUP BY d.area_key");
+        sql.append("), reference AS (");
+        if (referenceStatistics.ready()) {
+            sql.append("  SELECT ?::float8 AS reference_avg");
+            params.add(referenceStatistics.average(metricId, depth, null, from, to));
+        } else {
+            // Depth-wide reference: every observation appears once per depth it rolls up to.
+            sql.append("  SELECT SUM(r.sum_value) / NULLIF(SUM(r.count_value), 0) AS reference_avg ");
+            sql.append("  FROM ").append(RollupBuckets.sql(metricId, from, to, params)).append(" r ");
+            sql.append("  WHERE r.area_depth = ?");
+            params.add(depth);
+        }
+        sql.append("), enriched AS (");
+        sql.append("  SELECT ar.*, ");
+        sql.append("    COALESCE(agg.count_value, 0) AS count_value, ");
+        sql.append("    agg.min_value, agg.max_value, ");
+        sql.append("    agg.sum_value / NULLIF(agg.count_value, 0) AS avg_value, ");
+        sql.append("    reference.reference_avg ");
+        sql.append("  FROM areas ar ");
+        sql.append("  LEFT JOIN agg ON agg.area_key = ar.area_key ");
+        sql.append("  CROSS JOIN reference ");
+        sql.append("  WHERE ar.geom IS NOT NULL");
+        sql.append(") ");
+        sql.append("SELECT COALESCE(ST_AsMVT(mvt, 'metrics', 4096, 'geom'), ''::bytea) ");
+        sql.append("FROM (");
+        // MVT has no decimal type: numeric aggregates are emitted as doubles.
+        sql.append("  SELECT e.id, e.area_key, ");
+        sql.append("    e.gid_0, e.gid_1, e.gid_2, e.gid_3, e.gid_4, e.gid_5, ");
+        sql.append("    e.name_0, e.name_1, e.name_2, e.name_3, e.name_4, e.name_5, ");
+        sql.append("    e.count_value AS count, ");
+        sql.append("    e.avg_value::float8 AS avg, ");
+        sql.append("    e.min_value::float8 AS min, ");
+        sql.append("    e.max_value::float8 AS max, ");
+        sql.append("    e.reference_avg::float8 AS reference_avg, ");
+        sql.append("    (e.avg_value / NULLIF(e.reference_avg, 0))::float8 AS ratio_to_avg, ");
+        sql.append("    ").append(MetricBands.sqlCase("e.avg_value", "e.reference_avg")).append(" AS band, ");
+        sql.append("    e.geom ");
+        sql.append("  FROM enriched e");
+        sql.append(") mvt;");
+
+        byte[] tile = jdbcTemplate.queryForObject(sql.toString(), byte[].class, params.toArray());
+        return tile == null ? new byte[0] : tile;
+    }
+}
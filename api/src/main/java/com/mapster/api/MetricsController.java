@@ -1,33 +1,41 @@
 package com.mapster.api;
 
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
 
 @RestController
 public class MetricsController {
-    private final JdbcTemplate jdbcTemplate;
+    private final MetricCatalogService metricCatalogService;
 
-    public MetricsController(JdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
+    public MetricsController(MetricCatalogService metricCatalogService) {
+        this.metricCatalogService = metricCatalogService;
     }
 
-    public record MetricDto(String metricId, String unit, String description) {}
-
     @CrossOrigin(origins = "*")
     @GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
-    public List<MetricDto> listMetrics() {
-        return jdbcTemplate.query(
-            "SELECT metric_id, unit, description FROM facts.metric ORDER BY metric_id",
-            (rs, rowNum) -> new MetricDto(
-                rs.getString("metric_id"),
-                rs.getString("unit"),
-                rs.getString("description")
-            )
-        );
+    public ResponseEntity<List<MetricCatalogService.Metric>> listMetrics(
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch
+    ) {
+        // Served from the in-memory catalog; the ETag is a hash of its content, so clients revalidate on every load
+        // and only download the list again after a metric was added or changed.
+        MetricCatalogService.Catalog catalog = metricCatalogService.catalog();
+        if (catalog.etag().equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(catalog.etag())
+                .cacheControl(CacheControl.noCache())
+                .build();
+        }
+        return ResponseEntity.ok()
+            .eTag(catalog.etag())
+            .cacheControl(CacheControl.noCache())
+            .body(catalog.metrics());
     }
 }
@@ -0,0 +1,42 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory cache for gzip-compressed /overlays bodies, bounded by total compressed bytes.
+ *
+ * Keys are the response ETags, which already encode bbox, depth, rendering parameters and boundaries generation.
+ */
+@Component
+public class OverlayCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+    private final ByteWeightedCache<String, byte[]> cache;
+
+    public OverlayCache(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.overlays.cache.max-bytes:67108864}") long maxBytes,
+        @Value("${mapster.overlays.cache.max-entry-bytes:8388608}") long maxEntryBytes
+    ) {
+        this.cache = new ByteWeightedCache<String, byte[]>(
+            "overlays",
+            maxBytes,
+            maxEntryBytes,
+            body -> body.length + ENTRY_OVERHEAD_BYTES
+        ).bindTo(meterRegistry);
+    }
+
+    public byte[] get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, byte[] gzippedBody) {
+        cache.put(key, gzippedBody);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
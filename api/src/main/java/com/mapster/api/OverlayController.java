@@ -3,7 +3,7 @@ package com.mapster.api;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.JdbcTemplate;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -11,17 +11,36 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.http.MediaType;
 import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 
+import java.io.IOException;
 import java.time.Duration;
-import java.util.Objects;
 
 @RestController
 public class OverlayController {
     private static final Logger logger = LoggerFactory.getLogger(OverlayController.class);
     @Autowired
-    private JdbcTemplate jdbcTemplate;
+    private FeatureStreamer featureStreamer;
+
+    @Autowired
+    private DatasetGenerationService datasetGenerations;
+
+    @Autowired
+    private OverlayCache overlayCache;
+
+    @Autowired
+    private SingleFlights singleFlights;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private GeometryPyramid geometryPyramid;
 
     @GetMapping("/test")
     public String testEndpoint() {
@@ -30,15 +49,19 @@ public class OverlayController {
     }
 
     @CrossOrigin(origins = "*")
-    @GetMapping(value = "/overlays", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getOverlays(
+    @GetMapping(value = "/overlays", produces = {MediaType.APPLICATION_JSON_VALUE, FeatureFormat.GEOBUF_VALUE, FeatureFormat.PROTOBUF_VALUE, FeatureFormat.TOPOJSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> getOverlays(
             @RequestParam("minLon") double minLon,
             @RequestParam("minLat") double minLat,
             @RequestParam("maxLon") double maxLon,
             @RequestParam("maxLat") double maxLat,
             @RequestParam(value = "band", required = false) Integer band,
             @RequestParam(value = "zoom", required = false) Double zoom,
-            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+            @RequestParam(value = "v", required = false) String version,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding,
+            @RequestHeader(value = "Accept", required = false) String accept,
+            HttpServletResponse response) throws IOException {
         logger.info("[DEBUG] getOverlays called: minLon={}, minLat={}, maxLon={}, maxLat={}, band={}, zoom={}", minLon, minLat, maxLon, maxLat, band, zoom);
 
         // Back-compat: if caller still sends `band`, treat it as an integer zoom level.
@@ -55,105 +78,87 @@ public class OverlayController {
         // Reduce payload size for large polygons at low zoom.
         // IMPORTANT: simplify in meters (Web Mercator) rather than degrees to avoid scale distortions,
         // and keep tolerances small at high zoom so adjacent polygons don't drift apart visually.
-        Integer simplifyToleranceMeters = null;
-        Integer snapGridMeters = null;
-        if (depth != null) {
-            switch (depth) {
-                case 0 -> {
-                    simplifyToleranceMeters = 5000;
-                    snapGridMeters = 250;
-                }
-                case 1 -> {
-                    simplifyToleranceMeters = 2000;
-                    snapGridMeters = 100;
-                }
-                case 2 -> {
-                    simplifyToleranceMeters = 800;
-                    snapGridMeters = 50;
-                }
-                case 3 -> {
-                    simplifyToleranceMeters = 250;
-                    snapGridMeters = 20;
-                }
-                case 4 -> {
-                    simplifyToleranceMeters = 80;
-                    snapGridMeters = 5;
-                }
-                case 5 -> {
-                    simplifyToleranceMeters = 20;
-                    snapGridMeters = 2;
-                }
-                default -> {
-                    simplifyToleranceMeters = null;
-                    snapGridMeters = null;
-                }
-            }
-        }
+        Integer simplifyToleranceMeters = GeometryPyramid.toleranceMeters(depth);
+        Integer snapGridMeters = GeometryPyramid.snapGridMeters(depth);
 
-        String geomExpr;
-        if (simplifyToleranceMeters != null && snapGridMeters != null) {
-            geomExpr = "ST_Transform(" +
-                    "ST_SnapToGrid(" +
-                    "ST_SimplifyPreserveTopology(ST_Transform(t.geom, 3857), " + simplifyToleranceMeters + ")" +
-                    ", " + snapGridMeters + ")" +
-                    ", 4326)";
-        } else {
-            geomExpr = "t.geom";
+        // Weak ETag keyed by request shape + rendering parameters + boundaries generation.
+        // This enables cheap 304 responses; the generation makes it change after a reimport.
+        // GeoJSON unless the client asks for Geobuf or TopoJSON; each encoding has its own ETag and cache entry.
+        FeatureFormat format = FeatureFormat.negotiate(accept);
+        if (format == FeatureFormat.TOPOJSON && (simplifyToleranceMeters == null || !geometryPyramid.topologyAvailable())) {
+            // Arcs exist only for the pyramid levels, once the import has built them.
+            format = FeatureFormat.GEOJSON;
         }
-
-        // Weak ETag keyed by request shape + rendering parameters.
-        // This enables cheap 304 responses and works well with short max-age caching.
-        // (We don't include any DB revision here; this assumes admin boundaries are mostly static.)
+        long generation = datasetGenerations.boundaries();
         String etag = String.format(
-            "W/\"minLon=%.5f&minLat=%.5f&maxLon=%.5f&maxLat=%.5f&depth=%s&s=%s&g=%s\"",
+            "W/\"minLon=%.5f&minLat=%.5f&maxLon=%.5f&maxLat=%.5f&depth=%s&s=%s&g=%s&gen=%d%s\"",
             minLon, minLat, maxLon, maxLat,
             depth == null ? "null" : depth.toString(),
             simplifyToleranceMeters == null ? "null" : simplifyToleranceMeters.toString(),
-            snapGridMeters == null ? "null" : snapGridMeters.toString()
+            snapGridMeters == null ? "null" : snapGridMeters.toString(),
+            generation,
+            format.etagSuffix()
         );
 
-        CacheControl cacheControl = CacheControl.maxAge(Duration.ofSeconds(10)).cachePublic();
+        // Callers that pin the current generation (?v=<boundaries generation>) get an immutable response;
+        // everything else keeps the short max-age and relies on ETag revalidation.
+        CacheControl cacheControl = String.valueOf(generation).equals(version)
+            ? CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable()
+            : CacheControl.maxAge(Duration.ofSeconds(10)).cachePublic();
         if (ifNoneMatch != null && ifNoneMatch.equals(etag)) {
             return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
                 .eTag(etag)
                 .cacheControl(cacheControl)
                 .build();
         }
+
+        // Bodies are cached gzip-compressed (keyed by the ETag) and sent without re-compressing per request.
+        byte[] cached = overlayCache.get(etag);
+        if (cached != null) {
+            PrecompressedBodies.write(response, PrecompressedBodies.body(
+                ResponseEntity.ok().contentType(format.mediaType()).eTag(etag).cacheControl(cacheControl)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT),
+                cached,
+                acceptEncoding
+            ));
+            return null;
+        }
+
+        // Prefer the precomputed pyramid (geometry already simplified per depth); otherwise simplify per request.
+        boolean generalized = simplifyToleranceMeters != null && geometryPyramid.available();
+        String geomColumn = generalized ? "geom_4326" : "geom";
+        String geomExpr;
+        if (!generalized && simplifyToleranceMeters != null && snapGridMeters != null) {
+            geomExpr = "ST_Transform(" +
+                    "ST_SnapToGrid(" +
+                    "ST_SimplifyPreserveTopology(ST_Transform(t.geom, 3857), " + simplifyToleranceMeters + ")" +
+                    ", " + snapGridMeters + ")" +
+                    ", 4326)";
+        } else {
+            geomExpr = "t.geom";
+        }
+
         StringBuilder sql = new StringBuilder();
         // Compute the viewport envelope once and re-use it in both the bbox operator and ST_Intersects.
         sql.append("WITH env AS (SELECT ST_MakeEnvelope(?, ?, ?, ?, 4326) AS e) ");
-        sql.append("SELECT jsonb_build_object(");
-        sql.append(" 'type', 'FeatureCollection',");
-        sql.append(" 'features', COALESCE(jsonb_agg(");
-        sql.append("  jsonb_build_object(");
-        sql.append("    'type', 'Feature',");
-        sql.append("    'geometry', ST_AsGeoJSON(").append(geomExpr).append(", 6)::jsonb,");
-        // Build a small properties payload (avoid row_to_json(t) which is larger and slower).
-        sql.append("    'properties', jsonb_build_object(");
-        sql.append("      'id', t.id,");
-        sql.append("      'gid_0', t.gid_0,");
-        sql.append("      'gid_1', t.gid_1,");
-        sql.append("      'gid_2', t.gid_2,");
-        sql.append("      'gid_3', t.gid_3,");
-        sql.append("      'gid_4', t.gid_4,");
-        sql.append("      'gid_5', t.gid_5,");
-        sql.append("      'name_0', t.country,");
-        sql.append("      'name_1', t.name_1,");
-        sql.append("      'name_2', t.name_2,");
-        sql.append("      'name_3', t.name_3,");
-        sql.append("      'name_4', t.name_4,");
-        sql.append("      'name_5', t.name_5");
-        sql.append("    )");
-        sql.append("  )");
-        sql.append("), '[]'::jsonb)");
-        sql.append(") FROM (");
+        // One row per Feature (geometry as GeoJSON text plus a few property columns); FeatureStreamer encodes the
+        // JSON as rows arrive. Keep the property list small (no row_to_json(t)).
+        sql.append("SELECT ");
+        sql.append("  ").append(format.geometrySql(geomExpr, "t.id", simplifyToleranceMeters)).append(" AS geometry,");
+        sql.append("  t.id, t.gid_0, t.gid_1, t.gid_2, t.gid_3, t.gid_4, t.gid_5,");
+        sql.append("  t.country AS name_0, t.name_1, t.name_2, t.name_3, t.name_4, t.name_5");
+        sql.append(" FROM (");
         // NOTE: Some datasets can contain duplicate rows for the same admin unit (same gid_* path) that differ only by
         // surrogate id. Use DISTINCT ON to ensure we emit one Feature per admin unit.
-        sql.append(" SELECT DISTINCT ON (gid_0, gid_1, gid_2, gid_3, gid_4, gid_5) id, gid_0, gid_1, gid_2, gid_3, gid_4, gid_5, country, name_1, name_2, name_3, name_4, name_5, geom");
-        sql.append(" FROM admin_areas, env");
+        sql.append(" SELECT DISTINCT ON (gid_0, gid_1, gid_2, gid_3, gid_4, gid_5) id, gid_0, gid_1, gid_2, gid_3, gid_4, gid_5, country, name_1, name_2, name_3, name_4, name_5, ");
+        sql.append(generalized ? "geom_4326 AS geom" : "geom");
+        sql.append(" FROM ").append(generalized ? GeometryPyramid.TABLE : "admin_areas").append(", env");
         // Use the bbox operator first to maximize GiST index usage; then exact intersects.
-        sql.append(" WHERE geom && env.e");
-        sql.append(" AND ST_Intersects(geom, env.e)");
+        sql.append(" WHERE ").append(geomColumn).append(" && env.e");
+        sql.append(" AND ST_Intersects(").append(geomColumn).append(", env.e)");
+        if (generalized) {
+            sql.append(" AND tolerance_m = ").append(simplifyToleranceMeters);
+        }
         if (depth != null) {
             // enforce the hierarchy depth via NULL/NOT NULL checks on name_* columns
             sql.append(" AND country IS NOT NULL");
@@ -171,30 +176,34 @@ public class OverlayController {
         }
         sql.append(" ORDER BY gid_0, gid_1, gid_2, gid_3, gid_4, gid_5, id");
         sql.append(") t");
-        try {
-            logger.info("[DEBUG] Entering overlays SQL try block");
-            logger.info("[DEBUG] SQL: {}", sql.toString());
-            logger.info("[DEBUG] SQL params: minLon={}, minLat={}, maxLon={}, maxLat={}, effectiveZoom={}, depth={}", minLon, minLat, maxLon, maxLat, effectiveZoom, depth);
-
-                final String emptyFeatureCollection = "{\"type\":\"FeatureCollection\",\"features\":[]}";
-
-                @SuppressWarnings("null")
-                String result = Objects.requireNonNullElse(
-                    jdbcTemplate.queryForObject(sql.toString(), String.class,
-                            minLon, minLat, maxLon, maxLat),
-                    emptyFeatureCollection
-                );
-            int prefixLen = Math.min(500, result.length());
-            logger.info("[DEBUG] Raw SQL result length: {}, prefix: {}", result.length(), result.substring(0, prefixLen));
-            return ResponseEntity.ok()
-                    .eTag(etag)
-                    .cacheControl(cacheControl)
-                    .body(result);
-        } catch (Exception e) {
-            logger.error("[ERROR] Exception in overlays SQL: {}", e.getMessage(), e);
-            return ResponseEntity.ok()
-                    .cacheControl(CacheControl.noStore())
-                    .body("{\"type\":\"FeatureCollection\",\"features\":[]}");
+        logger.info("[DEBUG] SQL: {}", sql);
+        logger.info("[DEBUG] SQL params: minLon={}, minLat={}, maxLon={}, maxLat={}, effectiveZoom={}, depth={}", minLon, minLat, maxLon, maxLat, effectiveZoom, depth);
+
+        // Rows are streamed to the client as they arrive; the gzip body captured on the way fills the cache, and
+        // concurrent requests for the same viewport (same ETag) replay it instead of running the query again.
+        boolean clientGzip = PrecompressedBodies.acceptsGzip(acceptEncoding);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+            .contentType(format.mediaType())
+            .eTag(etag)
+            .cacheControl(cacheControl)
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        if (clientGzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
+        return builder.body(featureStreamer.body(
+            format,
+            singleFlights.overlays(),
+            bulkheads.overlays(),
+            etag,
+            () -> new FeatureStreamer.Query(sql.toString(), new Object[] { minLon, minLat, maxLon, maxLat }),
+            clientGzip,
+            response,
+            result -> overlayCache.put(etag, result.gzipped())
+        ));
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<Void> busy(HttpServletResponse response) {
+        return FeatureStreamer.busy(response);
     }
 }
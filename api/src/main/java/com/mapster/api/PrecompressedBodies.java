@@ -0,0 +1,98 @@
+package com.mapster.api;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helpers for response bodies that are stored gzip-compressed and sent as-is.
+ *
+ * Cached tiles and overlay bodies are compressed once when they are produced. Clients that accept gzip (virtually
+ * all of them) get the stored bytes with {@code Content-Encoding: gzip}; the servlet compressor sees the header and
+ * leaves the response alone. Only clients without gzip support pay for a decompression.
+ *
+ * By convention an empty array means "empty body" and is never compressed.
+ */
+final class PrecompressedBodies {
+    private PrecompressedBodies() {}
+
+    static byte[] gzip(byte[] raw) {
+        if (raw.length == 0) return raw;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+        try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192)) {
+            gz.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] gunzip(byte[] gzipped) {
+        if (gzipped.length == 0) return gzipped;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped), 8192)) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Minimal Accept-Encoding check: gzip (or *) listed without {@code q=0}.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) return false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) continue;
+            boolean rejected = false;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(p.substring(2).trim()) <= 0.0;
+                    } catch (NumberFormatException e) {
+                        rejected = true;
+                    }
+                }
+            }
+            if (!rejected) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Completes a response with a gzip-stored body, either as-is or decompressed for clients without gzip support.
+     */
+    static ResponseEntity<byte[]> body(ResponseEntity.BodyBuilder builder, byte[] gzipped, String acceptEncoding) {
+        builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzipped.length == 0) {
+            return builder.body(gzipped);
+        }
+        if (acceptsGzip(acceptEncoding)) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(gzipped);
+        }
+        return builder.body(gunzip(gzipped));
+    }
+
+    /**
+     * Sends a finished response (e.g. from {@link #body}) on the calling thread. Handlers declared to return
+     * {@code ResponseEntity<StreamingResponseBody>} always complete on an async thread, so cache hits are written
+     * here and the handler returns {@code null}, which tells Spring the response is already handled.
+     */
+    static void write(HttpServletResponse response, ResponseEntity<byte[]> entity) throws IOException {
+        response.setStatus(entity.getStatusCode().value());
+        entity.getHeaders().forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        byte[] body = entity.getBody();
+        if (body == null) return;
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
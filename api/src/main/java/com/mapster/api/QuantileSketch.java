@@ -0,0 +1,131 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with the same buckets as the {@code sketch} column of the rollup tables (see
+ * V11__area_metric_quantile_sketches.sql): a value v > 0 lands in bucket ceil(log_1.02(v)), values <= 0 share one
+ * bucket. Quantiles are read at the bucket midpoint, within 1% of the exact value. Buckets are kept as sorted parallel
+ * arrays, so merging two sketches is a merge of two sorted lists.
+ *
+ * Not thread-safe; RollupEngine guards its sketches with the metric's lock.
+ */
+final class QuantileSketch {
+    static final double GAMMA = 1.02;
+    static final int NON_POSITIVE_BUCKET = -100_000;
+
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private int[] buckets = new int[0];
+    private long[] counts = new long[0];
+    private int size;
+    private long total;
+
+    static int bucket(double value) {
+        return value <= 0 ? NON_POSITIVE_BUCKET : (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /** Parses the jsonb text of a stored sketch ({@code {"<bucket>": <count>, ...}}). */
+    static QuantileSketch parse(String json) {
+        QuantileSketch sketch = new QuantileSketch();
+        if (json == null) return sketch;
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return sketch;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int bucket = Integer.parseInt(parser.getCurrentName());
+                parser.nextToken();
+                sketch.add(bucket, parser.getLongValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sketch;
+    }
+
+    void add(double value) {
+        add(bucket(value), 1);
+    }
+
+    void merge(QuantileSketch other) {
+        if (other == null || other.size == 0) return;
+        if (size == 0) {
+            buckets = Arrays.copyOf(other.buckets, other.size);
+            counts = Arrays.copyOf(other.counts, other.size);
+            size = other.size;
+            total = other.total;
+            return;
+        }
+        int[] mergedBuckets = new int[size + other.size];
+        long[] mergedCounts = new long[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && buckets[i] < other.buckets[j])) {
+                mergedBuckets[n] = buckets[i];
+                mergedCounts[n++] = counts[i++];
+            } else if (i == size || other.buckets[j] < buckets[i]) {
+                mergedBuckets[n] = other.buckets[j];
+                mergedCounts[n++] = other.counts[j++];
+            } else {
+                mergedBuckets[n] = buckets[i];
+                mergedCounts[n++] = counts[i++] + other.counts[j++];
+            }
+        }
+        buckets = mergedBuckets;
+        counts = mergedCounts;
+        size = n;
+        total += other.total;
+    }
+
+    long count() {
+        return total;
+    }
+
+    /** The q-quantile (rank {@code q * (count - 1)}), or null when empty; matches {@code facts_agg.sketch_quantile}. */
+    Double quantile(double q) {
+        if (total == 0) return null;
+        double rank = q * (total - 1);
+        long cumulative = 0;
+        for (int i = 0; i < size; i++) {
+            cumulative += counts[i];
+            if (cumulative > rank) {
+                return value(buckets[i]);
+            }
+        }
+        return value(buckets[size - 1]);
+    }
+
+    long bytes() {
+        return 12L * buckets.length + 32;
+    }
+
+    private void add(int bucket, long count) {
+        int at = Arrays.binarySearch(buckets, 0, size, bucket);
+        if (at >= 0) {
+            counts[at] += count;
+        } else {
+            int insert = -at - 1;
+            if (size == buckets.length) {
+                int length = Math.max(4, size * 2);
+                buckets = Arrays.copyOf(buckets, length);
+                counts = Arrays.copyOf(counts, length);
+            }
+            System.arraycopy(buckets, insert, buckets, insert + 1, size - insert);
+            System.arraycopy(counts, insert, counts, insert + 1, size - insert);
+            buckets[insert] = bucket;
+            counts[insert] = count;
+            size++;
+        }
+        total += count;
+    }
+
+    private static double value(int bucket) {
+        return bucket == NON_POSITIVE_BUCKET ? 0 : 2 * Math.pow(GAMMA, bucket) / (GAMMA + 1);
+    }
+}
@@ -0,0 +1,314 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Normalizes {@code facts_raw.raw_record} payloads ({@code POST /ingest/raw}) into {@code facts.observation}.
+ *
+ * Up to {@code mapster.raw-workers.count} workers per replica each claim the oldest {@code batch-size} records with
+ * status {@code new} using {@code FOR UPDATE SKIP LOCKED}, so workers on any number of replicas drain the backlog
+ * together and never see the same record. A claimed batch is handled in the claiming transaction: each payload is
+ * parsed as one observation (the JSON of {@code /ingest/observation}), the valid ones go through the staged statements
+ * of {@link BulkObservationLoader} (COPY, set-based assignment, one INSERT ... SELECT linking {@code raw_record_id},
+ * set-based rollups) and every record is marked {@code done} or {@code error} (with the reason) before the commit
+ * releases the locks. A worker that dies mid-batch leaves its records {@code new} for the next one.
+ *
+ * When a batch fails as a whole with a non-transient error (a payload the database rejects), its records are retried one
+ * per transaction so only the offending ones end up as {@code error}; transient failures (deadlocks, lost connections)
+ * just leave the batch for the next tick.
+ *
+ * Workers are started by a scheduled tick and drain until no records are left. Each batch holds a slot of the ingest
+ * bulkhead, so workers and {@code /ingest} requests together stay within its share of the connection pool; a worker
+ * that gets no slot stops and tries again on the next tick. The backlog and its age are counted on a slower interval
+ * for the gauges.
+ *
+ * Only the API runs the workers; offline jobs started from the same image (tile seeding) do not.
+ */
+@Component
+@ConditionalOnWebApplication
+public class RawRecordWorkers implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(RawRecordWorkers.class);
+
+    // Errors are stored per record; keep them to a line.
+    static final int MAX_ERROR_LENGTH = 500;
+
+    private static final String CLAIM_BATCH = """
+        SELECT id, payload::text AS payload
+        FROM facts_raw.raw_record
+        WHERE status = 'new'
+        ORDER BY id
+        LIMIT ?
+        FOR UPDATE SKIP LOCKED
+        """;
+
+    private static final String CLAIM_ONE = """
+        SELECT id, payload::text AS payload
+        FROM facts_raw.raw_record
+        WHERE id = ? AND status = 'new'
+        FOR UPDATE SKIP LOCKED
+        """;
+
+    private static final String MARK_DONE = """
+        UPDATE facts_raw.raw_record
+        SET status = 'done', error = NULL
+        WHERE id = ANY(?::bigint[])
+        """;
+
+    private static final String MARK_ERRORS = """
+        UPDATE facts_raw.raw_record r
+        SET status = 'error', error = e.error
+        FROM unnest(?::bigint[], ?::text[]) AS e(id, error)
+        WHERE r.id = e.id AND r.status = 'new'
+        """;
+
+    record Claim(long id, String payload) {}
+
+    record Result(int done, int failed) {
+        int claimed() {
+            return done + failed;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final BulkObservationLoader loader;
+    private final Bulkheads bulkheads;
+    private final int workers;
+    private final int batchSize;
+    private final long backlogIntervalMs;
+    private final ExecutorService pool;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean stopping;
+
+    private volatile long backlog;
+    private volatile Timestamp oldestPending;
+    private long backlogCheckedAt;
+
+    private final Counter done;
+    private final Counter failed;
+    private final Timer batchTimer;
+
+    public RawRecordWorkers(
+        JdbcTemplate jdbcTemplate,
+        ObjectProvider<PlatformTransactionManager> transactionManager,
+        BulkObservationLoader loader,
+        Bulkheads bulkheads,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.raw-workers.count:2}") int workers,
+        @Value("${mapster.raw-workers.batch-size:1000}") int batchSize,
+        @Value("${mapster.raw-workers.backlog-interval-ms:15000}") long backlogIntervalMs
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        PlatformTransactionManager tm = transactionManager.getIfAvailable();
+        this.transaction = tm != null ? new TransactionTemplate(tm) : null;
+        this.loader = loader;
+        this.bulkheads = bulkheads;
+        this.workers = Math.max(0, workers);
+        this.batchSize = Math.max(1, batchSize);
+        this.backlogIntervalMs = backlogIntervalMs;
+        AtomicInteger threadIds = new AtomicInteger();
+        this.pool = this.workers == 0 ? null : Executors.newFixedThreadPool(this.workers, runnable -> {
+            Thread thread = new Thread(runnable, "raw-worker-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.done = Counter.builder("mapster.raw_workers.records")
+            .description("Raw records normalized by the workers, by outcome")
+            .tag("outcome", "done")
+            .register(meterRegistry);
+        this.failed = Counter.builder("mapster.raw_workers.records")
+            .description("Raw records normalized by the workers, by outcome")
+            .tag("outcome", "error")
+            .register(meterRegistry);
+        this.batchTimer = Timer.builder("mapster.raw_workers.batch")
+            .description("Time to claim, normalize and commit one batch of raw records")
+            .register(meterRegistry);
+        Gauge.builder("mapster.raw_workers.backlog", this, w -> w.backlog)
+            .description("Raw records with status 'new', as of the last backlog check")
+            .register(meterRegistry);
+        Gauge.builder("mapster.raw_workers.lag", this, RawRecordWorkers::lagSeconds)
+            .description("Age of the oldest raw record with status 'new', as of the last backlog check")
+            .baseUnit("seconds")
+            .register(meterRegistry);
+        Gauge.builder("mapster.raw_workers.active", active, AtomicInteger::get)
+            .description("Workers currently draining raw records")
+            .register(meterRegistry);
+    }
+
+    /** Starts idle workers; each drains until no record is left to claim. */
+    @Scheduled(fixedDelayString = "${mapster.raw-workers.poll-interval-ms:1000}")
+    public void dispatch() {
+        if (pool == null || stopping) return;
+        refreshBacklog();
+        while (true) {
+            int running = active.get();
+            if (running >= workers) break;
+            if (active.compareAndSet(running, running + 1)) {
+                pool.execute(() -> {
+                    try {
+                        drain();
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    /** Processes batches until none is left (or one fails transiently); returns the number of records handled. */
+    long drain() {
+        long handled = 0;
+        while (!stopping) {
+            Result result;
+            try {
+                result = bulkheads.ingest().call(this::processBatch);
+            } catch (Exception e) {
+                logger.warn("[WARN] raw record batch failed, retrying on the next tick: {}", e.getMessage());
+                break;
+            }
+            if (result.claimed() == 0) break;
+            handled += result.claimed();
+        }
+        return handled;
+    }
+
+    /** Claims and normalizes one batch; non-transient batch failures fall back to one record per transaction. */
+    Result processBatch() {
+        List<Long> ids = new ArrayList<>();
+        Result result;
+        try {
+            result = batchTimer.record(() -> inTransaction(() -> {
+                List<Claim> claimed = jdbcTemplate.query(CLAIM_BATCH,
+                    (rs, rowNum) -> new Claim(rs.getLong("id"), rs.getString("payload")), batchSize);
+                claimed.forEach(claim -> ids.add(claim.id()));
+                return normalize(claimed);
+            }));
+        } catch (RuntimeException e) {
+            if (ids.isEmpty() || transientFailure(e)) throw e;
+            logger.warn("[WARN] raw record batch {}..{} failed, retrying its {} records one by one: {}",
+                ids.get(0), ids.get(ids.size() - 1), ids.size(), e.getMessage());
+            result = processOneByOne(ids);
+        }
+        done.increment(result.done());
+        failed.increment(result.failed());
+        return result;
+    }
+
+    private Result processOneByOne(List<Long> ids) {
+        int recordsDone = 0;
+        int recordsFailed = 0;
+        for (long id : ids) {
+            try {
+                Result single = inTransaction(() -> normalize(jdbcTemplate.query(CLAIM_ONE,
+                    (rs, rowNum) -> new Claim(rs.getLong("id"), rs.getString("payload")), id)));
+                recordsDone += single.done();
+                recordsFailed += single.failed();
+            } catch (RuntimeException e) {
+                if (transientFailure(e)) throw e;
+                // The record is still 'new' and unlocked; another worker may have claimed it since, which is fine.
+                inTransaction(() -> jdbcTemplate.update(MARK_ERRORS, new Long[] {id}, new String[] {error(e)}));
+                recordsFailed++;
+            }
+        }
+        return new Result(recordsDone, recordsFailed);
+    }
+
+    /** Parses the claimed payloads, writes the valid ones and marks every claimed record; runs in the claim transaction. */
+    private Result normalize(List<Claim> claimed) {
+        if (claimed.isEmpty()) return new Result(0, 0);
+        List<BulkObservationLoader.Row> rows = new ArrayList<>(claimed.size());
+        List<Long> errorIds = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        for (Claim claim : claimed) {
+            try {
+                rows.add(loader.parse(claim.id(), claim.payload()));
+            } catch (Exception e) {
+                errorIds.add(claim.id());
+                errors.add(error(e));
+            }
+        }
+        if (!rows.isEmpty()) {
+            loader.writeStaged(rows, true);
+            jdbcTemplate.update(MARK_DONE, (Object) rows.stream().map(BulkObservationLoader.Row::line).toArray(Long[]::new));
+        }
+        if (!errorIds.isEmpty()) {
+            jdbcTemplate.update(MARK_ERRORS, errorIds.toArray(Long[]::new), errors.toArray(String[]::new));
+        }
+        return new Result(rows.size(), errorIds.size());
+    }
+
+    private void refreshBacklog() {
+        long now = System.currentTimeMillis();
+        if (now - backlogCheckedAt < backlogIntervalMs) return;
+        backlogCheckedAt = now;
+        try {
+            Long count = jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM facts_raw.raw_record WHERE status = 'new'", Long.class);
+            List<Timestamp> oldest = jdbcTemplate.queryForList(
+                "SELECT ingested_at FROM facts_raw.raw_record WHERE status = 'new' ORDER BY id LIMIT 1", Timestamp.class);
+            backlog = count != null ? count : 0;
+            oldestPending = oldest.isEmpty() ? null : oldest.get(0);
+        } catch (Exception e) {
+            logger.warn("[WARN] could not count raw record backlog: {}", e.getMessage());
+        }
+    }
+
+    private double lagSeconds() {
+        Timestamp oldest = oldestPending;
+        return oldest == null ? 0 : Math.max(0, (System.currentTimeMillis() - oldest.getTime()) / 1000.0);
+    }
+
+    private <T> T inTransaction(Supplier<T> work) {
+        return transaction == null ? work.get() : transaction.execute(status -> work.get());
+    }
+
+    private static boolean transientFailure(Throwable e) {
+        return e instanceof TransientDataAccessException
+            || e instanceof RecoverableDataAccessException
+            || e instanceof DataAccessResourceFailureException;
+    }
+
+    private static String error(Exception e) {
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        int newline = message.indexOf('\n');
+        if (newline >= 0) message = message.substring(0, newline);
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        stopping = true;
+        if (pool == null) return;
+        // Let running batches commit; an interrupted one rolls back and its records stay 'new'.
+        pool.shutdown();
+        if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reference statistics for banding, held in memory: observation count and sum per (metric, depth, country or all
+ * countries, rollup bucket), where the buckets are the days, months and years of the rollup tables. The reference
+ * average of any range is then a sum over the range's {@link RollupBuckets} segments (at most about a hundred map
+ * lookups) instead of a pass over every area of the depth or viewport.
+ *
+ * The first sync groups the rollup tables once; later syncs regroup only the (metric, bucket) pairs of the keys the
+ * {@link RollupChangeLog} logged since the previous one, so writes from other replicas arrive within a sync interval
+ * after they commit.
+ * This replica's own ingestion is applied immediately via {@link #add}. Until the first load has finished
+ * {@link #ready} is false and callers compute the reference in SQL.
+ *
+ * A regroup that finds a bucket's observation count changed (a write this replica did not make itself) is reported to
+ * the {@link ChangeListener}s, so caches can drop what other replicas' ingestion made stale.
+ *
+ * Reference deciles (for quantile bands) come from {@link QuantileSketch}es of all areas per (metric, depth, bucket),
+ * loaded and regrouped with the totals and fed by {@link #add}: a range merges the sketches of its segments.
+ */
+@Component
+public class ReferenceStatistics {
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceStatistics.class);
+
+    /** What a band is relative to: the areas in the request, all areas of the depth, or those of the area's country. */
+    public enum Reference {
+        VIEWPORT, GLOBAL, COUNTRY;
+
+        /** @throws IllegalArgumentException for anything but viewport, global or country */
+        public static Reference parse(String reference) {
+            for (Reference r : values()) {
+                if (r.name().equalsIgnoreCase(reference)) return r;
+            }
+            throw new IllegalArgumentException("reference must be viewport, global or country");
+        }
+
+        public String param() {
+            return name().toLowerCase();
+        }
+    }
+
+    /** Country key of the all-countries totals. */
+    static final String GLOBAL = "";
+
+
+    record Key(String metricId, int depth, String country, RollupBuckets.Level level, LocalDate bucket) {}
+
+    record Totals(long count, double sum) {
+        Totals plus(Totals other) {
+            return new Totals(count + other.count, sum + other.sum);
+        }
+    }
+
+    /** Notified of buckets {@code [start, end)} of {@code country} whose count changed through other replicas. */
+    public interface ChangeListener {
+        void changed(String metricId, String country, LocalDate start, LocalDate end);
+    }
+
+    private record Change(String metricId, String country, LocalDate start, LocalDate end) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RollupChangeLog changeLog;
+    private final boolean enabled;
+    private final Timer syncTimer;
+
+    private final Map<Key, Totals> totals = new ConcurrentHashMap<>();
+    // Countries seen per "<metric>|<depth>", for reference=country.
+    private final Map<String, Set<String>> countries = new ConcurrentHashMap<>();
+    // Merged sketch of all areas per key (country GLOBAL only); each is guarded by its own monitor.
+    private final Map<Key, QuantileSketch> sketches = new ConcurrentHashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean ready;
+    // Change log position of the last successful sync, and when it was taken.
+    private volatile String position;
+    private volatile long positionNanos;
+
+    public ReferenceStatistics(
+        JdbcTemplate jdbcTemplate,
+        RollupChangeLog changeLog,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.reference-stats.enabled:true}") boolean enabled
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.changeLog = changeLog;
+        this.enabled = enabled;
+        this.syncTimer = Timer.builder("mapster.reference_stats.sync").register(meterRegistry);
+        Gauge.builder("mapster.reference_stats.buckets", totals, Map::size).register(meterRegistry);
+    }
+
+    public boolean ready() {
+        return enabled && ready;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /** The average over {@code [from, to]} of all areas of {@code depth} (in {@code country}, or all if null). */
+    public Double average(String metricId, int depth, String country, LocalDate from, LocalDate to) {
+        Totals sum = range(metricId, depth, country == null ? GLOBAL : country, from, to);
+        return sum.count() == 0 ? null : sum.sum() / sum.count();
+    }
+
+    /** The average over {@code [from, to]} per country with observations at {@code depth}. */
+    public Map<String, Double> countryAverages(String metricId, int depth, LocalDate from, LocalDate to) {
+        Map<String, Double> averages = new HashMap<>();
+        for (String country : countries.getOrDefault(metricId + "|" + depth, Set.of())) {
+            Double average = average(metricId, depth, country, from, to);
+            if (average != null) averages.put(country, average);
+        }
+        return averages;
+    }
+
+    /** The 10%..90% quantiles of all observations at {@code depth} over {@code [from, to]}, or null without any. */
+    public Double[] deciles(String metricId, int depth, LocalDate from, LocalDate to) {
+        QuantileSketch merged = new QuantileSketch();
+        for (Key key : keys(metricId, depth, GLOBAL, from, to)) {
+            QuantileSketch sketch = sketches.get(key);
+            if (sketch == null) continue;
+            synchronized (sketch) {
+                merged.merge(sketch);
+            }
+        }
+        if (merged.count() == 0) return null;
+        Double[] deciles = new Double[9];
+        for (int d = 0; d < deciles.length; d++) {
+            deciles[d] = merged.quantile((d + 1) / 10.0);
+        }
+        return deciles;
+    }
+
+    /**
+     * CTEs ending in {@code reference (reference_avg, reference_deciles)} over every observation at {@code depth} in
+     * {@code [from, to]}, computed in SQL; what callers use until the statistics have loaded.
+     */
+    static String referenceSql(String metricId, int depth, LocalDate from, LocalDate to, List<Object> params) {
+        String sql = "reference_rows AS (SELECT * FROM " + RollupBuckets.sql(metricId, from, to, params) + " r "
+            + "WHERE r.area_depth = ?), "
+            + "reference AS (SELECT SUM(r.sum_value) / NULLIF(SUM(r.count_value), 0) AS reference_avg, "
+            // Deciles of all observations at the depth: every sketch merged bucket by bucket.
+            + "(SELECT facts_agg.sketch_deciles(jsonb_object_agg(b.k, b.c)) FROM ("
+            + "SELECT s.k, SUM(s.c::bigint) AS c FROM reference_rows rr, jsonb_each_text(rr.sketch) AS s(k, c) GROUP BY s.k"
+            + ") b) AS reference_deciles FROM reference_rows r)";
+        params.add(depth);
+        return sql;
+    }
+
+    /** CTE {@code country_reference (country, reference_avg)} computed in SQL, like {@link #referenceSql}. */
+    static String countryReferenceSql(String metricId, int depth, LocalDate from, LocalDate to, List<Object> params) {
+        String sql = "country_reference AS (SELECT split_part(r.area_key, '|', 1) AS country, "
+            + "SUM(r.sum_value) / NULLIF(SUM(r.count_value), 0) AS reference_avg "
+            + "FROM " + RollupBuckets.sql(metricId, from, to, params) + " r WHERE r.area_depth = ? GROUP BY 1)";
+        params.add(depth);
+        return sql;
+    }
+
+    /** CTE {@code reference (reference_avg, reference_deciles)} from memory, as parameters. */
+    String referenceCte(String metricId, int depth, LocalDate from, LocalDate to, List<Object> params) {
+        params.add(average(metricId, depth, null, from, to));
+        params.add(deciles(metricId, depth, from, to));
+        return "reference AS (SELECT ?::float8 AS reference_avg, ?::float8[] AS reference_deciles)";
+    }
+
+    /** CTE {@code country_reference (country, reference_avg)} from memory, as two array parameters. */
+    String countryReferenceCte(String metricId, int depth, LocalDate from, LocalDate to, List<Object> params) {
+        Map<String, Double> averages = countryAverages(metricId, depth, from, to);
+        params.add(averages.keySet().toArray(new String[0]));
+        params.add(averages.values().toArray(new Double[0]));
+        return "country_reference AS (SELECT * FROM unnest(?::text[], ?::float8[]) AS c(country, reference_avg))";
+    }
+
+    /** Applies one observation rolled up to {@code depthByAreaKey} (the area and its ancestors). */
+    public void add(String metricId, Map<String, Integer> depthByAreaKey, LocalDate day, double value) {
+        if (!enabled || !ready) return;
+        Totals one = new Totals(1, value);
+        for (Map.Entry<String, Integer> area : depthByAreaKey.entrySet()) {
+            String country = country(area.getKey());
+            countries.computeIfAbsent(metricId + "|" + area.getValue(), k -> ConcurrentHashMap.newKeySet()).add(country);
+            for (RollupBuckets.Level level : RollupBuckets.Level.values()) {
+                LocalDate bucket = bucket(level, day);
+                Key global = new Key(metricId, area.getValue(), GLOBAL, level, bucket);
+                totals.merge(new Key(metricId, area.getValue(), country, level, bucket), one, Totals::plus);
+                totals.merge(global, one, Totals::plus);
+                QuantileSketch sketch = sketches.computeIfAbsent(global, k -> new QuantileSketch());
+                synchronized (sketch) {
+                    sketch.add(value);
+                }
+            }
+        }
+    }
+
+    @Scheduled(
+        initialDelayString = "${mapster.reference-stats.initial-delay-ms:0}",
+        fixedDelayString = "${mapster.reference-stats.sync-interval-ms:5000}"
+    )
+    public void sync() {
+        if (!enabled) return;
+        try {
+            syncTimer.record(() -> {
+                long nanos = System.nanoTime();
+                String next = jdbcTemplate.queryForObject(RollupChangeLog.POSITION_SQL, String.class);
+                boolean initial = position == null;
+                // After a long outage the log may have been pruned past our position: regroup everything again.
+                boolean full = initial || changeLog.outlived(Duration.ofNanos(nanos - positionNanos));
+                long[] rows = {0};
+                for (RollupBuckets.Level level : RollupBuckets.Level.values()) {
+                    rows[0] += load(level, full ? null : position, !initial);
+                    loadSketches(level, full ? null : position);
+                }
+                position = next;
+                positionNanos = nanos;
+                if (initial) {
+                    ready = true;
+                    logger.info("[INFO] reference statistics loaded {} buckets", rows[0]);
+                } else if (rows[0] > 0) {
+                    logger.debug("[DEBUG] reference statistics regrouped {} buckets", rows[0]);
+                }
+            });
+        } catch (Exception e) {
+            // Keep serving what is loaded; the next sync retries from the same position.
+            logger.warn("[WARN] reference statistics sync failed: {}", e.getMessage());
+        }
+    }
+
+    /** Condition on {@code level}'s rows: the (metric, bucket) pairs logged since {@code since}, or all when null. */
+    private static String changed(RollupBuckets.Level level, String since) {
+        return since == null ? "" : "WHERE (metric_id, " + level.column + ") IN (SELECT DISTINCT metric_id, "
+            + "date_trunc('" + level.column + "', c.day)::date FROM (" + RollupChangeLog.CHANGED_KEYS_SQL + ") c) ";
+    }
+
+    /**
+     * Regroups {@code level}'s table (only the (metric, bucket) pairs logged since {@code since} when set), reporting
+     * changed counts when {@code notify} is set.
+     */
+    private long load(RollupBuckets.Level level, String since, boolean notify) {
+        String country = "split_part(area_key, '|', 1)";
+        String sql = "SELECT metric_id, area_depth, " + country + " AS country, GROUPING(" + country + ") AS global, "
+            + level.column + " AS bucket, SUM(count_value) AS count_value, SUM(sum_value)::float8 AS sum_value "
+            + "FROM " + level.table + " "
+            + changed(level, since)
+            + "GROUP BY GROUPING SETS ((metric_id, area_depth, " + country + ", " + level.column + "), "
+            + "(metric_id, area_depth, " + level.column + "))";
+        long[] rows = {0};
+        // One change per (metric, country, bucket), however many depths it touched.
+        Set<Change> changes = new LinkedHashSet<>();
+        RowCallbackHandler handler = rs -> {
+            String metricId = rs.getString("metric_id");
+            int depth = rs.getInt("area_depth");
+            String key = rs.getInt("global") == 1 ? GLOBAL : rs.getString("country");
+            if (!GLOBAL.equals(key)) {
+                countries.computeIfAbsent(metricId + "|" + depth, k -> ConcurrentHashMap.newKeySet()).add(key);
+            }
+            LocalDate bucket = rs.getObject("bucket", LocalDate.class);
+            Totals regrouped = new Totals(rs.getLong("count_value"), rs.getDouble("sum_value"));
+            Totals previous = totals.put(new Key(metricId, depth, key, level, bucket), regrouped);
+            // Counts only grow and this replica's own writes are already counted by add(); sums are not compared
+            // because their floating-point order differs.
+            if (notify && !GLOBAL.equals(key) && (previous == null || previous.count() != regrouped.count())) {
+                changes.add(new Change(metricId, key, bucket, next(level, bucket)));
+            }
+            rows[0]++;
+        };
+        if (since == null) {
+            jdbcTemplate.query(sql, handler);
+        } else {
+            jdbcTemplate.query(sql, handler, since);
+        }
+        for (Change change : changes) {
+            for (ChangeListener listener : listeners) {
+                listener.changed(change.metricId(), change.country(), change.start(), change.end());
+            }
+        }
+        return rows[0];
+    }
+
+    /** Merges the sketches of all areas per (metric, depth, bucket) of {@code level}'s table, like {@link #load}. */
+    private void loadSketches(RollupBuckets.Level level, String since) {
+        String sql = "SELECT metric_id, area_depth, bucket, jsonb_object_agg(k, c)::text AS sketch FROM ("
+            + "SELECT metric_id, area_depth, " + level.column + " AS bucket, s.k, SUM(s.c::bigint) AS c "
+            + "FROM " + level.table + ", jsonb_each_text(sketch) AS s(k, c) "
+            + changed(level, since)
+            + "GROUP BY 1, 2, 3, 4) b GROUP BY 1, 2, 3";
+        RowCallbackHandler handler = rs -> sketches.put(
+            new Key(rs.getString("metric_id"), rs.getInt("area_depth"), GLOBAL, level, rs.getObject("bucket", LocalDate.class)),
+            QuantileSketch.parse(rs.getString("sketch")));
+        if (since == null) {
+            jdbcTemplate.query(sql, handler);
+        } else {
+            jdbcTemplate.query(sql, handler, since);
+        }
+    }
+
+    private Totals range(String metricId, int depth, String country, LocalDate from, LocalDate to) {
+        Totals sum = new Totals(0, 0);
+        for (Key key : keys(metricId, depth, country, from, to)) {
+            Totals t = totals.get(key);
+            if (t != null) sum = sum.plus(t);
+        }
+        return sum;
+    }
+
+    /** The keys of the buckets of {@code [from, to]}'s {@link RollupBuckets} segments. */
+    private static List<Key> keys(String metricId, int depth, String country, LocalDate from, LocalDate to) {
+        List<Key> keys = new ArrayList<>();
+        for (RollupBuckets.Segment segment : RollupBuckets.decompose(from, to)) {
+            for (LocalDate bucket = segment.start(); bucket.isBefore(segment.end()); bucket = next(segment.level(), bucket)) {
+                keys.add(new Key(metricId, depth, country, segment.level(), bucket));
+            }
+        }
+        return keys;
+    }
+
+    static String country(String areaKey) {
+        int bar = areaKey.indexOf('|');
+        return bar < 0 ? areaKey : areaKey.substring(0, bar);
+    }
+
+    private static LocalDate bucket(RollupBuckets.Level level, LocalDate day) {
+        return switch (level) {
+            case DAY -> day;
+            case MONTH -> day.withDayOfMonth(1);
+            case YEAR -> day.withDayOfYear(1);
+        };
+    }
+
+    private static LocalDate next(RollupBuckets.Level level, LocalDate bucket) {
+        return switch (level) {
+            case DAY -> bucket.plusDays(1);
+            case MONTH -> bucket.plusMonths(1);
+            case YEAR -> bucket.plusYears(1);
+        };
+    }
+}
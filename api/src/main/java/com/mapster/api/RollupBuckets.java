@@ -0,0 +1,100 @@
+package com.mapster.api;
+
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers a date range from the daily, monthly and yearly rollups ({@code facts_agg.area_metric_daily},
+ * {@code _monthly}, {@code _yearly}).
+ *
+ * A range is split into the fewest calendar buckets that cover it exactly: whole years in the middle, whole months
+ * around them, and single days only at the ragged ends. A one-year range thus reads one row per area instead of 365,
+ * and any range reads at most about 60 day rows + 22 month rows + its years.
+ */
+final class RollupBuckets {
+    private RollupBuckets() {}
+
+    enum Level {
+        DAY("facts_agg.area_metric_daily", "day"),
+        MONTH("facts_agg.area_metric_monthly", "month"),
+        YEAR("facts_agg.area_metric_yearly", "year");
+
+        final String table;
+        final String column;
+
+        Level(String table, String column) {
+            this.table = table;
+            this.column = column;
+        }
+    }
+
+    /** Buckets of {@code level} starting in {@code [start, end)}. */
+    record Segment(Level level, LocalDate start, LocalDate end) {}
+
+    /**
+     * @return the segments covering {@code [from, to]} (both inclusive); empty if {@code from} is after {@code to}
+     */
+    static List<Segment> decompose(LocalDate from, LocalDate to) {
+        List<Segment> segments = new ArrayList<>();
+        if (from.isAfter(to)) return segments;
+        LocalDate end = to.plusDays(1);
+
+        LocalDate firstYear = from.getDayOfYear() == 1 ? from : from.with(TemporalAdjusters.firstDayOfNextYear());
+        LocalDate lastYear = end.with(TemporalAdjusters.firstDayOfYear());
+        if (firstYear.isBefore(lastYear)) {
+            months(segments, from, firstYear);
+            segments.add(new Segment(Level.YEAR, firstYear, lastYear));
+            months(segments, lastYear, end);
+        } else {
+            months(segments, from, end);
+        }
+        return segments;
+    }
+
+    /** Covers {@code [start, end)} (within at most two calendar years) with whole months and the days around them. */
+    private static void months(List<Segment> segments, LocalDate start, LocalDate end) {
+        if (!start.isBefore(end)) return;
+        LocalDate firstMonth = start.getDayOfMonth() == 1 ? start : start.with(TemporalAdjusters.firstDayOfNextMonth());
+        LocalDate lastMonth = end.withDayOfMonth(1);
+        if (firstMonth.isBefore(lastMonth)) {
+            add(segments, Level.DAY, start, firstMonth);
+            segments.add(new Segment(Level.MONTH, firstMonth, lastMonth));
+            add(segments, Level.DAY, lastMonth, end);
+        } else {
+            add(segments, Level.DAY, start, end);
+        }
+    }
+
+    private static void add(List<Segment> segments, Level level, LocalDate start, LocalDate end) {
+        if (start.isBefore(end)) segments.add(new Segment(level, start, end));
+    }
+
+    /**
+     * A subquery with the rollup rows of {@code metricId} covering {@code [from, to]}: columns {@code area_key},
+     * {@code area_depth}, {@code count_value}, {@code sum_value}, {@code min_value}, {@code max_value},
+     * {@code sketch}; each area has one row per bucket, to be aggregated by the caller. Parameters are appended to
+     * {@code params}.
+     */
+    static String sql(String metricId, LocalDate from, LocalDate to, List<Object> params) {
+        List<Segment> segments = decompose(from, to);
+        if (segments.isEmpty()) {
+            // Keep the query shape: an empty day range.
+            segments = List.of(new Segment(Level.DAY, from, from));
+        }
+        StringBuilder sql = new StringBuilder("(");
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (i > 0) sql.append(" UNION ALL ");
+            sql.append("SELECT area_key, area_depth, count_value, sum_value, min_value, max_value, sketch FROM ")
+                .append(segment.level().table)
+                .append(" WHERE metric_id = ? AND ").append(segment.level().column).append(" >= ? AND ")
+                .append(segment.level().column).append(" < ?");
+            params.add(metricId);
+            params.add(segment.start());
+            params.add(segment.end());
+        }
+        return sql.append(")").toString();
+    }
+}
@@ -0,0 +1,76 @@
+package com.mapster.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * {@code facts_agg.rollup_change}: the (area, metric, day) keys written to the daily rollups, with the writing
+ * transaction's id, appended by a trigger (V15). {@link RollupEngine} and {@link ReferenceStatistics} re-read only
+ * the keys logged since their previous sync instead of searching the rollup tables for recent rows.
+ *
+ * A sync first takes a {@link #POSITION_SQL position} (the xmin of a fresh snapshot, as text), then reads
+ * {@link #CHANGED_KEYS_SQL} with the position of its previous sync. Transactions below that xmin had ended before the
+ * previous read began, so a key is re-read until its transaction's commit was visible to a read: no write is missed,
+ * however long its transaction ran. While a long transaction stays open, each sync re-reads the keys logged since it
+ * started.
+ *
+ * Pruning deletes the keys below a position taken at least {@code mapster.rollup-change-log.retention} ago, which
+ * every sync that succeeded since then has read; a sync whose previous success is older than that reloads everything
+ * instead ({@link #outlived}).
+ */
+@Component
+public class RollupChangeLog {
+    private static final Logger logger = LoggerFactory.getLogger(RollupChangeLog.class);
+
+    /** The position to read from on the next sync. */
+    static final String POSITION_SQL = "SELECT pg_snapshot_xmin(pg_current_snapshot())::text";
+
+    /** Subquery of the distinct {@code (area_key, metric_id, day)} logged at or after a position (one parameter). */
+    static final String CHANGED_KEYS_SQL =
+        "SELECT DISTINCT area_key, metric_id, day FROM facts_agg.rollup_change WHERE xid >= ?::xid8";
+
+    private record Taken(long nanos, String position) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Duration retention;
+    // Positions taken by earlier prunes, oldest first; only this scheduled task touches it.
+    private final Deque<Taken> positions = new ArrayDeque<>();
+
+    public RollupChangeLog(
+        JdbcTemplate jdbcTemplate,
+        @Value("${mapster.rollup-change-log.retention:PT1H}") Duration retention
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.retention = retention;
+    }
+
+    /** Whether keys logged since a sync that succeeded {@code sinceLastSync} ago may already have been pruned. */
+    public boolean outlived(Duration sinceLastSync) {
+        return sinceLastSync.compareTo(retention) >= 0;
+    }
+
+    @Scheduled(fixedDelayString = "${mapster.rollup-change-log.prune-interval-ms:60000}")
+    public void prune() {
+        try {
+            long now = System.nanoTime();
+            positions.addLast(new Taken(now, jdbcTemplate.queryForObject(POSITION_SQL, String.class)));
+            String below = null;
+            while (!positions.isEmpty() && now - positions.peekFirst().nanos() >= retention.toNanos()) {
+                below = positions.removeFirst().position();
+            }
+            if (below == null) return;
+            int deleted = jdbcTemplate.update("DELETE FROM facts_agg.rollup_change WHERE xid < ?::xid8", below);
+            if (deleted > 0) logger.debug("[DEBUG] pruned {} rollup change log rows", deleted);
+        } catch (Exception e) {
+            logger.warn("[WARN] could not prune the rollup change log: {}", e.getMessage());
+        }
+    }
+}
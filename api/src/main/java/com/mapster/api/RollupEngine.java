@@ -0,0 +1,358 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional in-memory copy of {@code facts_agg.area_metric_daily} from {@code mapster.rollup-engine.days} days before
+ * startup onwards, held as primitive columns: per metric and area, one {@code long[]} of counts and {@code double[]}s
+ * of sums, minima and maxima indexed by day offset, plus the day's {@link QuantileSketch}. A range aggregate is then a tight loop over contiguous arrays instead of a
+ * GROUP BY per request; /area-metrics only asks PostGIS for the areas in the bbox and their geometry.
+ *
+ * The first sync loads the window; later syncs re-read the rows whose keys the {@link RollupChangeLog} logged since
+ * the previous one and overwrite the cells, so writes from other replicas and out-of-band writers arrive within a sync
+ * interval after they commit. This replica's single observations are applied immediately via {@link #add}; bulk loads arrive with
+ * the next sync. Until the first load has finished, or for ranges starting before the window, {@link #covers} is
+ * false and callers aggregate in SQL.
+ *
+ * Values are doubles here (numeric in the database); averages can differ from the SQL path in the last digits.
+ */
+@Component
+public class RollupEngine {
+    private static final Logger logger = LoggerFactory.getLogger(RollupEngine.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RollupChangeLog changeLog;
+    private final TransactionTemplate readOnlyTransaction;
+    private final boolean enabled;
+    private final int days;
+    private final int fetchSize;
+    private final Timer syncTimer;
+
+    // Dense ordinal per area_key, shared by all metrics.
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+    private final Map<String, MetricColumns> metrics = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+    private volatile long originDay;
+    // Change log position of the last successful sync, and when it was taken.
+    private volatile String position;
+    private volatile long positionNanos;
+
+    public RollupEngine(
+        JdbcTemplate jdbcTemplate,
+        RollupChangeLog changeLog,
+        ObjectProvider<PlatformTransactionManager> transactionManager,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.rollup-engine.enabled:false}") boolean enabled,
+        @Value("${mapster.rollup-engine.days:400}") int days,
+        @Value("${mapster.streaming.fetch-size:256}") int fetchSize
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.changeLog = changeLog;
+        PlatformTransactionManager tm = transactionManager.getIfAvailable();
+        if (tm != null) {
+            this.readOnlyTransaction = new TransactionTemplate(tm);
+            this.readOnlyTransaction.setReadOnly(true);
+        } else {
+            this.readOnlyTransaction = null;
+        }
+        this.enabled = enabled;
+        this.days = days;
+        this.fetchSize = Math.max(fetchSize, 1000);
+        this.syncTimer = Timer.builder("mapster.rollup_engine.sync").register(meterRegistry);
+        Gauge.builder("mapster.rollup_engine.areas", ordinals, Map::size).register(meterRegistry);
+        Gauge.builder("mapster.rollup_engine.bytes", this, RollupEngine::bytes).register(meterRegistry);
+    }
+
+    /**
+     * Aggregates of one range, parallel to the requested area keys; min/max/p50/p90 are NaN where count is 0.
+     * {@code deciles} are those of all observations of all areas (null without observations).
+     */
+    public record Aggregates(
+        List<String> areaKeys, long[] count, double[] sum, double[] min, double[] max, double[] p50, double[] p90,
+        double[] deciles
+    ) {
+        /** Average over all observations of all areas (the viewport average), or null without observations. */
+        public Double overallAverage() {
+            long c = 0;
+            double s = 0;
+            for (int i = 0; i < count.length; i++) {
+                c += count[i];
+                s += sum[i];
+            }
+            return c == 0 ? null : s / c;
+        }
+    }
+
+    /** Whether {@code [from, to]} can be answered from memory. */
+    public boolean covers(LocalDate from, LocalDate to) {
+        return enabled && ready && from.toEpochDay() >= originDay && !from.isAfter(to);
+    }
+
+    /**
+     * Aggregates {@code [from, to]} (inclusive) for the given areas. Callers check {@link #covers} first.
+     */
+    public Aggregates aggregate(String metricId, List<String> areaKeys, LocalDate from, LocalDate to) {
+        int n = areaKeys.size();
+        long[] count = new long[n];
+        double[] sum = new double[n];
+        double[] min = new double[n];
+        double[] max = new double[n];
+        double[] p50 = new double[n];
+        double[] p90 = new double[n];
+        Arrays.fill(min, Double.NaN);
+        Arrays.fill(max, Double.NaN);
+        Arrays.fill(p50, Double.NaN);
+        Arrays.fill(p90, Double.NaN);
+        QuantileSketch overall = new QuantileSketch();
+
+        MetricColumns columns = metrics.get(metricId);
+        if (columns != null) {
+            int lo = (int) Math.max(0, from.toEpochDay() - originDay);
+            int hi = (int) (to.toEpochDay() - originDay);
+            columns.lock.readLock().lock();
+            try {
+                for (int i = 0; i < n; i++) {
+                    Integer ordinal = ordinals.get(areaKeys.get(i));
+                    if (ordinal == null || ordinal >= columns.count.length || columns.count[ordinal] == null) continue;
+                    columns.aggregate(ordinal, lo, hi, i, count, sum, min, max);
+                    QuantileSketch sketch = columns.sketch(ordinal, lo, hi);
+                    if (sketch.count() > 0) {
+                        p50[i] = sketch.quantile(0.5);
+                        p90[i] = sketch.quantile(0.9);
+                        overall.merge(sketch);
+                    }
+                }
+            } finally {
+                columns.lock.readLock().unlock();
+            }
+        }
+        double[] deciles = null;
+        if (overall.count() > 0) {
+            deciles = new double[9];
+            for (int d = 0; d < 9; d++) {
+                deciles[d] = overall.quantile((d + 1) / 10.0);
+            }
+        }
+        return new Aggregates(areaKeys, count, sum, min, max, p50, p90, deciles);
+    }
+
+    /** Applies one observation rolled up to {@code areaKeys} (the area and its ancestors). */
+    public void add(String metricId, Collection<String> areaKeys, LocalDate day, double value) {
+        if (!enabled || !ready) return;
+        long offset = day.toEpochDay() - originDay;
+        if (offset < 0) return;
+        MetricColumns columns = metrics.computeIfAbsent(metricId, id -> new MetricColumns());
+        columns.lock.writeLock().lock();
+        try {
+            for (String areaKey : areaKeys) {
+                int ordinal = ordinal(areaKey);
+                columns.add(ordinal, (int) offset, value);
+            }
+        } finally {
+            columns.lock.writeLock().unlock();
+        }
+    }
+
+    @Scheduled(
+        initialDelayString = "${mapster.rollup-engine.initial-delay-ms:0}",
+        fixedDelayString = "${mapster.rollup-engine.sync-interval-ms:5000}"
+    )
+    public void sync() {
+        if (!enabled) return;
+        try {
+            syncTimer.record(() -> {
+                long nanos = System.nanoTime();
+                String next = jdbcTemplate.queryForObject(RollupChangeLog.POSITION_SQL, String.class);
+                boolean initial = position == null;
+                if (initial) {
+                    originDay = LocalDate.now().minusDays(days - 1L).toEpochDay();
+                }
+                // After a long outage the log may have been pruned past our position: read the whole window again.
+                boolean full = initial || changeLog.outlived(Duration.ofNanos(nanos - positionNanos));
+                long[] rows = {0};
+                String sql = "SELECT area_key, metric_id, day, count_value, sum_value::float8, min_value::float8, max_value::float8, sketch::text "
+                    + "FROM facts_agg.area_metric_daily WHERE day >= ?"
+                    + (full ? "" : " AND (area_key, metric_id, day) IN (" + RollupChangeLog.CHANGED_KEYS_SQL + ")");
+                Object[] params = full
+                    ? new Object[] {LocalDate.ofEpochDay(originDay)}
+                    : new Object[] {LocalDate.ofEpochDay(originDay), position};
+                Runnable query = () -> jdbcTemplate.query(new FeatureStreamer.CursorStatement(sql, params, fetchSize), (RowCallbackHandler) rs -> {
+                    MetricColumns columns = metrics.computeIfAbsent(rs.getString(2), id -> new MetricColumns());
+                    int ordinal = ordinal(rs.getString(1));
+                    int offset = (int) (rs.getObject(3, LocalDate.class).toEpochDay() - originDay);
+                    columns.lock.writeLock().lock();
+                    try {
+                        columns.set(ordinal, offset, rs.getLong(4), rs.getDouble(5), rs.getDouble(6), rs.getDouble(7),
+                            QuantileSketch.parse(rs.getString(8)));
+                    } finally {
+                        columns.lock.writeLock().unlock();
+                    }
+                    rows[0]++;
+                });
+                if (readOnlyTransaction != null) {
+                    readOnlyTransaction.executeWithoutResult(status -> query.run());
+                } else {
+                    query.run();
+                }
+                position = next;
+                positionNanos = nanos;
+                if (initial) {
+                    ready = true;
+                    logger.info("[INFO] rollup engine loaded {} daily rows for {} areas since {}",
+                        rows[0], ordinals.size(), LocalDate.ofEpochDay(originDay));
+                } else if (rows[0] > 0) {
+                    logger.debug("[DEBUG] rollup engine synced {} daily rows", rows[0]);
+                }
+            });
+        } catch (Exception e) {
+            // Keep serving what is loaded; the next sync retries from the same position.
+            logger.warn("[WARN] rollup engine sync failed: {}", e.getMessage());
+        }
+    }
+
+    private int ordinal(String areaKey) {
+        return ordinals.computeIfAbsent(areaKey, key -> nextOrdinal.getAndIncrement());
+    }
+
+    private double bytes() {
+        long bytes = 0;
+        for (MetricColumns columns : metrics.values()) {
+            bytes += columns.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * One metric's columns. Each area's days are contiguous ({@code count[area][day]}) and allocated on first use;
+     * empty days hold count 0, sum 0, min +inf and max -inf so range loops need no branches.
+     */
+    private static final class MetricColumns {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long[][] count = new long[0][];
+        double[][] sum = new double[0][];
+        double[][] min = new double[0][];
+        double[][] max = new double[0][];
+        QuantileSketch[][] sketch = new QuantileSketch[0][];
+
+        void aggregate(int area, int lo, int hi, int out, long[] count, double[] sum, double[] min, double[] max) {
+            long[] c = this.count[area];
+            double[] s = this.sum[area];
+            double[] mn = this.min[area];
+            double[] mx = this.max[area];
+            int end = Math.min(hi, c.length - 1);
+            long cc = 0;
+            double ss = 0;
+            double lowest = Double.POSITIVE_INFINITY;
+            double highest = Double.NEGATIVE_INFINITY;
+            for (int d = lo; d <= end; d++) {
+                cc += c[d];
+                ss += s[d];
+                lowest = Math.min(lowest, mn[d]);
+                highest = Math.max(highest, mx[d]);
+            }
+            count[out] = cc;
+            sum[out] = ss;
+            if (cc > 0) {
+                min[out] = lowest;
+                max[out] = highest;
+            }
+        }
+
+        QuantileSketch sketch(int area, int lo, int hi) {
+            QuantileSketch[] days = this.sketch[area];
+            QuantileSketch merged = new QuantileSketch();
+            for (int d = lo, end = Math.min(hi, days.length - 1); d <= end; d++) {
+                merged.merge(days[d]);
+            }
+            return merged;
+        }
+
+        void add(int area, int day, double value) {
+            ensure(area, day);
+            count[area][day] += 1;
+            sum[area][day] += value;
+            min[area][day] = Math.min(min[area][day], value);
+            max[area][day] = Math.max(max[area][day], value);
+            if (sketch[area][day] == null) {
+                sketch[area][day] = new QuantileSketch();
+            }
+            sketch[area][day].add(value);
+        }
+
+        void set(int area, int day, long c, double s, double mn, double mx, QuantileSketch sk) {
+            if (day < 0) return;
+            ensure(area, day);
+            count[area][day] = c;
+            sum[area][day] = s;
+            min[area][day] = mn;
+            max[area][day] = mx;
+            sketch[area][day] = sk;
+        }
+
+        private void ensure(int area, int day) {
+            if (area >= count.length) {
+                int length = Math.max(area + 1, count.length + (count.length >> 1) + 16);
+                count = Arrays.copyOf(count, length);
+                sum = Arrays.copyOf(sum, length);
+                min = Arrays.copyOf(min, length);
+                max = Arrays.copyOf(max, length);
+                sketch = Arrays.copyOf(sketch, length);
+            }
+            long[] c = count[area];
+            if (c == null || day >= c.length) {
+                int old = c == null ? 0 : c.length;
+                int length = Math.max(day + 1, old + (old >> 1) + 32);
+                count[area] = c == null ? new long[length] : Arrays.copyOf(c, length);
+                sum[area] = c == null ? new double[length] : Arrays.copyOf(sum[area], length);
+                min[area] = c == null ? new double[length] : Arrays.copyOf(min[area], length);
+                max[area] = c == null ? new double[length] : Arrays.copyOf(max[area], length);
+                sketch[area] = c == null ? new QuantileSketch[length] : Arrays.copyOf(sketch[area], length);
+                Arrays.fill(min[area], old, length, Double.POSITIVE_INFINITY);
+                Arrays.fill(max[area], old, length, Double.NEGATIVE_INFINITY);
+            }
+        }
+
+        long bytes() {
+            lock.readLock().lock();
+            try {
+                long bytes = 0;
+                for (long[] c : count) {
+                    if (c != null) bytes += 40L * c.length;
+                }
+                for (QuantileSketch[] days : sketch) {
+                    if (days == null) continue;
+                    for (QuantileSketch day : days) {
+                        if (day != null) bytes += day.bytes();
+                    }
+                }
+                return bytes;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
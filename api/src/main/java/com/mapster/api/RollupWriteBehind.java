@@ -0,0 +1,343 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional write-behind for the rollups ({@code mapster.rollup-write-behind.enabled}): instead of one upsert per
+ * observation and ancestor, {@link AggregationService} hands observations to {@link #add}, which combines them in
+ * memory per (assigned area, metric, day) into count, sum, min, max and sketch buckets. Every
+ * {@code flush-interval-ms}, or as soon as {@code max-keys} keys are pending, the deltas are written with one
+ * statement: fanned out to the ancestors, grouped again per rollup row and upserted into the daily, monthly and yearly
+ * tables. A country row that received thousands of observations since the last flush is written once.
+ *
+ * Flushes never run on the ingesting request's thread: that thread already holds an ingest bulkhead slot, and the
+ * flush needs one of its own. Reaching {@code max-keys} only wakes a dedicated flusher thread.
+ *
+ * The observation itself is still inserted synchronously; only the rollups lag, by up to a flush interval (see the
+ * {@code mapster.rollup_write_behind.lag} gauge). A failed flush is merged back and retried with the next one. Deltas
+ * pending when the process dies without shutting down are lost from the rollups (not from facts.observation).
+ *
+ * The in-memory RollupEngine and ReferenceStatistics pick flushed rows up with their next sync; cached /area-metrics
+ * bodies of the touched areas are invalidated after each flush.
+ */
+@Component
+public class RollupWriteBehind implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(RollupWriteBehind.class);
+
+    // One row per pending key, passed as parallel arrays. Rows are upserted in key order so that concurrent flushes
+    // (other replicas) lock rollup rows in the same order instead of deadlocking.
+    private static final String FLUSH_SQL = """
+        WITH delta AS (
+          SELECT *
+          FROM unnest(?::text[], ?::text[], ?::date[], ?::bigint[], ?::numeric[], ?::numeric[], ?::numeric[], ?::jsonb[])
+            AS d(area_key, metric_id, day, c, s, mn, mx, sketch)
+        ), fanned AS (
+          SELECT anc.ancestor_key, anc.ancestor_depth, d.metric_id, d.day,
+            sum(d.c)::bigint AS c, sum(d.s) AS s, min(d.mn) AS mn, max(d.mx) AS mx, facts_agg.sketch_union(d.sketch) AS sketch
+          FROM delta d
+          JOIN geo.admin_area_ancestors anc
+            ON anc.area_key = d.area_key
+          GROUP BY 1, 2, 3, 4
+        ), daily AS (
+          INSERT INTO facts_agg.area_metric_daily (
+            area_key, area_depth, metric_id, day,
+            count_value, sum_value, min_value, max_value, sketch
+          )
+          SELECT ancestor_key, ancestor_depth, metric_id, day, c, s, mn, mx, sketch
+          FROM fanned
+          ORDER BY ancestor_key, metric_id, day
+          ON CONFLICT (area_key, metric_id, day) DO UPDATE
+            SET count_value = facts_agg.area_metric_daily.count_value + EXCLUDED.count_value,
+                sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
+                min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
+                max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
+                sketch = facts_agg.sketch_merge(facts_agg.area_metric_daily.sketch, EXCLUDED.sketch),
+                updated_at = now()
+          RETURNING area_key, metric_id, day
+        ), monthly AS (
+          INSERT INTO facts_agg.area_metric_monthly (
+            area_key, area_depth, metric_id, month,
+            count_value, sum_value, min_value, max_value, sketch
+          )
+          SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('month', day::timestamp)::date,
+            sum(c)::bigint, sum(s), min(mn), max(mx), facts_agg.sketch_union(sketch)
+          FROM fanned
+          GROUP BY 1, 2, 3, 4
+          ORDER BY 1, 3, 4
+          ON CONFLICT (area_key, metric_id, month) DO UPDATE
+            SET count_value = facts_agg.area_metric_monthly.count_value + EXCLUDED.count_value,
+                sum_value = facts_agg.area_metric_monthly.sum_value + EXCLUDED.sum_value,
+                min_value = LEAST(facts_agg.area_metric_monthly.min_value, EXCLUDED.min_value),
+                max_value = GREATEST(facts_agg.area_metric_monthly.max_value, EXCLUDED.max_value),
+                sketch = facts_agg.sketch_merge(facts_agg.area_metric_monthly.sketch, EXCLUDED.sketch),
+                updated_at = now()
+        ), yearly AS (
+          INSERT INTO facts_agg.area_metric_yearly (
+            area_key, area_depth, metric_id, year,
+            count_value, sum_value, min_value, max_value, sketch
+          )
+          SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('year', day::timestamp)::date,
+            sum(c)::bigint, sum(s), min(mn), max(mx), facts_agg.sketch_union(sketch)
+          FROM fanned
+          GROUP BY 1, 2, 3, 4
+          ORDER BY 1, 3, 4
+          ON CONFLICT (area_key, metric_id, year) DO UPDATE
+            SET count_value = facts_agg.area_metric_yearly.count_value + EXCLUDED.count_value,
+                sum_value = facts_agg.area_metric_yearly.sum_value + EXCLUDED.sum_value,
+                min_value = LEAST(facts_agg.area_metric_yearly.min_value, EXCLUDED.min_value),
+                max_value = GREATEST(facts_agg.area_metric_yearly.max_value, EXCLUDED.max_value),
+                sketch = facts_agg.sketch_merge(facts_agg.area_metric_yearly.sketch, EXCLUDED.sketch),
+                updated_at = now()
+        )
+        SELECT area_key, metric_id, day FROM daily
+        """;
+
+    record Key(String areaKey, String metricId, LocalDate day) {}
+
+    /** Combined observations of one key; only changed inside the pending map's per-key compute/merge. */
+    static final class Delta {
+        long count;
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal min;
+        BigDecimal max;
+        final Map<Integer, Long> buckets = new TreeMap<>();
+
+        void add(BigDecimal value) {
+            count++;
+            sum = sum.add(value);
+            min = min == null || value.compareTo(min) < 0 ? value : min;
+            max = max == null || value.compareTo(max) > 0 ? value : max;
+            buckets.merge(QuantileSketch.bucket(value.doubleValue()), 1L, Long::sum);
+        }
+
+        Delta merge(Delta other) {
+            count += other.count;
+            sum = sum.add(other.sum);
+            min = min.compareTo(other.min) <= 0 ? min : other.min;
+            max = max.compareTo(other.max) >= 0 ? max : other.max;
+            other.buckets.forEach((bucket, c) -> buckets.merge(bucket, c, Long::sum));
+            return this;
+        }
+
+        /** The buckets as a stored sketch ({@code {"<bucket>": <count>, ...}}). */
+        String sketch() {
+            StringBuilder json = new StringBuilder("{");
+            buckets.forEach((bucket, c) -> {
+                if (json.length() > 1) json.append(',');
+                json.append('"').append(bucket).append("\":").append(c);
+            });
+            return json.append('}').toString();
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final DatasetGenerationService datasetGenerations;
+    private final AreaMetricsResultCache areaMetricsCache;
+    private final Bulkheads bulkheads;
+    private final boolean enabled;
+    private final int maxKeys;
+
+    // add() holds the read lock while combining into the current map; a flush takes the write lock only to swap it.
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Runs the early flushes at max-keys; one queued request is enough, since a flush takes everything pending.
+    private final ThreadPoolExecutor flusher;
+    private volatile Map<Key, Delta> pending = new ConcurrentHashMap<>();
+    // When the oldest delta of the pending map was added (epoch ms), 0 while it is empty.
+    private final AtomicLong oldestPending = new AtomicLong();
+
+    private final Counter observations;
+    private final Counter flushedKeys;
+    private final Counter failures;
+    private final Timer flushTimer;
+
+    public RollupWriteBehind(
+        JdbcTemplate jdbcTemplate,
+        DatasetGenerationService datasetGenerations,
+        AreaMetricsResultCache areaMetricsCache,
+        Bulkheads bulkheads,
+        MeterRegistry meterRegistry,
+        @Value("${mapster.rollup-write-behind.enabled:false}") boolean enabled,
+        @Value("${mapster.rollup-write-behind.max-keys:10000}") int maxKeys
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.datasetGenerations = datasetGenerations;
+        this.areaMetricsCache = areaMetricsCache;
+        this.bulkheads = bulkheads;
+        this.enabled = enabled;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.flusher = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1),
+            runnable -> {
+                Thread thread = new Thread(runnable, "rollup-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.DiscardPolicy()
+        );
+        this.flusher.allowCoreThreadTimeOut(true);
+        this.observations = Counter.builder("mapster.rollup_write_behind.observations")
+            .description("Observations combined into pending rollup deltas")
+            .register(meterRegistry);
+        this.flushedKeys = Counter.builder("mapster.rollup_write_behind.flushed_keys")
+            .description("(area, metric, day) deltas written by flushes")
+            .register(meterRegistry);
+        this.failures = Counter.builder("mapster.rollup_write_behind.failures")
+            .description("Flushes that failed and were retried")
+            .register(meterRegistry);
+        this.flushTimer = Timer.builder("mapster.rollup_write_behind.flush")
+            .description("Time to write one batch of rollup deltas")
+            .register(meterRegistry);
+        Gauge.builder("mapster.rollup_write_behind.pending_keys", this, w -> w.pending.size())
+            .description("(area, metric, day) deltas waiting for the next flush")
+            .register(meterRegistry);
+        Gauge.builder("mapster.rollup_write_behind.lag", this, RollupWriteBehind::lagSeconds)
+            .description("Age of the oldest pending delta")
+            .baseUnit("seconds")
+            .register(meterRegistry);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /** Buffers one observation of {@code metricId} assigned to {@code areaKey}. */
+    public void add(String areaKey, String metricId, LocalDate day, BigDecimal value) {
+        swapLock.readLock().lock();
+        try {
+            pending.compute(new Key(areaKey, metricId, day), (key, delta) -> {
+                Delta combined = delta != null ? delta : new Delta();
+                combined.add(value);
+                return combined;
+            });
+            oldestPending.compareAndSet(0, System.currentTimeMillis());
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        observations.increment();
+        if (pending.size() >= maxKeys && !flushLock.isLocked()) flusher.execute(this::flush);
+    }
+
+    @Scheduled(
+        initialDelayString = "${mapster.rollup-write-behind.flush-interval-ms:1000}",
+        fixedDelayString = "${mapster.rollup-write-behind.flush-interval-ms:1000}"
+    )
+    public void flush() {
+        if (!enabled || !flushLock.tryLock()) return;
+        try {
+            Map<Key, Delta> batch;
+            long since;
+            swapLock.writeLock().lock();
+            try {
+                batch = pending;
+                if (batch.isEmpty()) return;
+                pending = new ConcurrentHashMap<>();
+                since = oldestPending.getAndSet(0);
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            try {
+                flushTimer.recordCallable(() -> write(batch));
+                flushedKeys.increment(batch.size());
+            } catch (Exception e) {
+                failures.increment();
+                logger.error("[ERROR] rollup write-behind flush of {} deltas failed, retrying with the next one: {}",
+                    batch.size(), e.getMessage(), e);
+                requeue(batch, since);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private Void write(Map<Key, Delta> batch) throws Exception {
+        int n = batch.size();
+        String[] areaKeys = new String[n];
+        String[] metricIds = new String[n];
+        String[] days = new String[n];
+        Long[] counts = new Long[n];
+        String[] sums = new String[n];
+        String[] mins = new String[n];
+        String[] maxs = new String[n];
+        String[] sketches = new String[n];
+        int i = 0;
+        for (Map.Entry<Key, Delta> entry : batch.entrySet()) {
+            Key key = entry.getKey();
+            Delta delta = entry.getValue();
+            areaKeys[i] = key.areaKey();
+            metricIds[i] = key.metricId();
+            days[i] = key.day().toString();
+            counts[i] = delta.count;
+            sums[i] = delta.sum.toPlainString();
+            mins[i] = delta.min.toPlainString();
+            maxs[i] = delta.max.toPlainString();
+            sketches[i] = delta.sketch();
+            i++;
+        }
+
+        Map<String, Map<LocalDate, Set<String>>> touched = new HashMap<>();
+        bulkheads.ingest().call(() -> {
+            jdbcTemplate.query(FLUSH_SQL,
+                (RowCallbackHandler) rs -> touched
+                    .computeIfAbsent(rs.getString(2), k -> new HashMap<>())
+                    .computeIfAbsent(rs.getObject(3, LocalDate.class), k -> new HashSet<>())
+                    .add(rs.getString(1)),
+                areaKeys, metricIds, days, counts, sums, mins, maxs, sketches);
+            return null;
+        });
+        if (!touched.isEmpty()) {
+            touched.forEach((metricId, byDay) -> byDay.forEach((day, keys) -> areaMetricsCache.invalidate(metricId, keys, day)));
+            datasetGenerations.markChanged(DatasetGenerationService.METRICS);
+        }
+        return null;
+    }
+
+    private void requeue(Map<Key, Delta> batch, long since) {
+        swapLock.readLock().lock();
+        try {
+            batch.forEach((key, delta) -> pending.merge(key, delta, Delta::merge));
+            oldestPending.accumulateAndGet(since, (current, requeued) -> current == 0 ? requeued : Math.min(current, requeued));
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private double lagSeconds() {
+        long since = oldestPending.get();
+        return since == 0 ? 0 : (System.currentTimeMillis() - since) / 1000.0;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        // Let an early flush finish, then write what is pending before the pool closes.
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+}
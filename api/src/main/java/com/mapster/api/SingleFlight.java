@@ -0,0 +1,118 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses concurrent computations for the same key into one ("single-flight").
+ *
+ * The first caller for a key (the leader) runs the loader on its own thread; callers arriving while it is still
+ * running (followers) wait for its result instead of running the same query again. The key is forgotten as soon as
+ * the leader finishes, so this is not a cache: callers are expected to check their cache before and fill it inside
+ * the loader.
+ *
+ * Followers wait at most the flight's timeout and then fail with {@link TimeoutException}; they never start a
+ * second computation, which is the point when the database is already the bottleneck. A loader failure is rethrown
+ * to the leader and every follower.
+ *
+ * Meters (tagged {@code flight=<name>}): {@code mapster.single_flight.requests{role=leader|collapsed}},
+ * {@code mapster.single_flight.timeouts} and the gauge {@code mapster.single_flight.in_flight}.
+ */
+public class SingleFlight<K, V> {
+    private final String name;
+    private final Duration timeout;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter leaders;
+    private final Counter collapsed;
+    private final Counter timeouts;
+
+    public SingleFlight(String name, Duration timeout, MeterRegistry registry) {
+        if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("timeout must be > 0");
+        this.name = name;
+        this.timeout = timeout;
+        this.leaders = Counter.builder("mapster.single_flight.requests")
+            .tag("flight", name)
+            .tag("role", "leader")
+            .description("Requests that ran the computation for their key")
+            .register(registry);
+        this.collapsed = Counter.builder("mapster.single_flight.requests")
+            .tag("flight", name)
+            .tag("role", "collapsed")
+            .description("Requests that waited for a computation already in flight for their key")
+            .register(registry);
+        this.timeouts = Counter.builder("mapster.single_flight.timeouts")
+            .tag("flight", name)
+            .description("Collapsed requests that gave up waiting for the in-flight computation")
+            .register(registry);
+        Gauge.builder("mapster.single_flight.in_flight", inFlight, ConcurrentHashMap::size)
+            .tag("flight", name)
+            .description("Keys currently being computed")
+            .register(registry);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public V execute(K key, Callable<V> loader) throws Exception {
+        return execute(key, timeout, loader);
+    }
+
+    /**
+     * Runs {@code loader} for {@code key}, or waits up to {@code followerTimeout} for the identical computation that
+     * is already running.
+     */
+    public V execute(K key, Duration followerTimeout, Callable<V> loader) throws Exception {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            collapsed.increment();
+            return await(existing, followerTimeout);
+        }
+
+        leaders.increment();
+        try {
+            V value = loader.call();
+            mine.complete(value);
+            return value;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private V await(CompletableFuture<V> future, Duration followerTimeout) throws Exception {
+        try {
+            return future.get(followerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.TimeoutException e) {
+            timeouts.increment();
+            throw new TimeoutException(name, followerTimeout);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception ex) throw ex;
+            if (cause instanceof Error err) throw err;
+            throw e;
+        }
+    }
+
+    public static final class TimeoutException extends RuntimeException {
+        TimeoutException(String flight, Duration waited) {
+            super("Gave up after " + waited.toMillis() + " ms waiting for in-flight '" + flight + "' computation");
+        }
+    }
+}
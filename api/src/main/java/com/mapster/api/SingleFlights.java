@@ -0,0 +1,54 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * The request-coalescing registries used by the read endpoints.
+ *
+ * A map load (or a cache flush after a reimport) sends many identical tile/overlay/area-metrics requests at once;
+ * each flight lets one of them hit PostGIS while the rest wait for its result, keeping the Hikari pool free.
+ */
+@Component
+public class SingleFlights {
+    private final SingleFlight<TileCache.TileKey, byte[]> tiles;
+    private final SingleFlight<String, byte[]> overlays;
+    private final SingleFlight<String, byte[]> areaMetrics;
+    private final SingleFlight<MetricTileCache.MetricTileKey, byte[]> metricTiles;
+
+    public SingleFlights(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.single-flight.tiles.timeout-ms:10000}") long tilesTimeoutMs,
+        @Value("${mapster.single-flight.overlays.timeout-ms:30000}") long overlaysTimeoutMs,
+        @Value("${mapster.single-flight.area-metrics.timeout-ms:30000}") long areaMetricsTimeoutMs,
+        @Value("${mapster.single-flight.metric-tiles.timeout-ms:10000}") long metricTilesTimeoutMs
+    ) {
+        this.tiles = new SingleFlight<>("tiles", Duration.ofMillis(tilesTimeoutMs), meterRegistry);
+        this.overlays = new SingleFlight<>("overlays", Duration.ofMillis(overlaysTimeoutMs), meterRegistry);
+        this.areaMetrics = new SingleFlight<>("area-metrics", Duration.ofMillis(areaMetricsTimeoutMs), meterRegistry);
+        this.metricTiles = new SingleFlight<>("metric-tiles", Duration.ofMillis(metricTilesTimeoutMs), meterRegistry);
+    }
+
+    /** Keyed by tile coordinates, depth and boundaries generation; yields the gzip-compressed tile. */
+    public SingleFlight<TileCache.TileKey, byte[]> tiles() {
+        return tiles;
+    }
+
+    /** Keyed by the response ETag; yields the gzip-compressed body. */
+    public SingleFlight<String, byte[]> overlays() {
+        return overlays;
+    }
+
+    /** Keyed by the response ETag; yields the gzip-compressed body. */
+    public SingleFlight<String, byte[]> areaMetrics() {
+        return areaMetrics;
+    }
+
+    /** Keyed by metric, tile, date range and both dataset generations; yields the gzip-compressed tile. */
+    public SingleFlight<MetricTileCache.MetricTileKey, byte[]> metricTiles() {
+        return metricTiles;
+    }
+}
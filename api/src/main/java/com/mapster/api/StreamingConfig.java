@@ -0,0 +1,46 @@
+package com.mapster.api;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Threads for {@code StreamingResponseBody} responses (/overlays and /area-metrics misses).
+ *
+ * A body holds its thread while it waits for a bulkhead slot or an in-flight query, runs the query and writes the
+ * result to the client, so these get a pool of their own instead of Spring's shared {@code applicationTaskExecutor}
+ * (8 threads, unbounded queue). Bodies beyond the pool and its queue are rejected and answered with 503 (see
+ * {@link FeatureStreamer#busy}) rather than piling up behind slow clients. The async request timeout
+ * ({@code spring.mvc.async.request-timeout}) is set well above the single-flight and bulkhead waits, so a request
+ * gives up through those (with a proper status) before the container times it out.
+ */
+@Configuration
+public class StreamingConfig implements WebMvcConfigurer, DisposableBean {
+    private final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+
+    public StreamingConfig(
+        @Value("${mapster.streaming.executor.threads:16}") int threads,
+        @Value("${mapster.streaming.executor.queue-capacity:64}") int queueCapacity
+    ) {
+        executor.setThreadNamePrefix("streaming-");
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.initialize();
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // Runs after Spring Boot's configurer, which sets the timeout from spring.mvc.async.request-timeout.
+        configurer.setTaskExecutor(executor);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+    }
+}
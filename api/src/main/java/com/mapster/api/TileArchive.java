@@ -0,0 +1,182 @@
+package com.mapster.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only, memory-mapped single-file tile archive (MBTiles/PMTiles-style, but minimal).
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header     96 bytes   magic, version, compression, dataset generation, zoom range, seeded bbox,
+ *                         tile count, directory offset, data offset, data length
+ *   directory  20 bytes per tile, sorted by tile id: tileId (long), data offset (long), length (int)
+ *   data       concatenated tile blobs
+ * </pre>
+ * Tile ids enumerate tiles zoom by zoom, row-major within a zoom, so the directory can be binary-searched.
+ *
+ * Tiles are stored gzip-compressed (the header's compression field is always {@link #COMPRESSION_GZIP}; archives with
+ * anything else are rejected) and served as-is.
+ *
+ * The archive only stores non-empty tiles. A tile inside the seeded zoom range and bbox that is not in the
+ * directory is known to be empty; anything outside that range is "not covered" and must be rendered live.
+ */
+public final class TileArchive implements Closeable {
+    static final byte[] MAGIC = "MAPSTILE".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 96;
+    static final int ENTRY_BYTES = 20;
+
+    static final int COMPRESSION_GZIP = 1;
+
+    // Data is mapped in segments because a single MappedByteBuffer is limited to 2 GB.
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final Path path;
+    private final long generation;
+    private final int minZoom;
+    private final int maxZoom;
+    private final double minLon;
+    private final double minLat;
+    private final double maxLon;
+    private final double maxLat;
+    private final long tileCount;
+    private final MappedByteBuffer directory;
+    private final MappedByteBuffer[] segments;
+
+    private TileArchive(Path path, ByteBuffer header, MappedByteBuffer directory, MappedByteBuffer[] segments) {
+        this.path = path;
+        this.generation = header.getLong(16);
+        this.minZoom = header.getInt(24);
+        this.maxZoom = header.getInt(28);
+        this.minLon = header.getDouble(32);
+        this.minLat = header.getDouble(40);
+        this.maxLon = header.getDouble(48);
+        this.maxLat = header.getDouble(56);
+        this.tileCount = header.getLong(64);
+        this.directory = directory;
+        this.segments = segments;
+    }
+
+    public static TileArchive open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) throw new IOException("Truncated tile archive header: " + path);
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a tile archive: " + path);
+            int version = header.getInt(8);
+            if (version != VERSION) throw new IOException("Unsupported tile archive version " + version + ": " + path);
+            int compression = header.getInt(12);
+            if (compression != COMPRESSION_GZIP) throw new IOException("Unsupported tile archive compression " + compression + ": " + path);
+
+            long tileCount = header.getLong(64);
+            long directoryOffset = header.getLong(72);
+            long dataOffset = header.getLong(80);
+            long dataLength = header.getLong(88);
+            if (tileCount * ENTRY_BYTES > Integer.MAX_VALUE) throw new IOException("Tile directory too large: " + path);
+            if (dataOffset + dataLength > channel.size()) throw new IOException("Truncated tile archive: " + path);
+
+            MappedByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, tileCount * ENTRY_BYTES);
+            List<MappedByteBuffer> segments = new ArrayList<>();
+            for (long pos = 0; pos < dataLength; pos += SEGMENT_BYTES) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + pos, Math.min(SEGMENT_BYTES, dataLength - pos)));
+            }
+            // Mappings stay valid after the channel is closed.
+            return new TileArchive(path, header, directory, segments.toArray(new MappedByteBuffer[0]));
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public long tileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return the stored tile, an empty array for a seeded tile without content, or null if the archive does not
+     *         cover the tile (caller must render it live)
+     */
+    public byte[] find(int z, int x, int y) {
+        if (!covers(z, x, y)) return null;
+
+        long id = tileId(z, x, y);
+        long lo = 0;
+        long hi = tileCount - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int pos = (int) (mid * ENTRY_BYTES);
+            long midId = directory.getLong(pos);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return read(directory.getLong(pos + 8), directory.getInt(pos + 16));
+            }
+        }
+        return new byte[0];
+    }
+
+    boolean covers(int z, int x, int y) {
+        if (z < minZoom || z > maxZoom) return false;
+        return x >= lonToTileX(minLon, z) && x <= lonToTileX(maxLon, z)
+            && y >= latToTileY(maxLat, z) && y <= latToTileY(minLat, z);
+    }
+
+    private byte[] read(long offset, int length) {
+        byte[] out = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long pos = offset + copied;
+            MappedByteBuffer segment = segments[(int) (pos / SEGMENT_BYTES)];
+            int segmentPos = (int) (pos % SEGMENT_BYTES);
+            int n = Math.min(length - copied, segment.limit() - segmentPos);
+            segment.get(segmentPos, out, copied, n);
+            copied += n;
+        }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the GC once unreachable; nothing to close explicitly.
+    }
+
+    static long tileId(int z, int x, int y) {
+        // Number of tiles in all lower zooms: (4^z - 1) / 3.
+        long base = ((1L << (2 * z)) - 1) / 3;
+        return base + ((long) y << z) + x;
+    }
+
+    static int lonToTileX(double lon, int z) {
+        int n = 1 << z;
+        int x = (int) Math.floor((lon + 180.0) / 360.0 * n);
+        return Math.max(0, Math.min(n - 1, x));
+    }
+
+    static int latToTileY(double lat, int z) {
+        int n = 1 << z;
+        double clamped = Math.max(-85.0511287798, Math.min(85.0511287798, lat));
+        double rad = Math.toRadians(clamped);
+        int y = (int) Math.floor((1.0 - Math.log(Math.tan(rad) + 1.0 / Math.cos(rad)) / Math.PI) / 2.0 * n);
+        return Math.max(0, Math.min(n - 1, y));
+    }
+}
@@ -0,0 +1,135 @@
+package com.mapster.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a {@link TileArchive} file. Tiles may be added in any order and from several threads, and must already be
+ * gzip-compressed.
+ *
+ * Blobs are spooled to a side file while rendering; {@link #finish()} sorts the directory, writes the final archive
+ * next to the target and atomically moves it into place, so readers never observe a partially written file.
+ */
+public final class TileArchiveWriter implements Closeable {
+    private record Entry(long tileId, long offset, int length) {}
+
+    private final Path target;
+    private final Path spool;
+    private final OutputStream data;
+    private final List<Entry> entries = new ArrayList<>();
+    private long dataLength;
+
+    private final long generation;
+    private final int minZoom;
+    private final int maxZoom;
+    private final double minLon;
+    private final double minLat;
+    private final double maxLon;
+    private final double maxLat;
+
+    public TileArchiveWriter(
+        Path target,
+        long generation,
+        int minZoom,
+        int maxZoom,
+        double minLon,
+        double minLat,
+        double maxLon,
+        double maxLat
+    ) throws IOException {
+        this.target = target;
+        this.spool = target.resolveSibling(target.getFileName() + ".data.tmp");
+        this.data = Files.newOutputStream(spool, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.generation = generation;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.maxLon = maxLon;
+        this.maxLat = maxLat;
+    }
+
+    /**
+     * Adds a tile. Empty tiles are not stored: inside the seeded range, absence means "empty".
+     */
+    public synchronized void add(int z, int x, int y, byte[] tile) throws IOException {
+        if (tile == null || tile.length == 0) return;
+        data.write(tile);
+        entries.add(new Entry(TileArchive.tileId(z, x, y), dataLength, tile.length));
+        dataLength += tile.length;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void finish() throws IOException {
+        data.close();
+        entries.sort(Comparator.comparingLong(Entry::tileId));
+
+        long directoryOffset = TileArchive.HEADER_BYTES;
+        long dataOffset = directoryOffset + (long) entries.size() * TileArchive.ENTRY_BYTES;
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             FileChannel in = FileChannel.open(spool, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(TileArchive.HEADER_BYTES);
+            header.put(TileArchive.MAGIC);
+            header.putInt(8, TileArchive.VERSION);
+            header.putInt(12, TileArchive.COMPRESSION_GZIP);
+            header.putLong(16, generation);
+            header.putInt(24, minZoom);
+            header.putInt(28, maxZoom);
+            header.putDouble(32, minLon);
+            header.putDouble(40, minLat);
+            header.putDouble(48, maxLon);
+            header.putDouble(56, maxLat);
+            header.putLong(64, entries.size());
+            header.putLong(72, directoryOffset);
+            header.putLong(80, dataOffset);
+            header.putLong(88, dataLength);
+            header.clear();
+            writeFully(out, header);
+
+            ByteBuffer dir = ByteBuffer.allocate(64 * 1024 * TileArchive.ENTRY_BYTES);
+            for (Entry e : entries) {
+                if (!dir.hasRemaining()) {
+                    dir.flip();
+                    writeFully(out, dir);
+                    dir.clear();
+                }
+                dir.putLong(e.tileId()).putLong(e.offset()).putInt(e.length());
+            }
+            dir.flip();
+            writeFully(out, dir);
+
+            long copied = 0;
+            while (copied < dataLength) {
+                copied += in.transferTo(copied, dataLength - copied, out);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(spool);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.close();
+        Files.deleteIfExists(spool);
+    }
+}
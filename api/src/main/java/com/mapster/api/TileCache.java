@@ -0,0 +1,45 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory cache for rendered MVT tiles, bounded by total tile bytes.
+ *
+ * Keys include the boundaries dataset generation, so a reimport naturally stops serving stale tiles.
+ */
+@Component
+public class TileCache {
+    // Rough per-entry bookkeeping overhead (key record, map node, array header).
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    public record TileKey(int z, int x, int y, int depth, long generation) {}
+
+    private final ByteWeightedCache<TileKey, byte[]> cache;
+
+    public TileCache(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.tiles.cache.max-bytes:134217728}") long maxBytes,
+        @Value("${mapster.tiles.cache.max-entry-bytes:2097152}") long maxEntryBytes
+    ) {
+        this.cache = new ByteWeightedCache<TileKey, byte[]>(
+            "tiles",
+            maxBytes,
+            maxEntryBytes,
+            tile -> tile.length + ENTRY_OVERHEAD_BYTES
+        ).bindTo(meterRegistry);
+    }
+
+    public byte[] get(TileKey key) {
+        return cache.get(key);
+    }
+
+    public void put(TileKey key, byte[] tile) {
+        cache.put(key, tile);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -8,7 +8,6 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -24,8 +23,26 @@ public class TileController {
     // Vector tiles are best-effort cacheable because boundaries are mostly static.
     private static final CacheControl TILE_CACHE = CacheControl.maxAge(Duration.ofHours(6)).cachePublic();
 
+    // Versioned URLs (/tiles/v{generation}/...) never change content: a reimport yields a new generation and URL.
+    private static final CacheControl VERSIONED_TILE_CACHE = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable();
+
+    @Autowired
+    private TileRenderer tileRenderer;
+
+    @Autowired
+    private TileCache tileCache;
+
+    @Autowired
+    private TileStore tileStore;
+
+    @Autowired
+    private DatasetGenerationService datasetGenerations;
+
+    @Autowired
+    private SingleFlights singleFlights;
+
     @Autowired
-    private JdbcTemplate jdbcTemplate;
+    private Bulkheads bulkheads;
 
     @CrossOrigin(origins = "*")
     @GetMapping(value = "/tiles/{z}/{x}/{y}.mvt")
@@ -33,76 +50,75 @@ public class TileController {
             @PathVariable("z") int z,
             @PathVariable("x") int x,
             @PathVariable("y") int y,
-            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding
     ) {
+        return serveTile(z, x, y, ifNoneMatch, acceptEncoding, TILE_CACHE);
+    }
+
+    @CrossOrigin(origins = "*")
+    @GetMapping(value = "/tiles/v{generation:\\d+}/{z}/{x}/{y}.mvt")
+    public ResponseEntity<byte[]> getVersionedTile(
+            @PathVariable("generation") long requestedGeneration,
+            @PathVariable("z") int z,
+            @PathVariable("x") int x,
+            @PathVariable("y") int y,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding
+    ) {
+        // Only the current generation may be cached as immutable. Older (or not yet visible) generations get the
+        // current tile without caching, so a stale URL can never pin outdated or mismatched content.
+        CacheControl cacheControl = requestedGeneration == datasetGenerations.boundaries()
+                ? VERSIONED_TILE_CACHE
+                : CacheControl.noCache();
+        return serveTile(z, x, y, ifNoneMatch, acceptEncoding, cacheControl);
+    }
+
+    private ResponseEntity<byte[]> serveTile(
+            int z, int x, int y, String ifNoneMatch, String acceptEncoding, CacheControl cacheControl) {
         // Map zoom 6..11 => depth 0..5 (same as GeoJSON endpoint)
         int depth = ZoomDepthMapper.depthForTileZoom(z);
+        long generation = datasetGenerations.boundaries();
 
-        String etag = String.format("W/\"z=%d&x=%d&y=%d&depth=%d\"", z, x, y, depth);
+        // The generation makes the ETag change after a reimport, so revalidation is cheap and correct.
+        String etag = String.format("W/\"z=%d&x=%d&y=%d&depth=%d&gen=%d\"", z, x, y, depth, generation);
         if (ifNoneMatch != null && ifNoneMatch.equals(etag)) {
             return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
                     .eTag(etag)
-                    .cacheControl(TILE_CACHE)
+                    .cacheControl(cacheControl)
                     .build();
         }
 
-        // Build MVT using PostGIS; filter using bbox in 4326 for index usage, then transform for MVT geometry.
-        // - ST_TileEnvelope returns WebMercator bounds (3857).
-        // - We transform that to 4326 for fast GiST index filtering.
-        // - ST_AsMVTGeom clips to tile bounds.
-        StringBuilder sql = new StringBuilder();
-        sql.append("WITH bounds AS (");
-        // IMPORTANT: use the 3-arg overload; passing NULL bounds explicitly can yield NULL.
-        sql.append("  SELECT ST_TileEnvelope(?, ?, ?) AS b3857");
-        sql.append("), env AS (");
-        sql.append("  SELECT ST_Transform(bounds.b3857, 4326) AS b4326 FROM bounds");
-        sql.append(") ");
-        sql.append("SELECT COALESCE(ST_AsMVT(mvt, 'admin', 4096, 'geom'), ''::bytea) ");
-        sql.append("FROM (");
-        sql.append("  SELECT DISTINCT ON (a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) ");
-        sql.append("    a.id,");
-        sql.append("    a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5,");
-        sql.append("    a.country AS name_0,");
-        sql.append("    a.name_1, a.name_2, a.name_3, a.name_4, a.name_5,");
-        sql.append("    ST_AsMVTGeom(");
-        sql.append("      ST_Transform(a.geom, 3857),");
-        sql.append("      bounds.b3857,");
-        sql.append("      4096,");
-        sql.append("      64,");
-        sql.append("      true");
-        sql.append("    ) AS geom ");
-        sql.append("  FROM admin_areas a, bounds, env ");
-        sql.append("  WHERE a.geom && env.b4326 ");
-        sql.append("    AND ST_Intersects(a.geom, env.b4326) ");
-        sql.append("    AND a.country IS NOT NULL ");
-        if (depth >= 1) sql.append("    AND a.name_1 IS NOT NULL ");
-        if (depth >= 2) sql.append("    AND a.name_2 IS NOT NULL ");
-        if (depth >= 3) sql.append("    AND a.name_3 IS NOT NULL ");
-        if (depth >= 4) sql.append("    AND a.name_4 IS NOT NULL ");
-        if (depth >= 5) sql.append("    AND a.name_5 IS NOT NULL ");
-        if (depth < 1) sql.append("    AND a.name_1 IS NULL ");
-        if (depth < 2) sql.append("    AND a.name_2 IS NULL ");
-        if (depth < 3) sql.append("    AND a.name_3 IS NULL ");
-        if (depth < 4) sql.append("    AND a.name_4 IS NULL ");
-        if (depth < 5) sql.append("    AND a.name_5 IS NULL ");
-        sql.append("  ORDER BY a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5, a.id");
-        sql.append(") mvt ");
-        sql.append("WHERE mvt.geom IS NOT NULL;");
-
-        try {
-            logger.info("[DEBUG] getTile z={}, x={}, y={}, depth={}", z, x, y, depth);
-            byte[] tile = jdbcTemplate.queryForObject(sql.toString(), byte[].class, z, x, y);
-            if (tile == null) tile = new byte[0];
+        // Tiles are cached and stored gzip-compressed and sent as-is (see PrecompressedBodies).
+        // Hot tiles (zoom 6..9 over populated regions) are requested over and over; serve them from memory.
+        TileCache.TileKey cacheKey = new TileCache.TileKey(z, x, y, depth, generation);
+        byte[] cached = tileCache.get(cacheKey);
+        if (cached != null) {
+            return tileResponse(cached, etag, cacheControl, acceptEncoding);
+        }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"));
-            headers.set("Content-Disposition", "inline");
+        // Pre-seeded tiles survive restarts; only fall through to PostGIS for tiles the archive doesn't cover.
+        byte[] stored = tileStore.find(z, x, y, generation);
+        if (stored != null) {
+            return tileResponse(stored, etag, cacheControl, acceptEncoding);
+        }
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .eTag(etag)
-                    .cacheControl(TILE_CACHE)
-                    .body(tile);
+        try {
+            // After a flush or on first map load many clients ask for the same tile at once; render it once.
+            byte[] tile = singleFlights.tiles().execute(cacheKey, () -> {
+                logger.info("[DEBUG] getTile z={}, x={}, y={}, depth={}", z, x, y, depth);
+                byte[] rendered = PrecompressedBodies.gzip(bulkheads.tiles().call(() -> tileRenderer.render(z, x, y)));
+                tileCache.put(cacheKey, rendered);
+                return rendered;
+            });
+            return tileResponse(tile, etag, cacheControl, acceptEncoding);
+        } catch (Bulkhead.RejectedException e) {
+            // Too many renders already queued; let the client retry instead of showing a hole in the map.
+            logger.warn("[WARN] {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .cacheControl(CacheControl.noStore())
+                    .build();
         } catch (Exception e) {
             logger.error("[ERROR] Exception in tile SQL: {}", e.getMessage(), e);
             return ResponseEntity.ok()
@@ -111,4 +127,14 @@ public class TileController {
                     .body(new byte[0]);
         }
     }
+
+    private static ResponseEntity<byte[]> tileResponse(
+            byte[] gzippedTile, String etag, CacheControl cacheControl, String acceptEncoding) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline")
+                .eTag(etag)
+                .cacheControl(cacheControl);
+        return PrecompressedBodies.body(builder, gzippedTile, acceptEncoding);
+    }
 }
@@ -0,0 +1,110 @@
+package com.mapster.api;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Renders admin-boundary MVT tiles in PostGIS.
+ *
+ * Shared by the live tile endpoint and the offline tile seeder so both produce byte-identical tiles.
+ */
+@Component
+public class TileRenderer {
+    private final JdbcTemplate jdbcTemplate;
+    private final GeometryPyramid geometryPyramid;
+
+    public TileRenderer(JdbcTemplate jdbcTemplate, GeometryPyramid geometryPyramid) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.geometryPyramid = geometryPyramid;
+    }
+
+    /**
+     * @return the encoded tile; empty if no admin area intersects it
+     */
+    public byte[] render(int z, int x, int y) {
+        // Map zoom 6..11 => depth 0..5 (same as GeoJSON endpoint)
+        int depth = ZoomDepthMapper.depthForTileZoom(z);
+        String sql = geometryPyramid.available() ? generalizedTileSql(z, depth) : tileSql(depth);
+
+        byte[] tile = jdbcTemplate.queryForObject(sql, byte[].class, z, x, y);
+        return tile == null ? new byte[0] : tile;
+    }
+
+    /**
+     * Reads pre-simplified Web Mercator geometry from the generalization pyramid: no per-tile transform or simplify,
+     * and the bbox filter runs directly against the 3857 index.
+     */
+    private static String generalizedTileSql(int z, int depth) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("WITH bounds AS (");
+        sql.append("  SELECT ST_TileEnvelope(?, ?, ?) AS b3857");
+        sql.append(") ");
+        sql.append("SELECT COALESCE(ST_AsMVT(mvt, 'admin', 4096, 'geom'), ''::bytea) ");
+        sql.append("FROM (");
+        sql.append("  SELECT DISTINCT ON (a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) ");
+        sql.append("    a.id, a.area_key,");
+        sql.append("    a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5,");
+        sql.append("    a.country AS name_0,");
+        sql.append("    a.name_1, a.name_2, a.name_3, a.name_4, a.name_5,");
+        sql.append("    ST_AsMVTGeom(a.geom_3857, bounds.b3857, 4096, 64, true) AS geom ");
+        sql.append("  FROM ").append(GeometryPyramid.TABLE).append(" a, bounds ");
+        sql.append("  WHERE a.tolerance_m = ").append(GeometryPyramid.tileLevel(z)).append(" ");
+        sql.append("    AND a.geom_3857 && bounds.b3857 ");
+        sql.append("    AND ST_Intersects(a.geom_3857, bounds.b3857) ");
+        appendDepthFilter(sql, depth);
+        sql.append("  ORDER BY a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5, a.id");
+        sql.append(") mvt ");
+        sql.append("WHERE mvt.geom IS NOT NULL;");
+        return sql.toString();
+    }
+
+    private static String tileSql(int depth) {
+        // Build MVT using PostGIS; filter using bbox in 4326 for index usage, then transform for MVT geometry.
+        // - ST_TileEnvelope returns WebMercator bounds (3857).
+        // - We transform that to 4326 for fast GiST index filtering.
+        // - ST_AsMVTGeom clips to tile bounds.
+        StringBuilder sql = new StringBuilder();
+        sql.append("WITH bounds AS (");
+        // IMPORTANT: use the 3-arg overload; passing NULL bounds explicitly can yield NULL.
+        sql.append("  SELECT ST_TileEnvelope(?, ?, ?) AS b3857");
+        sql.append("), env AS (");
+        sql.append("  SELECT ST_Transform(bounds.b3857, 4326) AS b4326 FROM bounds");
+        sql.append(") ");
+        sql.append("SELECT COALESCE(ST_AsMVT(mvt, 'admin', 4096, 'geom'), ''::bytea) ");
+        sql.append("FROM (");
+        sql.append("  SELECT DISTINCT ON (a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) ");
+        sql.append("    a.id, a.area_key,");
+        sql.append("    a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5,");
+        sql.append("    a.country AS name_0,");
+        sql.append("    a.name_1, a.name_2, a.name_3, a.name_4, a.name_5,");
+        sql.append("    ST_AsMVTGeom(");
+        sql.append("      ST_Transform(a.geom, 3857),");
+        sql.append("      bounds.b3857,");
+        sql.append("      4096,");
+        sql.append("      64,");
+        sql.append("      true");
+        sql.append("    ) AS geom ");
+        sql.append("  FROM admin_areas a, bounds, env ");
+        sql.append("  WHERE a.geom && env.b4326 ");
+        sql.append("    AND ST_Intersects(a.geom, env.b4326) ");
+        appendDepthFilter(sql, depth);
+        sql.append("  ORDER BY a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5, a.id");
+        sql.append(") mvt ");
+        sql.append("WHERE mvt.geom IS NOT NULL;");
+        return sql.toString();
+    }
+
+    private static void appendDepthFilter(StringBuilder sql, int depth) {
+        sql.append("    AND a.country IS NOT NULL ");
+        if (depth >= 1) sql.append("    AND a.name_1 IS NOT NULL ");
+        if (depth >= 2) sql.append("    AND a.name_2 IS NOT NULL ");
+        if (depth >= 3) sql.append("    AND a.name_3 IS NOT NULL ");
+        if (depth >= 4) sql.append("    AND a.name_4 IS NOT NULL ");
+        if (depth >= 5) sql.append("    AND a.name_5 IS NOT NULL ");
+        if (depth < 1) sql.append("    AND a.name_1 IS NULL ");
+        if (depth < 2) sql.append("    AND a.name_2 IS NULL ");
+        if (depth < 3) sql.append("    AND a.name_3 IS NULL ");
+        if (depth < 4) sql.append("    AND a.name_4 IS NULL ");
+        if (depth < 5) sql.append("    AND a.name_5 IS NULL ");
+    }
+}
@@ -0,0 +1,207 @@
+package com.mapster.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline job: renders boundary tiles into a {@link TileArchive} and exits.
+ *
+ * Run after the import job, e.g.
+ * {@code java -jar app.jar --spring.main.web-application-type=none --mapster.tiles.seed.enabled=true}.
+ *
+ * Tiles are rendered zoom by zoom. When a tile has no admin area at all in its envelope, its whole subtree is
+ * skipped (oceans), which keeps a world seed to zoom 11 tractable.
+ *
+ * The archive is stamped with the boundaries generation read at the start. If a reimport bumps it while tiles are
+ * rendered (checked after every zoom and before the archive is written), the seed fails without replacing the
+ * existing archive: its tiles would mix two imports under the old generation.
+ */
+@Component
+@ConditionalOnProperty(name = "mapster.tiles.seed.enabled", havingValue = "true")
+public class TileSeeder implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(TileSeeder.class);
+
+    private record Tile(int z, int x, int y) {}
+
+    private final ConfigurableApplicationContext context;
+    private final JdbcTemplate jdbcTemplate;
+    private final TileRenderer tileRenderer;
+    private final DatasetGenerationService datasetGenerations;
+
+    private final String output;
+    private final int minZoom;
+    private final int maxZoom;
+    private final String bbox;
+    private final int threads;
+
+    public TileSeeder(
+        ConfigurableApplicationContext context,
+        JdbcTemplate jdbcTemplate,
+        TileRenderer tileRenderer,
+        DatasetGenerationService datasetGenerations,
+        @Value("${mapster.tiles.seed.output:${mapster.tiles.store.path:}}") String output,
+        @Value("${mapster.tiles.seed.min-zoom:0}") int minZoom,
+        @Value("${mapster.tiles.seed.max-zoom:11}") int maxZoom,
+        @Value("${mapster.tiles.seed.bbox:}") String bbox,
+        @Value("${mapster.tiles.seed.threads:4}") int threads
+    ) {
+        this.context = context;
+        this.jdbcTemplate = jdbcTemplate;
+        this.tileRenderer = tileRenderer;
+        this.datasetGenerations = datasetGenerations;
+        this.output = output;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.bbox = bbox;
+        this.threads = threads;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int exitCode = 0;
+        try {
+            seed();
+        } catch (Exception e) {
+            logger.error("[ERROR] tile seeding failed: {}", e.getMessage(), e);
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(context, () -> code));
+    }
+
+    void seed() throws Exception {
+        if (output == null || output.isBlank()) {
+            throw new IllegalStateException("mapster.tiles.seed.output (or mapster.tiles.store.path) must be set");
+        }
+        if (minZoom < 0 || maxZoom < minZoom || maxZoom > 16) {
+            throw new IllegalArgumentException("invalid zoom range " + minZoom + ".." + maxZoom);
+        }
+
+        datasetGenerations.refresh();
+        long generation = datasetGenerations.boundaries();
+        double[] b = bbox.isBlank() ? dataExtent() : parseBbox(bbox);
+        logger.info("[INFO] seeding tiles z={}..{} bbox={},{},{},{} generation={} -> {}",
+            minZoom, maxZoom, b[0], b[1], b[2], b[3], generation, output);
+
+        Path target = Path.of(output);
+        if (target.getParent() != null) Files.createDirectories(target.getParent());
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (TileArchiveWriter writer = new TileArchiveWriter(
+            target, generation, minZoom, maxZoom, b[0], b[1], b[2], b[3])) {
+
+            List<Tile> level = tilesInBbox(minZoom, b);
+            for (int z = minZoom; z <= maxZoom && !level.isEmpty(); z++) {
+                ConcurrentLinkedQueue<Tile> next = new ConcurrentLinkedQueue<>();
+                List<Future<?>> futures = new ArrayList<>(level.size());
+                for (Tile t : level) {
+                    futures.add(pool.submit(() -> {
+                        byte[] tile = tileRenderer.render(t.z(), t.x(), t.y());
+                        writer.add(t.z(), t.x(), t.y(), PrecompressedBodies.gzip(tile));
+                        if (t.z() < maxZoom && (tile.length > 0 || hasAnyArea(t))) {
+                            addChildrenInBbox(t, b, next);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) f.get();
+                logger.info("[INFO] seeded z={}: rendered={}, stored so far={}", z, level.size(), writer.size());
+                checkGeneration(generation);
+                level = new ArrayList<>(next);
+            }
+
+            checkGeneration(generation);
+            writer.finish();
+            logger.info("[INFO] tile archive written: {} ({} tiles)", target, writer.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void checkGeneration(long generation) {
+        datasetGenerations.refresh();
+        long current = datasetGenerations.boundaries();
+        if (current != generation) {
+            throw new IllegalStateException("boundaries changed from generation " + generation + " to " + current
+                + " while seeding; run the seed again");
+        }
+    }
+
+    // A tile can render empty while still containing areas that collapse at this zoom (tiny islands).
+    // Only prune the subtree when no admin area bbox touches the tile at all.
+    private boolean hasAnyArea(Tile t) {
+        Boolean exists = jdbcTemplate.queryForObject(
+            """
+            SELECT EXISTS (
+              SELECT 1 FROM admin_areas a
+              WHERE a.geom && ST_Transform(ST_TileEnvelope(?, ?, ?), 4326)
+            )
+            """,
+            Boolean.class,
+            t.z(), t.x(), t.y()
+        );
+        return Boolean.TRUE.equals(exists);
+    }
+
+    private double[] dataExtent() {
+        return jdbcTemplate.queryForObject(
+            """
+            SELECT ST_XMin(e), ST_YMin(e), ST_XMax(e), ST_YMax(e)
+            FROM (SELECT ST_Extent(geom)::geometry AS e FROM admin_areas) x
+            """,
+            (rs, rowNum) -> new double[] { rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4) }
+        );
+    }
+
+    static double[] parseBbox(String bbox) {
+        String[] parts = bbox.split(",");
+        if (parts.length != 4) throw new IllegalArgumentException("bbox must be minLon,minLat,maxLon,maxLat: " + bbox);
+        double[] b = new double[4];
+        for (int i = 0; i < 4; i++) b[i] = Double.parseDouble(parts[i].trim());
+        return b;
+    }
+
+    private static List<Tile> tilesInBbox(int z, double[] b) {
+        List<Tile> tiles = new ArrayList<>();
+        int x0 = TileArchive.lonToTileX(b[0], z);
+        int x1 = TileArchive.lonToTileX(b[2], z);
+        int y0 = TileArchive.latToTileY(b[3], z);
+        int y1 = TileArchive.latToTileY(b[1], z);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) tiles.add(new Tile(z, x, y));
+        }
+        return tiles;
+    }
+
+    private static void addChildrenInBbox(Tile t, double[] b, ConcurrentLinkedQueue<Tile> out) {
+        int z = t.z() + 1;
+        int x0 = TileArchive.lonToTileX(b[0], z);
+        int x1 = TileArchive.lonToTileX(b[2], z);
+        int y0 = TileArchive.latToTileY(b[3], z);
+        int y1 = TileArchive.latToTileY(b[1], z);
+        for (int dx = 0; dx <= 1; dx++) {
+            for (int dy = 0; dy <= 1; dy++) {
+                int x = t.x() * 2 + dx;
+                int y = t.y() * 2 + dy;
+                if (x >= x0 && x <= x1 && y >= y0 && y <= y1) out.add(new Tile(z, x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Persistent tile store backed by a pre-seeded {@link TileArchive} (see {@link TileSeeder}).
+ *
+ * The archive survives restarts and rollouts, so fresh pods serve most tiles without touching PostGIS.
+ * It is only consulted while its dataset generation matches the live boundaries generation; after a reimport the
+ * store is bypassed until the seeder has rebuilt it. The file is re-opened when its modification time changes.
+ */
+@Component
+public class TileStore {
+    private static final Logger logger = LoggerFactory.getLogger(TileStore.class);
+
+    private final Path path;
+    private volatile TileArchive archive;
+    private volatile FileTime loadedModifiedTime;
+
+    private final Counter hits;
+    private final Counter emptyHits;
+    private final Counter misses;
+
+    public TileStore(
+        MeterRegistry meterRegistry,
+        @Value("${mapster.tiles.store.path:}") String path
+    ) {
+        this.path = path == null || path.isBlank() ? null : Path.of(path);
+        this.hits = lookupCounter(meterRegistry, "hit");
+        this.emptyHits = lookupCounter(meterRegistry, "empty");
+        this.misses = lookupCounter(meterRegistry, "miss");
+        Gauge.builder("mapster.tiles.store.tiles", this, s -> s.archive == null ? 0 : s.archive.tileCount())
+            .description("Number of non-empty tiles in the loaded tile archive")
+            .register(meterRegistry);
+        reload();
+    }
+
+    private static Counter lookupCounter(MeterRegistry registry, String result) {
+        return Counter.builder("mapster.tiles.store.lookups")
+            .description("Tile archive lookups by result (hit, empty = seeded but no content, miss = not covered)")
+            .tag("result", result)
+            .register(registry);
+    }
+
+    /**
+     * @return the stored tile (gzip-compressed), an empty array for a known-empty tile, or null if the live renderer
+     *         must be used
+     */
+    public byte[] find(int z, int x, int y, long boundariesGeneration) {
+        TileArchive current = archive;
+        if (current == null || current.generation() != boundariesGeneration) {
+            if (current != null) misses.increment();
+            return null;
+        }
+        byte[] tile = current.find(z, x, y);
+        if (tile == null) {
+            misses.increment();
+        } else if (tile.length == 0) {
+            emptyHits.increment();
+        } else {
+            hits.increment();
+        }
+        return tile;
+    }
+
+    public TileArchive archive() {
+        return archive;
+    }
+
+    @Scheduled(fixedDelayString = "${mapster.tiles.store.reload-interval-ms:30000}")
+    public void reload() {
+        if (path == null) return;
+        try {
+            if (!Files.exists(path)) {
+                if (archive != null) logger.warn("[WARN] tile archive {} disappeared; serving live tiles", path);
+                archive = null;
+                loadedModifiedTime = null;
+                return;
+            }
+            FileTime modified = Files.getLastModifiedTime(path);
+            if (modified.equals(loadedModifiedTime)) return;
+
+            TileArchive next = TileArchive.open(path);
+            archive = next;
+            loadedModifiedTime = modified;
+            logger.info("[INFO] loaded tile archive {} (generation={}, tiles={})", path, next.generation(), next.tileCount());
+        } catch (Exception e) {
+            logger.error("[ERROR] could not load tile archive {}: {}", path, e.getMessage(), e);
+        }
+    }
+}
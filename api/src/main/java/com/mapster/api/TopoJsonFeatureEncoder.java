@@ -0,0 +1,204 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * TopoJSON Topology built from the shared-border arcs precomputed at import time.
+ *
+ * The import job splits each pyramid level's rings into arcs ({@link #ARCS_TABLE}): a border between two units is
+ * stored once and referenced by both ({@link #ARC_REFS_TABLE}), so it is sent once and neighbours cannot drift apart.
+ * Feature rows carry their arc references instead of a geometry (see {@link #arcRefsSql}); the objects are written as
+ * rows arrive, then the referenced arcs are fetched in order of first use and written quantized (1e-6 degrees, the GeoJSON
+ * precision) and delta-encoded.
+ *
+ * The features matched by the bbox are returned whole (not clipped), so their shared arcs stay intact.
+ */
+class TopoJsonFeatureEncoder implements FeatureEncoder {
+    static final String ARCS_TABLE = "geo.admin_area_arcs";
+    static final String ARC_REFS_TABLE = "geo.admin_area_arc_refs";
+
+    /** Object name of the areas' GeometryCollection. */
+    static final String OBJECT_NAME = "areas";
+
+    private static final double SCALE = 1e-6;
+    private static final double TRANSLATE_X = -180;
+    private static final double TRANSLATE_Y = -90;
+
+    static final byte[] EMPTY_TOPOLOGY = ("{\"type\":\"Topology\",\"transform\":{\"scale\":[1.0E-6,1.0E-6],\"translate\":[-180.0,-90.0]},"
+        + "\"objects\":{\"" + OBJECT_NAME + "\":{\"type\":\"GeometryCollection\",\"geometries\":[]}},\"arcs\":[]}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    /** Streams the WKB of the given arcs in the given order (null for an arc that no longer exists). */
+    @FunctionalInterface
+    interface ArcSource {
+        void forEach(long[] arcIds, Consumer<byte[]> wkb);
+    }
+
+    private final JsonFactory jsonFactory;
+    private final JsonGenerator gen;
+    private final ArcSource arcSource;
+    // Database arc id -> index in this topology's "arcs", in order of first reference.
+    private final Map<Long, Integer> arcIndexes = new LinkedHashMap<>();
+
+    TopoJsonFeatureEncoder(JsonFactory jsonFactory, OutputStream out, ArcSource arcSource) throws IOException {
+        this.jsonFactory = jsonFactory;
+        this.arcSource = arcSource;
+        this.gen = jsonFactory.createGenerator(out);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        gen.writeStartObject();
+        gen.writeStringField("type", "Topology");
+        gen.writeObjectFieldStart("transform");
+        gen.writeArrayFieldStart("scale");
+        gen.writeNumber(SCALE);
+        gen.writeNumber(SCALE);
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("translate");
+        gen.writeNumber(TRANSLATE_X);
+        gen.writeNumber(TRANSLATE_Y);
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.writeObjectFieldStart("objects");
+        gen.writeObjectFieldStart(OBJECT_NAME);
+        gen.writeStringField("type", "GeometryCollection");
+        gen.writeArrayFieldStart("geometries");
+    }
+
+    /**
+     * SQL for the {@code geometry} column: the unit's arc references as JSON text, polygons -> rings -> arc ids, with
+     * a reversed arc written as {@code -id - 1} (TopoJSON's {@code ~i}).
+     */
+    static String arcRefsSql(String areaIdExpr, int toleranceM) {
+        return "(SELECT json_agg(p.rings ORDER BY p.polygon_index)::text FROM ("
+            + "SELECT r.polygon_index, json_agg(r.arcs ORDER BY r.ring_index) AS rings FROM ("
+            + "SELECT x.polygon_index, x.ring_index, "
+            + "json_agg(CASE WHEN x.reversed THEN -x.arc_id - 1 ELSE x.arc_id END ORDER BY x.seq) AS arcs "
+            + "FROM " + ARC_REFS_TABLE + " x "
+            + "WHERE x.tolerance_m = " + toleranceM + " AND x.area_id = " + areaIdExpr + " "
+            + "GROUP BY x.polygon_index, x.ring_index) r "
+            + "GROUP BY r.polygon_index) p)";
+    }
+
+    @Override
+    public void feature(ResultSet rs, FeatureStreamer.FeatureColumns columns) throws IOException, SQLException {
+        String refs = columns.geometry() > 0 ? rs.getString(columns.geometry()) : null;
+        List<List<long[]>> polygons = refs == null ? List.of() : parseRefs(refs);
+
+        gen.writeStartObject();
+        if (polygons.isEmpty()) {
+            gen.writeNullField("type");
+        } else {
+            boolean multi = polygons.size() > 1;
+            gen.writeStringField("type", multi ? "MultiPolygon" : "Polygon");
+            gen.writeArrayFieldStart("arcs");
+            for (List<long[]> rings : polygons) {
+                if (multi) gen.writeStartArray();
+                for (long[] ring : rings) {
+                    gen.writeStartArray();
+                    for (long ref : ring) {
+                        gen.writeNumber(localIndex(ref));
+                    }
+                    gen.writeEndArray();
+                }
+                if (multi) gen.writeEndArray();
+            }
+            gen.writeEndArray();
+        }
+        gen.writeObjectFieldStart("properties");
+        for (int i = 0; i < columns.properties().length; i++) {
+            gen.writeFieldName(columns.properties()[i]);
+            GeoJsonFeatureEncoder.writeValue(gen, rs.getObject(columns.propertyIndexes()[i]));
+        }
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.writeEndObject();
+        gen.writeArrayFieldStart("arcs");
+        if (!arcIndexes.isEmpty()) {
+            long[] ids = arcIndexes.keySet().stream().mapToLong(Long::longValue).toArray();
+            try {
+                arcSource.forEach(ids, wkb -> {
+                    try {
+                        writeArc(wkb);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.close();
+    }
+
+    private int localIndex(long ref) {
+        boolean reversed = ref < 0;
+        long arcId = reversed ? -ref - 1 : ref;
+        int index = arcIndexes.computeIfAbsent(arcId, id -> arcIndexes.size());
+        return reversed ? ~index : index;
+    }
+
+    private void writeArc(byte[] wkb) throws IOException {
+        gen.writeStartArray();
+        if (wkb != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(wkb);
+            int dims = Wkb.readHeader(buffer)[1];
+            double[] xy = Wkb.readPoints(buffer, buffer.getInt(), dims);
+            long x = 0;
+            long y = 0;
+            for (int i = 0; i < xy.length; i += 2) {
+                long qx = Math.round((xy[i] - TRANSLATE_X) / SCALE);
+                long qy = Math.round((xy[i + 1] - TRANSLATE_Y) / SCALE);
+                gen.writeStartArray();
+                gen.writeNumber(qx - x);
+                gen.writeNumber(qy - y);
+                gen.writeEndArray();
+                x = qx;
+                y = qy;
+            }
+        }
+        gen.writeEndArray();
+    }
+
+    /** [[[ref, ...] ring, ...] polygon, ...] */
+    private List<List<long[]>> parseRefs(String refs) throws IOException {
+        List<List<long[]>> polygons = new ArrayList<>();
+        try (JsonParser parser = jsonFactory.createParser(refs)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) return polygons;
+            while (parser.nextToken() == JsonToken.START_ARRAY) {
+                List<long[]> rings = new ArrayList<>();
+                while (parser.nextToken() == JsonToken.START_ARRAY) {
+                    List<Long> ring = new ArrayList<>();
+                    while (parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+                        ring.add(parser.getLongValue());
+                    }
+                    rings.add(ring.stream().mapToLong(Long::longValue).toArray());
+                }
+                polygons.add(rings);
+            }
+        }
+        return polygons;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mapster.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Just enough of a WKB reader for the binary feature encodings: 2D x,y coordinates, Z/M ordinates skipped.
+ * Accepts ISO WKB ({@code ST_AsBinary}) and PostGIS EWKB.
+ */
+final class Wkb {
+    private Wkb() {}
+
+    /** @return {base type (1..7), dimensions}; sets the buffer's byte order for the rest of this geometry */
+    static int[] readHeader(ByteBuffer wkb) {
+        wkb.order(wkb.get() == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int raw = wkb.getInt();
+        // EWKB flags (PostGIS) or ISO type codes (1000 = Z, 2000 = M, 3000 = ZM).
+        boolean z = (raw & 0x80000000) != 0;
+        boolean m = (raw & 0x40000000) != 0;
+        if ((raw & 0x20000000) != 0) wkb.getInt();
+        int type = raw & 0x0FFFFFFF;
+        int iso = type / 1000;
+        z |= iso == 1 || iso == 3;
+        m |= iso == 2 || iso == 3;
+        return new int[] {type % 1000, 2 + (z ? 1 : 0) + (m ? 1 : 0)};
+    }
+
+    static List<double[]> readRings(ByteBuffer wkb, int dims) {
+        int n = wkb.getInt();
+        List<double[]> rings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            rings.add(readPoints(wkb, wkb.getInt(), dims));
+        }
+        return rings;
+    }
+
+    /** Reads {@code n} points as a flat x,y array, skipping any Z/M ordinates. */
+    static double[] readPoints(ByteBuffer wkb, int n, int dims) {
+        double[] xy = new double[n * 2];
+        for (int i = 0; i < n; i++) {
+            xy[i * 2] = wkb.getDouble();
+            xy[i * 2 + 1] = wkb.getDouble();
+            for (int d = 2; d < dims; d++) wkb.getDouble();
+        }
+        return xy;
+    }
+}
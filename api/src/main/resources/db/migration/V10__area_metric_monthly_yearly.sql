@@ -0,0 +1,293 @@
+-- Monthly and yearly rollups next to facts_agg.area_metric_daily.
+--
+-- Same columns as the daily table, keyed by the first day of the month / year. A range query is answered from the
+-- fewest buckets that exactly cover it (whole years, then whole months, then the remaining days at either end; see
+-- RollupBuckets in the API), so a one-year range reads about one row per area instead of 365.
+--
+-- Every writer of the daily table maintains all three levels: the API's AggregationService and the synthetic
+-- generator (replaced below). Existing daily rows are rolled up once here.
+
+CREATE TABLE IF NOT EXISTS facts_agg.area_metric_monthly (
+    area_key text NOT NULL,
+    area_depth smallint NOT NULL,
+    metric_id text NOT NULL REFERENCES facts.metric(metric_id),
+    month date NOT NULL,
+
+    count_value bigint NOT NULL,
+    sum_value numeric NOT NULL,
+    min_value numeric NOT NULL,
+    max_value numeric NOT NULL,
+
+    updated_at timestamptz NOT NULL DEFAULT now(),
+
+    CONSTRAINT area_metric_monthly_pkey PRIMARY KEY (area_key, metric_id, month),
+    CONSTRAINT area_metric_monthly_month_check CHECK (extract(day FROM month) = 1)
+);
+
+CREATE INDEX IF NOT EXISTS area_metric_monthly_metric_month_idx
+    ON facts_agg.area_metric_monthly (metric_id, month);
+
+CREATE TABLE IF NOT EXISTS facts_agg.area_metric_yearly (
+    area_key text NOT NULL,
+    area_depth smallint NOT NULL,
+    metric_id text NOT NULL REFERENCES facts.metric(metric_id),
+    year date NOT NULL,
+
+    count_value bigint NOT NULL,
+    sum_value numeric NOT NULL,
+    min_value numeric NOT NULL,
+    max_value numeric NOT NULL,
+
+    updated_at timestamptz NOT NULL DEFAULT now(),
+
+    CONSTRAINT area_metric_yearly_pkey PRIMARY KEY (area_key, metric_id, year),
+    CONSTRAINT area_metric_yearly_year_check CHECK (extract(doy FROM year) = 1)
+);
+
+CREATE INDEX IF NOT EXISTS area_metric_yearly_metric_year_idx
+    ON facts_agg.area_metric_yearly (metric_id, year);
+
+INSERT INTO facts_agg.area_metric_monthly (
+    area_key, area_depth, metric_id, month, count_value, sum_value, min_value, max_value
+)
+SELECT area_key, min(area_depth), metric_id, date_trunc('month', day::timestamp)::date,
+    sum(count_value), sum(sum_value), min(min_value), max(max_value)
+FROM facts_agg.area_metric_daily
+GROUP BY area_key, metric_id, date_trunc('month', day::timestamp)::date
+ON CONFLICT ON CONSTRAINT area_metric_monthly_pkey DO NOTHING;
+
+INSERT INTO facts_agg.area_metric_yearly (
+    area_key, area_depth, metric_id, year, count_value, sum_value, min_value, max_value
+)
+SELECT area_key, min(area_depth), metric_id, date_trunc('year', day::timestamp)::date,
+    sum(count_value), sum(sum_value), min(min_value), max(max_value)
+FROM facts_agg.area_metric_daily
+GROUP BY area_key, metric_id, date_trunc('year', day::timestamp)::date
+ON CONFLICT ON CONSTRAINT area_metric_yearly_pkey DO NOTHING;
+
+-- Synthetic generator: as in V5, plus the monthly and yearly upserts next to the daily one.
+CREATE OR REPLACE FUNCTION facts.generate_synthetic_clustered_observations(
+    metric_id text,
+    n integer,
+    min_lon double precision,
+    min_lat double precision,
+    max_lon double precision,
+    max_lat double precision,
+    clusters integer DEFAULT 6,
+    start_day date DEFAULT (current_date - 30),
+    end_day date DEFAULT current_date,
+    base_value numeric DEFAULT 230,
+    cluster_value_sigma double precision DEFAULT 0.35,
+    noise_sigma numeric DEFAULT 25,
+    cluster_spread double precision DEFAULT 0.08,
+    seed double precision DEFAULT NULL,
+    unit text DEFAULT NULL,
+    currency text DEFAULT NULL
+) RETURNS TABLE(inserted_observations bigint, inserted_rollup_rows bigint)
+LANGUAGE plpgsql
+VOLATILE
+AS $$
+DECLARE
+  days int;
+BEGIN
+  IF n IS NULL OR n <= 0 THEN
+    RETURN QUERY SELECT 0::bigint, 0::bigint;
+    RETURN;
+  END IF;
+
+  IF clusters IS NULL OR clusters <= 0 THEN
+    clusters := 1;
+  END IF;
+
+  IF start_day IS NULL OR end_day IS NULL OR start_day > end_day THEN
+    RAISE EXCEPTION 'invalid date range: start_day=% end_day=%', start_day, end_day;
+  END IF;
+
+  days := (end_day - start_day) + 1;
+
+  IF seed IS NOT NULL THEN
+    PERFORM setseed(seed);
+  END IF;
+
+  INSERT INTO facts.metric (metric_id, unit, description)
+  VALUES (metric_id, unit, 'synthetic metric')
+  ON CONFLICT ON CONSTRAINT metric_pkey DO NOTHING;
+
+  RETURN QUERY
+  WITH
+  cfg AS (
+    SELECT
+      min_lon::double precision AS min_lon,
+      min_lat::double precision AS min_lat,
+      max_lon::double precision AS max_lon,
+      max_lat::double precision AS max_lat,
+      greatest(max_lon - min_lon, 1e-9) AS span_lon,
+      greatest(max_lat - min_lat, 1e-9) AS span_lat,
+      clusters::int AS clusters,
+      start_day::date AS start_day,
+      days::int AS days,
+      base_value::numeric AS base_value,
+      cluster_value_sigma::double precision AS cluster_value_sigma,
+      noise_sigma::numeric AS noise_sigma,
+      cluster_spread::double precision AS cluster_spread
+  ),
+  centers AS (
+    SELECT
+      c AS cluster_id,
+      (cfg.min_lon + random() * cfg.span_lon) AS center_lon,
+      (cfg.min_lat + random() * cfg.span_lat) AS center_lat,
+      (cfg.base_value * exp(facts.randn() * cfg.cluster_value_sigma))::numeric AS center_value
+    FROM cfg, generate_series(1, cfg.clusters) c
+  ),
+  synth AS (
+    SELECT
+      i AS obs_idx,
+      (1 + floor(random() * cfg.clusters))::int AS cluster_id,
+      cfg.min_lon, cfg.min_lat, cfg.max_lon, cfg.max_lat,
+      cfg.span_lon, cfg.span_lat,
+      cfg.start_day,
+      cfg.days,
+      cfg.cluster_spread,
+      cfg.noise_sigma
+    FROM cfg, generate_series(1, n) i
+  ),
+  points AS (
+    SELECT
+      s.obs_idx,
+      s.cluster_id,
+      least(greatest(c.center_lon + facts.randn() * s.span_lon * s.cluster_spread, s.min_lon), s.max_lon) AS lon,
+      least(greatest(c.center_lat + facts.randn() * s.span_lat * s.cluster_spread, s.min_lat), s.max_lat) AS lat,
+      (s.start_day + floor(random() * s.days)::int) AS day,
+      greatest((c.center_value + (facts.randn() * s.noise_sigma)::numeric), 0.01::numeric) AS value
+    FROM synth s
+    JOIN centers c ON c.cluster_id = s.cluster_id
+  ),
+  assigned AS (
+    SELECT
+      p.obs_idx,
+      p.day,
+      p.value,
+      ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326) AS geom,
+      aa.area_key,
+      aa.depth
+    FROM points p
+    LEFT JOIN LATERAL (
+      SELECT
+        geo.area_key(a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS area_key,
+        geo.area_depth(a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS depth
+      FROM public.admin_areas a
+      WHERE a.geom && ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326)
+        AND ST_Covers(a.geom, ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326))
+      ORDER BY geo.area_depth(a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) DESC
+      LIMIT 1
+    ) aa ON true
+  ),
+  new_obs AS (
+    INSERT INTO facts.observation (
+      metric_id, value, unit, currency, observed_at,
+      point_geom, geocode_accuracy,
+      assigned_area_key, assigned_depth,
+      source_confidence, source_url,
+      extra
+    )
+    SELECT
+      metric_id,
+      a.value,
+      unit,
+      currency,
+      (a.day::timestamptz + make_interval(secs => floor(random() * 86400)::int)),
+      a.geom,
+      'synthetic',
+      a.area_key,
+      a.depth,
+      0.5,
+      NULL,
+      jsonb_build_object('synthetic', true, 'clustered', true)
+    FROM assigned a
+    WHERE a.area_key IS NOT NULL
+    RETURNING assigned_area_key, facts.observation.metric_id AS metric_id, (observed_at AT TIME ZONE 'UTC')::date AS day, value
+  ),
+  rollup AS (
+    INSERT INTO facts_agg.area_metric_daily (
+      area_key, area_depth, metric_id, day,
+      count_value, sum_value, min_value, max_value
+    )
+    SELECT
+      anc.ancestor_key,
+      anc.ancestor_depth,
+      o.metric_id,
+      o.day,
+      count(*)::bigint,
+      sum(o.value)::numeric,
+      min(o.value)::numeric,
+      max(o.value)::numeric
+    FROM new_obs o
+    JOIN geo.admin_area_ancestors anc
+      ON anc.area_key = o.assigned_area_key
+    GROUP BY anc.ancestor_key, anc.ancestor_depth, o.metric_id, o.day
+    ON CONFLICT ON CONSTRAINT area_metric_daily_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_daily.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
+          updated_at = now()
+    RETURNING 1
+  ),
+  rollup_monthly AS (
+    INSERT INTO facts_agg.area_metric_monthly (
+      area_key, area_depth, metric_id, month,
+      count_value, sum_value, min_value, max_value
+    )
+    SELECT
+      anc.ancestor_key,
+      anc.ancestor_depth,
+      o.metric_id,
+      date_trunc('month', o.day::timestamp)::date,
+      count(*)::bigint,
+      sum(o.value)::numeric,
+      min(o.value)::numeric,
+      max(o.value)::numeric
+    FROM new_obs o
+    JOIN geo.admin_area_ancestors anc
+      ON anc.area_key = o.assigned_area_key
+    GROUP BY anc.ancestor_key, anc.ancestor_depth, o.metric_id, date_trunc('month', o.day::timestamp)::date
+    ON CONFLICT ON CONSTRAINT area_metric_monthly_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_monthly.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_monthly.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_monthly.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_monthly.max_value, EXCLUDED.max_value),
+          updated_at = now()
+    RETURNING 1
+  ),
+  rollup_yearly AS (
+    INSERT INTO facts_agg.area_metric_yearly (
+      area_key, area_depth, metric_id, year,
+      count_value, sum_value, min_value, max_value
+    )
+    SELECT
+      anc.ancestor_key,
+      anc.ancestor_depth,
+      o.metric_id,
+      date_trunc('year', o.day::timestamp)::date,
+      count(*)::bigint,
+      sum(o.value)::numeric,
+      min(o.value)::numeric,
+      max(o.value)::numeric
+    FROM new_obs o
+    JOIN geo.admin_area_ancestors anc
+      ON anc.area_key = o.assigned_area_key
+    GROUP BY anc.ancestor_key, anc.ancestor_depth, o.metric_id, date_trunc('year', o.day::timestamp)::date
+    ON CONFLICT ON CONSTRAINT area_metric_yearly_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_yearly.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_yearly.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_yearly.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_yearly.max_value, EXCLUDED.max_value),
+          updated_at = now()
+    RETURNING 1
+  )
+  SELECT
+    (SELECT count(*) FROM new_obs) AS inserted_observations,
+    -- Daily rows only, as before (the monthly/yearly CTEs run regardless of being read).
+    (SELECT count(*) FROM rollup) AS inserted_rollup_rows;
+END;
+$$;
@@ -0,0 +1,360 @@
+-- Mergeable quantile sketches next to count/sum/min/max in the daily, monthly and yearly rollups.
+--
+-- A sketch is a log-bucketed histogram (DDSketch style): a value v > 0 falls into bucket ceil(log_1.02(v)), so every
+-- bucket spans 2% and a quantile read from it is within 1% of the exact value. Values <= 0 share one bucket
+-- (reported as 0). Sketches are stored as jsonb objects {"<bucket>": <count>}. Two sketches merge by adding the
+-- counts per bucket, so a range query merges the same daily/monthly/yearly rows it already sums (see RollupBuckets)
+-- and reads p50/p90 from the result. QuantileSketch in the API implements the same buckets for the in-memory
+-- rollups. Existing rows are backfilled from facts.observation.
+
+CREATE OR REPLACE FUNCTION facts_agg.sketch_bucket(v numeric) RETURNS integer
+LANGUAGE sql IMMUTABLE PARALLEL SAFE
+AS $$
+  SELECT CASE WHEN v IS NULL THEN NULL WHEN v <= 0 THEN -100000 ELSE ceil(ln(v::float8) / ln(1.02::float8))::integer END
+$$;
+
+CREATE OR REPLACE FUNCTION facts_agg.sketch_merge(a jsonb, b jsonb) RETURNS jsonb
+LANGUAGE sql IMMUTABLE PARALLEL SAFE
+AS $$
+  SELECT COALESCE(jsonb_object_agg(k, c), '{}'::jsonb)
+  FROM (
+    SELECT k, sum(v::bigint) AS c
+    FROM (
+      SELECT * FROM jsonb_each_text(COALESCE(a, '{}'::jsonb))
+      UNION ALL
+      SELECT * FROM jsonb_each_text(COALESCE(b, '{}'::jsonb))
+    ) e(k, v)
+    GROUP BY k
+  ) m
+$$;
+
+DROP AGGREGATE IF EXISTS facts_agg.sketch_union(jsonb);
+CREATE AGGREGATE facts_agg.sketch_union(jsonb) (
+    SFUNC = facts_agg.sketch_merge,
+    STYPE = jsonb,
+    INITCOND = '{}'
+);
+
+-- The q-quantile (rank q * (count - 1), as in DDSketch) at the bucket midpoint; NULL for an empty sketch.
+CREATE OR REPLACE FUNCTION facts_agg.sketch_quantile(s jsonb, q double precision) RETURNS double precision
+LANGUAGE sql IMMUTABLE PARALLEL SAFE
+AS $$
+  SELECT CASE WHEN bucket = -100000 THEN 0 ELSE 2 * power(1.02::float8, bucket) / 2.02 END
+  FROM (
+    SELECT k::integer AS bucket,
+      sum(v::bigint) OVER (ORDER BY k::integer) AS cumulative,
+      sum(v::bigint) OVER () AS total
+    FROM jsonb_each_text(s) e(k, v)
+  ) t
+  WHERE cumulative > q * (total - 1)
+  ORDER BY bucket
+  LIMIT 1
+$$;
+
+-- The 10%, 20%, ..., 90% quantiles; the boundaries of the quantile bands (see MetricBands in the API).
+CREATE OR REPLACE FUNCTION facts_agg.sketch_deciles(s jsonb) RETURNS double precision[]
+LANGUAGE sql IMMUTABLE PARALLEL SAFE
+AS $$
+  SELECT CASE WHEN s IS NULL OR s = '{}'::jsonb THEN NULL ELSE (
+    SELECT array_agg(facts_agg.sketch_quantile(s, i / 10.0) ORDER BY i) FROM generate_series(1, 9) i
+  ) END
+$$;
+
+ALTER TABLE facts_agg.area_metric_daily ADD COLUMN IF NOT EXISTS sketch jsonb NOT NULL DEFAULT '{}'::jsonb;
+ALTER TABLE facts_agg.area_metric_monthly ADD COLUMN IF NOT EXISTS sketch jsonb NOT NULL DEFAULT '{}'::jsonb;
+ALTER TABLE facts_agg.area_metric_yearly ADD COLUMN IF NOT EXISTS sketch jsonb NOT NULL DEFAULT '{}'::jsonb;
+
+CREATE TEMPORARY TABLE sketch_backfill ON COMMIT DROP AS
+SELECT anc.ancestor_key AS area_key, o.metric_id, (o.observed_at AT TIME ZONE 'UTC')::date AS day,
+    facts_agg.sketch_bucket(o.value) AS bucket, count(*) AS c
+FROM facts.observation o
+JOIN geo.admin_area_ancestors anc ON anc.area_key = o.assigned_area_key
+GROUP BY 1, 2, 3, 4;
+
+UPDATE facts_agg.area_metric_daily d
+SET sketch = s.sketch
+FROM (
+    SELECT area_key, metric_id, day, jsonb_object_agg(bucket, c) AS sketch
+    FROM sketch_backfill
+    GROUP BY area_key, metric_id, day
+) s
+WHERE d.area_key = s.area_key AND d.metric_id = s.metric_id AND d.day = s.day;
+
+UPDATE facts_agg.area_metric_monthly m
+SET sketch = s.sketch
+FROM (
+    SELECT area_key, metric_id, month, jsonb_object_agg(bucket, c) AS sketch
+    FROM (
+        SELECT area_key, metric_id, date_trunc('month', day::timestamp)::date AS month, bucket, sum(c) AS c
+        FROM sketch_backfill
+        GROUP BY 1, 2, 3, 4
+    ) b
+    GROUP BY area_key, metric_id, month
+) s
+WHERE m.area_key = s.area_key AND m.metric_id = s.metric_id AND m.month = s.month;
+
+UPDATE facts_agg.area_metric_yearly y
+SET sketch = s.sketch
+FROM (
+    SELECT area_key, metric_id, year, jsonb_object_agg(bucket, c) AS sketch
+    FROM (
+        SELECT area_key, metric_id, date_trunc('year', day::timestamp)::date AS year, bucket, sum(c) AS c
+        FROM sketch_backfill
+        GROUP BY 1, 2, 3, 4
+    ) b
+    GROUP BY area_key, metric_id, year
+) s
+WHERE y.area_key = s.area_key AND y.metric_id = s.metric_id AND y.year = s.year;
+
+-- Synthetic generator: as in V10, with the rollups computed per value bucket first so each level gets its sketch.
+CREATE OR REPLACE FUNCTION facts.generate_synthetic_clustered_observations(
+    metric_id text,
+    n integer,
+    min_lon double precision,
+    min_lat double precision,
+    max_lon double precision,
+    max_lat double precision,
+    clusters integer DEFAULT 6,
+    start_day date DEFAULT (current_date - 30),
+    end_day date DEFAULT current_date,
+    base_value numeric DEFAULT 230,
+    cluster_value_sigma double precision DEFAULT 0.35,
+    noise_sigma numeric DEFAULT 25,
+    cluster_spread double precision DEFAULT 0.08,
+    seed double precision DEFAULT NULL,
+    unit text DEFAULT NULL,
+    currency text DEFAULT NULL
+) RETURNS TABLE(inserted_observations bigint, inserted_rollup_rows bigint)
+LANGUAGE plpgsql
+VOLATILE
+AS $$
+DECLARE
+  days int;
+BEGIN
+  IF n IS NULL OR n <= 0 THEN
+    RETURN QUERY SELECT 0::bigint, 0::bigint;
+    RETURN;
+  END IF;
+
+  IF clusters IS NULL OR clusters <= 0 THEN
+    clusters := 1;
+  END IF;
+
+  IF start_day IS NULL OR end_day IS NULL OR start_day > end_day THEN
+    RAISE EXCEPTION 'invalid date range: start_day=% end_day=%', start_day, end_day;
+  END IF;
+
+  days := (end_day - start_day) + 1;
+
+  IF seed IS NOT NULL THEN
+    PERFORM setseed(seed);
+  END IF;
+
+  INSERT INTO facts.metric (metric_id, unit, description)
+  VALUES (metric_id, unit, 'synthetic metric')
+  ON CONFLICT ON CONSTRAINT metric_pkey DO NOTHING;
+
+  RETURN QUERY
+  WITH
+  cfg AS (
+    SELECT
+      min_lon::double precision AS min_lon,
+      min_lat::double precision AS min_lat,
+      max_lon::double precision AS max_lon,
+      max_lat::double precision AS max_lat,
+      greatest(max_lon - min_lon, 1e-9) AS span_lon,
+      greatest(max_lat - min_lat, 1e-9) AS span_lat,
+      clusters::int AS clusters,
+      start_day::date AS start_day,
+      days::int AS days,
+      base_value::numeric AS base_value,
+      cluster_value_sigma::double precision AS cluster_value_sigma,
+      noise_sigma::numeric AS noise_sigma,
+      cluster_spread::double precision AS cluster_spread
+  ),
+  centers AS (
+    SELECT
+      c AS cluster_id,
+      (cfg.min_lon + random() * cfg.span_lon) AS center_lon,
+      (cfg.min_lat + random() * cfg.span_lat) AS center_lat,
+      (cfg.base_value * exp(facts.randn() * cfg.cluster_value_sigma))::numeric AS center_value
+    FROM cfg, generate_series(1, cfg.clusters) c
+  ),
+  synth AS (
+    SELECT
+      i AS obs_idx,
+      (1 + floor(random() * cfg.clusters))::int AS cluster_id,
+      cfg.min_lon, cfg.min_lat, cfg.max_lon, cfg.max_lat,
+      cfg.span_lon, cfg.span_lat,
+      cfg.start_day,
+      cfg.days,
+      cfg.cluster_spread,
+      cfg.noise_sigma
+    FROM cfg, generate_series(1, n) i
+  ),
+  points AS (
+    SELECT
+      s.obs_idx,
+      s.cluster_id,
+      least(greatest(c.center_lon + facts.randn() * s.span_lon * s.cluster_spread, s.min_lon), s.max_lon) AS lon,
+      least(greatest(c.center_lat + facts.randn() * s.span_lat * s.cluster_spread, s.min_lat), s.max_lat) AS lat,
+      (s.start_day + floor(random() * s.days)::int) AS day,
+      greatest((c.center_value + (facts.randn() * s.noise_sigma)::numeric), 0.01::numeric) AS value
+    FROM synth s
+    JOIN centers c ON c.cluster_id = s.cluster_id
+  ),
+  assigned AS (
+    SELECT
+      p.obs_idx,
+      p.day,
+      p.value,
+      ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326) AS geom,
+      aa.area_key,
+      aa.depth
+    FROM points p
+    LEFT JOIN LATERAL (
+      SELECT
+        geo.area_key(a.gid_0, a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS area_key,
+        geo.area_depth(a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) AS depth
+      FROM public.admin_areas a
+      WHERE a.geom && ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326)
+        AND ST_Covers(a.geom, ST_SetSRID(ST_MakePoint(p.lon, p.lat), 4326))
+      ORDER BY geo.area_depth(a.gid_1, a.gid_2, a.gid_3, a.gid_4, a.gid_5) DESC
+      LIMIT 1
+    ) aa ON true
+  ),
+  new_obs AS (
+    INSERT INTO facts.observation (
+      metric_id, value, unit, currency, observed_at,
+      point_geom, geocode_accuracy,
+      assigned_area_key, assigned_depth,
+      source_confidence, source_url,
+      extra
+    )
+    SELECT
+      metric_id,
+      a.value,
+      unit,
+      currency,
+      (a.day::timestamptz + make_interval(secs => floor(random() * 86400)::int)),
+      a.geom,
+      'synthetic',
+      a.area_key,
+      a.depth,
+      0.5,
+      NULL,
+      jsonb_build_object('synthetic', true, 'clustered', true)
+    FROM assigned a
+    WHERE a.area_key IS NOT NULL
+    RETURNING assigned_area_key, facts.observation.metric_id AS metric_id, (observed_at AT TIME ZONE 'UTC')::date AS day, value
+  ),
+  bucketed AS (
+    SELECT
+      anc.ancestor_key,
+      anc.ancestor_depth,
+      o.metric_id,
+      o.day,
+      facts_agg.sketch_bucket(o.value) AS bucket,
+      count(*) AS c,
+      sum(o.value) AS s,
+      min(o.value) AS mn,
+      max(o.value) AS mx
+    FROM new_obs o
+    JOIN geo.admin_area_ancestors anc
+      ON anc.area_key = o.assigned_area_key
+    GROUP BY 1, 2, 3, 4, 5
+  ),
+  rollup AS (
+    INSERT INTO facts_agg.area_metric_daily (
+      area_key, area_depth, metric_id, day,
+      count_value, sum_value, min_value, max_value, sketch
+    )
+    SELECT
+      b.ancestor_key,
+      b.ancestor_depth,
+      b.metric_id,
+      b.day,
+      sum(b.c)::bigint,
+      sum(b.s)::numeric,
+      min(b.mn)::numeric,
+      max(b.mx)::numeric,
+      jsonb_object_agg(b.bucket, b.c)
+    FROM bucketed b
+    GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.day
+    ON CONFLICT ON CONSTRAINT area_metric_daily_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_daily.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_daily.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_daily.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_daily.max_value, EXCLUDED.max_value),
+          sketch = facts_agg.sketch_merge(facts_agg.area_metric_daily.sketch, EXCLUDED.sketch),
+          updated_at = now()
+    RETURNING 1
+  ),
+  rollup_monthly AS (
+    INSERT INTO facts_agg.area_metric_monthly (
+      area_key, area_depth, metric_id, month,
+      count_value, sum_value, min_value, max_value, sketch
+    )
+    SELECT
+      b.ancestor_key,
+      b.ancestor_depth,
+      b.metric_id,
+      b.month,
+      sum(b.c)::bigint,
+      sum(b.s)::numeric,
+      min(b.mn)::numeric,
+      max(b.mx)::numeric,
+      jsonb_object_agg(b.bucket, b.c)
+    FROM (
+      SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('month', day::timestamp)::date AS month, bucket,
+        sum(c) AS c, sum(s) AS s, min(mn) AS mn, max(mx) AS mx
+      FROM bucketed
+      GROUP BY 1, 2, 3, 4, 5
+    ) b
+    GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.month
+    ON CONFLICT ON CONSTRAINT area_metric_monthly_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_monthly.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_monthly.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_monthly.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_monthly.max_value, EXCLUDED.max_value),
+          sketch = facts_agg.sketch_merge(facts_agg.area_metric_monthly.sketch, EXCLUDED.sketch),
+          updated_at = now()
+    RETURNING 1
+  ),
+  rollup_yearly AS (
+    INSERT INTO facts_agg.area_metric_yearly (
+      area_key, area_depth, metric_id, year,
+      count_value, sum_value, min_value, max_value, sketch
+    )
+    SELECT
+      b.ancestor_key,
+      b.ancestor_depth,
+      b.metric_id,
+      b.year,
+      sum(b.c)::bigint,
+      sum(b.s)::numeric,
+      min(b.mn)::numeric,
+      max(b.mx)::numeric,
+      jsonb_object_agg(b.bucket, b.c)
+    FROM (
+      SELECT ancestor_key, ancestor_depth, metric_id, date_trunc('year', day::timestamp)::date AS year, bucket,
+        sum(c) AS c, sum(s) AS s, min(mn) AS mn, max(mx) AS mx
+      FROM bucketed
+      GROUP BY 1, 2, 3, 4, 5
+    ) b
+    GROUP BY b.ancestor_key, b.ancestor_depth, b.metric_id, b.year
+    ON CONFLICT ON CONSTRAINT area_metric_yearly_pkey DO UPDATE
+      SET count_value = facts_agg.area_metric_yearly.count_value + EXCLUDED.count_value,
+          sum_value = facts_agg.area_metric_yearly.sum_value + EXCLUDED.sum_value,
+          min_value = LEAST(facts_agg.area_metric_yearly.min_value, EXCLUDED.min_value),
+          max_value = GREATEST(facts_agg.area_metric_yearly.max_value, EXCLUDED.max_value),
+          sketch = facts_agg.sketch_merge(facts_agg.area_metric_yearly.sketch, EXCLUDED.sketch),
+          updated_at = now()
+    RETURNING 1
+  )
+  SELECT
+    (SELECT count(*) FROM new_obs) AS inserted_observations,
+    -- Daily rows only, as before (the monthly/yearly CTEs run regardless of being read).
+    (SELECT count(*) FROM rollup) AS inserted_rollup_rows;
+END;
+$$;
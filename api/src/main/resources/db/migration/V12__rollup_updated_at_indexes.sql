@@ -0,0 +1,5 @@
+-- RollupEngine and ReferenceStatistics re-sync from rows with a recent updated_at every few seconds; without these
+-- each sync scans the whole rollup table.
+CREATE INDEX IF NOT EXISTS area_metric_daily_updated_at_idx ON facts_agg.area_metric_daily (updated_at);
+CREATE INDEX IF NOT EXISTS area_metric_monthly_updated_at_idx ON facts_agg.area_metric_monthly (updated_at);
+CREATE INDEX IF NOT EXISTS area_metric_yearly_updated_at_idx ON facts_agg.area_metric_yearly (updated_at);
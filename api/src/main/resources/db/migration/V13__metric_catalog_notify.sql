@@ -0,0 +1,19 @@
+-- Metric catalog change notifications.
+--
+-- Every API replica keeps facts.metric in memory and LISTENs on 'metric_catalog'; any write to the table (the API's
+-- upsert, synthetic generators, manual edits) notifies them after commit so they reload it. The payload is empty:
+-- the table is tiny and a reload is simpler than applying row changes. Notifications with the same payload are
+-- collapsed per transaction, so a bulk change sends one.
+
+CREATE OR REPLACE FUNCTION facts.notify_metric_catalog() RETURNS trigger
+LANGUAGE plpgsql AS $$
+BEGIN
+  PERFORM pg_notify('metric_catalog', '');
+  RETURN NULL;
+END;
+$$;
+
+DROP TRIGGER IF EXISTS metric_catalog_notify ON facts.metric;
+CREATE TRIGGER metric_catalog_notify
+  AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON facts.metric
+  FOR EACH STATEMENT EXECUTE FUNCTION facts.notify_metric_catalog();
@@ -0,0 +1,6 @@
+-- Raw-record workers claim the oldest 'new' records with FOR UPDATE SKIP LOCKED, and report the backlog by counting
+-- them. This partial index keeps both cheap once millions of processed records sit in the table; ingested_at is
+-- included for the lag gauge.
+CREATE INDEX IF NOT EXISTS raw_record_new_idx
+    ON facts_raw.raw_record (id) INCLUDE (ingested_at)
+    WHERE status = 'new';
@@ -0,0 +1,52 @@
+-- Changed-keys log for the API's in-memory rollup copies (RollupEngine, ReferenceStatistics).
+--
+-- V12 indexed updated_at on the rollup tables so the syncs could find recent rows. Every upsert sets updated_at, so
+-- those indexes made every rollup update a non-HOT update (a new entry in every index of the table), and re-reading
+-- from "now() minus an overlap" missed rows of transactions that ran longer than the overlap, because now() is the
+-- transaction start.
+--
+-- Instead, a statement-level trigger on the daily table appends the touched (area, metric, day) keys to
+-- facts_agg.rollup_change together with the writing transaction's id. A sync reads the keys with
+-- xid >= the xmin of a snapshot taken before its previous read: every transaction below that xmin had already ended, so
+-- nothing is missed however long it ran. Every writer of the daily table maintains the monthly and yearly tables in
+-- the same transaction (see V10), so daily keys also name the month and year buckets that changed.
+--
+-- The log is append-only (HOT does not matter there) and pruned by the API (RollupChangeLog) below a position taken a
+-- retention well above the sync interval ago.
+
+DROP INDEX IF EXISTS facts_agg.area_metric_daily_updated_at_idx;
+DROP INDEX IF EXISTS facts_agg.area_metric_monthly_updated_at_idx;
+DROP INDEX IF EXISTS facts_agg.area_metric_yearly_updated_at_idx;
+
+CREATE TABLE IF NOT EXISTS facts_agg.rollup_change (
+    xid xid8 NOT NULL DEFAULT pg_current_xact_id(),
+    area_key text NOT NULL,
+    metric_id text NOT NULL,
+    day date NOT NULL
+);
+
+-- Serves both the syncs (xid >= position) and pruning (xid < an older position).
+CREATE INDEX IF NOT EXISTS rollup_change_xid_idx ON facts_agg.rollup_change (xid);
+
+CREATE OR REPLACE FUNCTION facts_agg.log_rollup_change() RETURNS trigger
+LANGUAGE plpgsql AS $$
+BEGIN
+  -- One log row per key and statement, however many times the statement touched it.
+  INSERT INTO facts_agg.rollup_change (area_key, metric_id, day)
+  SELECT DISTINCT area_key, metric_id, day FROM changed;
+  RETURN NULL;
+END;
+$$;
+
+-- Transition tables allow one event per trigger; an upsert fires both.
+DROP TRIGGER IF EXISTS area_metric_daily_insert_log ON facts_agg.area_metric_daily;
+CREATE TRIGGER area_metric_daily_insert_log
+  AFTER INSERT ON facts_agg.area_metric_daily
+  REFERENCING NEW TABLE AS changed
+  FOR EACH STATEMENT EXECUTE FUNCTION facts_agg.log_rollup_change();
+
+DROP TRIGGER IF EXISTS area_metric_daily_update_log ON facts_agg.area_metric_daily;
+CREATE TRIGGER area_metric_daily_update_log
+  AFTER UPDATE ON facts_agg.area_metric_daily
+  REFERENCING NEW TABLE AS changed
+  FOR EACH STATEMENT EXECUTE FUNCTION facts_agg.log_rollup_change();
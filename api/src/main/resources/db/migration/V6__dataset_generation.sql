@@ -0,0 +1,15 @@
+-- Dataset generations: monotonically increasing counters bumped whenever a dataset is rewritten.
+--
+-- The API keys its in-memory caches (tiles, ...) by these values, so a reimport of admin_areas
+-- invalidates cached data on every replica without any explicit cache flush.
+-- The import job creates/bumps the same table (it may run before the API has applied migrations).
+
+CREATE TABLE IF NOT EXISTS geo.dataset_generation (
+    dataset text PRIMARY KEY,
+    generation bigint NOT NULL DEFAULT 1,
+    updated_at timestamptz NOT NULL DEFAULT now()
+);
+
+INSERT INTO geo.dataset_generation (dataset, generation)
+VALUES ('boundaries', 1)
+ON CONFLICT (dataset) DO NOTHING;
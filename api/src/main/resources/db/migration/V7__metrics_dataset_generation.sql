@@ -0,0 +1,22 @@
+-- Metric rollups get their own dataset generation.
+--
+-- The API bumps it (at most once per poll interval) after writing to facts_agg.area_metric_daily, and includes
+-- it in the /area-metrics ETag so clients revalidate correctly after new data arrives.
+-- Out-of-band writers (e.g. the synthetic generator or demo seed SQL) can call geo.bump_dataset_generation('metrics').
+
+INSERT INTO geo.dataset_generation (dataset, generation)
+VALUES ('metrics', 1)
+ON CONFLICT (dataset) DO NOTHING;
+
+CREATE OR REPLACE FUNCTION geo.bump_dataset_generation(p_dataset text)
+RETURNS bigint
+LANGUAGE sql
+VOLATILE
+AS $$
+  INSERT INTO geo.dataset_generation (dataset, generation)
+  VALUES (p_dataset, 1)
+  ON CONFLICT (dataset) DO UPDATE
+    SET generation = geo.dataset_generation.generation + 1,
+        updated_at = now()
+  RETURNING generation;
+$$;
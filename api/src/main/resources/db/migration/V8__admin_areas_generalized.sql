@@ -0,0 +1,36 @@
+-- Precomputed generalization pyramid for admin boundaries.
+--
+-- One row per admin unit and pyramid level: the unit's geometry simplified (topology-aware) for the zoom range in
+-- which its depth is displayed, stored both in Web Mercator (tiles) and WGS84 (GeoJSON). tolerance_m = 0 is the
+-- unsimplified level used for depth 5 beyond the last generalized zoom.
+--
+-- The import job fills this table after loading admin_areas (see postgis/import/upload_geopackage.sh). It is created
+-- here as well so the API can query it before the first import; while it is empty the API simplifies per request.
+
+CREATE TABLE IF NOT EXISTS geo.admin_areas_generalized (
+    id integer NOT NULL,
+    tolerance_m integer NOT NULL,
+    area_key text NOT NULL,
+    depth smallint NOT NULL,
+    gid_0 text,
+    gid_1 text,
+    gid_2 text,
+    gid_3 text,
+    gid_4 text,
+    gid_5 text,
+    country text,
+    name_1 text,
+    name_2 text,
+    name_3 text,
+    name_4 text,
+    name_5 text,
+    geom_3857 geometry(MultiPolygon, 3857) NOT NULL,
+    geom_4326 geometry(MultiPolygon, 4326) NOT NULL,
+    PRIMARY KEY (id, tolerance_m)
+);
+
+CREATE INDEX IF NOT EXISTS admin_areas_generalized_geom_3857_idx
+    ON geo.admin_areas_generalized USING gist (geom_3857);
+
+CREATE INDEX IF NOT EXISTS admin_areas_generalized_geom_4326_idx
+    ON geo.admin_areas_generalized USING gist (geom_4326);
@@ -0,0 +1,31 @@
+-- Shared-border topology for the generalization pyramid (TopoJSON output of /overlays and /area-metrics).
+--
+-- Per pyramid level, the rings of geo.admin_areas_generalized are split into arcs at the points where three or more
+-- units meet, so a border between two units is stored once. admin_area_arc_refs lists, per unit ring, the arcs that
+-- trace it in order; reversed arcs are walked end to start. Countries (depth 0) form one partition, deeper levels
+-- are split per country (part = gid_0), matching how the pyramid is simplified.
+--
+-- The import job fills both tables after building the pyramid (see postgis/import/upload_geopackage.sh). They are
+-- created here as well so the API can query them before the first import; while they are empty the API answers
+-- TopoJSON requests with GeoJSON.
+
+CREATE TABLE IF NOT EXISTS geo.admin_area_arcs (
+    id bigint PRIMARY KEY,
+    tolerance_m integer NOT NULL,
+    part text NOT NULL,
+    geom_4326 geometry(LineString, 4326) NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS admin_area_arcs_geom_4326_idx
+    ON geo.admin_area_arcs USING gist (geom_4326);
+
+CREATE TABLE IF NOT EXISTS geo.admin_area_arc_refs (
+    tolerance_m integer NOT NULL,
+    area_id integer NOT NULL,
+    polygon_index integer NOT NULL,
+    ring_index integer NOT NULL,
+    seq integer NOT NULL,
+    arc_id bigint NOT NULL,
+    reversed boolean NOT NULL,
+    PRIMARY KEY (tolerance_m, area_id, polygon_index, ring_index, seq)
+);
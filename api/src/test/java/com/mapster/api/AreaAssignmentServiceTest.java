@@ -0,0 +1,41 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AreaAssignmentServiceTest {
+
+    private static final AreaAssignmentService.Assignment BRANDENBURG =
+        new AreaAssignmentService.Assignment("DEU|DEU.4_1||||", (short) 1);
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final AreaIndex areaIndex = mock(AreaIndex.class);
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void assignsPointsInAGapBetweenChildrenToTheParent() {
+        // The index holds only leaves; the point lies in Brandenburg but in none of its districts.
+        when(areaIndex.ready()).thenReturn(true);
+        when(areaIndex.classify(any())).thenReturn(AssignmentCellCache.Cell.OUTSIDE);
+        when(areaIndex.assign(13.4, 52.52)).thenReturn(Optional.empty());
+        when(jdbcTemplate.query(contains("ST_Covers(geom"), any(ResultSetExtractor.class), eq(13.4), eq(52.52)))
+            .thenReturn(Optional.of(BRANDENBURG));
+        AreaAssignmentService service = new AreaAssignmentService(jdbcTemplate, areaIndex,
+            new AssignmentCellCache(new SimpleMeterRegistry(), true, 100, 1 << 20));
+
+        assertThat(service.assignByPoint(13.4, 52.52)).contains(BRANDENBURG);
+        // Cached as outside all leaves, still answered from the query.
+        assertThat(service.assignByPoint(13.4, 52.52)).contains(BRANDENBURG);
+    }
+}
@@ -0,0 +1,127 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.WKBWriter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AreaIndexTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final DatasetGenerationService datasetGenerations = mock(DatasetGenerationService.class);
+
+    @Test
+    void assignsTheDeepestLeafCoveringThePoint() throws Exception {
+        // Overlapping leaves of different depths resolve to the deeper one, as ORDER BY depth DESC does in SQL.
+        stubPieces(
+            piece("DEU|DEU.1_1||||", 1, 0, 0, 10, 10),
+            piece("DEU|DEU.2_1|DEU.2.1_1|||", 2, 2, 2, 4, 4),
+            piece("FRA|FRA.1_1||||", 1, 10, 0, 20, 10)
+        );
+        AreaIndex index = index(true);
+        assertThat(index.ready()).isFalse();
+        assertThat(index.assign(3, 3)).isEmpty();
+
+        index.refresh();
+
+        assertThat(index.ready()).isTrue();
+        assertThat(index.assign(3, 3)).contains(new AreaAssignmentService.Assignment("DEU|DEU.2_1|DEU.2.1_1|||", (short) 2));
+        assertThat(index.assign(8, 1)).contains(new AreaAssignmentService.Assignment("DEU|DEU.1_1||||", (short) 1));
+        assertThat(index.assign(15, 5).map(AreaAssignmentService.Assignment::areaKey)).contains("FRA|FRA.1_1||||");
+        // On a shared border either side covers the point.
+        assertThat(index.assign(10, 5)).isPresent();
+        // Outside every leaf: the caller falls back to SQL.
+        assertThat(index.assign(30, 30)).isEmpty();
+    }
+
+    @Test
+    void classifiesGridCellsAsInsideOutsideOrMixed() throws Exception {
+        stubPieces(
+            piece("DEU|DEU.1_1||||", 1, 0, 0, 10, 10),
+            piece("FRA|FRA.1_1||||", 1, 10, 0, 20, 10)
+        );
+        AreaIndex index = index(true);
+        assertThat(index.classify(new AssignmentCellCache.Bounds(1, 1, 2, 2))).isNull();
+        index.refresh();
+
+        assertThat(index.classify(new AssignmentCellCache.Bounds(1, 1, 2, 2)))
+            .isEqualTo(AssignmentCellCache.Cell.inside(new AreaAssignmentService.Assignment("DEU|DEU.1_1||||", (short) 1)));
+        assertThat(index.classify(new AssignmentCellCache.Bounds(9.5, 1, 10.5, 2))).isEqualTo(AssignmentCellCache.Cell.MIXED);
+        assertThat(index.classify(new AssignmentCellCache.Bounds(-2, 1, -1, 2))).isEqualTo(AssignmentCellCache.Cell.OUTSIDE);
+        // Partly over the sea: a point in the empty part must not get DEU.
+        assertThat(index.classify(new AssignmentCellCache.Bounds(-0.5, 1, 0.5, 2))).isEqualTo(AssignmentCellCache.Cell.MIXED);
+    }
+
+    @Test
+    void reloadsOnlyWhenTheBoundariesGenerationChanges() throws Exception {
+        stubPieces(piece("DEU|||||", 0, 0, 0, 10, 10));
+        AreaIndex index = index(true);
+        when(datasetGenerations.boundaries()).thenReturn(1L);
+        index.refresh();
+        index.refresh();
+        verify(jdbcTemplate, times(1)).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        when(datasetGenerations.boundaries()).thenReturn(2L);
+        index.refresh();
+        verify(jdbcTemplate, times(2)).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+        assertThat(index.generation()).isEqualTo(2);
+        assertThat(index.assign(5, 5).map(AreaAssignmentService.Assignment::areaKey)).contains("DEU|||||");
+    }
+
+    @Test
+    void staysEmptyWhenDisabled() {
+        AreaIndex index = index(false);
+        index.refresh();
+        assertThat(index.ready()).isFalse();
+        assertThat(index.assign(5, 5)).isEqualTo(Optional.empty());
+    }
+
+    private record Piece(String areaKey, int depth, byte[] wkb) {}
+
+    private static Piece piece(String areaKey, int depth, double minX, double minY, double maxX, double maxY) {
+        GeometryFactory factory = new GeometryFactory();
+        var polygon = factory.createPolygon(new Coordinate[] {
+            new Coordinate(minX, minY), new Coordinate(maxX, minY), new Coordinate(maxX, maxY),
+            new Coordinate(minX, maxY), new Coordinate(minX, minY)
+        });
+        return new Piece(areaKey, depth, new WKBWriter().write(polygon));
+    }
+
+    private void stubPieces(Piece... pieces) {
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (Piece piece : List.of(pieces)) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getString(1)).thenReturn(piece.areaKey());
+                when(rs.getShort(2)).thenReturn((short) piece.depth());
+                when(rs.getBytes(3)).thenReturn(piece.wkb());
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private AreaIndex index(boolean enabled) {
+        return new AreaIndex(jdbcTemplate, mock(ObjectProvider.class), datasetGenerations, new SimpleMeterRegistry(),
+            enabled, 256, 256);
+    }
+}
@@ -0,0 +1,212 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.sql.ResultSet;
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(AreaMetricValuesController.class)
+@Import({AreaMetricValues.class, AreaMetricTileCache.class, SingleFlights.class, Bulkheads.class, TestMeterRegistryConfiguration.class})
+class AreaMetricValuesControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockBean
+    private JdbcTemplate jdbcTemplate;
+
+    @MockBean
+    private DatasetGenerationService datasetGenerations;
+
+    @MockBean
+    private GeometryPyramid geometryPyramid;
+
+    @MockBean
+    private ReferenceStatistics referenceStatistics;
+
+    @Test
+    void returnsColumnarValuesForBboxWithoutGeometry() throws Exception {
+        stubRows(
+            new Object[] {"DEU.1_1", 4L, 1500.0, 900.0, 2100.0, 7, 1300.0, 1402.0, 2080.0, 9},
+            new Object[] {"DEU.2_1", 1L, 800.0, 800.0, 800.0, 2, 1300.0, 796.0, 796.0, 3}
+        );
+
+        String body = mockMvc.perform(get("/area-metrics/values")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("depth", "1")
+                .param("minLon", "5.8")
+                .param("minLat", "47.2")
+                .param("maxLon", "15.1")
+                .param("maxLat", "55.1")
+                .param("from", "2026-01-01")
+                .param("to", "2026-01-31"))
+            .andExpect(status().isOk())
+            .andReturn().getResponse().getContentAsString();
+
+        JsonNode values = objectMapper.readTree(body);
+        assertThat(values.get("area_key").toString()).isEqualTo("[\"DEU.1_1\",\"DEU.2_1\"]");
+        assertThat(values.get("avg").toString()).isEqualTo("[1500.0,800.0]");
+        assertThat(values.get("count").toString()).isEqualTo("[4,1]");
+        assertThat(values.get("band").toString()).isEqualTo("[7,2]");
+        assertThat(values.get("p50").toString()).isEqualTo("[1402.0,796.0]");
+        assertThat(values.get("p90").toString()).isEqualTo("[2080.0,796.0]");
+        assertThat(values.get("quantile_band").toString()).isEqualTo("[9,3]");
+        assertThat(values.get("reference_avg").asDouble()).isEqualTo(1300.0);
+        assertThat(values.get("depth").asInt()).isEqualTo(1);
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Object[]> params = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbcTemplate).query(sql.capture(), any(RowCallbackHandler.class), params.capture());
+        assertThat(sql.getValue()).contains("ST_MakeEnvelope(?, ?, ?, ?, 4326)", "FROM geo.admin_areas a, env", "a.depth = ?");
+        assertThat(sql.getValue()).doesNotContain("ST_AsGeoJSON", "ST_AsMVT");
+        // Quantiles come from the merged sketches: per area, and over the whole depth for the band boundaries.
+        assertThat(sql.getValue()).contains("facts_agg.sketch_union(d.sketch)", "facts_agg.sketch_deciles(");
+        assertThat(params.getValue()).containsExactly(5.8, 47.2, 15.1, 55.1, 1,
+            "price_eur_per_m2_land", LocalDate.of(2026, 1, 1), LocalDate.of(2026, 2, 1),
+            "price_eur_per_m2_land", LocalDate.of(2026, 1, 1), LocalDate.of(2026, 2, 1), 1);
+    }
+
+    @Test
+    void selectsAreasByTilesFromThePyramidWithTheTilesDepth() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        stubRows();
+
+        mockMvc.perform(get("/area-metrics/values")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("tiles", "8/136/84,8/137/84"))
+            .andExpect(status().isOk());
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Object[]> params = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbcTemplate).query(sql.capture(), any(RowCallbackHandler.class), params.capture());
+        // zoom 8 => depth 2 => the 800 m pyramid level, filtered in 3857.
+        assertThat(sql.getValue()).contains("ST_TileEnvelope(?, u.x, u.y)", "a.geom_3857 && env.e", "a.tolerance_m = 800");
+        assertThat(params.getValue()[0]).isEqualTo(8);
+        assertThat(params.getValue()[1]).isEqualTo(new Integer[] {136, 137});
+        assertThat(params.getValue()[3]).isEqualTo(2);
+    }
+
+    @Test
+    void rejectsRequestsWithoutRegionOrWithMixedTileZooms() throws Exception {
+        mockMvc.perform(get("/area-metrics/values")
+                .param("metricId", "m")
+                .param("depth", "1"))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/area-metrics/values")
+                .param("metricId", "m")
+                .param("tiles", "8/136/84,9/272/168"))
+            .andExpect(status().isBadRequest());
+
+        verify(jdbcTemplate, never()).query(anyString(), any(RowCallbackHandler.class), any(Object[].class));
+    }
+
+    @Test
+    void servesOneTileAtItsZoomsDepthAndCachesTheBody() throws Exception {
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(datasetGenerations.metrics()).thenReturn(9L);
+        stubRows(new Object[] {"DEU.1_1", 4L, 1500.0, 900.0, 2100.0, 7, 1300.0, 1402.0, 2080.0, 9});
+
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(get("/area-metrics/8/136/84")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("from", "2026-01-01")
+                    .param("to", "2026-01-31")
+                    .param("v", "3.9"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag",
+                    "W/\"values&tile=8/136/84&depth=2&metric=price_eur_per_m2_land&from=2026-01-01&to=2026-01-31&gen=3.9\""))
+                .andExpect(header().string("Cache-Control", containsString("immutable")));
+        }
+
+        // The second request is answered from the tile cache.
+        ArgumentCaptor<Object[]> params = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbcTemplate, times(1)).query(anyString(), any(RowCallbackHandler.class), params.capture());
+        assertThat(params.getValue()[0]).isEqualTo(8);
+        assertThat(params.getValue()[1]).isEqualTo(new Integer[] {136});
+        assertThat(params.getValue()[3]).isEqualTo(2);
+
+        mockMvc.perform(get("/area-metrics/8/256/84").param("metricId", "price_eur_per_m2_land"))
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void bandsAgainstCountryReferencesWhenAsked() throws Exception {
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(datasetGenerations.metrics()).thenReturn(9L);
+        stubRows(new Object[] {"DEU|DEU.1_1||||", 4L, 1500.0, 900.0, 2100.0, 6, null, 1402.0, 2080.0, 9});
+
+        String body = mockMvc.perform(get("/area-metrics/8/136/84")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("from", "2026-01-01")
+                .param("to", "2026-01-31")
+                .param("reference", "country"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag",
+                "W/\"values&tile=8/136/84&depth=2&metric=price_eur_per_m2_land&from=2026-01-01&to=2026-01-31&ref=country&gen=3.9\""))
+            .andReturn().getResponse().getContentAsString();
+
+        JsonNode values = objectMapper.readTree(body);
+        assertThat(values.get("reference").asText()).isEqualTo("country");
+        assertThat(values.get("reference_avg").isNull()).isTrue();
+
+        // Not loaded yet (the mock is not ready): both references come from the rollups in SQL.
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(jdbcTemplate).query(sql.capture(), any(RowCallbackHandler.class), any(Object[].class));
+        assertThat(sql.getValue()).contains("country_reference AS (SELECT split_part(r.area_key, '|', 1) AS country",
+            "LEFT JOIN country_reference cr ON cr.country = split_part(agg.area_key, '|', 1)");
+
+        mockMvc.perform(get("/area-metrics/8/136/84")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("reference", "viewport"))
+            .andExpect(status().isBadRequest());
+    }
+
+    private void stubRows(Object[]... rows) {
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (Object[] row : rows) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getString("area_key")).thenReturn((String) row[0]);
+                when(rs.getLong("count")).thenReturn((Long) row[1]);
+                when(rs.getObject("avg", Double.class)).thenReturn((Double) row[2]);
+                when(rs.getObject("min", Double.class)).thenReturn((Double) row[3]);
+                when(rs.getObject("max", Double.class)).thenReturn((Double) row[4]);
+                when(rs.getObject("band", Integer.class)).thenReturn((Integer) row[5]);
+                when(rs.getObject("reference_avg", Double.class)).thenReturn((Double) row[6]);
+                when(rs.getObject("p50", Double.class)).thenReturn((Double) row[7]);
+                when(rs.getObject("p90", Double.class)).thenReturn((Double) row[8]);
+                when(rs.getObject("quantile_band", Integer.class)).thenReturn((Integer) row[9]);
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), any(Object[].class));
+    }
+}
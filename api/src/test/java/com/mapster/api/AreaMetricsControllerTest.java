@@ -1,37 +1,84 @@
 package com.mapster.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.*;
+import static com.mapster.api.FeatureRowStubs.perform;
+import static com.mapster.api.FeatureRowStubs.row;
+import static com.mapster.api.FeatureRowStubs.streamedStatements;
+import static com.mapster.api.FeatureRowStubs.stubFeatureRows;
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(AreaMetricsController.class)
+@Import({AreaMetricsResultCache.class, SingleFlights.class, Bulkheads.class, FeatureStreamer.class, TestMeterRegistryConfiguration.class})
 class AreaMetricsControllerTest {
 
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @MockBean
     private JdbcTemplate jdbcTemplate;
 
+    @MockBean
+    private DatasetGenerationService datasetGenerations;
+
+    @MockBean
+    private GeometryPyramid geometryPyramid;
+
+    @MockBean
+    private RollupEngine rollupEngine;
+
+    @MockBean
+    private ReferenceStatistics referenceStatistics;
+
+    @Autowired
+    private AreaMetricsResultCache resultCache;
+
+    @BeforeEach
+    void clearResultCache() {
+        resultCache.invalidateAll();
+    }
+
     @Test
     void buildsSqlThatJoinsAggregatesAndUsesGeoAdminAreasView() throws Exception {
-        when(jdbcTemplate.queryForObject(anyString(), eq(String.class), any(), any(), any(), any(), any(), any(), any(), any(), any()))
-            .thenReturn("{\"type\":\"FeatureCollection\",\"features\":[]}");
+        stubFeatureRows(jdbcTemplate);
 
-        mockMvc.perform(
+        perform(mockMvc,
                 get("/area-metrics")
                     .param("minLon", "13.38")
                     .param("minLat", "52.51")
@@ -45,15 +92,269 @@ class AreaMetricsControllerTest {
             .andExpect(status().isOk())
             .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
 
-        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
-        verify(jdbcTemplate).queryForObject(sqlCaptor.capture(), eq(String.class), any(), any(), any(), any(), any(), any(), any(), any(), any());
-
-        String sql = sqlCaptor.getValue();
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
         assertThat(sql).contains("facts_agg.area_metric_daily");
         assertThat(sql).contains("FROM areas");
-        assertThat(sql).contains("LEFT JOIN facts_agg.area_metric_daily");
+        // 2026-01-01..22 is not a whole month: answered from daily buckets.
+        assertThat(sql).contains("LEFT JOIN (SELECT area_key, area_depth, count_value, sum_value, min_value, max_value, sketch FROM facts_agg.area_metric_daily WHERE metric_id = ? AND day >= ? AND day < ?)");
         assertThat(sql).contains("FROM geo.admin_areas");
         assertThat(sql).contains("LEFT JOIN agg");
+        assertThat(sql).contains("facts_agg.sketch_quantile(s.sketch, 0.5) AS p50_value");
+        assertThat(sql).contains("AS quantile_band");
         assertThat(sql).contains("AND a.depth = ?");
+        assertThat(sql).contains("?::text AS metric_id");
+        assertThat(sql).doesNotContain("jsonb_build_object");
+    }
+
+    @Test
+    void writesEachRowAsFeatureWithTypedProperties() throws Exception {
+        stubFeatureRows(jdbcTemplate, row(
+            "geometry", "{\"type\":\"Polygon\",\"coordinates\":[]}",
+            "area_key", "DEU.11_1",
+            "metric_id", "price_eur_per_m2_land",
+            "count", 3L,
+            "avg", new BigDecimal("1234.50"),
+            "ratio_to_avg", null,
+            "band", "high"
+        ));
+
+        String body = perform(mockMvc,
+                get("/area-metrics")
+                    .param("minLon", "13.38")
+                    .param("minLat", "52.51")
+                    .param("maxLon", "13.40")
+                    .param("maxLat", "52.52")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("depth", "2")
+            )
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsString();
+
+        JsonNode properties = objectMapper.readTree(body).path("features").get(0).path("properties");
+        assertThat(properties.path("area_key").asText()).isEqualTo("DEU.11_1");
+        assertThat(properties.path("count").isIntegralNumber()).isTrue();
+        assertThat(properties.path("avg").decimalValue()).isEqualByComparingTo("1234.50");
+        assertThat(properties.path("ratio_to_avg").isNull()).isTrue();
+        assertThat(properties.path("band").asText()).isEqualTo("high");
+
+        // The metric id is bound once more for the metric_id column, after the range.
+        Object[] params = streamedStatements(jdbcTemplate, 1).get(0).params();
+        assertThat(params[params.length - 1]).isEqualTo("price_eur_per_m2_land");
+    }
+
+    @Test
+    void readsAreasFromGeneralizationPyramidWhenAvailable() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                get("/area-metrics")
+                    .param("minLon", "13.38")
+                    .param("minLat", "52.51")
+                    .param("maxLon", "13.40")
+                    .param("maxLat", "52.52")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("depth", "2")
+            )
+            .andExpect(status().isOk());
+
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
+        assertThat(sql).contains("FROM geo.admin_areas_generalized a, env");
+        assertThat(sql).contains("AND a.tolerance_m = 800");
+        assertThat(sql).contains("ST_AsGeoJSON(e.geom_4326, 6)");
+        assertThat(sql).doesNotContain("ST_SimplifyPreserveTopology");
+    }
+
+    @Test
+    void takesAggregatesFromRollupEngineWhenItCoversTheRange() throws Exception {
+        LocalDate from = LocalDate.parse("2025-01-01");
+        LocalDate to = LocalDate.parse("2026-01-01");
+        when(rollupEngine.covers(from, to)).thenReturn(true);
+        when(jdbcTemplate.queryForList(contains("SELECT area_key, id FROM areas"), any(Object[].class)))
+            .thenReturn(List.of(Map.of("area_key", "DEU.11_1", "id", 11L), Map.of("area_key", "DEU.12_1", "id", 12L)));
+        when(rollupEngine.aggregate("price_eur_per_m2_land", List.of("DEU.11_1", "DEU.12_1"), from, to))
+            .thenReturn(new RollupEngine.Aggregates(
+                List.of("DEU.11_1", "DEU.12_1"),
+                new long[] { 4, 0 },
+                new double[] { 400.0, 0.0 },
+                new double[] { 50.0, Double.NaN },
+                new double[] { 150.0, Double.NaN },
+                new double[] { 98.0, Double.NaN },
+                new double[] { 147.0, Double.NaN },
+                new double[] { 50.0, 50.0, 50.0, 98.0, 98.0, 98.0, 147.0, 147.0, 147.0 }
+            ));
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                get("/area-metrics")
+                    .param("minLon", "13.38")
+                    .param("minLat", "52.51")
+                    .param("maxLon", "13.40")
+                    .param("maxLat", "52.52")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("depth", "2")
+                    .param("from", "2025-01-01")
+                    .param("to", "2026-01-01")
+            )
+            .andExpect(status().isOk());
+
+        FeatureStreamer.CursorStatement statement = streamedStatements(jdbcTemplate, 1).get(0);
+        assertThat(statement.getSql()).contains("unnest(?::text[], ?::bigint[]");
+        assertThat(statement.getSql()).contains("global AS (SELECT ?::float8 AS global_avg, ?::float8[] AS global_deciles)");
+        assertThat(statement.getSql()).doesNotContain("facts_agg.");
+        // The listed areas are fetched by id rather than selected spatially a second time.
+        assertThat(statement.getSql()).contains("WHERE a.id = ANY(?::bigint[])");
+        assertThat(statement.getSql()).doesNotContain("ST_Intersects");
+
+        // Areas without observations are passed as NULLs; the viewport average is bound as a plain value.
+        List<Object> params = List.of(statement.params());
+        assertThat(params).contains(100.0);
+        List<Object> longArrays = params.stream().filter(Long[].class::isInstance).toList();
+        assertThat((Long[]) longArrays.get(0)).containsExactly(11L, 12L);
+        assertThat((Long[]) longArrays.get(1)).containsExactly(4L, null);
+        assertThat(params).anySatisfy(p -> assertThat(p).isEqualTo(new Double[] { 98.0, null }));
+    }
+
+    @Test
+    void bandsAgainstPrecomputedCountryReferencesWithoutAViewportPass() throws Exception {
+        LocalDate from = LocalDate.parse("2026-01-01");
+        LocalDate to = LocalDate.parse("2026-01-31");
+        when(referenceStatistics.ready()).thenReturn(true);
+        when(referenceStatistics.referenceCte(anyString(), anyInt(), any(), any(), anyList())).thenCallRealMethod();
+        when(referenceStatistics.countryReferenceCte(anyString(), anyInt(), any(), any(), anyList())).thenCallRealMethod();
+        when(referenceStatistics.average("price_eur_per_m2_land", 2, null, from, to)).thenReturn(120.0);
+        when(referenceStatistics.countryAverages("price_eur_per_m2_land", 2, from, to)).thenReturn(Map.of("DEU", 140.0));
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                get("/area-metrics")
+                    .param("minLon", "13.38")
+                    .param("minLat", "52.51")
+                    .param("maxLon", "13.40")
+                    .param("maxLat", "52.52")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("depth", "2")
+                    .param("from", "2026-01-01")
+                    .param("to", "2026-01-31")
+                    .param("reference", "country")
+            )
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", containsString("&ref=country&gen=")));
+
+        FeatureStreamer.CursorStatement statement = streamedStatements(jdbcTemplate, 1).get(0);
+        assertThat(statement.getSql()).contains(
+            "reference AS (SELECT ?::float8 AS reference_avg, ?::float8[] AS reference_deciles)",
+            "country_reference AS (SELECT * FROM unnest(?::text[], ?::float8[]) AS c(country, reference_avg))",
+            "LEFT JOIN country_reference cr ON cr.country = split_part(e.area_key, '|', 1)",
+            "cr.reference_avg AS global_avg");
+        assertThat(statement.getSql()).doesNotContain("SUM(count_value) = 0");
+        List<Object> params = Arrays.asList(statement.params());
+        assertThat(params).contains(120.0);
+        assertThat(params).anySatisfy(p -> assertThat(p).isEqualTo(new String[] { "DEU" }));
+        assertThat(params).anySatisfy(p -> assertThat(p).isEqualTo(new Double[] { 140.0 }));
+    }
+
+    @Test
+    void computesTheGlobalReferenceInSqlUntilStatisticsHaveLoaded() throws Exception {
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                get("/area-metrics")
+                    .param("minLon", "13.38")
+                    .param("minLat", "52.51")
+                    .param("maxLon", "13.40")
+                    .param("maxLat", "52.52")
+                    .param("metricId", "price_eur_per_m2_land")
+                    .param("zoom", "7")
+                    .param("reference", "global")
+            )
+            .andExpect(status().isOk());
+
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
+        assertThat(sql).contains("reference_rows AS (SELECT * FROM", "WHERE r.area_depth = ?",
+            "global AS (SELECT reference_avg::float8 AS global_avg, reference_deciles AS global_deciles FROM reference)");
+        assertThat(sql).doesNotContain("country_reference");
+    }
+
+    @Test
+    void rejectsDepthWideReferencesWithoutDepthAndUnknownReferences() throws Exception {
+        mockMvc.perform(get("/area-metrics")
+                .param("minLon", "13.38")
+                .param("minLat", "52.51")
+                .param("maxLon", "13.40")
+                .param("maxLat", "52.52")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("reference", "global"))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/area-metrics")
+                .param("minLon", "13.38")
+                .param("minLat", "52.51")
+                .param("maxLon", "13.40")
+                .param("maxLat", "52.52")
+                .param("metricId", "price_eur_per_m2_land")
+                .param("depth", "2")
+                .param("reference", "planet"))
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void servesCachedBodiesUntilAWriteTouchesTheirAreasThenRevalidatesInTheBackground() throws Exception {
+        when(referenceStatistics.ready()).thenReturn(true);
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(datasetGenerations.metrics()).thenReturn(7L);
+        stubFeatureRows(jdbcTemplate, row(
+            "geometry", "{\"type\":\"Polygon\",\"coordinates\":[]}",
+            "area_key", "DEU|DEU.11_1||||",
+            "count", 3L
+        ));
+
+        String etag = perform(mockMvc, cachedRequest()).andExpect(status().isOk())
+            .andReturn().getResponse().getHeader("ETag");
+        assertThat(etag).endsWith("&gen=3.7\"");
+
+        // Other metrics, areas and days leave the entry alone, even though the generation moves on.
+        when(datasetGenerations.metrics()).thenReturn(8L);
+        resultCache.invalidate("rent_eur_per_m2", List.of("DEU|DEU.11_1||||"), LocalDate.parse("2026-01-10"));
+        resultCache.invalidate("price_eur_per_m2_land", List.of("DEU|DEU.12_1||||"), LocalDate.parse("2026-01-10"));
+        resultCache.invalidate("price_eur_per_m2_land", List.of("DEU|DEU.11_1||||"), LocalDate.parse("2026-02-10"));
+        perform(mockMvc, cachedRequest()).andExpect(status().isOk()).andExpect(header().string("ETag", etag));
+        perform(mockMvc, cachedRequest().header("If-None-Match", etag)).andExpect(status().isNotModified());
+        streamedStatements(jdbcTemplate, 1);
+
+        // A write to one of its areas: the old body is still served, briefly cacheable, while it is recomputed.
+        resultCache.invalidate("price_eur_per_m2_land", List.of("DEU|DEU.11_1||||", "DEU|||||"), LocalDate.parse("2026-01-10"));
+        perform(mockMvc, cachedRequest())
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", etag))
+            .andExpect(header().string("Cache-Control", "max-age=10, public"));
+        verify(jdbcTemplate, timeout(5000).times(2))
+            .query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        String refreshed = etag;
+        for (int attempt = 0; attempt < 100 && refreshed.equals(etag); attempt++) {
+            Thread.sleep(20);
+            refreshed = perform(mockMvc, cachedRequest()).andReturn().getResponse().getHeader("ETag");
+        }
+        assertThat(refreshed).endsWith("&gen=3.8\"");
+        streamedStatements(jdbcTemplate, 2);
+
+        // The replaced body left the invalidation index: one area key and one country, for the new body only.
+        assertThat(resultCache.indexedReferences()).isEqualTo(2);
+        resultCache.invalidateAll();
+        assertThat(resultCache.indexedReferences()).isZero();
+    }
+
+    private static MockHttpServletRequestBuilder cachedRequest() {
+        return get("/area-metrics")
+            .param("minLon", "13.38")
+            .param("minLat", "52.51")
+            .param("maxLon", "13.40")
+            .param("maxLat", "52.52")
+            .param("metricId", "price_eur_per_m2_land")
+            .param("depth", "2")
+            .param("from", "2026-01-01")
+            .param("to", "2026-01-31");
     }
 }
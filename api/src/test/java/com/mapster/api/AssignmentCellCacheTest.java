@@ -0,0 +1,78 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AssignmentCellCacheTest {
+
+    private static final AreaAssignmentService.Assignment BERLIN =
+        new AreaAssignmentService.Assignment("DEU|DEU.3_1||||", (short) 1);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<AssignmentCellCache.Bounds> classified = new ArrayList<>();
+
+    @Test
+    void classifiesEachCellOnceAndAnswersLaterPointsFromIt() {
+        AssignmentCellCache cache = new AssignmentCellCache(meterRegistry, true, 100, 1 << 20);
+
+        AssignmentCellCache.Cell first = cache.cell(13.40001, 52.52001, 1, this::inside);
+        // A few meters away, same 100 m cell.
+        AssignmentCellCache.Cell second = cache.cell(13.40002, 52.52002, 1, this::inside);
+
+        assertThat(first).isEqualTo(AssignmentCellCache.Cell.inside(BERLIN));
+        assertThat(second).isEqualTo(first);
+        assertThat(classified).hasSize(1);
+        AssignmentCellCache.Bounds bounds = classified.get(0);
+        assertThat(bounds.maxLat() - bounds.minLat()).isCloseTo(100 / 111_320.0, within(1e-12));
+        assertThat(bounds.minLon()).isLessThanOrEqualTo(13.40001).isLessThan(bounds.maxLon());
+        assertThat(bounds.minLat()).isLessThanOrEqualTo(52.52001).isLessThan(bounds.maxLat());
+
+        cache.cell(13.41, 52.52001, 1, this::inside);
+        assertThat(classified).hasSize(2);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "assignment-cells").tag("result", "hit").functionCounter().count())
+            .isEqualTo(1);
+        assertThat(meterRegistry.get("mapster.assignment_cells.lookups").tag("cell", "inside").counter().count()).isEqualTo(3);
+    }
+
+    @Test
+    void forgetsEverythingOnceTheIndexSwapsInANewTree() {
+        AssignmentCellCache cache = new AssignmentCellCache(meterRegistry, true, 100, 1 << 20);
+        // Boundaries were reimported, but the index still answers from the tree of generation 1 while it reloads.
+        cache.cell(13.4, 52.52, 1, this::inside);
+        cache.cell(13.4, 52.52, 1, this::inside);
+        assertThat(classified).hasSize(1);
+
+        cache.cell(13.4, 52.52, 2, this::inside);
+        cache.cell(13.4, 52.52, 2, this::inside);
+        assertThat(classified).hasSize(2);
+    }
+
+    @Test
+    void ignoresCellsClassifiedByAnOlderTree() {
+        AssignmentCellCache cache = new AssignmentCellCache(meterRegistry, true, 100, 1 << 20);
+        cache.cell(13.4, 52.52, 2, this::inside);
+        // A caller that read generation 1 before the swap finishes late.
+        cache.cell(13.41, 52.52, 1, this::inside);
+
+        cache.cell(13.41, 52.52, 2, this::inside);
+        assertThat(classified).hasSize(3);
+    }
+
+    @Test
+    void everyPointNeedsTheExactTestWhenDisabled() {
+        AssignmentCellCache cache = new AssignmentCellCache(meterRegistry, false, 100, 1 << 20);
+        assertThat(cache.cell(13.4, 52.52, 1, this::inside)).isEqualTo(AssignmentCellCache.Cell.MIXED);
+        assertThat(classified).isEmpty();
+    }
+
+    private AssignmentCellCache.Cell inside(AssignmentCellCache.Bounds bounds) {
+        classified.add(bounds);
+        return AssignmentCellCache.Cell.inside(BERLIN);
+    }
+}
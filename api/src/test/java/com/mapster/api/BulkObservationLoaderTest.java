@@ -0,0 +1,137 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BulkObservationLoaderTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final MetricCatalogService metricCatalogService = mock(MetricCatalogService.class);
+    private final AreaAssignmentService areaAssignmentService = mock(AreaAssignmentService.class);
+    private final AggregationService aggregationService = mock(AggregationService.class);
+    private final List<String> copied = new ArrayList<>();
+
+    @Test
+    void copiesValidNdjsonRowsPerBatchAndRollsThemUpSetBased() throws Exception {
+        stubCopy();
+        String body = """
+            {"metricId":"price","value":230.5,"unit":"EUR/m2","observedAt":"2026-01-10T12:00:00Z","lon":13.4,"lat":52.5}
+            {"metricId":"price","value":"not a number"}
+
+            {"metricId":"price","value":99,"observedAt":"2026-01-11T00:00:00Z","assignedAreaKey":"DEU|DEU.1_1||||","sourceUrl":"a\\tb"}
+            {"metricId":"rent","value":12,"observedAt":"2026-01-11T00:00:00Z"}
+            """;
+
+        BulkObservationLoader.Summary summary = loader(2).load(stream(body), BulkObservationLoader.Format.NDJSON);
+
+        assertThat(summary.accepted()).isEqualTo(3);
+        assertThat(summary.rejected()).isEqualTo(1);
+        // Batches close every two records, parse failures included.
+        assertThat(summary.batches()).hasSize(2);
+        BulkObservationLoader.Batch first = summary.batches().get(0);
+        assertThat(first.firstLine()).isEqualTo(1);
+        assertThat(first.lastLine()).isEqualTo(2);
+        assertThat(first.accepted()).isEqualTo(1);
+        assertThat(first.errors()).extracting(BulkObservationLoader.Rejection::line).containsExactly(2L);
+        assertThat(summary.batches().get(1).firstLine()).isEqualTo(4);
+        assertThat(summary.batches().get(1).accepted()).isEqualTo(2);
+
+        assertThat(copied).containsExactly(
+            "1\tprice\t230.5\tEUR/m2\t\\N\t2026-01-10T12:00:00Z\t13.4\t52.5\t\\N\t\\N\t\\N\t\\N\n",
+            "4\tprice\t99\t\\N\t\\N\t2026-01-11T00:00:00Z\t\\N\t\\N\tDEU|DEU.1_1||||\t\\N\t\\N\ta\\tb\n"
+                + "5\trent\t12\t\\N\t\\N\t2026-01-11T00:00:00Z\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\n"
+        );
+        verify(metricCatalogService).ensureMetricExists(eq("price"), eq("EUR/m2"), isNull());
+        verify(metricCatalogService).ensureMetricExists(eq("rent"), isNull(), isNull());
+        // A fixed number of statements per batch, however many rows it has.
+        verify(areaAssignmentService, times(2)).assignStaged(BulkObservationLoader.STAGING_TABLE);
+        verify(jdbcTemplate, times(2)).update(contains("INSERT INTO facts.observation"));
+        verify(aggregationService, times(2)).addStagedObservationsToRollups(BulkObservationLoader.STAGING_TABLE);
+    }
+
+    @Test
+    void readsCsvByHeaderAndKeepsGoingAfterAFailedBatch() throws Exception {
+        stubCopy();
+        doThrow(new IllegalStateException("deadlock detected"))
+            .doReturn(1)
+            .when(jdbcTemplate).update(contains("INSERT INTO facts.observation"));
+        String body = """
+            value,metricId,observedAt,sourceUrl
+            1.5,price,2026-01-10T00:00:00Z,"https://example.com/?a=1,2"
+            2.5,price,,
+            """;
+
+        BulkObservationLoader.Summary summary = loader(1).load(stream(body), BulkObservationLoader.Format.CSV);
+
+        assertThat(summary.accepted()).isEqualTo(1);
+        assertThat(summary.rejected()).isEqualTo(1);
+        assertThat(summary.batches().get(0).errors()).extracting(BulkObservationLoader.Rejection::error)
+            .containsExactly("batch failed: deadlock detected");
+        assertThat(summary.batches().get(1).firstLine()).isEqualTo(3);
+        assertThat(copied.get(0)).isEqualTo("2\tprice\t1.5\t\\N\t\\N\t2026-01-10T00:00:00Z\t\\N\t\\N\t\\N\t\\N\t\\N\thttps://example.com/?a=1,2\n");
+        assertThat(copied.get(1)).startsWith("3\tprice\t2.5\t");
+    }
+
+    @Test
+    void parsesQuotedCsvFields() {
+        assertThat(BulkObservationLoader.csvFields("a,\"b,c\",\"say \"\"hi\"\"\",")).containsExactly("a", "b,c", "say \"hi\"", "");
+    }
+
+    private void stubCopy() throws Exception {
+        CopyManager copyManager = mock(CopyManager.class);
+        when(copyManager.copyIn(anyString(), any(Reader.class))).thenAnswer(invocation -> {
+            Reader reader = invocation.getArgument(1);
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[1024];
+            for (int n; (n = reader.read(buffer)) > 0; ) text.append(buffer, 0, n);
+            copied.add(text.toString());
+            return (long) text.toString().split("\n").length;
+        });
+        PGConnection pgConnection = mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        Connection connection = mock(Connection.class);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        doAnswer(invocation -> ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(connection))
+            .when(jdbcTemplate).execute(any(ConnectionCallback.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private BulkObservationLoader loader(int batchSize) {
+        ObjectMapper objectMapper = JsonMapper.builder().findAndAddModules().build();
+        Bulkheads bulkheads = new Bulkheads(new SimpleMeterRegistry(), 1, 1000, 1, 1000, 1, 1000, 1, 1000);
+        return new BulkObservationLoader(jdbcTemplate, mock(ObjectProvider.class), metricCatalogService,
+            areaAssignmentService, aggregationService, bulkheads, objectMapper, new SimpleMeterRegistry(), batchSize);
+    }
+
+    private static ByteArrayInputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
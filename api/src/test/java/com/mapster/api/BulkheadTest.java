@@ -0,0 +1,96 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BulkheadTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void neverRunsMoreThanMaxConcurrentCallsAtOnce() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 2, Duration.ofSeconds(5), registry);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> bulkhead.call(() -> {
+                    peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return 1;
+                })));
+            }
+            for (Future<Integer> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(peak.get()).isEqualTo(2);
+        assertThat(bulkhead.activeCount()).isZero();
+        assertThat(registry.get("mapster.bulkhead.queue_time").tag("bulkhead", "test").timer().count()).isEqualTo(8);
+    }
+
+    @Test
+    void rejectsCallerThatWaitedLongerThanMaxWait() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, Duration.ofMillis(50), registry);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> holder = pool.submit(() -> bulkhead.call(() -> {
+                holding.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "done";
+            }));
+            assertThat(holding.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> bulkhead.call(() -> "never"))
+                .isInstanceOf(Bulkhead.RejectedException.class);
+
+            release.countDown();
+            assertThat(holder.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(registry.get("mapster.bulkhead.rejected").tag("bulkhead", "test").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void slotIsReleasedWhenTheCallFails() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, Duration.ZERO, registry);
+
+        assertThatThrownBy(() -> bulkhead.call(() -> {
+            throw new IllegalStateException("boom");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(bulkhead.call(() -> "next")).isEqualTo("next");
+        assertThat(bulkhead.activeCount()).isZero();
+    }
+
+    @Test
+    void defaultBulkheadsAndSchedulerThreadsFitTheDefaultPool() {
+        Bulkheads defaults = new Bulkheads(registry, 6, 5000, 3, 10000, 4, 10000, 3, 10000);
+
+        // spring.task.scheduling.pool.size=4, spring.datasource.hikari.maximum-pool-size=20
+        assertThat(defaults.connectionsNeeded(4)).isLessThanOrEqualTo(20);
+    }
+}
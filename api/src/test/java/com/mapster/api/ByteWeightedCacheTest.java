@@ -0,0 +1,92 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ByteWeightedCacheTest {
+
+    private static ByteWeightedCache<String, byte[]> cache(long maxBytes, long maxEntryBytes) {
+        return new ByteWeightedCache<>("test", maxBytes, maxEntryBytes, v -> v.length);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntriesWhenByteBudgetIsExceeded() {
+        ByteWeightedCache<String, byte[]> cache = cache(100, 100);
+
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        cache.get("a"); // "b" is now the least recently used entry
+        cache.put("c", new byte[40]);
+
+        assertThat(cache.get("a")).isNotNull();
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isNotNull();
+        assertThat(cache.sizeBytes()).isEqualTo(80);
+        assertThat(cache.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void reportsEveryValueThatLeavesTheCache() {
+        List<String> removed = new ArrayList<>();
+        ByteWeightedCache<String, byte[]> cache = cache(100, 100).onRemoval((key, value) -> removed.add(key + value.length));
+
+        cache.put("a", new byte[40]);
+        cache.put("a", new byte[30]);
+        cache.put("b", new byte[40]);
+        cache.put("c", new byte[40]);
+        cache.invalidateAll();
+
+        assertThat(removed).containsExactly("a40", "a30", "b40", "c40");
+    }
+
+    @Test
+    void replacingAnEntryReweighsIt() {
+        ByteWeightedCache<String, byte[]> cache = cache(100, 100);
+
+        cache.put("a", new byte[60]);
+        cache.put("a", new byte[10]);
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.sizeBytes()).isEqualTo(10);
+    }
+
+    @Test
+    void rejectsEntriesLargerThanThePerEntryLimit() {
+        ByteWeightedCache<String, byte[]> cache = cache(100, 50);
+
+        cache.put("small", new byte[10]);
+        assertThat(cache.put("huge", new byte[51])).isFalse();
+
+        assertThat(cache.get("small")).isNotNull();
+        assertThat(cache.get("huge")).isNull();
+    }
+
+    @Test
+    void zeroBudgetDisablesCaching() {
+        ByteWeightedCache<String, byte[]> cache = cache(0, 1024);
+
+        assertThat(cache.put("a", new byte[1])).isFalse();
+        assertThat(cache.get("a")).isNull();
+    }
+
+    @Test
+    void publishesHitMissAndEvictionMeters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ByteWeightedCache<String, byte[]> cache = cache(10, 10).bindTo(registry);
+
+        cache.put("a", new byte[8]);
+        cache.get("a");
+        cache.get("missing");
+        cache.put("b", new byte[8]);
+
+        assertThat(registry.get("cache.gets").tag("cache", "test").tag("result", "hit").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("cache.gets").tag("cache", "test").tag("result", "miss").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("cache.evictions").tag("cache", "test").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("cache.size.bytes").tag("cache", "test").gauge().value()).isEqualTo(8);
+    }
+}
@@ -0,0 +1,34 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DatasetGenerationServiceTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Test
+    void retriesABumpThatFailed() {
+        when(jdbcTemplate.update(anyString(), eq(DatasetGenerationService.METRICS)))
+            .thenThrow(new DataAccessResourceFailureException("connection reset"))
+            .thenReturn(1);
+        DatasetGenerationService generations = new DatasetGenerationService(jdbcTemplate);
+        generations.markChanged(DatasetGenerationService.METRICS);
+
+        generations.refresh();
+        generations.refresh();
+        verify(jdbcTemplate, times(2)).update(anyString(), eq(DatasetGenerationService.METRICS));
+
+        // Bumped once it succeeded; nothing left to bump.
+        generations.refresh();
+        verify(jdbcTemplate, times(2)).update(anyString(), eq(DatasetGenerationService.METRICS));
+    }
+}
@@ -0,0 +1,113 @@
+package com.mapster.api;
+
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultHandler;
+import org.springframework.test.web.servlet.ResultMatcher;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+/**
+ * Test helpers for endpoints that stream GeoJSON rows through {@link FeatureStreamer}.
+ */
+final class FeatureRowStubs {
+    private FeatureRowStubs() {}
+
+    /** One result row of a feature query: column label to value, in column order. */
+    static Map<String, Object> row(Object... labelsAndValues) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < labelsAndValues.length; i += 2) {
+            row.put((String) labelsAndValues[i], labelsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    /** Makes the streamed query return the given rows (all with the columns of the first one). */
+    @SafeVarargs
+    static void stubFeatureRows(JdbcTemplate jdbcTemplate, Map<String, Object>... rows) {
+        doAnswer(invocation -> {
+            processRows(invocation.getArgument(1), rows);
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+    }
+
+    /** Hands the given rows (all with the columns of the first one) to {@code handler}, as a cursor would. */
+    @SafeVarargs
+    static void processRows(RowCallbackHandler handler, Map<String, Object>... rows) throws SQLException {
+        if (rows.length == 0) return;
+        List<String> labels = new ArrayList<>(rows[0].keySet());
+        ResultSetMetaData meta = mock(ResultSetMetaData.class);
+        when(meta.getColumnCount()).thenReturn(labels.size());
+        for (int i = 0; i < labels.size(); i++) {
+            when(meta.getColumnLabel(i + 1)).thenReturn(labels.get(i));
+        }
+        for (Map<String, Object> values : rows) {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.getMetaData()).thenReturn(meta);
+            for (int i = 0; i < labels.size(); i++) {
+                Object value = values.get(labels.get(i));
+                when(rs.getObject(i + 1)).thenReturn(value);
+                if (value instanceof byte[] bytes) {
+                    when(rs.getBytes(i + 1)).thenReturn(bytes);
+                } else {
+                    when(rs.getString(i + 1)).thenReturn(value == null ? null : value.toString());
+                }
+            }
+            handler.processRow(rs);
+        }
+    }
+
+    /** @return the statements of all streamed queries, verifying there were exactly {@code expected} */
+    static List<FeatureStreamer.CursorStatement> streamedStatements(JdbcTemplate jdbcTemplate, int expected) {
+        ArgumentCaptor<PreparedStatementCreator> captor = ArgumentCaptor.forClass(PreparedStatementCreator.class);
+        verify(jdbcTemplate, times(expected)).query(captor.capture(), any(RowCallbackHandler.class));
+        return captor.getAllValues().stream().map(FeatureStreamer.CursorStatement.class::cast).toList();
+    }
+
+    /** Performs a request and, if the controller answered with a streaming body, waits for it to be written. */
+    static ResultActions perform(MockMvc mockMvc, RequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            return mockMvc.perform(asyncDispatch(result));
+        }
+        // Answered on the request thread (e.g. a cache hit): expectations apply to this result, not to a second request.
+        return new ResultActions() {
+            @Override
+            public ResultActions andExpect(ResultMatcher matcher) throws Exception {
+                matcher.match(result);
+                return this;
+            }
+
+            @Override
+            public ResultActions andDo(ResultHandler handler) throws Exception {
+                handler.handle(result);
+                return this;
+            }
+
+            @Override
+            public MvcResult andReturn() {
+                return result;
+            }
+        };
+    }
+}
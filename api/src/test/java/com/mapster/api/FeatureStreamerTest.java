@@ -0,0 +1,160 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mapster.api.FeatureRowStubs.processRows;
+import static com.mapster.api.FeatureRowStubs.row;
+import static com.mapster.api.FeatureRowStubs.stubFeatureRows;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class FeatureStreamerTest {
+
+    private static final FeatureStreamer.Query QUERY = new FeatureStreamer.Query("SELECT 1", new Object[0]);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SingleFlight<String, byte[]> flight = new SingleFlight<>("test", Duration.ofSeconds(5), registry);
+    private final Bulkhead bulkhead = new Bulkhead("test", 4, Duration.ofSeconds(1), registry);
+
+    @Test
+    void followersRunTheirOwnQueryWhenTheLeaderFails() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger queries = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (queries.incrementAndGet() == 1) {
+                release.await(5, TimeUnit.SECONDS);
+                throw new DataAccessResourceFailureException("connection reset");
+            }
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+        FeatureStreamer streamer = streamer(8 << 20);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<MockHttpServletResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                responses.add(pool.submit(() -> write(streamer)));
+            }
+            while (registry.get("mapster.single_flight.requests").tag("role", "collapsed").counter().count() < 2) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            List<Integer> statuses = new ArrayList<>();
+            for (Future<MockHttpServletResponse> response : responses) {
+                MockHttpServletResponse done = response.get(5, TimeUnit.SECONDS);
+                statuses.add(done.getStatus());
+                assertThat(objectMapper.readTree(done.getContentAsByteArray()).path("features").size()).isZero();
+                if (done.getStatus() == 500) assertThat(done.getHeader("Cache-Control")).isEqualTo("no-store");
+            }
+            assertThat(statuses).containsExactlyInAnyOrder(500, 200, 200);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(queries.get()).isEqualTo(3);
+    }
+
+    @Test
+    void bodiesOverTheCaptureLimitAreWrittenInFullButNotShared() throws Exception {
+        stubFeatureRows(jdbcTemplate,
+            row("geometry", "{\"type\":\"Point\",\"coordinates\":[13.39,52.515]}", "id", 7L, "name_1", "Berlin"),
+            row("geometry", "{\"type\":\"Point\",\"coordinates\":[2.35,48.856]}", "id", 8L, "name_1", "Paris"));
+        List<FeatureStreamer.Result> captured = new ArrayList<>();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        streamer(16).body(FeatureFormat.GEOJSON, flight, bulkhead, "k", () -> QUERY, false, response,
+            captured::add).writeTo(response.getOutputStream());
+
+        JsonNode body = objectMapper.readTree(response.getContentAsByteArray());
+        assertThat(body.path("features").size()).isEqualTo(2);
+        assertThat(body.path("features").get(1).path("properties").path("name_1").asText()).isEqualTo("Paris");
+        assertThat(captured).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void leaderWritesRowsToItsClientBeforeTheQueryHasFinished() throws Exception {
+        Map<String, Object>[] rows = new Map[200];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = row("geometry", "{\"type\":\"Point\",\"coordinates\":[13.39,52.515]}", "id", (long) i, "name_1", "Berlin");
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        AtomicInteger writtenWhileQuerying = new AtomicInteger();
+        doAnswer(invocation -> {
+            processRows(invocation.getArgument(1), rows);
+            writtenWhileQuerying.set(response.getContentAsByteArray().length);
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+        List<FeatureStreamer.Result> captured = new ArrayList<>();
+
+        streamer(8 << 20).body(FeatureFormat.GEOJSON, flight, bulkhead, "k", () -> QUERY, false, response,
+            captured::add).writeTo(response.getOutputStream());
+
+        assertThat(writtenWhileQuerying.get()).isPositive();
+        assertThat(objectMapper.readTree(response.getContentAsByteArray()).path("features").size()).isEqualTo(200);
+        assertThat(captured).hasSize(1);
+        assertThat(objectMapper.readTree(PrecompressedBodies.gunzip(captured.get(0).gzipped())).path("features").size())
+            .isEqualTo(200);
+    }
+
+    @Test
+    void capturesTheBodyForFollowersWhenTheLeadersClientGoesAway() throws Exception {
+        stubFeatureRows(jdbcTemplate,
+            row("geometry", "{\"type\":\"Point\",\"coordinates\":[13.39,52.515]}", "id", 7L, "name_1", "Berlin"));
+        List<FeatureStreamer.Result> captured = new ArrayList<>();
+        OutputStream gone = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        assertThatThrownBy(() -> streamer(8 << 20).body(FeatureFormat.GEOJSON, flight, bulkhead, "k", () -> QUERY, true,
+            new MockHttpServletResponse(), captured::add).writeTo(gone))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Broken pipe");
+
+        assertThat(captured).hasSize(1);
+        assertThat(objectMapper.readTree(PrecompressedBodies.gunzip(captured.get(0).gzipped())).path("features").size())
+            .isEqualTo(1);
+    }
+
+    private MockHttpServletResponse write(FeatureStreamer streamer) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        streamer.body(FeatureFormat.GEOJSON, flight, bulkhead, "k", () -> QUERY, false, response,
+            result -> {}).writeTo(response.getOutputStream());
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private FeatureStreamer streamer(int captureMaxBytes) {
+        return new FeatureStreamer(jdbcTemplate, objectMapper, mock(ObjectProvider.class), 256, captureMaxBytes);
+    }
+}
@@ -0,0 +1,164 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GeobufFeatureEncoderTest {
+
+    private static final FeatureStreamer.FeatureColumns COLUMNS = new FeatureStreamer.FeatureColumns(
+        1, new String[] {"name", "count", "avg", "missing"}, new int[] {2, 3, 4, 5});
+
+    @Test
+    void emptyCollectionMatchesConstant() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GeobufFeatureEncoder(out).finish();
+
+        assertThat(out.toByteArray()).isEqualTo(GeobufFeatureEncoder.EMPTY_FEATURE_COLLECTION);
+    }
+
+    @Test
+    void encodesPolygonWithQuantizedDeltasAndTypedProperties() throws Exception {
+        double[] ring = {13.0, 52.0, 13.5, 52.0, 13.5, 52.5, 13.0, 52.5, 13.0, 52.0};
+        ResultSet rs = row(polygonWkb(ring), "a", 3L, new BigDecimal("1.50"), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GeobufFeatureEncoder encoder = new GeobufFeatureEncoder(out);
+        encoder.feature(rs, COLUMNS);
+        encoder.finish();
+
+        Map<Integer, List<Object>> data = fields(out.toByteArray());
+        assertThat(data.get(1)).extracting(k -> new String((byte[]) k, StandardCharsets.UTF_8))
+            .containsExactly("name", "count", "avg", "missing");
+        assertThat(data.get(3)).containsExactly(6L);
+
+        Map<Integer, List<Object>> feature = fields((byte[]) fields((byte[]) data.get(4).get(0)).get(1).get(0));
+        Map<Integer, List<Object>> geometry = fields((byte[]) feature.get(1).get(0));
+        assertThat(geometry.get(1)).containsExactly(4L);
+        assertThat(geometry).doesNotContainKey(2);
+        // Closing point dropped; deltas from the previous vertex in micro-degrees.
+        assertThat(svarints((byte[]) geometry.get(3).get(0)))
+            .containsExactly(13_000_000L, 52_000_000L, 500_000L, 0L, 0L, 500_000L, -500_000L, 0L);
+
+        List<Object> values = feature.get(13);
+        assertThat(new String((byte[]) fields((byte[]) values.get(0)).get(1).get(0), StandardCharsets.UTF_8)).isEqualTo("a");
+        assertThat(fields((byte[]) values.get(1)).get(3)).containsExactly(3L);
+        assertThat(Double.longBitsToDouble((Long) fields((byte[]) values.get(2)).get(2).get(0))).isEqualTo(1.5);
+        assertThat(new String((byte[]) fields((byte[]) values.get(3)).get(6).get(0), StandardCharsets.UTF_8)).isEqualTo("null");
+        assertThat(varints((byte[]) feature.get(14).get(0))).containsExactly(0L, 0L, 1L, 1L, 2L, 2L, 3L, 3L);
+    }
+
+    @Test
+    void multiPolygonWritesLengthsAndRestartsDeltasPerRing() throws Exception {
+        double[] first = {0.0, 0.0, 1.0, 0.0, 1.0, 1.0, 0.0, 0.0};
+        double[] second = {2.0, 2.0, 3.0, 2.0, 3.0, 3.0, 2.0, 2.0};
+        ByteBuffer wkb = ByteBuffer.allocate(9 + 2 * (9 + 4 + 4 * 16)).order(ByteOrder.LITTLE_ENDIAN);
+        wkb.put((byte) 1).putInt(6).putInt(2);
+        for (double[] ring : List.of(first, second)) {
+            wkb.put((byte) 1).putInt(3).putInt(1).putInt(ring.length / 2);
+            for (double ordinate : ring) wkb.putDouble(ordinate);
+        }
+
+        GeobufFeatureEncoder.Pbf geometry = new GeobufFeatureEncoder.Pbf();
+        GeobufFeatureEncoder.writeGeometry(ByteBuffer.wrap(wkb.array()), geometry);
+
+        Map<Integer, List<Object>> decoded = fields(geometry.toByteArray());
+        assertThat(decoded.get(1)).containsExactly(5L);
+        assertThat(varints((byte[]) decoded.get(2).get(0))).containsExactly(2L, 1L, 3L, 1L, 3L);
+        assertThat(svarints((byte[]) decoded.get(3).get(0))).containsExactly(
+            0L, 0L, 1_000_000L, 0L, 0L, 1_000_000L,
+            2_000_000L, 2_000_000L, 1_000_000L, 0L, 0L, 1_000_000L);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "|GEOJSON",
+        "*/*|GEOJSON",
+        "application/json|GEOJSON",
+        "application/geobuf|GEOBUF",
+        "application/x-protobuf|GEOBUF",
+        "application/geobuf, application/json;q=0.5|GEOBUF",
+        "application/json, application/geobuf;q=0.5|GEOJSON",
+        "application/geobuf;q=0, */*|GEOJSON",
+        "application/topo+json|TOPOJSON",
+        "application/topo+json, application/geobuf|GEOBUF",
+        "application/json, application/topo+json;q=0.5|GEOJSON",
+        "not a media type|GEOJSON"
+    })
+    void negotiatesFormatFromAcceptHeader(String accept, FeatureFormat expected) {
+        assertThat(FeatureFormat.negotiate(accept)).isEqualTo(expected);
+    }
+
+    private static ResultSet row(byte[] wkb, Object... properties) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getBytes(1)).thenReturn(wkb);
+        for (int i = 0; i < properties.length; i++) {
+            when(rs.getObject(i + 2)).thenReturn(properties[i]);
+        }
+        return rs;
+    }
+
+    private static byte[] polygonWkb(double[] ring) {
+        ByteBuffer wkb = ByteBuffer.allocate(9 + 4 + 4 + ring.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        wkb.put((byte) 1).putInt(3).putInt(1).putInt(ring.length / 2);
+        for (double ordinate : ring) wkb.putDouble(ordinate);
+        return wkb.array();
+    }
+
+    // Minimal protobuf reader: field number -> values (Long for varint/fixed64, byte[] for length-delimited).
+    private static Map<Integer, List<Object>> fields(byte[] message) {
+        Map<Integer, List<Object>> fields = new HashMap<>();
+        ByteBuffer in = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.hasRemaining()) {
+            long tag = varint(in);
+            int field = (int) (tag >>> 3);
+            Object value = switch ((int) (tag & 7)) {
+                case 0 -> varint(in);
+                case 1 -> in.getLong();
+                case 2 -> {
+                    byte[] bytes = new byte[(int) varint(in)];
+                    in.get(bytes);
+                    yield bytes;
+                }
+                default -> throw new IllegalStateException("wire type " + (tag & 7));
+            };
+            fields.computeIfAbsent(field, k -> new ArrayList<>()).add(value);
+        }
+        return fields;
+    }
+
+    private static List<Long> varints(byte[] packed) {
+        ByteBuffer in = ByteBuffer.wrap(packed);
+        List<Long> values = new ArrayList<>();
+        while (in.hasRemaining()) values.add(varint(in));
+        return values;
+    }
+
+    private static List<Long> svarints(byte[] packed) {
+        return varints(packed).stream().map(v -> (v >>> 1) ^ -(v & 1)).toList();
+    }
+
+    private static long varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
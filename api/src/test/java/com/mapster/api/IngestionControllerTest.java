@@ -5,10 +5,13 @@ import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.verify;
@@ -18,6 +21,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(IngestionController.class)
+@Import({Bulkheads.class, TestMeterRegistryConfiguration.class})
 class IngestionControllerTest {
 
     @Autowired
@@ -35,6 +39,9 @@ class IngestionControllerTest {
     @MockBean
     private AggregationService aggregationService;
 
+    @MockBean
+    private BulkObservationLoader bulkObservationLoader;
+
     @Test
     void ingestRawInsertsIntoFactsRaw() throws Exception {
         when(jdbcTemplate.queryForObject(contains("INSERT INTO facts_raw.raw_record"), eq(Long.class), any(), any(), any()))
@@ -97,4 +104,27 @@ class IngestionControllerTest {
         );
         assertThat(sqlCaptor.getValue()).contains("INSERT INTO facts.observation");
     }
+
+    @Test
+    void bulkIngestionPicksTheFormatFromTheContentType() throws Exception {
+        when(bulkObservationLoader.load(any(), eq(BulkObservationLoader.Format.CSV))).thenReturn(new BulkObservationLoader.Summary(
+            1, 1, List.of(new BulkObservationLoader.Batch(0, 2, 3, 1, 1, List.of(new BulkObservationLoader.Rejection(3, "value is required"))))));
+
+        mockMvc.perform(
+                post("/ingest/observations:bulk")
+                    .contentType("text/csv")
+                    .content("metricId,value\nprice,1\nprice,\n")
+            )
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.accepted").value(1))
+            .andExpect(jsonPath("$.rejected").value(1))
+            .andExpect(jsonPath("$.batches[0].errors[0].line").value(3));
+
+        mockMvc.perform(
+                post("/ingest/observations:bulk")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content("{}")
+            )
+            .andExpect(status().isUnsupportedMediaType());
+    }
 }
@@ -0,0 +1,138 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MetricCatalogServiceTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final List<MetricCatalogService.Metric> table = new ArrayList<>(List.of(
+        new MetricCatalogService.Metric("price", "EUR/m2", "Land price")
+    ));
+    private int upserts;
+
+    @Test
+    void onlyWritesMetricsThatAreNewOrChanged() {
+        stubTable();
+        MetricCatalogService service = new MetricCatalogService(jdbcTemplate, null, new SimpleMeterRegistry());
+        String etag = service.catalog().etag();
+
+        service.ensureMetricExists("price", "EUR/m2", null);
+        service.ensureMetricExists("price", null, null);
+        service.ensureMetricExists("price", "EUR/m2", "Land price");
+        assertThat(upserts).isZero();
+
+        service.ensureMetricExists("price", "USD/ft2", null);
+        service.ensureMetricExists("price", "USD/ft2", null);
+        service.ensureMetricExists("rent", null, null);
+        service.ensureMetricExists("rent", null, null);
+        assertThat(upserts).isEqualTo(2);
+        assertThat(service.catalog().metrics()).containsExactly(
+            new MetricCatalogService.Metric("price", "USD/ft2", "Land price"),
+            new MetricCatalogService.Metric("rent", null, null)
+        );
+        assertThat(service.catalog().etag()).isNotEqualTo(etag);
+        // Loaded once; local writes update the snapshot without reloading.
+        verify(jdbcTemplate, times(1)).query(contains("FROM facts.metric"), any(RowMapper.class));
+    }
+
+    @Test
+    void remembersMetricsWrittenInATransactionOnlyOnceItCommits() {
+        stubTable();
+        MetricCatalogService service = new MetricCatalogService(jdbcTemplate, null, new SimpleMeterRegistry());
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            service.ensureMetricExists("rent", null, null);
+            service.ensureMetricExists("rent", null, null);
+            assertThat(upserts).isEqualTo(2);
+            assertThat(service.catalog().byId()).doesNotContainKey("rent");
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        service.ensureMetricExists("rent", null, null);
+        assertThat(upserts).isEqualTo(2);
+    }
+
+    @Test
+    void reloadsWhenNotifiedAndAfterReconnecting() throws Exception {
+        stubTable();
+        PGConnection pgConnection = mock(PGConnection.class);
+        when(pgConnection.getNotifications(anyInt()))
+            .thenReturn(new PGNotification[0])
+            .thenReturn(new PGNotification[] {mock(PGNotification.class)})
+            .thenThrow(new SQLException("connection reset"))
+            .thenReturn(new PGNotification[0]);
+        Connection connection = mock(Connection.class);
+        Statement statement = mock(Statement.class);
+        when(connection.createStatement()).thenReturn(statement);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        int[] opened = {0};
+        MetricCatalogService service = new MetricCatalogService(jdbcTemplate, () -> {
+            opened[0]++;
+            return connection;
+        }, new SimpleMeterRegistry());
+
+        service.listen();
+        verify(statement).execute("LISTEN " + MetricCatalogService.CHANNEL);
+        assertThat(service.catalog().byId()).containsOnlyKeys("price");
+
+        table.add(new MetricCatalogService.Metric("rent", "EUR/m2", null));
+        service.listen();
+        assertThat(service.catalog().byId()).containsOnlyKeys("price", "rent");
+
+        // A failed wait drops the connection; the next tick subscribes again and reloads.
+        service.listen();
+        verify(connection).close();
+        table.add(new MetricCatalogService.Metric("yield", "%", null));
+        service.listen();
+        assertThat(opened[0]).isEqualTo(2);
+        assertThat(service.catalog().byId()).containsOnlyKeys("price", "rent", "yield");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stubTable() {
+        doAnswer(invocation -> List.copyOf(table)).when(jdbcTemplate).query(contains("FROM facts.metric"), any(RowMapper.class));
+        doAnswer(invocation -> {
+            Object[] params = (Object[]) invocation.getRawArguments()[2];
+            upserts++;
+            String metricId = (String) params[0];
+            MetricCatalogService.Metric current = table.stream()
+                .filter(metric -> metric.metricId().equals(metricId))
+                .findFirst()
+                .orElse(new MetricCatalogService.Metric(metricId, null, null));
+            MetricCatalogService.Metric stored = new MetricCatalogService.Metric(
+                metricId,
+                params[1] != null ? (String) params[1] : current.unit(),
+                params[2] != null ? (String) params[2] : current.description()
+            );
+            table.removeIf(metric -> metric.metricId().equals(metricId));
+            table.add(stored);
+            return stored;
+        }).when(jdbcTemplate).queryForObject(contains("INSERT INTO facts.metric"), any(RowMapper.class), any(Object[].class));
+    }
+}
@@ -0,0 +1,120 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(MetricTileController.class)
+@Import({MetricTileRenderer.class, MetricTileCache.class, SingleFlights.class, Bulkheads.class, TestMeterRegistryConfiguration.class})
+class MetricTileControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MetricTileCache metricTileCache;
+
+    @MockBean
+    private JdbcTemplate jdbcTemplate;
+
+    @MockBean
+    private DatasetGenerationService datasetGenerations;
+
+    @MockBean
+    private GeometryPyramid geometryPyramid;
+
+    @MockBean
+    private ReferenceStatistics referenceStatistics;
+
+    @BeforeEach
+    void clearCache() {
+        metricTileCache.invalidateAll();
+    }
+
+    private void stubTile(byte[] tile) {
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(Object[].class)))
+                .thenReturn(tile);
+    }
+
+    private void verifyRendered(int times, ArgumentCaptor<String> sql) {
+        verify(jdbcTemplate, times(times)).queryForObject(sql.capture(), eq(byte[].class), any(Object[].class));
+    }
+
+    @Test
+    void rendersMetricTileWithAggregatesAndBands() throws Exception {
+        stubTile(new byte[] { 0x1, 0x2 });
+
+        mockMvc.perform(get("/tiles/metrics/price_eur_per_m2_land/8/134/86.mvt")
+                        .param("from", "2026-01-01")
+                        .param("to", "2026-01-31"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", MediaType.parseMediaType("application/vnd.mapbox-vector-tile").toString()))
+                .andExpect(header().string("ETag",
+                        "W/\"metric=price_eur_per_m2_land&z=8&x=134&y=86&depth=2&from=2026-01-01&to=2026-01-31&gen=0.0\""))
+                .andExpect(content().bytes(new byte[] { 0x1, 0x2 }));
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Object[]> params = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbcTemplate).queryForObject(sql.capture(), eq(byte[].class), params.capture());
+        // January is exactly one monthly bucket: [2026-01-01, 2026-02-01).
+        assertThat(params.getValue()).containsExactly(8, 134, 86, 2,
+                "price_eur_per_m2_land", LocalDate.parse("2026-01-01"), LocalDate.parse("2026-02-01"),
+                "price_eur_per_m2_land", LocalDate.parse("2026-01-01"), LocalDate.parse("2026-02-01"), 2);
+
+        assertThat(sql.getValue()).contains("ST_AsMVT(mvt, 'metrics', 4096, 'geom')");
+        assertThat(sql.getValue()).contains("FROM facts_agg.area_metric_monthly WHERE metric_id = ? AND month >= ? AND month < ?")
+                .doesNotContain("area_metric_daily").doesNotContain("global_avg");
+        assertThat(sql.getValue()).contains("AS avg", "AS count", "AS min", "AS max", "AS band");
+        assertThat(sql.getValue()).contains("r.area_depth = ?");
+    }
+
+    @Test
+    void servesRepeatedTileFromCacheUntilMetricsGenerationChanges() throws Exception {
+        stubTile(new byte[] { 0x1 });
+
+        mockMvc.perform(get("/tiles/metrics/m/7/66/42.mvt")).andExpect(status().isOk());
+        mockMvc.perform(get("/tiles/metrics/m/7/66/42.mvt")).andExpect(status().isOk());
+        verifyRendered(1, ArgumentCaptor.forClass(String.class));
+
+        when(datasetGenerations.metrics()).thenReturn(5L);
+        mockMvc.perform(get("/tiles/metrics/m/7/66/42.mvt")).andExpect(status().isOk());
+        verifyRendered(2, ArgumentCaptor.forClass(String.class));
+    }
+
+    @Test
+    void explicitRangePinnedToCurrentVersionIsImmutable() throws Exception {
+        stubTile(new byte[] { 0x1 });
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(datasetGenerations.metrics()).thenReturn(9L);
+
+        mockMvc.perform(get("/tiles/metrics/m/7/66/42.mvt")
+                        .param("from", "2026-01-01")
+                        .param("to", "2026-01-31")
+                        .param("v", "3.9"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "max-age=31536000, public, immutable"));
+
+        mockMvc.perform(get("/tiles/metrics/m/7/66/42.mvt").param("v", "3.9"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "max-age=60, public"));
+    }
+}
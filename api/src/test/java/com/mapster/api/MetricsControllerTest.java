@@ -5,17 +5,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
-import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.util.List;
 
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(MetricsController.class)
@@ -25,19 +22,40 @@ class MetricsControllerTest {
     private MockMvc mockMvc;
 
     @MockBean
-    private JdbcTemplate jdbcTemplate;
+    private MetricCatalogService metricCatalogService;
 
     @Test
     void returnsJsonArrayOfMetrics() throws Exception {
-        when(jdbcTemplate.query(anyString(), (RowMapper<MetricsController.MetricDto>) any()))
-            .thenReturn(List.of(
-                new MetricsController.MetricDto("price_eur_per_m2_land", "EUR/m2", "Land price"),
-                new MetricsController.MetricDto("rent_eur_per_m2", "EUR/m2", "Rent")
-            ));
+        when(metricCatalogService.catalog()).thenReturn(MetricCatalogService.Catalog.of(List.of(
+            new MetricCatalogService.Metric("price_eur_per_m2_land", "EUR/m2", "Land price"),
+            new MetricCatalogService.Metric("rent_eur_per_m2", "EUR/m2", "Rent")
+        )));
 
         mockMvc.perform(get("/metrics"))
             .andExpect(status().isOk())
             .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
             .andExpect(content().string(org.hamcrest.Matchers.containsString("price_eur_per_m2_land")));
     }
+
+    @Test
+    void revalidatesAgainstTheCatalogContentHash() throws Exception {
+        MetricCatalogService.Catalog catalog = MetricCatalogService.Catalog.of(List.of(
+            new MetricCatalogService.Metric("price_eur_per_m2_land", "EUR/m2", "Land price")
+        ));
+        when(metricCatalogService.catalog()).thenReturn(catalog);
+
+        String etag = mockMvc.perform(get("/metrics"))
+            .andExpect(status().isOk())
+            .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/metrics").header("If-None-Match", etag))
+            .andExpect(status().isNotModified());
+
+        when(metricCatalogService.catalog()).thenReturn(catalog.with(
+            new MetricCatalogService.Metric("price_eur_per_m2_land", "EUR/m2", "Price of building land")
+        ));
+        mockMvc.perform(get("/metrics").header("If-None-Match", etag))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", org.hamcrest.Matchers.not(etag)))
+            .andExpect(content().string(org.hamcrest.Matchers.containsString("Price of building land")));
+    }
 }
@@ -2,27 +2,44 @@ package com.mapster.api;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.*;
-import static org.mockito.Mockito.verify;
+import static com.mapster.api.FeatureRowStubs.perform;
+import static com.mapster.api.FeatureRowStubs.row;
+import static com.mapster.api.FeatureRowStubs.streamedStatements;
+import static com.mapster.api.FeatureRowStubs.stubFeatureRows;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(OverlayController.class)
+@Import({OverlayCache.class, SingleFlights.class, Bulkheads.class, FeatureStreamer.class, TestMeterRegistryConfiguration.class})
 class OverlayControllerTest {
 
     @Autowired
@@ -34,12 +51,25 @@ class OverlayControllerTest {
     @MockBean
     private JdbcTemplate jdbcTemplate;
 
+    @MockBean
+    private DatasetGenerationService datasetGenerations;
+
+    @MockBean
+    private GeometryPyramid geometryPyramid;
+
+    @Autowired
+    private OverlayCache overlayCache;
+
+    @BeforeEach
+    void clearOverlayCache() {
+        overlayCache.invalidateAll();
+    }
+
     @Test
-    void returnsEmptyFeatureCollectionWhenJdbcReturnsNull() throws Exception {
-                when(jdbcTemplate.queryForObject(anyString(), eq(String.class), any(), any(), any(), any()))
-                .thenReturn(null);
+    void returnsEmptyFeatureCollectionWhenNoRowsMatch() throws Exception {
+        stubFeatureRows(jdbcTemplate);
 
-        String body = mockMvc.perform(
+        String body = perform(mockMvc,
                         get("/overlays")
                                 .param("minLon", "13.38")
                                 .param("minLat", "52.51")
@@ -59,12 +89,143 @@ class OverlayControllerTest {
         assertThat(json.path("features").size()).isEqualTo(0);
     }
 
+    @Test
+    void streamsOneFeaturePerRowWithTheBboxAsParameters() throws Exception {
+        stubFeatureRows(jdbcTemplate,
+                row("geometry", "{\"type\":\"Point\",\"coordinates\":[13.39,52.515]}", "id", 7L, "name_1", "Berlin"),
+                row("geometry", null, "id", 8L, "name_1", null));
+
+        String body = perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                )
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        JsonNode json = objectMapper.readTree(body);
+        assertThat(json.path("features").size()).isEqualTo(2);
+        JsonNode first = json.path("features").get(0);
+        assertThat(first.path("type").asText()).isEqualTo("Feature");
+        assertThat(first.path("geometry").path("coordinates").get(0).asDouble()).isEqualTo(13.39);
+        assertThat(first.path("properties").path("id").asLong()).isEqualTo(7L);
+        assertThat(first.path("properties").path("name_1").asText()).isEqualTo("Berlin");
+        assertThat(first.path("properties").has("geometry")).isFalse();
+        JsonNode second = json.path("features").get(1);
+        assertThat(second.path("geometry").isNull()).isTrue();
+        assertThat(second.path("properties").path("name_1").isNull()).isTrue();
+        assertThat(streamedStatements(jdbcTemplate, 1).get(0).params()).containsExactly(13.38, 52.51, 13.40, 52.52);
+    }
+
+    @Test
+    void servesGeobufWhenRequestedViaAccept() throws Exception {
+        stubFeatureRows(jdbcTemplate);
+
+        byte[] body = perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                                .header("Accept", "application/geobuf")
+                )
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/geobuf"))
+                .andExpect(header().string("ETag", containsString("&f=geobuf")))
+                .andExpect(header().stringValues("Vary", hasItem("Accept")))
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray();
+
+        assertThat(body).isEqualTo(GeobufFeatureEncoder.EMPTY_FEATURE_COLLECTION);
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
+        assertThat(sql).contains("ST_AsBinary(");
+        assertThat(sql).doesNotContain("ST_AsGeoJSON(");
+    }
+
+    @Test
+    void servesTopoJsonWithArcReferencesWhenTopologyIsAvailable() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        when(geometryPyramid.topologyAvailable()).thenReturn(true);
+        stubFeatureRows(jdbcTemplate, row("geometry", "[[[7,-4]]]", "id", 1));
+
+        String body = perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                                .header("Accept", "application/topo+json")
+                )
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/topo+json"))
+                .andExpect(header().string("ETag", containsString("&f=topojson")))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertThat(body).contains("\"type\":\"Topology\"", "\"arcs\":[[0,-2]]");
+        List<FeatureStreamer.CursorStatement> statements = streamedStatements(jdbcTemplate, 2);
+        assertThat(statements.get(0).getSql()).contains("FROM geo.admin_area_arc_refs x", "x.tolerance_m = 80", "x.area_id = t.id");
+        assertThat(statements.get(1).getSql()).contains("FROM unnest(?::bigint[])");
+        assertThat(statements.get(1).params()).containsExactly((Object) new Long[] {7L, 3L});
+    }
+
+    @Test
+    void fallsBackToGeoJsonWhenTopologyIsNotBuilt() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                                .header("Accept", "application/topo+json")
+                )
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(header().string("ETag", not(containsString("&f=topojson"))));
+
+        assertThat(streamedStatements(jdbcTemplate, 1).get(0).getSql()).contains("ST_AsGeoJSON(");
+    }
+
+    @Test
+    void queryFailureYieldsUncacheableServerError() throws Exception {
+        doThrow(new DataAccessResourceFailureException("pool exhausted"))
+                .when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        String body = perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                )
+                .andExpect(status().isInternalServerError())
+                .andExpect(header().string("Cache-Control", "no-store"))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertThat(objectMapper.readTree(body).path("features").size()).isEqualTo(0);
+    }
+
     @Test
     void buildsSqlThatEmitsGeoJsonFeaturesAndDepthFilter() throws Exception {
-                when(jdbcTemplate.queryForObject(anyString(), eq(String.class), any(), any(), any(), any()))
-                .thenReturn("{\"type\":\"FeatureCollection\",\"features\":[]}");
+        stubFeatureRows(jdbcTemplate);
 
-        mockMvc.perform(
+        perform(mockMvc,
                         get("/overlays")
                                 .param("minLon", "13.38")
                                 .param("minLat", "52.51")
@@ -74,14 +235,13 @@ class OverlayControllerTest {
                 )
                 .andExpect(status().isOk());
 
-        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
-        verify(jdbcTemplate).queryForObject(sqlCaptor.capture(), eq(String.class), any(), any(), any(), any());
-
-        String sql = sqlCaptor.getValue();
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
         assertThat(sql).contains("DISTINCT ON (gid_0, gid_1, gid_2, gid_3, gid_4, gid_5)");
-        assertThat(sql).contains("'type', 'Feature'");
-        assertThat(sql).contains("'geometry'");
         assertThat(sql).contains("ST_AsGeoJSON(");
+        assertThat(sql).contains(", 6) AS geometry");
+        assertThat(sql).contains("t.country AS name_0");
+        // JSON is encoded while streaming, not built in the database.
+        assertThat(sql).doesNotContain("jsonb_build_object");
 
         // Ensure bbox operator is used for index-friendly filtering.
         assertThat(sql).contains("WITH env AS");
@@ -95,6 +255,65 @@ class OverlayControllerTest {
         assertThat(sql).contains("ST_SimplifyPreserveTopology");
     }
 
+    @Test
+    void readsPresimplifiedGeometryWhenPyramidIsAvailable() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        stubFeatureRows(jdbcTemplate);
+
+        perform(mockMvc,
+                        get("/overlays")
+                                .param("minLon", "13.38")
+                                .param("minLat", "52.51")
+                                .param("maxLon", "13.40")
+                                .param("maxLat", "52.52")
+                                .param("zoom", "10")
+                )
+                .andExpect(status().isOk());
+
+         // zoom=10 => depth 4 => the 80 m pyramid level; no per-request simplification.
+        String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
+        assertThat(sql).contains("FROM geo.admin_areas_generalized, env");
+        assertThat(sql).contains("geom_4326 && env.e");
+        assertThat(sql).contains("AND tolerance_m = 80");
+        assertThat(sql).contains("AND name_4 IS NOT NULL");
+        assertThat(sql).doesNotContain("ST_SimplifyPreserveTopology");
+        assertThat(sql).doesNotContain("ST_Transform");
+    }
+
+    @Test
+    void servesRepeatedOverlayFromGzipCache() throws Exception {
+        stubFeatureRows(jdbcTemplate);
+
+        for (int i = 0; i < 2; i++) {
+            byte[] body = perform(mockMvc,
+                            get("/overlays")
+                                    .param("minLon", "13.38")
+                                    .param("minLat", "52.51")
+                                    .param("maxLon", "13.40")
+                                    .param("maxLat", "52.52")
+                                    .param("zoom", "10")
+                                    .header("Accept-Encoding", "gzip")
+                    )
+                    .andExpect(status().isOk())
+                    .andExpect(header().string("Content-Encoding", "gzip"))
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsByteArray();
+            assertThat(new String(PrecompressedBodies.gunzip(body), StandardCharsets.UTF_8)).contains("FeatureCollection");
+        }
+
+        streamedStatements(jdbcTemplate, 1);
+        // Cache hits are written on the request thread, without an async dispatch.
+        mockMvc.perform(get("/overlays")
+                        .param("minLon", "13.38")
+                        .param("minLat", "52.51")
+                        .param("maxLon", "13.40")
+                        .param("maxLat", "52.52")
+                        .param("zoom", "10"))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isOk());
+    }
+
         @ParameterizedTest
         @CsvSource({
                         // zoom, mustContain, mustNotContain
@@ -108,10 +327,9 @@ class OverlayControllerTest {
                         "12.0,AND name_5 IS NOT NULL,AND name_5 IS NULL"
         })
         void zoomBoundariesSwitchDepthFilters(double zoom, String mustContain, String mustNotContain) throws Exception {
-                when(jdbcTemplate.queryForObject(anyString(), eq(String.class), any(), any(), any(), any()))
-                                .thenReturn("{\"type\":\"FeatureCollection\",\"features\":[]}");
+                stubFeatureRows(jdbcTemplate);
 
-                mockMvc.perform(
+                perform(mockMvc,
                                                 get("/overlays")
                                                                 .param("minLon", "13.38")
                                                                 .param("minLat", "52.51")
@@ -121,10 +339,7 @@ class OverlayControllerTest {
                                 )
                                 .andExpect(status().isOk());
 
-                ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
-                verify(jdbcTemplate).queryForObject(sqlCaptor.capture(), eq(String.class), any(), any(), any(), any());
-
-                String sql = sqlCaptor.getValue();
+                String sql = streamedStatements(jdbcTemplate, 1).get(0).getSql();
                 assertThat(sql).contains(mustContain);
                 assertThat(sql).doesNotContain(mustNotContain);
         }
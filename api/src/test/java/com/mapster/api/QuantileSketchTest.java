@@ -0,0 +1,58 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class QuantileSketchTest {
+
+    @Test
+    void quantilesOfASkewedDistributionAreWithinOnePercent() {
+        Random random = new Random(42);
+        double[] values = new double[10_001];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 200 * Math.exp(random.nextGaussian());
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertThat(sketch.count()).isEqualTo(values.length);
+        assertThat(sketch.quantile(0.5)).isCloseTo(values[5_000], within(values[5_000] * 0.01));
+        assertThat(sketch.quantile(0.9)).isCloseTo(values[9_000], within(values[9_000] * 0.01));
+    }
+
+    @Test
+    void mergingSketchesEqualsSketchingTheUnion() {
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        for (int v = 1; v <= 100; v++) {
+            (v % 3 == 0 ? high : low).add(v * 10.0);
+            all.add(v * 10.0);
+        }
+        low.merge(high);
+        low.merge(null);
+
+        assertThat(low.count()).isEqualTo(100);
+        for (double q : new double[] {0.0, 0.1, 0.5, 0.9, 1.0}) {
+            assertThat(low.quantile(q)).isEqualTo(all.quantile(q));
+        }
+    }
+
+    @Test
+    void parsesStoredJsonbAndKeepsNonPositiveValuesInOneBucket() {
+        QuantileSketch sketch = QuantileSketch.parse(
+            "{\"" + QuantileSketch.bucket(100.0) + "\": 3, \"" + QuantileSketch.NON_POSITIVE_BUCKET + "\": 1}");
+        sketch.add(-5.0);
+
+        assertThat(sketch.count()).isEqualTo(5);
+        assertThat(sketch.quantile(0.0)).isEqualTo(0.0);
+        assertThat(sketch.quantile(1.0)).isCloseTo(100.0, within(1.0));
+        assertThat(QuantileSketch.parse("{}").quantile(0.5)).isNull();
+    }
+}
@@ -0,0 +1,141 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RawRecordWorkersTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final BulkObservationLoader loader = mock(BulkObservationLoader.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    // "status <ids> [errors]" per UPDATE of facts_raw.raw_record.
+    private final List<String> marked = new ArrayList<>();
+
+    @Test
+    void normalizesClaimedBatchesAndMarksEveryRecord() throws Exception {
+        stubClaims(
+            List.of(claim(1), claim(2), new RawRecordWorkers.Claim(3, "{\"hello\":\"world\"}")),
+            List.of(claim(4)),
+            List.of()
+        );
+        stubParse();
+
+        long handled = workers(3).drain();
+
+        assertThat(handled).isEqualTo(4);
+        verify(loader).writeStaged(eq(List.of(row(1), row(2))), eq(true));
+        verify(loader).writeStaged(eq(List.of(row(4))), eq(true));
+        assertThat(marked).containsExactly("done [1, 2]", "error [3] [metricId is required]", "done [4]");
+        assertThat(registry.get("mapster.raw_workers.records").tag("outcome", "done").counter().count()).isEqualTo(3);
+        assertThat(registry.get("mapster.raw_workers.records").tag("outcome", "error").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void retriesAFailedBatchOneRecordAtATime() throws Exception {
+        stubClaims(List.of(claim(1), claim(2)), List.of());
+        when(jdbcTemplate.query(contains("WHERE id = ?"), any(RowMapper.class), anyLong()))
+            .thenAnswer(invocation -> List.of(claim(invocation.getArgument(2))));
+        stubParse();
+        doThrow(new IllegalStateException("value out of range")).when(loader).writeStaged(eq(List.of(row(1), row(2))), eq(true));
+        doThrow(new IllegalStateException("value out of range")).when(loader).writeStaged(eq(List.of(row(2))), eq(true));
+
+        RawRecordWorkers.Result result = workers(10).processBatch();
+
+        assertThat(result).isEqualTo(new RawRecordWorkers.Result(1, 1));
+        assertThat(marked).containsExactly("done [1]", "error [2] [value out of range]");
+    }
+
+    @Test
+    void leavesTheBatchForLaterOnTransientFailures() throws Exception {
+        stubClaims(List.of(claim(1), claim(2)), List.of());
+        stubParse();
+        doThrow(new DeadlockLoserDataAccessException("deadlock detected", null)).when(loader).writeStaged(anyList(), anyBoolean());
+
+        assertThat(workers(10).drain()).isZero();
+
+        verify(jdbcTemplate, never()).query(contains("WHERE id = ?"), any(RowMapper.class), anyLong());
+        assertThat(marked).isEmpty();
+    }
+
+    @Test
+    void waitsForTheNextTickWhenTheIngestBulkheadIsFull() throws Exception {
+        stubClaims(List.of(claim(1)), List.of());
+        stubParse();
+        Bulkheads bulkheads = new Bulkheads(registry, 6, 5000, 3, 10000, 4, 10000, 1, 0);
+        RawRecordWorkers workers = workers(10, bulkheads);
+
+        // An /ingest request holds the only slot.
+        long handled = bulkheads.ingest().call(workers::drain);
+
+        assertThat(handled).isZero();
+        verify(jdbcTemplate, never()).query(contains("LIMIT ?"), any(RowMapper.class), any(Object[].class));
+        assertThat(workers.drain()).isEqualTo(1);
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    private void stubClaims(List<RawRecordWorkers.Claim>... batches) {
+        var stub = when(jdbcTemplate.query(contains("LIMIT ?"), any(RowMapper.class), any(Object[].class)));
+        for (List<RawRecordWorkers.Claim> batch : batches) stub = stub.thenReturn((List) batch);
+        doAnswer(invocation -> {
+            Object[] params = (Object[]) invocation.getRawArguments()[1];
+            String sql = invocation.getArgument(0);
+            String status = sql.contains("'done'") ? "done" : "error";
+            marked.add(status + " " + Arrays.toString((Object[]) params[0])
+                + (params.length > 1 ? " " + Arrays.toString((Object[]) params[1]) : ""));
+            return ((Object[]) params[0]).length;
+        }).when(jdbcTemplate).update(contains("UPDATE facts_raw.raw_record"), any(Object[].class));
+    }
+
+    private void stubParse() throws IOException {
+        when(loader.parse(anyLong(), anyString())).thenAnswer(invocation -> {
+            long id = invocation.getArgument(0);
+            String payload = invocation.getArgument(1);
+            if (!payload.contains("metricId")) throw new IllegalArgumentException("metricId is required");
+            return row(id);
+        });
+    }
+
+    private static RawRecordWorkers.Claim claim(long id) {
+        return new RawRecordWorkers.Claim(id, "{\"metricId\":\"price\",\"value\":" + id + "}");
+    }
+
+    private static BulkObservationLoader.Row row(long id) {
+        return new BulkObservationLoader.Row(id, new IngestionController.IngestObservationRequest(
+            "price", BigDecimal.valueOf(id), null, null, null, null, null, null, null, null, null));
+    }
+
+    private RawRecordWorkers workers(int batchSize) {
+        return workers(batchSize, new Bulkheads(registry, 6, 5000, 3, 10000, 4, 10000, 3, 10000));
+    }
+
+    @SuppressWarnings("unchecked")
+    private RawRecordWorkers workers(int batchSize, Bulkheads bulkheads) {
+        return new RawRecordWorkers(jdbcTemplate, mock(ObjectProvider.class), loader, bulkheads, registry, 2, batchSize, 15000);
+    }
+}
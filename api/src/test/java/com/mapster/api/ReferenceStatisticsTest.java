@@ -0,0 +1,174 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReferenceStatisticsTest {
+
+    private static final LocalDate FROM = LocalDate.of(2026, 1, 1);
+    private static final LocalDate TO = LocalDate.of(2026, 2, 10);
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Test
+    void sumsLoadedBucketsOverTheRangeSegments() throws Exception {
+        ReferenceStatistics statistics = statistics(true);
+        // January is read from the monthly table, February 1..10 from the daily one.
+        stubLoad(
+            row("facts_agg.area_metric_monthly", "DEU", LocalDate.of(2026, 1, 1), 4, 400.0),
+            row("facts_agg.area_metric_monthly", "FRA", LocalDate.of(2026, 1, 1), 1, 300.0),
+            row("facts_agg.area_metric_monthly", null, LocalDate.of(2026, 1, 1), 5, 700.0),
+            row("facts_agg.area_metric_daily", "DEU", LocalDate.of(2026, 2, 3), 2, 200.0),
+            row("facts_agg.area_metric_daily", null, LocalDate.of(2026, 2, 3), 2, 200.0),
+            // Outside the range.
+            row("facts_agg.area_metric_daily", null, LocalDate.of(2026, 2, 11), 100, 1.0)
+        );
+        assertThat(statistics.ready()).isFalse();
+
+        statistics.sync();
+
+        assertThat(statistics.ready()).isTrue();
+        assertThat(statistics.average("price", 1, null, FROM, TO)).isCloseTo(900.0 / 7, within(1e-9));
+        assertThat(statistics.average("price", 1, "DEU", FROM, TO)).isEqualTo(100.0);
+        assertThat(statistics.average("price", 2, null, FROM, TO)).isNull();
+        assertThat(statistics.countryAverages("price", 1, FROM, TO)).isEqualTo(Map.of("DEU", 100.0, "FRA", 300.0));
+    }
+
+    @Test
+    void appliesIngestedObservationsAndRegroupsOnlyRecentBucketsAfterwards() throws Exception {
+        ReferenceStatistics statistics = statistics(true);
+        stubLoad(row("facts_agg.area_metric_daily", "DEU", LocalDate.of(2026, 2, 3), 2, 200.0),
+            row("facts_agg.area_metric_daily", null, LocalDate.of(2026, 2, 3), 2, 200.0));
+        statistics.sync();
+
+        statistics.add("price", Map.of("DEU|DEU.1_1||||", 1, "DEU|||||", 0), LocalDate.of(2026, 2, 4), 50.0);
+
+        assertThat(statistics.average("price", 1, "DEU", FROM, TO)).isEqualTo(250.0 / 3);
+        assertThat(statistics.average("price", 0, null, FROM, TO)).isEqualTo(50.0);
+        // The month and year buckets are kept in step with the days.
+        assertThat(statistics.average("price", 0, null, LocalDate.of(2026, 1, 1), LocalDate.of(2026, 12, 31)))
+            .isEqualTo(50.0);
+
+        statistics.sync();
+        // Totals and sketches per level.
+        verify(jdbcTemplate, times(6)).query(anyString(), any(RowCallbackHandler.class));
+        verify(jdbcTemplate, times(6)).query(
+            argThat((String sql) -> sql.contains(RollupChangeLog.CHANGED_KEYS_SQL)),
+            any(RowCallbackHandler.class), eq("1000"));
+    }
+
+    @Test
+    void mergesTheDepthsSketchesOverTheRangeSegments() throws Exception {
+        ReferenceStatistics statistics = statistics(true);
+        stubLoad(
+            row("facts_agg.area_metric_monthly", null, LocalDate.of(2026, 1, 1), 2, 200.0, sketch(100.0, 100.0)),
+            row("facts_agg.area_metric_daily", null, LocalDate.of(2026, 2, 3), 2, 600.0, sketch(300.0, 300.0)),
+            // Outside the range.
+            row("facts_agg.area_metric_daily", null, LocalDate.of(2026, 2, 11), 1, 5000.0, sketch(5000.0))
+        );
+        assertThat(statistics.deciles("price", 1, FROM, TO)).isNull();
+        statistics.sync();
+
+        Double[] deciles = statistics.deciles("price", 1, FROM, TO);
+        assertThat(deciles).hasSize(9);
+        assertThat(deciles[0]).isCloseTo(100.0, within(1.0));
+        assertThat(deciles[8]).isCloseTo(300.0, within(3.0));
+
+        // Ingested observations count without another query.
+        statistics.add("price", Map.of("DEU|DEU.1_1||||", 1), LocalDate.of(2026, 2, 4), 1000.0);
+        statistics.add("price", Map.of("DEU|DEU.1_1||||", 1), LocalDate.of(2026, 2, 4), 1000.0);
+        assertThat(statistics.deciles("price", 1, FROM, TO)[8]).isCloseTo(1000.0, within(10.0));
+        assertThat(statistics.deciles("price", 2, FROM, TO)).isNull();
+    }
+
+    @Test
+    void staysOffWhenDisabled() {
+        ReferenceStatistics statistics = statistics(false);
+        statistics.sync();
+        statistics.add("price", Map.of("DEU|||||", 0), LocalDate.of(2026, 2, 4), 50.0);
+
+        assertThat(statistics.ready()).isFalse();
+        assertThat(statistics.average("price", 0, null, FROM, TO)).isNull();
+        verify(jdbcTemplate, never()).query(anyString(), any(RowCallbackHandler.class));
+    }
+
+    private ReferenceStatistics statistics(boolean enabled) {
+        when(jdbcTemplate.queryForObject(RollupChangeLog.POSITION_SQL, String.class)).thenReturn("1000");
+        return new ReferenceStatistics(jdbcTemplate, new RollupChangeLog(jdbcTemplate, Duration.ofHours(1)),
+            new SimpleMeterRegistry(), enabled);
+    }
+
+    private record Row(String table, String country, LocalDate bucket, long count, double sum, String sketch) {}
+
+    private static Row row(String table, String country, LocalDate bucket, long count, double sum) {
+        return row(table, country, bucket, count, sum, null);
+    }
+
+    private static Row row(String table, String country, LocalDate bucket, long count, double sum, String sketch) {
+        return new Row(table, country, bucket, count, sum, sketch);
+    }
+
+    /** The jsonb text of a stored sketch of {@code values}. */
+    private static String sketch(double... values) {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (double value : values) counts.merge(QuantileSketch.bucket(value), 1, Integer::sum);
+        StringJoiner json = new StringJoiner(", ", "{", "}");
+        counts.forEach((bucket, count) -> json.add("\"" + bucket + "\": " + count));
+        return json.toString();
+    }
+
+    /**
+     * Feeds each level's initial load the rows of its table (country null = the all-countries total), and its sketch
+     * query the all-countries rows' sketches.
+     */
+    private void stubLoad(Row... rows) {
+        doAnswer(invocation -> {
+            String sql = invocation.getArgument(0);
+            RowCallbackHandler handler = invocation.getArgument(1);
+            boolean sketchQuery = sql.contains("jsonb_each_text");
+            List<Row> matching = new ArrayList<>();
+            for (Row row : rows) {
+                if (sql.contains("FROM " + row.table() + (sketchQuery ? "," : " ")) && (!sketchQuery || row.country() == null)) {
+                    matching.add(row);
+                }
+            }
+            for (Row row : matching) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getString("metric_id")).thenReturn("price");
+                when(rs.getInt("area_depth")).thenReturn(1);
+                when(rs.getInt("global")).thenReturn(row.country() == null ? 1 : 0);
+                when(rs.getString("country")).thenReturn(row.country());
+                when(rs.getObject("bucket", LocalDate.class)).thenReturn(row.bucket());
+                when(rs.getLong("count_value")).thenReturn(row.count());
+                when(rs.getDouble("sum_value")).thenReturn(row.sum());
+                when(rs.getString("sketch")).thenReturn(row.sketch());
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class));
+    }
+}
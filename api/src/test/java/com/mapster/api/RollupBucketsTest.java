@@ -0,0 +1,74 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mapster.api.RollupBuckets.Level.DAY;
+import static com.mapster.api.RollupBuckets.Level.MONTH;
+import static com.mapster.api.RollupBuckets.Level.YEAR;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RollupBucketsTest {
+
+    @Test
+    void shortRangeWithinAMonthUsesDays() {
+        assertThat(RollupBuckets.decompose(d("2026-01-05"), d("2026-01-22"))).containsExactly(
+            segment(DAY, "2026-01-05", "2026-01-23"));
+    }
+
+    @Test
+    void wholeMonthsAndYearsUseTheCoarsestBuckets() {
+        assertThat(RollupBuckets.decompose(d("2026-01-01"), d("2026-01-31"))).containsExactly(
+            segment(MONTH, "2026-01-01", "2026-02-01"));
+        assertThat(RollupBuckets.decompose(d("2024-01-01"), d("2025-12-31"))).containsExactly(
+            segment(YEAR, "2024-01-01", "2026-01-01"));
+    }
+
+    @Test
+    void raggedEndsAreSplitIntoDaysMonthsAndYears() {
+        assertThat(RollupBuckets.decompose(d("2023-11-20"), d("2026-02-10"))).containsExactly(
+            segment(DAY, "2023-11-20", "2023-12-01"),
+            segment(MONTH, "2023-12-01", "2024-01-01"),
+            segment(YEAR, "2024-01-01", "2026-01-01"),
+            segment(MONTH, "2026-01-01", "2026-02-01"),
+            segment(DAY, "2026-02-01", "2026-02-11"));
+        // Across a year boundary without a whole year: months may span it.
+        assertThat(RollupBuckets.decompose(d("2025-10-15"), d("2026-03-03"))).containsExactly(
+            segment(DAY, "2025-10-15", "2025-11-01"),
+            segment(MONTH, "2025-11-01", "2026-03-01"),
+            segment(DAY, "2026-03-01", "2026-03-04"));
+    }
+
+    @Test
+    void emptyRangeKeepsAValidQueryWithoutRows() {
+        assertThat(RollupBuckets.decompose(d("2026-02-01"), d("2026-01-01"))).isEmpty();
+
+        List<Object> params = new ArrayList<>();
+        String sql = RollupBuckets.sql("m", d("2026-02-01"), d("2026-01-01"), params);
+        assertThat(sql).contains("FROM facts_agg.area_metric_daily WHERE metric_id = ? AND day >= ? AND day < ?");
+        assertThat(params).containsExactly("m", d("2026-02-01"), d("2026-02-01"));
+    }
+
+    @Test
+    void sqlUnionsOneBranchPerSegment() {
+        List<Object> params = new ArrayList<>(List.of("first"));
+        String sql = RollupBuckets.sql("m", d("2025-12-30"), d("2026-12-31"), params);
+
+        assertThat(sql).startsWith("(").endsWith(")").contains(" UNION ALL ")
+            .contains("FROM facts_agg.area_metric_yearly WHERE metric_id = ? AND year >= ? AND year < ?");
+        assertThat(params).containsExactly("first",
+            "m", d("2025-12-30"), d("2026-01-01"),
+            "m", d("2026-01-01"), d("2027-01-01"));
+    }
+
+    private static LocalDate d(String date) {
+        return LocalDate.parse(date);
+    }
+
+    private static RollupBuckets.Segment segment(RollupBuckets.Level level, String start, String end) {
+        return new RollupBuckets.Segment(level, d(start), d(end));
+    }
+}
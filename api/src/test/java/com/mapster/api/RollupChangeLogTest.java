@@ -0,0 +1,39 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RollupChangeLogTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Test
+    void prunesOnlyBelowAPositionTakenARetentionAgo() {
+        when(jdbcTemplate.queryForObject(RollupChangeLog.POSITION_SQL, String.class)).thenReturn("1000", "2000");
+
+        // The position just taken may still be ahead of syncs that have not run since.
+        RollupChangeLog recent = new RollupChangeLog(jdbcTemplate, Duration.ofHours(1));
+        recent.prune();
+        verify(jdbcTemplate, never()).update(anyString(), anyString());
+
+        RollupChangeLog expired = new RollupChangeLog(jdbcTemplate, Duration.ZERO);
+        expired.prune();
+        verify(jdbcTemplate).update("DELETE FROM facts_agg.rollup_change WHERE xid < ?::xid8", "2000");
+    }
+
+    @Test
+    void syncsOlderThanTheRetentionReloadEverything() {
+        RollupChangeLog log = new RollupChangeLog(jdbcTemplate, Duration.ofHours(1));
+        assertThat(log.outlived(Duration.ofMinutes(59))).isFalse();
+        assertThat(log.outlived(Duration.ofHours(1))).isTrue();
+    }
+}
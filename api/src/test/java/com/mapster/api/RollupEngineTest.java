@@ -0,0 +1,86 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RollupEngineTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Test
+    void coversNothingUntilTheFirstSyncHasLoaded() {
+        RollupEngine engine = engine(true);
+        LocalDate today = LocalDate.now();
+        assertThat(engine.covers(today.minusDays(7), today)).isFalse();
+
+        engine.sync();
+
+        verify(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+        assertThat(engine.covers(today.minusDays(7), today)).isTrue();
+        assertThat(engine.covers(today.minusDays(30), today)).isFalse();
+    }
+
+    @Test
+    void aggregatesAddedObservationsOverTheRange() {
+        RollupEngine engine = engine(true);
+        engine.sync();
+        LocalDate today = LocalDate.now();
+        engine.add("price", List.of("DEU.1_1", "DEU"), today.minusDays(2), 100.0);
+        engine.add("price", List.of("DEU.1_1", "DEU"), today, 300.0);
+        engine.add("price", List.of("DEU.2_1", "DEU"), today, 50.0);
+
+        RollupEngine.Aggregates week = engine.aggregate("price", List.of("DEU.1_1", "DEU", "FRA"), today.minusDays(6), today);
+        assertThat(week.count()).containsExactly(2, 3, 0);
+        assertThat(week.sum()).containsExactly(400.0, 450.0, 0.0);
+        assertThat(week.min()[1]).isEqualTo(50.0);
+        assertThat(week.max()[1]).isEqualTo(300.0);
+        assertThat(week.min()[2]).isNaN();
+        assertThat(week.overallAverage()).isEqualTo(850.0 / 5);
+        assertThat(week.p50()[0]).isCloseTo(100.0, within(1.0));
+        assertThat(week.p50()[1]).isCloseTo(100.0, within(1.0));
+        assertThat(week.p50()[2]).isNaN();
+        // Over all five observations (50, 100, 100, 300, 300).
+        assertThat(week.deciles()).hasSize(9);
+        assertThat(week.deciles()[0]).isCloseTo(50.0, within(0.5));
+        assertThat(week.deciles()[8]).isCloseTo(300.0, within(3.0));
+
+        RollupEngine.Aggregates yesterday = engine.aggregate("price", List.of("DEU.1_1"), today.minusDays(1), today.minusDays(1));
+        assertThat(yesterday.count()).containsExactly(0);
+        assertThat(yesterday.overallAverage()).isNull();
+        assertThat(yesterday.deciles()).isNull();
+    }
+
+    @Test
+    void staysOffWhenDisabled() {
+        RollupEngine engine = engine(false);
+        engine.sync();
+        engine.add("price", List.of("DEU"), LocalDate.now(), 1.0);
+
+        assertThat(engine.covers(LocalDate.now(), LocalDate.now())).isFalse();
+        assertThat(engine.aggregate("price", List.of("DEU"), LocalDate.now(), LocalDate.now()).count()).containsExactly(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RollupEngine engine(boolean enabled) {
+        when(jdbcTemplate.queryForObject(RollupChangeLog.POSITION_SQL, String.class)).thenReturn("1000");
+        ObjectProvider<PlatformTransactionManager> transactionManager = mock(ObjectProvider.class);
+        return new RollupEngine(jdbcTemplate, new RollupChangeLog(jdbcTemplate, Duration.ofHours(1)), transactionManager,
+            new SimpleMeterRegistry(), enabled, 10, 256);
+    }
+}
@@ -0,0 +1,131 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RollupWriteBehindTest {
+
+    private static final LocalDate DAY = LocalDate.of(2026, 1, 10);
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final DatasetGenerationService datasetGenerations = mock(DatasetGenerationService.class);
+    private final AreaMetricsResultCache areaMetricsCache = mock(AreaMetricsResultCache.class);
+    private final List<Object[]> flushes = new CopyOnWriteArrayList<>();
+    private volatile boolean failNextFlush;
+
+    @Test
+    void combinesObservationsPerAreaMetricAndDayIntoOneRowPerFlush() throws Exception {
+        stubFlush();
+        RollupWriteBehind writeBehind = writeBehind(100);
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("100"));
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("300.5"));
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("100"));
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY.plusDays(1), new BigDecimal("7"));
+
+        writeBehind.flush();
+
+        assertThat(flushes).hasSize(1);
+        Object[] params = flushes.get(0);
+        List<String> days = List.of((String[]) params[2]);
+        int i = days.indexOf("2026-01-10");
+        assertThat((String[]) params[0]).containsOnly("DEU|DEU.1_1||||");
+        assertThat(((Long[]) params[3])[i]).isEqualTo(3L);
+        assertThat(((String[]) params[4])[i]).isEqualTo("500.5");
+        assertThat(((String[]) params[5])[i]).isEqualTo("100");
+        assertThat(((String[]) params[6])[i]).isEqualTo("300.5");
+        assertThat(((String[]) params[7])[i]).isEqualTo("{\"233\":2,\"289\":1}");
+        // The ancestors the flush wrote to are invalidated afterwards.
+        verify(areaMetricsCache).invalidate(eq("price"), eq(Set.of("DEU|||||")), eq(DAY));
+        verify(datasetGenerations).markChanged(DatasetGenerationService.METRICS);
+
+        writeBehind.flush();
+        assertThat(flushes).hasSize(1);
+    }
+
+    @Test
+    void keepsFailedDeltasForTheNextFlushAndFlushesEarlyAtMaxKeys() throws Exception {
+        stubFlush();
+        RollupWriteBehind writeBehind = writeBehind(2);
+        failNextFlush = true;
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("1"));
+        writeBehind.flush();
+        verify(areaMetricsCache, never()).invalidate(anyString(), any(), any());
+
+        // The requeued key plus a new one reach max-keys and flush without waiting for the interval.
+        writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("2"));
+        assertThat(flushes).hasSize(1);
+        writeBehind.add("FRA|FRA.1_1||||", "price", DAY, new BigDecimal("3"));
+
+        verify(jdbcTemplate, timeout(5000).times(2)).query(anyString(), any(RowCallbackHandler.class), any(Object[].class));
+        assertThat(flushes).hasSize(2);
+        Object[] params = flushes.get(1);
+        int i = List.of((String[]) params[0]).indexOf("DEU|DEU.1_1||||");
+        assertThat(((Long[]) params[3])[i]).isEqualTo(2L);
+        assertThat(((String[]) params[4])[i]).isEqualTo("3");
+    }
+
+    @Test
+    void flushesAtMaxKeysWithoutBlockingTheIngestingRequest() throws Exception {
+        stubFlush();
+        Bulkheads bulkheads = new Bulkheads(new SimpleMeterRegistry(), 1, 1000, 1, 1000, 1, 1000, 1, 5000);
+        RollupWriteBehind writeBehind = writeBehind(1, bulkheads);
+
+        // The request holds the only ingest slot while it hands over the observation.
+        long started = System.nanoTime();
+        bulkheads.ingest().call(() -> {
+            writeBehind.add("DEU|DEU.1_1||||", "price", DAY, new BigDecimal("1"));
+            return null;
+        });
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isLessThan(1000);
+
+        verify(jdbcTemplate, timeout(5000)).query(anyString(), any(RowCallbackHandler.class), any(Object[].class));
+        assertThat(flushes).hasSize(1);
+    }
+
+    private void stubFlush() {
+        doAnswer(invocation -> {
+            Object[] params = (Object[]) invocation.getRawArguments()[2];
+            flushes.add(params);
+            if (failNextFlush) {
+                failNextFlush = false;
+                throw new IllegalStateException("deadlock detected");
+            }
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.getString(1)).thenReturn("DEU|||||");
+            when(rs.getString(2)).thenReturn("price");
+            when(rs.getObject(3, LocalDate.class)).thenReturn(DAY);
+            ((RowCallbackHandler) invocation.getArgument(1)).processRow(rs);
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), any(Object[].class));
+    }
+
+    private RollupWriteBehind writeBehind(int maxKeys) {
+        return writeBehind(maxKeys, new Bulkheads(new SimpleMeterRegistry(), 1, 1000, 1, 1000, 1, 1000, 1, 1000));
+    }
+
+    private RollupWriteBehind writeBehind(int maxKeys, Bulkheads bulkheads) {
+        return new RollupWriteBehind(jdbcTemplate, datasetGenerations, areaMetricsCache, bulkheads,
+            new SimpleMeterRegistry(), true, maxKeys);
+    }
+}
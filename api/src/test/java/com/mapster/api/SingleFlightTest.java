@@ -0,0 +1,121 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private double requests(String role) {
+        return registry.get("mapster.single_flight.requests").tag("flight", "test").tag("role", role).counter().count();
+    }
+
+    @Test
+    void concurrentCallersForTheSameKeyShareOneComputation() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(5), registry);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> flight.execute("tile", () -> {
+                    loads.incrementAndGet();
+                    release.await(5, TimeUnit.SECONDS);
+                    return "body";
+                })));
+            }
+            // Let every caller register before the leader finishes.
+            while (requests("leader") + requests("collapsed") < 8) Thread.sleep(5);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("body");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(requests("leader")).isEqualTo(1);
+        assertThat(requests("collapsed")).isEqualTo(7);
+        assertThat(flight.inFlightCount()).isZero();
+    }
+
+    @Test
+    void keyIsForgottenOnceTheLeaderFinishes() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>("test", Duration.ofSeconds(1), registry);
+        AtomicInteger loads = new AtomicInteger();
+
+        flight.execute("k", loads::incrementAndGet);
+        flight.execute("k", loads::incrementAndGet);
+
+        assertThat(loads.get()).isEqualTo(2);
+        assertThat(requests("collapsed")).isZero();
+    }
+
+    @Test
+    void followerGivesUpAfterItsTimeoutWithoutStartingASecondComputation() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(5), registry);
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> leader = pool.submit(() -> flight.execute("slow", () -> {
+                leaderStarted.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "late";
+            }));
+            assertThat(leaderStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> flight.execute("slow", Duration.ofMillis(50), () -> "second"))
+                .isInstanceOf(SingleFlight.TimeoutException.class);
+
+            release.countDown();
+            assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("late");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(registry.get("mapster.single_flight.timeouts").tag("flight", "test").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void loaderFailureIsRethrownToFollowers() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(5), registry);
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = pool.submit(() -> flight.execute("bad", () -> {
+                leaderStarted.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                throw new IllegalStateException("db down");
+            }));
+            assertThat(leaderStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            Future<String> follower = pool.submit(() -> flight.execute("bad", () -> "unused"));
+            while (requests("collapsed") < 1) Thread.sleep(5);
+            release.countDown();
+
+            assertThatThrownBy(() -> follower.get(5, TimeUnit.SECONDS)).hasRootCauseInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS)).hasRootCauseInstanceOf(IllegalStateException.class);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
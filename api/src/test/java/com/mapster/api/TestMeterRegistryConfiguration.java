@@ -0,0 +1,18 @@
+package com.mapster.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * MVC slice tests don't include the metrics auto-configuration; components that publish meters need a registry.
+ */
+@TestConfiguration
+class TestMeterRegistryConfiguration {
+
+    @Bean
+    MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+}
@@ -0,0 +1,74 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TileArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsTilesAndDistinguishesEmptyFromUncovered() throws Exception {
+        Path file = dir.resolve("tiles.bin");
+        // Roughly Germany, zoom 6..8.
+        try (TileArchiveWriter writer = new TileArchiveWriter(file, 42, 6, 8, 5.9, 47.3, 15.0, 55.1)) {
+            writer.add(8, 137, 84, new byte[] { 3, 3, 3 });
+            writer.add(6, 33, 20, new byte[] { 1 });
+            writer.add(7, 67, 41, new byte[] { 2, 2 });
+            writer.add(7, 68, 42, new byte[0]);
+            writer.finish();
+        }
+        assertThat(Files.list(dir)).containsExactly(file);
+
+        TileArchive archive = TileArchive.open(file);
+        assertThat(archive.generation()).isEqualTo(42);
+        assertThat(archive.tileCount()).isEqualTo(3);
+
+        assertThat(archive.find(6, 33, 20)).containsExactly(1);
+        assertThat(archive.find(7, 67, 41)).containsExactly(2, 2);
+        assertThat(archive.find(8, 137, 84)).containsExactly(3, 3, 3);
+
+        // Seeded range, no content => known empty
+        assertThat(archive.find(7, 68, 42)).isEmpty();
+        // Outside zoom range or bbox => not covered
+        assertThat(archive.find(9, 268, 170)).isNull();
+        assertThat(archive.find(6, 10, 10)).isNull();
+    }
+
+    @Test
+    void rejectsArchivesWithUncompressedTiles() throws Exception {
+        Path file = dir.resolve("tiles.bin");
+        try (TileArchiveWriter writer = new TileArchiveWriter(file, 42, 6, 8, 5.9, 47.3, 15.0, 55.1)) {
+            writer.add(6, 33, 20, new byte[] { 1 });
+            writer.finish();
+        }
+        // The header field that once allowed raw tiles.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0), 12);
+        }
+
+        assertThatThrownBy(() -> TileArchive.open(file))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("compression 0");
+    }
+
+    @Test
+    void tileIdsAreUniqueAndOrderedByZoom() {
+        assertThat(TileArchive.tileId(0, 0, 0)).isEqualTo(0);
+        assertThat(TileArchive.tileId(1, 0, 0)).isEqualTo(1);
+        assertThat(TileArchive.tileId(1, 1, 1)).isEqualTo(4);
+        assertThat(TileArchive.tileId(2, 0, 0)).isEqualTo(5);
+        assertThat(TileArchive.tileId(11, 2047, 2047)).isLessThan(TileArchive.tileId(12, 0, 0));
+    }
+}
@@ -1,5 +1,6 @@
 package com.mapster.api;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
@@ -7,10 +8,12 @@ import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.web.servlet.MockMvc;
 
+import static org.hamcrest.Matchers.hasItem;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -18,18 +21,37 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(TileController.class)
+@Import({TileRenderer.class, TileCache.class, SingleFlights.class, Bulkheads.class, TestMeterRegistryConfiguration.class})
 class TileControllerTest {
 
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private TileCache tileCache;
+
     @MockBean
     private JdbcTemplate jdbcTemplate;
 
+    @MockBean
+    private DatasetGenerationService datasetGenerations;
+
+    @MockBean
+    private TileStore tileStore;
+
+    @MockBean
+    private GeometryPyramid geometryPyramid;
+
+    @BeforeEach
+    void clearTileCache() {
+        tileCache.invalidateAll();
+    }
+
     @Test
     void returnsMvtWithContentTypeAndEtag() throws Exception {
         when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
@@ -43,10 +65,83 @@ class TileControllerTest {
         verify(jdbcTemplate).queryForObject(anyString(), eq(byte[].class), any(), any(), any());
     }
 
+    @Test
+    void servesRepeatedTileFromCacheWithoutQueryingAgain() throws Exception {
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1, 0x2, 0x3 });
+
+        mockMvc.perform(get("/tiles/8/134/86.mvt")).andExpect(status().isOk());
+        mockMvc.perform(get("/tiles/8/134/86.mvt"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(new byte[] { 0x1, 0x2, 0x3 }));
+
+        verify(jdbcTemplate, times(1)).queryForObject(anyString(), eq(byte[].class), any(), any(), any());
+    }
+
+    @Test
+    void sendsStoredGzipAsIsWhenClientAcceptsGzip() throws Exception {
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1, 0x2, 0x3 });
+
+        byte[] body = mockMvc.perform(get("/tiles/8/134/86.mvt").header("Accept-Encoding", "gzip, deflate, br"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andExpect(header().stringValues("Vary", hasItem("Accept-Encoding")))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertThat(PrecompressedBodies.gunzip(body)).containsExactly(0x1, 0x2, 0x3);
+    }
+
+    @Test
+    void newDatasetGenerationBypassesCachedTile() throws Exception {
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1 });
+
+        when(datasetGenerations.boundaries()).thenReturn(1L);
+        mockMvc.perform(get("/tiles/8/134/86.mvt")).andExpect(status().isOk());
+        when(datasetGenerations.boundaries()).thenReturn(2L);
+        mockMvc.perform(get("/tiles/8/134/86.mvt")).andExpect(status().isOk());
+
+        verify(jdbcTemplate, times(2)).queryForObject(anyString(), eq(byte[].class), any(), any(), any());
+    }
+
+    @Test
+    void readsPresimplifiedMercatorGeometryWhenPyramidIsAvailable() throws Exception {
+        when(geometryPyramid.available()).thenReturn(true);
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1 });
+
+        mockMvc.perform(get("/tiles/9/268/170.mvt")).andExpect(status().isOk());
+        mockMvc.perform(get("/tiles/13/4300/2700.mvt")).andExpect(status().isOk());
+
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        verify(jdbcTemplate, times(2)).queryForObject(sqlCaptor.capture(), eq(byte[].class), any(), any(), any());
+
+        // z=9 => depth 3 level (250 m); past zoom 11 the unsimplified level is used.
+        String sql = sqlCaptor.getAllValues().get(0);
+        assertThat(sql).contains("FROM geo.admin_areas_generalized a");
+        assertThat(sql).contains("a.tolerance_m = 250");
+        assertThat(sql).contains("ST_AsMVTGeom(a.geom_3857");
+        assertThat(sql).doesNotContain("ST_Transform");
+        assertThat(sql).contains("AND a.name_3 IS NOT NULL");
+        assertThat(sqlCaptor.getAllValues().get(1)).contains("a.tolerance_m = 0");
+    }
+
+    @Test
+    void servesSeededTileFromStoreWithoutQuerying() throws Exception {
+        when(tileStore.find(eq(9), eq(268), eq(170), anyLong())).thenReturn(PrecompressedBodies.gzip(new byte[] { 0x7 }));
+
+        mockMvc.perform(get("/tiles/9/268/170.mvt"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(new byte[] { 0x7 }));
+
+        verify(jdbcTemplate, never()).queryForObject(anyString(), eq(byte[].class), any(), any(), any());
+    }
+
     @Test
     void returns304WhenIfNoneMatchMatches() throws Exception {
         // z=6 => depth=0 per controller mapping
-        String etag = "W/\"z=6&x=33&y=20&depth=0\"";
+        String etag = "W/\"z=6&x=33&y=20&depth=0&gen=0\"";
 
         mockMvc.perform(get("/tiles/6/33/20.mvt").header("If-None-Match", etag))
                 .andExpect(status().isNotModified())
@@ -55,6 +150,37 @@ class TileControllerTest {
         verify(jdbcTemplate, never()).queryForObject(anyString(), eq(byte[].class), any(), any(), any());
     }
 
+    @Test
+    void etagChangesWithBoundariesGeneration() throws Exception {
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+
+        mockMvc.perform(get("/tiles/6/33/20.mvt").header("If-None-Match", "W/\"z=6&x=33&y=20&depth=0&gen=2\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "W/\"z=6&x=33&y=20&depth=0&gen=3\""));
+    }
+
+    @Test
+    void currentVersionedTileIsImmutable() throws Exception {
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1 });
+
+        mockMvc.perform(get("/tiles/v3/6/33/20.mvt"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "max-age=31536000, public, immutable"));
+    }
+
+    @Test
+    void staleVersionedTileIsServedButNotCached() throws Exception {
+        when(datasetGenerations.boundaries()).thenReturn(3L);
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(), any(), any()))
+                .thenReturn(new byte[] { 0x1 });
+
+        mockMvc.perform(get("/tiles/v2/6/33/20.mvt"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "no-cache"));
+    }
+
         @ParameterizedTest
         @CsvSource({
             "5,0",
@@ -64,7 +190,7 @@ class TileControllerTest {
             "12,5"
         })
         void etagDepthMatchesZoomMapping(int z, int expectedDepth) throws Exception {
-        String etag = String.format("W/\"z=%d&x=33&y=20&depth=%d\"", z, expectedDepth);
+        String etag = String.format("W/\"z=%d&x=33&y=20&depth=%d&gen=0\"", z, expectedDepth);
 
         mockMvc.perform(get(String.format("/tiles/%d/33/20.mvt", z)).header("If-None-Match", etag))
             .andExpect(status().isNotModified())
@@ -0,0 +1,57 @@
+package com.mapster.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TileSeederTest {
+
+    @TempDir
+    Path dir;
+
+    private final TileRenderer tileRenderer = mock(TileRenderer.class);
+    private final DatasetGenerationService datasetGenerations = mock(DatasetGenerationService.class);
+
+    @Test
+    void writesTheArchiveStampedWithTheBoundariesGeneration() throws Exception {
+        when(tileRenderer.render(anyInt(), anyInt(), anyInt())).thenReturn(new byte[] { 1 });
+        when(datasetGenerations.boundaries()).thenReturn(7L);
+        Path file = dir.resolve("tiles.bin");
+
+        seeder(file).seed();
+
+        TileArchive archive = TileArchive.open(file);
+        assertThat(archive.generation()).isEqualTo(7);
+        assertThat(archive.tileCount()).isEqualTo(1);
+    }
+
+    @Test
+    void keepsTheExistingArchiveWhenTheBoundariesChangeWhileSeeding() throws Exception {
+        when(tileRenderer.render(anyInt(), anyInt(), anyInt())).thenReturn(new byte[] { 1 });
+        // Reimported after the seed read generation 7.
+        when(datasetGenerations.boundaries()).thenReturn(7L, 8L);
+        Path file = dir.resolve("tiles.bin");
+        Files.write(file, new byte[] { 42 });
+
+        assertThatThrownBy(() -> seeder(file).seed())
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("generation 7 to 8");
+        assertThat(Files.readAllBytes(file)).containsExactly(42);
+        assertThat(Files.list(dir)).containsExactly(file);
+    }
+
+    private TileSeeder seeder(Path output) {
+        return new TileSeeder(mock(ConfigurableApplicationContext.class), mock(JdbcTemplate.class), tileRenderer,
+            datasetGenerations, output.toString(), 0, 0, "5.9,47.3,15.0,55.1", 1);
+    }
+}
@@ -0,0 +1,88 @@
+package com.mapster.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TopoJsonFeatureEncoderTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON = MAPPER.getFactory();
+    private static final FeatureStreamer.FeatureColumns COLUMNS = new FeatureStreamer.FeatureColumns(
+        1, new String[] {"name"}, new int[] {2});
+
+    @Test
+    void emptyTopologyMatchesConstant() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TopoJsonFeatureEncoder(JSON, out, (ids, wkb) -> {
+            throw new AssertionError("no arcs to load");
+        }).finish();
+
+        assertThat(MAPPER.readTree(out.toByteArray())).isEqualTo(MAPPER.readTree(TopoJsonFeatureEncoder.EMPTY_TOPOLOGY));
+    }
+
+    @Test
+    void sharedBorderIsWrittenOnceAndReferencedFromBothSides() throws Exception {
+        // Two squares sharing the border x=1: database arcs 10 (shared, 1,0 -> 1,1), 20 (left), 30 (right).
+        Map<Long, double[]> arcs = Map.of(
+            10L, new double[] {1, 0, 1, 1},
+            20L, new double[] {1, 1, 0, 1, 0, 0, 1, 0},
+            30L, new double[] {1, 0, 2, 0, 2, 1, 1, 1});
+        List<long[]> requested = new ArrayList<>();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TopoJsonFeatureEncoder encoder = new TopoJsonFeatureEncoder(JSON, out, (ids, wkb) -> {
+            requested.add(ids);
+            for (long id : ids) wkb.accept(id == 99 ? null : lineWkb(arcs.get(id)));
+        });
+        encoder.feature(row("[[[10,20]]]", "left"), COLUMNS);
+        encoder.feature(row("[[[-11,30]],[[99]]]", "right"), COLUMNS);
+        encoder.feature(row(null, "nowhere"), COLUMNS);
+        encoder.finish();
+
+        JsonNode topology = MAPPER.readTree(out.toByteArray());
+        JsonNode geometries = topology.at("/objects/areas/geometries");
+        assertThat(geometries.get(0).get("type").asText()).isEqualTo("Polygon");
+        assertThat(geometries.get(0).get("arcs").toString()).isEqualTo("[[0,1]]");
+        assertThat(geometries.get(0).at("/properties/name").asText()).isEqualTo("left");
+        // The shared arc keeps its index and is walked backwards (~0 = -1).
+        assertThat(geometries.get(1).get("type").asText()).isEqualTo("MultiPolygon");
+        assertThat(geometries.get(1).get("arcs").toString()).isEqualTo("[[[-1,2]],[[3]]]");
+        assertThat(geometries.get(2).get("type").isNull()).isTrue();
+
+        assertThat(requested).hasSize(1);
+        assertThat(requested.get(0)).containsExactly(10L, 20L, 30L, 99L);
+        JsonNode written = topology.get("arcs");
+        assertThat(written).hasSize(4);
+        // Quantized to 1e-6 degrees from (-180, -90), then delta-encoded.
+        assertThat(written.get(0).toString()).isEqualTo("[[181000000,90000000],[0,1000000]]");
+        assertThat(written.get(3).toString()).isEqualTo("[]");
+    }
+
+    private static ResultSet row(String refs, String name) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn(refs);
+        when(rs.getObject(2)).thenReturn(name);
+        return rs;
+    }
+
+    private static byte[] lineWkb(double[] xy) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + xy.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 1).putInt(2).putInt(xy.length / 2);
+        for (double v : xy) buffer.putDouble(v);
+        return buffer.array();
+    }
+}
@@ -26,6 +26,9 @@ class WebIndexContractTest {
             s -> assertThat(s).contains("/tiles/{z}/{x}/{y}.mvt")
         );
 
+        // Metric shading joins geometry-free values, fetched per tile, to the admin tiles by area_key.
+        assertThat(html).contains("'/area-metrics/' + tile", "promoteId: { admin: 'area_key' }");
+
         int fillIdx = html.indexOf("id: 'boundaries-fill'");
         int highlightIdx = html.indexOf("id: 'boundaries-highlight'");
         int lineIdx = html.indexOf("id: 'boundaries-line'");
@@ -163,6 +163,167 @@ FROM anc;
 
 CREATE INDEX IF NOT EXISTS admin_area_ancestors_ancestor_key_idx
   ON geo.admin_area_ancestors (ancestor_key);
+
+-- Generalization pyramid: each admin unit simplified once for the depth it is displayed at, stored in 3857 (tiles)
+-- and 4326 (GeoJSON). Tolerances match GeometryPyramid in the API; tolerance 0 keeps depth 5 at full resolution for
+-- tiles beyond zoom 11. The API falls back to per-request simplification while this table is empty.
+CREATE TABLE IF NOT EXISTS geo.admin_areas_generalized (
+  id integer NOT NULL,
+  tolerance_m integer NOT NULL,
+  area_key text NOT NULL,
+  depth smallint NOT NULL,
+  gid_0 text, gid_1 text, gid_2 text, gid_3 text, gid_4 text, gid_5 text,
+  country text, name_1 text, name_2 text, name_3 text, name_4 text, name_5 text,
+  geom_3857 geometry(MultiPolygon, 3857) NOT NULL,
+  geom_4326 geometry(MultiPolygon, 4326) NOT NULL,
+  PRIMARY KEY (id, tolerance_m)
+);
+CREATE INDEX IF NOT EXISTS admin_areas_generalized_geom_3857_idx ON geo.admin_areas_generalized USING gist (geom_3857);
+CREATE INDEX IF NOT EXISTS admin_areas_generalized_geom_4326_idx ON geo.admin_areas_generalized USING gist (geom_4326);
+
+TRUNCATE geo.admin_areas_generalized;
+
+DO $pyramid$
+DECLARE
+  -- Topology-aware: ST_CoverageSimplify (PostGIS 3.4+/GEOS 3.12+) simplifies shared edges once for the whole
+  -- coverage, so neighbouring units keep meeting exactly. Countries form one coverage; deeper levels are simplified
+  -- per country to bound the window size. Older PostGIS falls back to per-polygon ST_SimplifyPreserveTopology.
+  coverage boolean := to_regprocedure('st_coveragesimplify(geometry, double precision, boolean)') IS NOT NULL;
+  simplified text;
+BEGIN
+  IF coverage THEN
+    simplified := 'ST_CoverageSimplify(u.g3857, lv.tolerance_m, true) OVER (PARTITION BY lv.tolerance_m, CASE WHEN u.depth = 0 THEN NULL ELSE u.gid_0 END)';
+  ELSE
+    simplified := 'ST_SimplifyPreserveTopology(u.g3857, lv.tolerance_m)';
+  END IF;
+  RAISE NOTICE 'Building generalized geometries (coverage simplify: %)', coverage;
+
+  EXECUTE format($sql$
+    WITH levels (depth, tolerance_m, snap_m) AS (
+      VALUES (0, 5000, 250), (1, 2000, 100), (2, 800, 50), (3, 250, 20), (4, 80, 5), (5, 20, 2), (5, 0, 0)
+    ), units AS (
+      SELECT DISTINCT ON (gid_0, gid_1, gid_2, gid_3, gid_4, gid_5)
+        id, area_key, depth, gid_0, gid_1, gid_2, gid_3, gid_4, gid_5, country, name_1, name_2, name_3, name_4, name_5,
+        -- Web Mercator is undefined at the poles; clip to its valid latitude range first.
+        ST_Transform(ST_ClipByBox2D(geom, ST_MakeEnvelope(-180, -85.0511, 180, 85.0511, 4326)), 3857) AS g3857
+      FROM geo.admin_areas
+      WHERE geom IS NOT NULL
+      ORDER BY gid_0, gid_1, gid_2, gid_3, gid_4, gid_5, id
+    ), simplified AS (
+      SELECT u.*, lv.tolerance_m, lv.snap_m,
+        CASE WHEN lv.tolerance_m = 0 THEN u.g3857 ELSE %s END AS s3857
+      FROM units u
+      JOIN levels lv ON lv.depth = u.depth
+    ), snapped AS (
+      SELECT s.*,
+        CASE
+          WHEN s.tolerance_m = 0 THEN ST_Multi(s.g3857)
+          -- Snapping maps shared vertices to the same grid point, so shared edges stay shared.
+          ELSE ST_Multi(ST_CollectionExtract(ST_MakeValid(ST_SnapToGrid(s.s3857, s.snap_m)), 3))
+        END AS m3857
+      FROM simplified s
+    )
+    INSERT INTO geo.admin_areas_generalized (
+      id, tolerance_m, area_key, depth, gid_0, gid_1, gid_2, gid_3, gid_4, gid_5,
+      country, name_1, name_2, name_3, name_4, name_5, geom_3857, geom_4326
+    )
+    SELECT id, tolerance_m, area_key, depth, gid_0, gid_1, gid_2, gid_3, gid_4, gid_5,
+      country, name_1, name_2, name_3, name_4, name_5,
+      -- Units that collapse entirely at this tolerance keep their original outline rather than disappearing.
+      g.geom_3857, ST_Transform(g.geom_3857, 4326)
+    FROM snapped,
+      LATERAL (SELECT CASE WHEN m3857 IS NULL OR ST_IsEmpty(m3857) THEN ST_Multi(g3857) ELSE m3857 END AS geom_3857) g
+  $sql$, simplified);
+END
+$pyramid$;
+
+ANALYZE geo.admin_areas_generalized;
+
+-- Shared-border topology (TopoJSON): per pyramid level, split the rings into arcs at the points where units meet so
+-- each border is stored once, then record which arcs trace each ring, in order. Coordinates are snapped to 1e-6 deg
+-- (the precision the API serves) so both sides of a border share identical vertices. Depth 0 is one partition,
+-- deeper levels are partitioned per country like the pyramid. Tolerance 0 (full resolution) is left out.
+CREATE TABLE IF NOT EXISTS geo.admin_area_arcs (
+  id bigint PRIMARY KEY,
+  tolerance_m integer NOT NULL,
+  part text NOT NULL,
+  geom_4326 geometry(LineString, 4326) NOT NULL
+);
+CREATE INDEX IF NOT EXISTS admin_area_arcs_geom_4326_idx ON geo.admin_area_arcs USING gist (geom_4326);
+CREATE TABLE IF NOT EXISTS geo.admin_area_arc_refs (
+  tolerance_m integer NOT NULL,
+  area_id integer NOT NULL,
+  polygon_index integer NOT NULL,
+  ring_index integer NOT NULL,
+  seq integer NOT NULL,
+  arc_id bigint NOT NULL,
+  reversed boolean NOT NULL,
+  PRIMARY KEY (tolerance_m, area_id, polygon_index, ring_index, seq)
+);
+
+TRUNCATE geo.admin_area_arcs, geo.admin_area_arc_refs;
+
+CREATE TEMP TABLE topo_rings AS
+SELECT g.tolerance_m,
+  CASE WHEN g.depth = 0 THEN '' ELSE COALESCE(g.gid_0, '') END AS part,
+  g.id AS area_id,
+  p.path[1] - 1 AS polygon_index,
+  r.path[1] AS ring_index,
+  ST_ExteriorRing(r.geom) AS ring
+FROM geo.admin_areas_generalized g,
+  LATERAL ST_Dump(ST_SnapToGrid(g.geom_4326, 0.000001)) p,
+  LATERAL ST_DumpRings(p.geom) r
+WHERE g.tolerance_m > 0;
+DELETE FROM topo_rings WHERE ST_NPoints(ring) < 4;
+CREATE INDEX ON topo_rings USING gist (ring);
+
+-- ST_Union nodes the rings at every shared vertex; ST_LineMerge joins the pieces back up to the junctions.
+CREATE TEMP TABLE topo_arcs AS
+SELECT row_number() OVER (ORDER BY a.tolerance_m, a.part) AS id, a.tolerance_m, a.part, a.geom
+FROM (
+  SELECT tolerance_m, part, (ST_Dump(ST_LineMerge(ST_Union(ring)))).geom AS geom
+  FROM topo_rings
+  GROUP BY tolerance_m, part
+) a;
+CREATE INDEX ON topo_arcs USING gist (geom);
+
+INSERT INTO geo.admin_area_arc_refs (tolerance_m, area_id, polygon_index, ring_index, seq, arc_id, reversed)
+SELECT tolerance_m, area_id, polygon_index, ring_index,
+  row_number() OVER (PARTITION BY tolerance_m, area_id, polygon_index, ring_index ORDER BY entry) - 1,
+  arc_id, reversed
+FROM (
+  SELECT r.tolerance_m, r.area_id, r.polygon_index, r.ring_index, a.id AS arc_id, d.reversed,
+    CASE WHEN d.reversed THEN ST_LineLocatePoint(r.ring, ST_EndPoint(a.geom)) ELSE d.start END AS entry
+  FROM topo_rings r
+  JOIN topo_arcs a
+    ON a.tolerance_m = r.tolerance_m AND a.part = r.part
+   AND a.geom && r.ring AND ST_Covers(r.ring, a.geom),
+  LATERAL (SELECT ST_LineLocatePoint(r.ring, ST_StartPoint(a.geom)) AS start) s,
+  -- The arc runs against the ring if its second vertex lies "behind" its first one along the ring.
+  LATERAL (SELECT s.start,
+    mod((ST_LineLocatePoint(r.ring, ST_PointN(a.geom, 2)) - s.start + 1)::numeric, 1) >= 0.5 AS reversed) d
+) refs;
+
+INSERT INTO geo.admin_area_arcs (id, tolerance_m, part, geom_4326)
+SELECT id, tolerance_m, part, ST_SetSRID(geom, 4326) FROM topo_arcs;
+
+DROP TABLE topo_rings, topo_arcs;
+
+ANALYZE geo.admin_area_arcs;
+ANALYZE geo.admin_area_arc_refs;
+
+-- Bump the boundaries generation so API replicas drop tiles/caches rendered from the previous import.
+CREATE TABLE IF NOT EXISTS geo.dataset_generation (
+  dataset text PRIMARY KEY,
+  generation bigint NOT NULL DEFAULT 1,
+  updated_at timestamptz NOT NULL DEFAULT now()
+);
+
+INSERT INTO geo.dataset_generation (dataset, generation)
+VALUES ('boundaries', 1)
+ON CONFLICT (dataset) DO UPDATE
+  SET generation = geo.dataset_generation.generation + 1,
+      updated_at = now();
 SQL
 
 echo "Import complete."